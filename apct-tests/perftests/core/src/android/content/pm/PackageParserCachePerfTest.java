@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.FileUtils;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import libcore.io.IoUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures scanning packages whose parse results are already in the {@link PackageParser}
+ * cache, as happens on every boot after the first.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PackageParserCachePerfTest {
+    private static final int MAX_PACKAGES = 50;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mCacheDir;
+    private final List<File> mPackageFiles = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "package_cache");
+        mCacheDir.mkdirs();
+
+        for (String dir : new String[] { "/system/app", "/system/priv-app" }) {
+            final File[] files = new File(dir).listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (mPackageFiles.size() >= MAX_PACKAGES) {
+                    break;
+                }
+                if (PackageParser.isApkFile(file) || file.isDirectory()) {
+                    mPackageFiles.add(file);
+                }
+            }
+        }
+
+        // Populate the cache
+        final PackageParser pp = newParser();
+        for (File file : mPackageFiles) {
+            try {
+                pp.parsePackage(file, 0, true /* useCaches */);
+            } catch (PackageParser.PackageParserException e) {
+                // Not every directory is a package; just don't scan it later
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mCacheDir);
+    }
+
+    private PackageParser newParser() {
+        return setUpParser(new PackageParser());
+    }
+
+    private PackageParser setUpParser(PackageParser pp) {
+        pp.setCacheDir(mCacheDir);
+        return pp;
+    }
+
+    /**
+     * Reads each cache entry into a freshly allocated array before unparcelling it, as
+     * {@link PackageParser} used to.
+     */
+    private static class ReadFullyPackageParser extends PackageParser {
+        @Override
+        protected Package readCacheEntry(File cacheFile) throws IOException {
+            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
+            return fromCacheEntry(bytes, bytes.length);
+        }
+    }
+
+    private void scanCached(PackageParser pp) {
+        for (File file : mPackageFiles) {
+            try {
+                pp.parsePackage(file, 0, true /* useCaches */);
+            } catch (PackageParser.PackageParserException ignored) {
+            }
+        }
+    }
+
+    private static long bytesAllocated() {
+        return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+    }
+
+    private static void reportAllocations(String key, long bytes) {
+        final Bundle status = new Bundle();
+        status.putLong(key, bytes);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private void timeCachedScan(PackageParser pp, String allocationsKey) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            scanCached(pp);
+        }
+
+        final long before = bytesAllocated();
+        scanCached(pp);
+        reportAllocations(allocationsKey, bytesAllocated() - before);
+    }
+
+    @Test
+    public void timeCachedScan() {
+        timeCachedScan(newParser(), "cached_scan_bytes_allocated");
+    }
+
+    /**
+     * Baseline for {@link #timeCachedScan}, going through the same
+     * {@link PackageParser#parsePackage} path with only the cache read replaced.
+     */
+    @Test
+    public void timeCachedScan_readFully() {
+        timeCachedScan(setUpParser(new ReadFullyPackageParser()), "read_fully_bytes_allocated");
+    }
+}
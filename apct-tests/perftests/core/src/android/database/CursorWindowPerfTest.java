@@ -16,6 +16,7 @@
 
 package android.database;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
@@ -47,6 +48,15 @@ public class CursorWindowPerfTest {
 
     private static SQLiteDatabase sDatabase;
 
+    private static final String SCAN_DB_NAME = CursorWindowPerfTest.class.toString() + "_scan";
+
+    private static final int SCAN_ROWS = 10000;
+
+    // Small enough for a scan of the User table to take several windows
+    private static final long SCAN_WINDOW_SIZE = 256 * 1024;
+
+    private static SQLiteDatabase sScanDatabase;
+
     @BeforeClass
     public static void setup() {
         getContext().deleteDatabase(DB_NAME);
@@ -60,11 +70,26 @@ public class CursorWindowPerfTest {
             sDatabase.execSQL(insert, helper.createItem(0));
         }
 
+        getContext().deleteDatabase(SCAN_DB_NAME);
+        sScanDatabase = getContext().openOrCreateDatabase(SCAN_DB_NAME, Context.MODE_PRIVATE,
+                null);
+        sScanDatabase.execSQL(TableHelper.USER.createSql());
+        sScanDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < SCAN_ROWS; i++) {
+                sScanDatabase.execSQL(TableHelper.USER.insertSql(),
+                        TableHelper.USER.createItem(i));
+            }
+            sScanDatabase.setTransactionSuccessful();
+        } finally {
+            sScanDatabase.endTransaction();
+        }
     }
 
     @AfterClass
     public static void teardown() {
         getContext().deleteDatabase(DB_NAME);
+        getContext().deleteDatabase(SCAN_DB_NAME);
     }
 
     @Test
@@ -120,4 +145,64 @@ public class CursorWindowPerfTest {
             }
         }
     }
+
+    /**
+     * Scans a whole table through a cursor in the process that ran the query.
+     */
+    @Test
+    public void scanUser_local() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            try (Cursor cursor = sScanDatabase.rawQuery(TableHelper.USER.readSql(), null)) {
+                scan(cursor);
+            }
+        }
+    }
+
+    /**
+     * Scans a whole table through the bulk cursor adaptors that cross-process cursors go
+     * through, with the provider filling each window when the client asks for it.
+     */
+    @Test
+    public void scanUser_bulkCursor() {
+        scanBulkCursor(-1);
+    }
+
+    /**
+     * Scans a whole table through the bulk cursor adaptors in streaming mode, with the
+     * provider filling the next window ahead of the client.
+     */
+    @Test
+    public void scanUser_bulkCursorStreaming() {
+        scanBulkCursor(SCAN_WINDOW_SIZE);
+    }
+
+    private void scanBulkCursor(long windowSizeHint) {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            BulkCursorToCursorAdaptor cursor = new BulkCursorToCursorAdaptor();
+            Cursor sqliteCursor = sScanDatabase.rawQuery(TableHelper.USER.readSql(), null);
+            CursorToBulkCursorAdaptor adaptor = windowSizeHint > 0
+                    ? new CursorToBulkCursorAdaptor(sqliteCursor, cursor.getObserver(),
+                            SCAN_DB_NAME, windowSizeHint)
+                    : new CursorToBulkCursorAdaptor(sqliteCursor, cursor.getObserver(),
+                            SCAN_DB_NAME);
+            cursor.initialize(adaptor.getBulkCursorDescriptor());
+            try {
+                scan(cursor);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private static void scan(Cursor cursor) {
+        TableHelper.CursorReader reader = TableHelper.USER.createReader(cursor);
+        int rows = 0;
+        while (cursor.moveToNext()) {
+            reader.read();
+            rows++;
+        }
+        assertEquals(SCAN_ROWS, rows);
+    }
 }
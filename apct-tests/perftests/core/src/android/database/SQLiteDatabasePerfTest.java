@@ -19,6 +19,7 @@ package android.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.InstrumentationRegistry;
@@ -246,6 +247,98 @@ public class SQLiteDatabasePerfTest {
         }
     }
 
+    @Test
+    public void testImport10k_insert() {
+        importT1(10000, this::importT1WithInsert);
+    }
+
+    @Test
+    public void testImport10k_insertBatch() {
+        importT1(10000, this::importT1WithInsertBatch);
+    }
+
+    @Test
+    public void testImport10k_executeBatchColumns() {
+        importT1(10000, this::importT1WithBatchColumns);
+    }
+
+    @Test
+    public void testImport100k_insert() {
+        importT1(100000, this::importT1WithInsert);
+    }
+
+    @Test
+    public void testImport100k_insertBatch() {
+        importT1(100000, this::importT1WithInsertBatch);
+    }
+
+    @Test
+    public void testImport100k_executeBatchColumns() {
+        importT1(100000, this::importT1WithBatchColumns);
+    }
+
+    private interface Importer {
+        void importRows(int size);
+    }
+
+    private void importT1(int size, Importer importer) {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            importer.importRows(size);
+            state.pauseTiming();
+            assertEquals(size, mDatabase.delete("T1", null, null));
+            state.resumeTiming();
+        }
+    }
+
+    private void importT1WithInsert(int size) {
+        mDatabase.beginTransaction();
+        try {
+            ContentValues cv = new ContentValues();
+            for (int i = 0; i < size; i++) {
+                cv.put("_ID", i);
+                cv.put("COL_A", i);
+                cv.put("COL_B", "T1Value" + i);
+                cv.put("COL_C", i * 1.1);
+                mDatabase.insert("T1", null, cv);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private void importT1WithInsertBatch(int size) {
+        ContentValues[] rows = new ContentValues[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = new ContentValues();
+            rows[i].put("_ID", i);
+            rows[i].put("COL_A", i);
+            rows[i].put("COL_B", "T1Value" + i);
+            rows[i].put("COL_C", i * 1.1);
+        }
+        assertEquals(size, mDatabase.insertBatchWithOnConflict("T1", null, rows,
+                SQLiteDatabase.CONFLICT_NONE));
+    }
+
+    private void importT1WithBatchColumns(int size) {
+        long[] ids = new long[size];
+        int[] colA = new int[size];
+        String[] colB = new String[size];
+        double[] colC = new double[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = i;
+            colA[i] = i;
+            colB[i] = "T1Value" + i;
+            colC[i] = i * 1.1;
+        }
+        try (SQLiteStatement statement = mDatabase.compileStatement(
+                "INSERT INTO T1 (_ID, COL_A, COL_B, COL_C) VALUES (?, ?, ?, ?)")) {
+            assertEquals(size, statement.executeBatchColumns(
+                    new Object[]{ids, colA, colB, colC}, size));
+        }
+    }
+
     private void insertT1TestDataSet() {
         insertT1TestDataSet(DEFAULT_DATASET_SIZE);
     }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures the arithmetic done on every poll of per-uid stats, over snapshots of 10k rows.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NetworkStatsPerfTest {
+    private static final int ROWS = 10000;
+    private static final String[] IFACES = { "wlan0", "rmnet0", "rmnet1", "v4-rmnet0" };
+    private static final int[] TAGS = { TAG_NONE, 0xF00D, 0xFF00 };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private NetworkStats mBefore;
+    private NetworkStats mAfter;
+
+    @Before
+    public void setUp() {
+        mBefore = buildSnapshot(0, 0);
+        // A poll later, with more traffic and a few new rows at the front, as when a new uid
+        // or interface shows up between polls
+        mAfter = buildSnapshot(1000, 16);
+    }
+
+    private static NetworkStats buildSnapshot(long elapsedRealtime, int newRows) {
+        final NetworkStats stats = new NetworkStats(elapsedRealtime, ROWS + newRows);
+        for (int i = 0; i < newRows; i++) {
+            stats.addValues("wlan1", Process.FIRST_APPLICATION_UID + i, SET_DEFAULT, TAG_NONE,
+                    1024L, 8L, 512L, 4L, 0L);
+        }
+        int row = 0;
+        for (int uid = Process.FIRST_APPLICATION_UID; row < ROWS; uid++) {
+            for (String iface : IFACES) {
+                for (int tag : TAGS) {
+                    for (int set = SET_DEFAULT; set <= SET_FOREGROUND && row < ROWS; set++) {
+                        stats.addValues(iface, uid, set, tag, 4096L + elapsedRealtime, 32L,
+                                2048L + elapsedRealtime, 16L, 0L);
+                        row++;
+                    }
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static void reportAllocations(String key, Runnable operation) {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        operation.run();
+        final int allocCount = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        final Bundle status = new Bundle();
+        status.putInt(key, allocCount);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    @Test
+    public void timeSubtract() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            NetworkStats.subtract(mAfter, mBefore, null, null);
+        }
+    }
+
+    @Test
+    public void timeSubtract_recycled() {
+        final NetworkStats recycle = new NetworkStats(0, mAfter.size());
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            NetworkStats.subtract(mAfter, mBefore, null, null, recycle);
+        }
+        reportAllocations("subtract_recycled_allocs",
+                () -> NetworkStats.subtract(mAfter, mBefore, null, null, recycle));
+    }
+
+    @Test
+    public void timeGroupedByUid() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAfter.groupedByUid();
+        }
+        reportAllocations("grouped_by_uid_allocs", () -> mAfter.groupedByUid());
+    }
+
+    @Test
+    public void timeGroupedByIface() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAfter.groupedByIface();
+        }
+        reportAllocations("grouped_by_iface_allocs", () -> mAfter.groupedByIface());
+    }
+
+    @Test
+    public void timeCombineAllValues() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            final NetworkStats stats = mBefore.clone();
+            state.resumeTiming();
+            stats.combineAllValues(mAfter);
+        }
+    }
+}
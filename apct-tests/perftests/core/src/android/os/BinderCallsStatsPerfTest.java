@@ -29,11 +29,15 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+
 import static org.junit.Assert.assertNull;
 
 
 /**
- * Performance tests for {@link BinderCallsStats}
+ * Performance tests for {@link BinderCallsStats}. With sharding and sampling the overhead of
+ * detailed tracking should stay within a few hundred nanoseconds per call, even while other
+ * threads record calls at the same time.
  */
 @RunWith(AndroidJUnit4.class)
 @LargeTest
@@ -42,6 +46,8 @@ public class BinderCallsStatsPerfTest {
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
     private BinderCallsStats mBinderCallsStats;
+    private final ArrayList<Thread> mBackgroundThreads = new ArrayList<>();
+    private volatile boolean mStopBackgroundCalls;
 
     @Before
     public void setUp() {
@@ -50,6 +56,50 @@ public class BinderCallsStatsPerfTest {
 
     @After
     public void tearDown() {
+        stopBackgroundCalls();
+    }
+
+    /**
+     * Make calls from other threads, the way other binder threads do in a busy process.
+     */
+    private void startBackgroundCalls(int threads) {
+        mStopBackgroundCalls = false;
+        for (int t = 0; t < threads; t++) {
+            final Thread thread = new Thread(() -> {
+                Binder b = new Binder();
+                int i = 0;
+                while (!mStopBackgroundCalls) {
+                    BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, i % 100);
+                    mBinderCallsStats.callEnded(s);
+                    i++;
+                }
+            });
+            thread.start();
+            mBackgroundThreads.add(thread);
+        }
+    }
+
+    private void stopBackgroundCalls() {
+        mStopBackgroundCalls = true;
+        for (Thread thread : mBackgroundThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mBackgroundThreads.clear();
+    }
+
+    private void timeCalls() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        Binder b = new Binder();
+        int i = 0;
+        while (state.keepRunning()) {
+            BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, i % 100);
+            mBinderCallsStats.callEnded(s);
+            i++;
+        }
     }
 
     @Test
@@ -75,4 +125,37 @@ public class BinderCallsStatsPerfTest {
         }
     }
 
+    @Test
+    public void timeCallSessionSharded() {
+        mBinderCallsStats.setSharded(true);
+        timeCalls();
+    }
+
+    @Test
+    public void timeCallSessionSampled() {
+        mBinderCallsStats.setSharded(true);
+        mBinderCallsStats.setSamplingInterval(10);
+        timeCalls();
+    }
+
+    @Test
+    public void timeCallSessionContended() {
+        startBackgroundCalls(3);
+        timeCalls();
+    }
+
+    @Test
+    public void timeCallSessionContendedSharded() {
+        mBinderCallsStats.setSharded(true);
+        startBackgroundCalls(3);
+        timeCalls();
+    }
+
+    @Test
+    public void timeCallSessionContendedSampled() {
+        mBinderCallsStats.setSharded(true);
+        mBinderCallsStats.setSamplingInterval(10);
+        startBackgroundCalls(3);
+        timeCalls();
+    }
 }
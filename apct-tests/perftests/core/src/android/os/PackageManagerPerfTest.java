@@ -23,6 +23,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.InstrumentationRegistry;
@@ -80,6 +81,32 @@ public class PackageManagerPerfTest {
         }
     }
 
+    @Test
+    public void testQueryIntentActivities_webUrl() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm = InstrumentationRegistry.getTargetContext().getPackageManager();
+        final Intent intent = new Intent(Intent.ACTION_VIEW,
+                Uri.parse("https://www.example.com/some/path?q=1"));
+        intent.addCategory(Intent.CATEGORY_BROWSABLE);
+
+        while (state.keepRunning()) {
+            pm.queryIntentActivities(intent, 0);
+        }
+    }
+
+    @Test
+    public void testQueryIntentActivities_webUrlMatchAll() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm = InstrumentationRegistry.getTargetContext().getPackageManager();
+        final Intent intent = new Intent(Intent.ACTION_VIEW,
+                Uri.parse("http://m.example.org/"));
+        intent.addCategory(Intent.CATEGORY_BROWSABLE);
+
+        while (state.keepRunning()) {
+            pm.queryIntentActivities(intent, PackageManager.MATCH_ALL);
+        }
+    }
+
     @Test
     public void testGetPackageInfo() throws Exception {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
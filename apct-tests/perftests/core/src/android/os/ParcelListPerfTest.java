@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.app.Activity;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ParceledListSlice;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Measures parceling a large list of {@link ApplicationInfo}, as returned by the package
+ * manager, with and without string pooling.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ParcelListPerfTest {
+    private static final int ITEMS = 500;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final ArrayList<ApplicationInfo> mList = new ArrayList<>();
+    private Parcel mParcel;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < ITEMS; i++) {
+            final ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.app" + i;
+            info.processName = info.packageName;
+            info.taskAffinity = info.packageName;
+            info.className = "android.app.Application";
+            info.permission = "android.permission.BIND_JOB_SERVICE";
+            info.sourceDir = "/data/app/" + info.packageName + "/base.apk";
+            info.publicSourceDir = info.sourceDir;
+            info.dataDir = "/data/user/0/" + info.packageName;
+            info.nativeLibraryDir = "/system/lib64";
+            info.seInfo = "default:targetSdkVersion=28";
+            info.uid = Process.FIRST_APPLICATION_UID + i;
+            info.targetSdkVersion = Build.VERSION_CODES.P;
+            mList.add(info);
+        }
+        mParcel = Parcel.obtain();
+    }
+
+    @After
+    public void tearDown() {
+        mParcel.recycle();
+        mParcel = null;
+    }
+
+    private void reportSize(String key) {
+        final Bundle status = new Bundle();
+        status.putInt(key, mParcel.dataSize());
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    @Test
+    public void timeWriteTypedList() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataSize(0);
+            mParcel.writeTypedList(mList);
+        }
+        reportSize("typed_list_bytes");
+    }
+
+    @Test
+    public void timeWritePooledTypedList() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataSize(0);
+            mParcel.writePooledTypedList(mList, 0);
+        }
+        reportSize("pooled_typed_list_bytes");
+    }
+
+    @Test
+    public void timeReadTypedList() {
+        mParcel.writeTypedList(mList);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            mParcel.createTypedArrayList(ApplicationInfo.CREATOR);
+        }
+    }
+
+    @Test
+    public void timeReadPooledTypedList() {
+        mParcel.writePooledTypedList(mList, 0);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            mParcel.createPooledTypedArrayList(ApplicationInfo.CREATOR);
+        }
+    }
+
+    private void timeParceledListSlice(boolean poolStrings) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final ParceledListSlice<ApplicationInfo> slice = new ParceledListSlice<>(mList);
+            slice.setPoolStrings(poolStrings);
+            mParcel.setDataSize(0);
+            slice.writeToParcel(mParcel, 0);
+            mParcel.setDataPosition(0);
+            ParceledListSlice.CREATOR.createFromParcel(mParcel);
+        }
+    }
+
+    @Test
+    public void timeParceledListSlice() {
+        timeParceledListSlice(false);
+        reportSize("list_slice_bytes");
+    }
+
+    @Test
+    public void timeParceledListSlice_pooled() {
+        timeParceledListSlice(true);
+        reportSize("pooled_list_slice_bytes");
+    }
+}
@@ -16,6 +16,7 @@
 
 package android.os;
 
+import android.app.QueuedWork;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.perftests.utils.BenchmarkState;
@@ -34,6 +35,44 @@ public class SharedPreferencesTest {
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
 
+    private SharedPreferences getPrefsWithValues() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final SharedPreferences prefs = context.getSharedPreferences("perftest",
+                Context.MODE_PRIVATE);
+        final SharedPreferences.Editor editor = prefs.edit();
+        for (int i = 0; i < 200; i++) {
+            editor.putString("key" + i, "value" + i);
+        }
+        editor.commit();
+        return prefs;
+    }
+
+    /**
+     * Measures an apply() followed by flushing queued work, as {@code Activity.onPause} does.
+     * With persist.sys.prefs.journal set this appends a delta instead of rewriting the file,
+     * and doesn't wait for a fsync.
+     */
+    @Test
+    public void timeApplyAndWaitToFinish() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final SharedPreferences prefs = getPrefsWithValues();
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("counter", i++).apply();
+            QueuedWork.waitToFinish();
+        }
+    }
+
+    @Test
+    public void timeCommit() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final SharedPreferences prefs = getPrefsWithValues();
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("counter", i++).commit();
+        }
+    }
+
     @Test
     public void timeCachedGetSharedPreferences() {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
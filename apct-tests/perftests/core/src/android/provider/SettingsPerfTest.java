@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.os.Debug;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures reading global settings, and how many binder calls the reads take. With settings
+ * snapshots enabled (persist.sys.settings.snapshots) a cold cache is filled by a single call.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SettingsPerfTest {
+    private static final String[] NAMES = {
+            Settings.Global.ADB_ENABLED,
+            Settings.Global.AIRPLANE_MODE_ON,
+            Settings.Global.AUTO_TIME,
+            Settings.Global.AUTO_TIME_ZONE,
+            Settings.Global.BLUETOOTH_ON,
+            Settings.Global.DATA_ROAMING,
+            Settings.Global.DEVELOPMENT_SETTINGS_ENABLED,
+            Settings.Global.DEVICE_PROVISIONED,
+            Settings.Global.MOBILE_DATA,
+            Settings.Global.STAY_ON_WHILE_PLUGGED_IN,
+            Settings.Global.TRANSITION_ANIMATION_SCALE,
+            Settings.Global.WIFI_ON,
+            Settings.Global.WINDOW_ANIMATION_SCALE,
+            "perftest_unset_setting",
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+    }
+
+    private void readAll() {
+        for (String name : NAMES) {
+            Settings.Global.getString(mResolver, name);
+        }
+    }
+
+    private static void reportBinderCalls(String key, int calls) {
+        final Bundle status = new Bundle();
+        status.putInt(key, calls);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    @Test
+    public void timeGetString_cached() {
+        readAll();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            Settings.Global.getString(mResolver, Settings.Global.AIRPLANE_MODE_ON);
+        }
+    }
+
+    /**
+     * Reads every setting with an empty cache, as a process does after a settings write bumps
+     * the generation of the table.
+     */
+    @Test
+    public void timeGetString_coldCache() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            Settings.Global.clearProviderForTest();
+            state.resumeTiming();
+            readAll();
+        }
+
+        Settings.Global.clearProviderForTest();
+        final int before = Debug.getBinderSentTransactions();
+        readAll();
+        reportBinderCalls("cold_cache_binder_calls", Debug.getBinderSentTransactions() - before);
+    }
+}
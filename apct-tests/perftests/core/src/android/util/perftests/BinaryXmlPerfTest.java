@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.perftests;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Xml;
+
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.FastXmlSerializer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares text and binary XML on a document shaped like packages.xml on a device with
+ * {@link #PACKAGE_COUNT} packages installed.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BinaryXmlPerfTest {
+    private static final int PACKAGE_COUNT = 400;
+    private static final int PERMS_PER_PACKAGE = 12;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static void writePackages(XmlSerializer out) throws Exception {
+        out.startDocument(null, true);
+        out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        out.startTag(null, "packages");
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            final String name = "com.example.package" + i;
+            out.startTag(null, "package");
+            out.attribute(null, "name", name);
+            out.attribute(null, "codePath", "/data/app/" + name + "-1");
+            out.attribute(null, "nativeLibraryPath", "/data/app/" + name + "-1/lib");
+            out.attribute(null, "publicFlags", "944291524");
+            out.attribute(null, "privateFlags", "0");
+            out.attribute(null, "ft", "16412b6c2f0");
+            out.attribute(null, "it", "16412b6c2f0");
+            out.attribute(null, "ut", "16412b6c2f0");
+            out.attribute(null, "version", Integer.toString(i));
+            out.attribute(null, "userId", Integer.toString(10000 + i));
+            out.startTag(null, "sigs");
+            out.attribute(null, "count", "1");
+            out.startTag(null, "cert");
+            out.attribute(null, "index", Integer.toString(i % 8));
+            out.endTag(null, "cert");
+            out.endTag(null, "sigs");
+            out.startTag(null, "perms");
+            for (int j = 0; j < PERMS_PER_PACKAGE; j++) {
+                out.startTag(null, "item");
+                out.attribute(null, "name", "android.permission.PERMISSION_" + j);
+                out.attribute(null, "granted", "true");
+                out.attribute(null, "flags", "0");
+                out.endTag(null, "item");
+            }
+            out.endTag(null, "perms");
+            out.endTag(null, "package");
+        }
+        out.endTag(null, "packages");
+        out.endDocument();
+    }
+
+    private static byte[] write(XmlSerializer out) throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        writePackages(out);
+        return os.toByteArray();
+    }
+
+    private static int readAll(XmlPullParser in, byte[] data) throws Exception {
+        in.setInput(new ByteArrayInputStream(data), StandardCharsets.UTF_8.name());
+        int attributes = 0;
+        int type;
+        while ((type = in.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type == XmlPullParser.START_TAG) {
+                attributes += in.getAttributeCount();
+            }
+        }
+        return attributes;
+    }
+
+    private static void reportSize(String key, int bytes) {
+        final Bundle status = new Bundle();
+        status.putInt(key, bytes);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    @Test
+    public void timeWrite_text() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        byte[] data = null;
+        while (state.keepRunning()) {
+            data = write(new FastXmlSerializer());
+        }
+        reportSize("bytes_text", data.length);
+    }
+
+    @Test
+    public void timeWrite_binary() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        byte[] data = null;
+        while (state.keepRunning()) {
+            data = write(new BinaryXmlSerializer());
+        }
+        reportSize("bytes_binary", data.length);
+    }
+
+    @Test
+    public void timeRead_text() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final byte[] data = write(new FastXmlSerializer());
+        while (state.keepRunning()) {
+            readAll(Xml.newPullParser(), data);
+        }
+    }
+
+    @Test
+    public void timeRead_binary() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final byte[] data = write(new BinaryXmlSerializer());
+        while (state.keepRunning()) {
+            readAll(new BinaryXmlPullParser(), data);
+        }
+    }
+}
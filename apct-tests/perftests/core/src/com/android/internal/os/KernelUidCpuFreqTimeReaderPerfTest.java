@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Debug;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Measures delta reads of a synthetic /proc/uid_cpupower/time_in_state with 5000 uids, of which
+ * one in ten has new cpu time on each read.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class KernelUidCpuFreqTimeReaderPerfTest {
+    private static final int UIDS = 5000;
+    private static final int CHANGED_UID_INTERVAL = 10;
+    private static final long[] FREQS = {
+            300000, 576000, 748800, 998400, 1209600, 1324800, 1516800, 1612800, 1708800,
+            825600, 1132800, 1363200, 1593600, 1747200, 1996800, 2227200, 2476800
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private ByteBuffer mProcContents;
+    private int mRead;
+
+    /**
+     * Returns the synthetic proc file instead of reading one from disk.
+     */
+    private class FakeProcReader extends KernelCpuProcReader {
+        FakeProcReader() {
+            super("/proc/uid_cpupower/time_in_state");
+        }
+
+        @Override
+        public ByteBuffer readBytes() {
+            return mProcContents.duplicate().order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private final KernelUidCpuFreqTimeReader.Callback mCallback = (uid, cpuFreqTimeMs) -> { };
+
+    @Before
+    public void setUp() {
+        final int stride = FREQS.length + 1;
+        mProcContents = ByteBuffer.allocate((1 + UIDS * stride) * 4)
+                .order(ByteOrder.nativeOrder());
+        mProcContents.putInt(FREQS.length);
+        for (int i = 0; i < UIDS; i++) {
+            mProcContents.putInt(10000 + i);
+            for (int j = 0; j < FREQS.length; j++) {
+                mProcContents.putInt(i + j);
+            }
+        }
+        mProcContents.flip();
+    }
+
+    /**
+     * Adds cpu time to some of the uids, like the kernel does between two reads.
+     */
+    private void advanceTimes() {
+        final int stride = FREQS.length + 1;
+        mRead++;
+        for (int i = mRead % CHANGED_UID_INTERVAL; i < UIDS; i += CHANGED_UID_INTERVAL) {
+            final int pos = (1 + i * stride + 1 + mRead % FREQS.length) * 4;
+            mProcContents.putInt(pos, mProcContents.getInt(pos) + 1);
+        }
+    }
+
+    private KernelUidCpuFreqTimeReader createReader(boolean packedSnapshots) throws Exception {
+        final KernelUidCpuFreqTimeReader reader =
+                new KernelUidCpuFreqTimeReader(new FakeProcReader());
+        reader.setPackedSnapshots(packedSnapshots);
+        final StringBuilder freqsLine = new StringBuilder("uid:");
+        for (long freq : FREQS) {
+            freqsLine.append(' ').append(freq);
+        }
+        reader.readFreqs(new BufferedReader(new StringReader(freqsLine.toString())),
+                new PowerProfile(InstrumentationRegistry.getTargetContext()));
+        // The first read reports every uid
+        reader.readDeltaImpl(mCallback);
+        return reader;
+    }
+
+    private void timeReadDelta(boolean packedSnapshots, String key) throws Exception {
+        final KernelUidCpuFreqTimeReader reader = createReader(packedSnapshots);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            advanceTimes();
+            state.resumeTiming();
+            reader.readDeltaImpl(mCallback);
+        }
+
+        advanceTimes();
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        reader.readDeltaImpl(mCallback);
+        final int allocCount = Debug.getThreadAllocCount();
+        final int allocSize = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        final Bundle status = new Bundle();
+        status.putInt(key + "_alloc_count", allocCount);
+        status.putInt(key + "_alloc_bytes", allocSize);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    @Test
+    public void timeReadDelta() throws Exception {
+        timeReadDelta(false, "read_delta");
+    }
+
+    @Test
+    public void timeReadDelta_packed() throws Exception {
+        timeReadDelta(true, "read_delta_packed");
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.NetworkStats.SET_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStatsHistory.FIELD_ALL;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.app.Activity;
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.telephony.TelephonyManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+/**
+ * Measures summary and history queries over a month of per-uid stats, loaded on the heap as a
+ * {@link NetworkStatsCollection} and mapped as a {@link NetworkStatsColumnarCollection}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NetworkStatsCollectionPerfTest {
+    private static final String TEST_IMSI = "310260000000000";
+    private static final long BUCKET_DURATION = 2 * HOUR_IN_MILLIS;
+    private static final long START = 1_500_000_000_000L;
+    private static final long END = START + 30 * DAY_IN_MILLIS;
+    private static final int UIDS = 300;
+    private static final int TAGS = 3;
+    private static final int QUERY_UID = Process.FIRST_APPLICATION_UID + UIDS / 2;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final NetworkTemplate mTemplate = NetworkTemplate.buildTemplateMobileAll(TEST_IMSI);
+    private NetworkStatsCollection mCollection;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        NetworkTemplate.forceAllNetworkTypes();
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+
+        mCollection = new NetworkStatsCollection(BUCKET_DURATION);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < UIDS; i++) {
+            final int uid = Process.FIRST_APPLICATION_UID + i;
+            for (int tag = 0; tag <= TAGS; tag++) {
+                for (long time = START; time < END; time += BUCKET_DURATION) {
+                    entry.rxBytes = 4096 + i;
+                    entry.rxPackets = 4;
+                    entry.txBytes = 1024 + tag;
+                    entry.txPackets = 2;
+                    entry.operations = 0;
+                    final int set = (time / BUCKET_DURATION) % 2 == 0
+                            ? SET_DEFAULT : SET_FOREGROUND;
+                    mCollection.recordData(ident, uid, set, tag == 0 ? TAG_NONE : tag,
+                            time, time + BUCKET_DURATION, entry);
+                }
+            }
+        }
+
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "netstats.columnar");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mFile)))) {
+            NetworkStatsColumnarCollection.write(mCollection, BUCKET_DURATION, out);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private void reportSummaryAllocations(NetworkStatsQueryable stats) {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        querySummary(stats);
+        final int allocSize = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        final Bundle status = new Bundle();
+        status.putInt("summary_alloc_bytes", allocSize);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private void querySummary(NetworkStatsQueryable stats) {
+        stats.getSummary(mTemplate, END - 7 * DAY_IN_MILLIS, END,
+                NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+    }
+
+    private void queryHistory(NetworkStatsQueryable stats) {
+        stats.getHistory(mTemplate, null, QUERY_UID, SET_ALL, TAG_NONE, FIELD_ALL,
+                START, END, NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+    }
+
+    @Test
+    public void timeLoad_collection() throws Exception {
+        final File file = new File(mFile.getParentFile(), "netstats.bin");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            mCollection.write(out);
+        }
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final NetworkStatsCollection collection = new NetworkStatsCollection(BUCKET_DURATION);
+            try (FileInputStream in = new FileInputStream(file)) {
+                collection.read(in);
+            }
+            queryHistory(collection);
+        }
+        file.delete();
+    }
+
+    @Test
+    public void timeLoad_columnar() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final NetworkStatsColumnarCollection columnar =
+                    NetworkStatsColumnarCollection.map(mFile);
+            queryHistory(columnar);
+            columnar.release();
+        }
+    }
+
+    @Test
+    public void timeGetSummary_collection() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            querySummary(mCollection);
+        }
+        reportSummaryAllocations(mCollection);
+    }
+
+    @Test
+    public void timeGetSummary_columnar() throws Exception {
+        final NetworkStatsColumnarCollection columnar = NetworkStatsColumnarCollection.map(mFile);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            querySummary(columnar);
+        }
+        reportSummaryAllocations(columnar);
+        columnar.release();
+    }
+
+    @Test
+    public void timeGetHistory_collection() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            queryHistory(mCollection);
+        }
+    }
+
+    @Test
+    public void timeGetHistory_columnar() throws Exception {
+        final NetworkStatsColumnarCollection columnar = NetworkStatsColumnarCollection.map(mFile);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            queryHistory(columnar);
+        }
+        columnar.release();
+    }
+}
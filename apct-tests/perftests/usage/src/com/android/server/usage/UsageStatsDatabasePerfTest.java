@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.Activity;
+import android.app.usage.EventList;
+import android.app.usage.UsageEvents;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.FileUtils;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.AtomicFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Measures reading a busy day of usage stats from disk, in full and for a single package, with
+ * the XML and the binary file formats.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class UsageStatsDatabasePerfTest {
+    private static final long BEGIN_TIME = 1_500_000_000_000L;
+    private static final int PACKAGES = 200;
+    private static final int EVENTS = 20000;
+    private static final String QUERY_PACKAGE = packageName(PACKAGES / 2);
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mDir;
+    private AtomicFile mXmlFile;
+    private AtomicFile mBinaryFile;
+
+    private static String packageName(int i) {
+        return "com.android.perftest.package" + i;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "usagestats");
+        new File(mDir, "xml").mkdirs();
+        new File(mDir, "binary").mkdirs();
+
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = BEGIN_TIME;
+        stats.events = new EventList();
+        for (int i = 0; i < EVENTS; i++) {
+            final String packageName = packageName(i % PACKAGES);
+            final long time = BEGIN_TIME + i * 1000;
+            final int type = (i / PACKAGES) % 2 == 0 ? UsageEvents.Event.MOVE_TO_FOREGROUND
+                    : UsageEvents.Event.MOVE_TO_BACKGROUND;
+            stats.update(packageName, time, type);
+            final UsageEvents.Event event = stats.buildEvent(packageName, ".MainActivity");
+            event.mTimeStamp = time;
+            event.mEventType = type;
+            stats.events.insert(event);
+        }
+
+        final String name = Long.toString(BEGIN_TIME);
+        mXmlFile = new AtomicFile(new File(new File(mDir, "xml"), name));
+        mBinaryFile = new AtomicFile(new File(new File(mDir, "binary"), name));
+        try (FileOutputStream out = new FileOutputStream(mXmlFile.getBaseFile())) {
+            UsageStatsXml.write(out, stats);
+        }
+        try (FileOutputStream out = new FileOutputStream(mBinaryFile.getBaseFile())) {
+            UsageStatsBinary.write(out, stats);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    private static long bytesAllocated() {
+        return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+    }
+
+    private static void reportAllocations(String key, long bytes) {
+        final Bundle status = new Bundle();
+        status.putLong(key, bytes);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private void timeRead(AtomicFile file, String packageName, String allocationsKey)
+            throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            UsageStatsDatabase.readStatsFile(file, new IntervalStats(), packageName);
+        }
+
+        final long before = bytesAllocated();
+        UsageStatsDatabase.readStatsFile(file, new IntervalStats(), packageName);
+        reportAllocations(allocationsKey, bytesAllocated() - before);
+    }
+
+    @Test
+    public void timeQueryPackage_xml() throws Exception {
+        timeRead(mXmlFile, QUERY_PACKAGE, "query_package_xml_bytes_allocated");
+    }
+
+    @Test
+    public void timeQueryPackage_binary() throws Exception {
+        timeRead(mBinaryFile, QUERY_PACKAGE, "query_package_binary_bytes_allocated");
+    }
+
+    @Test
+    public void timeReadAll_xml() throws Exception {
+        timeRead(mXmlFile, null, "read_all_xml_bytes_allocated");
+    }
+
+    @Test
+    public void timeReadAll_binary() throws Exception {
+        timeRead(mBinaryFile, null, "read_all_binary_bytes_allocated");
+    }
+}
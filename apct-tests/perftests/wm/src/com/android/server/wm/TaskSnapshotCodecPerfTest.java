@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Bundle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Measures encoding and decoding a task snapshot with each {@link TaskSnapshotCodec}, and reports
+ * the size of the encoded file.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class TaskSnapshotCodecPerfTest {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Bitmap mBitmap;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mBitmap = createSnapshotLikeBitmap();
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        mBitmap.recycle();
+        mFile.delete();
+    }
+
+    /**
+     * Draws something like an app: a status bar, a toolbar and a list of rows of text-sized
+     * blocks on a flat background.
+     */
+    private static Bitmap createSnapshotLikeBitmap() {
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final Paint paint = new Paint();
+        canvas.drawColor(Color.WHITE);
+        paint.setColor(0xff303f9f);
+        canvas.drawRect(0, 0, WIDTH, 72, paint);
+        paint.setColor(0xff3f51b5);
+        canvas.drawRect(0, 72, WIDTH, 240, paint);
+        paint.setAntiAlias(true);
+        for (int row = 0; row < 14; row++) {
+            final int top = 280 + row * 120;
+            paint.setColor(0xffcccccc);
+            canvas.drawCircle(80, top + 40, 40, paint);
+            paint.setColor(0xff212121);
+            for (int word = 0; word < 6; word++) {
+                final int left = 160 + word * 140 + (row * 37 + word * 13) % 40;
+                canvas.drawRoundRect(left, top + 16, left + 110, top + 40, 6, 6, paint);
+            }
+        }
+        return bitmap;
+    }
+
+    private void encodeToFile(TaskSnapshotCodec codec) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(mFile))) {
+            codec.encode(mBitmap, out);
+        }
+    }
+
+    private void reportFileSize(String key) {
+        final Bundle status = new Bundle();
+        status.putLong(key, mFile.length());
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private void timeEncode(TaskSnapshotCodec codec) throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            encodeToFile(codec);
+        }
+    }
+
+    private void timeDecode(TaskSnapshotCodec codec) throws IOException {
+        encodeToFile(codec);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final Bitmap bitmap = codec.decode(mFile, Config.HARDWARE);
+            state.pauseTiming();
+            bitmap.recycle();
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void timeEncode_jpeg() throws Exception {
+        timeEncode(TaskSnapshotCodec.JPEG);
+        reportFileSize("jpeg_bytes");
+    }
+
+    @Test
+    public void timeEncode_raw() throws Exception {
+        timeEncode(TaskSnapshotCodec.RAW);
+        reportFileSize("raw_bytes");
+    }
+
+    @Test
+    public void timeDecode_jpeg() throws Exception {
+        timeDecode(TaskSnapshotCodec.JPEG);
+    }
+
+    @Test
+    public void timeDecode_raw() throws Exception {
+        timeDecode(TaskSnapshotCodec.RAW);
+    }
+}
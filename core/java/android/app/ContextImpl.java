@@ -538,6 +538,8 @@ class ContextImpl extends Context {
 
             prefs.delete();
             prefsBackup.delete();
+            SharedPreferencesImpl.makeJournalFile(prefs).delete();
+            SharedPreferencesImpl.makeOldJournalFile(prefs).delete();
 
             // We failed if files are still lingering
             return !(prefs.exists() || prefsBackup.exists());
@@ -17,32 +17,46 @@
 package android.app;
 
 import android.annotation.Nullable;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
+import android.os.SystemProperties;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructStat;
 import android.system.StructTimespec;
 import android.util.Log;
+import android.util.Xml;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ExponentiallyBucketedHistogram;
+import com.android.internal.util.RecordJournal;
 import com.android.internal.util.XmlUtils;
 
 import dalvik.system.BlockGuard;
 
 import libcore.io.IoUtils;
 
+import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -51,7 +65,8 @@ import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
 
-final class SharedPreferencesImpl implements SharedPreferences {
+/** @hide */
+public final class SharedPreferencesImpl implements SharedPreferences {
     private static final String TAG = "SharedPreferencesImpl";
     private static final boolean DEBUG = false;
     private static final Object CONTENT = new Object();
@@ -59,12 +74,36 @@ final class SharedPreferencesImpl implements SharedPreferences {
     /** If a fsync takes more than {@value #MAX_FSYNC_DURATION_MILLIS} ms, warn */
     private static final long MAX_FSYNC_DURATION_MILLIS = 256;
 
+    /**
+     * Whether changes are appended to a journal of deltas next to the preferences file instead
+     * of rewriting the whole file. In this mode apply() never waits for a fsync, not even when
+     * flushed by {@link QueuedWork#waitToFinish}, as journaled changes are synced in batches in
+     * the background; and reads during loading return as soon as the value of their key is
+     * known. Preferences opened with {@link Context#MODE_MULTI_PROCESS} are never journaled,
+     * since other processes only read the file itself.
+     */
+    private static final boolean JOURNAL_ENABLED =
+            SystemProperties.getBoolean("persist.sys.prefs.journal", false);
+
+    /** Journaled apply()s are synced to disk at most this long after being written */
+    private static final long JOURNAL_SYNC_DELAY_MILLIS = 1000;
+
+    /** Deltas larger than this rewrite the whole file instead */
+    private static final int MAX_JOURNAL_RECORD_SIZE = 256 * 1024;
+
+    /** The journal is folded into the file once it's larger than both this and the file */
+    private static final long MIN_JOURNAL_COMPACTION_SIZE = 32 * 1024;
+
     // Lock ordering rules:
     //  - acquire SharedPreferencesImpl.mLock before EditorImpl.mLock
     //  - acquire mWritingToDiskLock before EditorImpl.mLock
 
     private final File mFile;
     private final File mBackupFile;
+    private final boolean mJournaled;
+    private final RecordJournal mJournal;
+    /** Journal set aside while a compaction folds it into the file */
+    private final RecordJournal mOldJournal;
     private final int mMode;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
@@ -90,6 +129,24 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
             new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
 
+    /** Changes committed to memory but not yet journaled */
+    @GuardedBy("mLock")
+    private JournalDelta mPendingDelta;
+
+    @GuardedBy("mLock")
+    private boolean mJournalSyncScheduled;
+
+    @GuardedBy("mLock")
+    private boolean mCompactionScheduled;
+
+    /** While loading in journaled mode, the journal and the part of the file read so far */
+    @GuardedBy("mLock")
+    private JournalDelta mLoadingJournal;
+    @GuardedBy("mLock")
+    private HashMap<String, Object> mLoadingMap;
+    @GuardedBy("mLock")
+    private int mLoadingKeyWaiters;
+
     /** Current memory state (always increasing) */
     @GuardedBy("this")
     private long mCurrentMemoryStateGeneration;
@@ -103,9 +160,21 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final ExponentiallyBucketedHistogram mSyncTimes = new ExponentiallyBucketedHistogram(16);
     private int mNumSync = 0;
 
+    /** Number of times the whole file was written, which makes any journal redundant */
+    @GuardedBy("mWritingToDiskLock")
+    private int mNumFileWrites = 0;
+
     SharedPreferencesImpl(File file, int mode) {
+        this(file, mode, JOURNAL_ENABLED);
+    }
+
+    @VisibleForTesting
+    public SharedPreferencesImpl(File file, int mode, boolean journal) {
         mFile = file;
         mBackupFile = makeBackupFile(file);
+        mJournaled = journal && (mode & Context.MODE_MULTI_PROCESS) == 0;
+        mJournal = new RecordJournal(makeJournalFile(file));
+        mOldJournal = new RecordJournal(makeOldJournalFile(file));
         mMode = mode;
         mLoaded = false;
         mMap = null;
@@ -144,22 +213,45 @@ final class SharedPreferencesImpl implements SharedPreferences {
         StructStat stat = null;
         Throwable thrown = null;
         try {
-            stat = Os.stat(mFile.getPath());
-            if (mFile.canRead()) {
+            // The journal is read first, as it decides which values in the file still count
+            final JournalDelta journal = readJournal();
+            if (mJournaled) {
+                synchronized (mLock) {
+                    mLoadingJournal = journal;
+                    mLoadingMap = new HashMap<>();
+                    mLock.notifyAll();
+                }
+            }
+
+            try {
+                stat = Os.stat(mFile.getPath());
+            } catch (ErrnoException e) {
+                // An errno exception means the stat failed. Treat as empty/non-existing by
+                // ignoring.
+            }
+            if (stat != null && mFile.canRead()) {
                 BufferedInputStream str = null;
                 try {
                     str = new BufferedInputStream(
                             new FileInputStream(mFile), 16 * 1024);
-                    map = (Map<String, Object>) XmlUtils.readMapXml(str);
+                    if (mJournaled) {
+                        map = readMapXmlIncrementally(str);
+                    } else {
+                        map = (Map<String, Object>) XmlUtils.readMapXml(str);
+                    }
                 } catch (Exception e) {
                     Log.w(TAG, "Cannot read " + mFile.getAbsolutePath(), e);
                 } finally {
                     IoUtils.closeQuietly(str);
                 }
             }
-        } catch (ErrnoException e) {
-            // An errno exception means the stat failed. Treat as empty/non-existing by
-            // ignoring.
+
+            if (!journal.isEmpty()) {
+                if (map == null) {
+                    map = new HashMap<>();
+                }
+                journal.applyTo(map);
+            }
         } catch (Throwable t) {
             thrown = t;
         }
@@ -167,6 +259,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
         synchronized (mLock) {
             mLoaded = true;
             mThrowable = thrown;
+            mLoadingJournal = null;
+            mLoadingMap = null;
 
             // It's important that we always signal waiters, even if we'll make
             // them fail with an exception. The try-finally is pretty wide, but
@@ -175,8 +269,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 if (thrown == null) {
                     if (map != null) {
                         mMap = map;
-                        mStatTimestamp = stat.st_mtim;
-                        mStatSize = stat.st_size;
+                        if (stat != null) {
+                            mStatTimestamp = stat.st_mtim;
+                            mStatSize = stat.st_size;
+                        }
                     } else {
                         mMap = new HashMap<>();
                     }
@@ -191,10 +287,76 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
     }
 
+    /**
+     * Read a map written by {@link XmlUtils#writeMapXml} into {@link #mLoadingMap} one entry
+     * at a time, so that readers waiting for a key can proceed as soon as it's been read.
+     */
+    private HashMap<String, Object> readMapXmlIncrementally(InputStream in)
+            throws XmlPullParserException, IOException {
+        final XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(in, StandardCharsets.UTF_8.name());
+        int type;
+        while ((type = parser.next()) != XmlPullParser.START_TAG
+                && type != XmlPullParser.END_DOCUMENT) {
+        }
+        if (type != XmlPullParser.START_TAG || !"map".equals(parser.getName())) {
+            throw new XmlPullParserException("Expected map, got " + parser.getName());
+        }
+
+        final HashMap<String, Object> map;
+        synchronized (mLock) {
+            map = mLoadingMap;
+        }
+        final String[] name = new String[1];
+        final int outerDepth = parser.getDepth();
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type != XmlPullParser.START_TAG) {
+                continue;
+            }
+            final Object value = XmlUtils.readValueXml(parser, name);
+            synchronized (mLock) {
+                map.put(name[0], value);
+                if (mLoadingKeyWaiters > 0) {
+                    mLock.notifyAll();
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Read the changes journaled since the file was last written in full, including those in
+     * a journal that was being folded into the file.
+     */
+    private JournalDelta readJournal() {
+        final JournalDelta delta = new JournalDelta();
+        final RecordJournal[] journals = { mOldJournal, mJournal };
+        for (RecordJournal journal : journals) {
+            final List<byte[]> records = journal.readRecords();
+            for (int i = 0; i < records.size(); i++) {
+                try {
+                    delta.readRecord(records.get(i));
+                } catch (IOException e) {
+                    Log.w(TAG, "Skipping bad record in " + journal.getFile(), e);
+                }
+            }
+        }
+        return delta;
+    }
+
     static File makeBackupFile(File prefsFile) {
         return new File(prefsFile.getPath() + ".bak");
     }
 
+    static File makeJournalFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".journal");
+    }
+
+    static File makeOldJournalFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".journal.old");
+    }
+
     void startReloadIfChangedUnexpectedly() {
         synchronized (mLock) {
             // TODO: wait for any pending writes to disk?
@@ -266,6 +428,40 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
     }
 
+    /**
+     * Wait until the value of the key is known and return it. While loading in journaled mode
+     * that can be as soon as the key has been read, rather than once the whole file has.
+     */
+    @GuardedBy("mLock")
+    private Object getValueLocked(String key) {
+        if (!mLoaded && mJournaled) {
+            BlockGuard.getThreadPolicy().onReadFromDisk();
+            while (!mLoaded) {
+                final JournalDelta journal = mLoadingJournal;
+                if (journal != null) {
+                    if (journal.values.containsKey(key)) {
+                        return journal.values.get(key);
+                    }
+                    if (journal.cleared) {
+                        return null;
+                    }
+                    if (mLoadingMap.containsKey(key)) {
+                        return mLoadingMap.get(key);
+                    }
+                }
+                mLoadingKeyWaiters++;
+                try {
+                    mLock.wait();
+                } catch (InterruptedException unused) {
+                } finally {
+                    mLoadingKeyWaiters--;
+                }
+            }
+        }
+        awaitLoadedLocked();
+        return mMap.get(key);
+    }
+
     @Override
     public Map<String, ?> getAll() {
         synchronized (mLock) {
@@ -279,8 +475,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @Nullable
     public String getString(String key, @Nullable String defValue) {
         synchronized (mLock) {
-            awaitLoadedLocked();
-            String v = (String)mMap.get(key);
+            String v = (String) getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
@@ -289,8 +484,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @Nullable
     public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
         synchronized (mLock) {
-            awaitLoadedLocked();
-            Set<String> v = (Set<String>) mMap.get(key);
+            Set<String> v = (Set<String>) getValueLocked(key);
             return v != null ? v : defValues;
         }
     }
@@ -298,32 +492,28 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @Override
     public int getInt(String key, int defValue) {
         synchronized (mLock) {
-            awaitLoadedLocked();
-            Integer v = (Integer)mMap.get(key);
+            Integer v = (Integer) getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
     @Override
     public long getLong(String key, long defValue) {
         synchronized (mLock) {
-            awaitLoadedLocked();
-            Long v = (Long)mMap.get(key);
+            Long v = (Long) getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
     @Override
     public float getFloat(String key, float defValue) {
         synchronized (mLock) {
-            awaitLoadedLocked();
-            Float v = (Float)mMap.get(key);
+            Float v = (Float) getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
     @Override
     public boolean getBoolean(String key, boolean defValue) {
         synchronized (mLock) {
-            awaitLoadedLocked();
-            Boolean v = (Boolean)mMap.get(key);
+            Boolean v = (Boolean) getValueLocked(key);
             return v != null ? v : defValue;
         }
     }
@@ -500,10 +690,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 // We optimistically don't make a deep copy until
                 // a memory commit comes in when we're already
                 // writing to disk.
-                if (mDiskWritesInFlight > 0) {
+                if (mDiskWritesInFlight > 0 && !mJournaled) {
                     // We can't modify our mMap as a currently
                     // in-flight write owns it.  Clone it before
-                    // modifying it.
+                    // modifying it. Journaled writes only use
+                    // mPendingDelta.
                     // noinspection unchecked
                     mMap = new HashMap<String, Object>(mMap);
                 }
@@ -523,6 +714,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (!mapToWriteToDisk.isEmpty()) {
                             changesMade = true;
                             mapToWriteToDisk.clear();
+                            if (mJournaled) {
+                                getPendingDeltaLocked().clearAll();
+                            }
                         }
                         mClear = false;
                     }
@@ -552,12 +746,18 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (hasListeners) {
                             keysModified.add(k);
                         }
+                        if (mJournaled) {
+                            getPendingDeltaLocked().values.put(k, v == this ? null : v);
+                        }
                     }
 
                     mModified.clear();
 
                     if (changesMade) {
                         mCurrentMemoryStateGeneration++;
+                        if (mJournaled) {
+                            mPendingDelta.generation = mCurrentMemoryStateGeneration;
+                        }
                     }
 
                     memoryStateGeneration = mCurrentMemoryStateGeneration;
@@ -639,7 +839,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 @Override
                 public void run() {
                     synchronized (mWritingToDiskLock) {
-                        writeToFile(mcr, isFromSyncCommit);
+                        if (mJournaled) {
+                            writeToJournal(mcr, isFromSyncCommit);
+                        } else {
+                            writeToFile(mcr, isFromSyncCommit);
+                        }
                     }
                     synchronized (mLock) {
                         mDiskWritesInFlight--;
@@ -802,6 +1006,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
             // Writing was successful, delete the backup file if there is one.
             mBackupFile.delete();
 
+            // Everything journaled so far is now part of the file itself
+            mJournal.delete();
+            mOldJournal.delete();
+            mNumFileWrites++;
+
             if (DEBUG) {
                 deleteTime = System.currentTimeMillis();
             }
@@ -844,4 +1053,318 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
         mcr.setDiskWriteResult(false, false);
     }
+
+    @GuardedBy("mLock")
+    private JournalDelta getPendingDeltaLocked() {
+        if (mPendingDelta == null) {
+            mPendingDelta = new JournalDelta();
+        }
+        return mPendingDelta;
+    }
+
+    /**
+     * Append the changes committed to memory so far to the journal, coalesced into a single
+     * record. Unless this is for a commit(), the record is not synced to disk here: it
+     * survives the process dying, and is synced in the background shortly after.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private void writeToJournal(MemoryCommitResult mcr, boolean isFromSyncCommit) {
+        final JournalDelta delta;
+        synchronized (mLock) {
+            delta = mPendingDelta;
+            mPendingDelta = null;
+        }
+
+        if (delta == null) {
+            // No changes, or they were written along with an earlier commit
+            if (isFromSyncCommit) {
+                mJournal.sync();
+            }
+            mcr.setDiskWriteResult(false, true);
+            return;
+        }
+
+        try {
+            final byte[] record = delta.toRecord();
+            if (record.length <= MAX_JOURNAL_RECORD_SIZE) {
+                mJournal.append(Collections.singletonList(record), isFromSyncCommit);
+                mDiskStateGeneration = delta.generation;
+                mcr.setDiskWriteResult(true, true);
+
+                if (!isFromSyncCommit) {
+                    scheduleJournalSync();
+                }
+                final long fileSize;
+                synchronized (mLock) {
+                    fileSize = mStatSize;
+                }
+                if (mJournal.length() >= Math.max(MIN_JOURNAL_COMPACTION_SIZE, fileSize)) {
+                    scheduleCompaction();
+                }
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "writeToJournal: Got exception:", e);
+        }
+
+        // Write everything instead, which also makes the journal redundant
+        final MemoryCommitResult fileMcr;
+        synchronized (mLock) {
+            fileMcr = new MemoryCommitResult(mCurrentMemoryStateGeneration, null, null,
+                    new HashMap<String, Object>(mMap));
+        }
+        writeToFile(fileMcr, true);
+        mcr.setDiskWriteResult(fileMcr.wasWritten, fileMcr.writeToDiskResult);
+    }
+
+    private void scheduleJournalSync() {
+        synchronized (mLock) {
+            if (mJournalSyncScheduled) {
+                return;
+            }
+            mJournalSyncScheduled = true;
+        }
+        BackgroundThread.getHandler().postDelayed(() -> {
+            synchronized (mLock) {
+                mJournalSyncScheduled = false;
+            }
+            mJournal.sync();
+        }, JOURNAL_SYNC_DELAY_MILLIS);
+    }
+
+    private void scheduleCompaction() {
+        synchronized (mLock) {
+            if (mCompactionScheduled) {
+                return;
+            }
+            mCompactionScheduled = true;
+        }
+        BackgroundThread.getHandler().post(this::compactJournal);
+    }
+
+    /**
+     * Fold the journal into the file. The journal is set aside so changes can still be
+     * journaled while the file is written, and is only deleted once the new file is in place.
+     * Loading replays it on top of either file, which is harmless as deltas hold absolute
+     * values.
+     */
+    @VisibleForTesting
+    public void compactJournal() {
+        final Map<String, Object> map;
+        final int numFileWrites;
+        synchronized (mWritingToDiskLock) {
+            // If a previous compaction failed the journal it set aside is folded in first
+            if (!mOldJournal.exists()) {
+                if (!mJournal.exists() || !mJournal.getFile().renameTo(mOldJournal.getFile())) {
+                    // Nothing to fold in, or no way to; a later write will try again
+                    synchronized (mLock) {
+                        mCompactionScheduled = false;
+                    }
+                    return;
+                }
+            }
+            synchronized (mLock) {
+                map = new HashMap<String, Object>(mMap);
+            }
+            numFileWrites = mNumFileWrites;
+        }
+
+        final File tempFile = new File(mFile.getPath() + ".compact");
+        boolean written = false;
+        FileOutputStream str = createFileOutputStream(tempFile);
+        if (str != null) {
+            try {
+                XmlUtils.writeMapXml(map, str);
+                FileUtils.sync(str);
+                written = true;
+            } catch (XmlPullParserException | IOException e) {
+                Log.w(TAG, "compactJournal: Got exception:", e);
+            } finally {
+                IoUtils.closeQuietly(str);
+            }
+        }
+
+        synchronized (mWritingToDiskLock) {
+            // A full write since the snapshot already includes everything, and more
+            if (written && numFileWrites == mNumFileWrites) {
+                ContextImpl.setFilePermissionsFromMode(tempFile.getPath(), mMode, 0);
+                if (tempFile.renameTo(mFile)) {
+                    // The backup would be restored over the new file, so it goes first
+                    mBackupFile.delete();
+                    mOldJournal.delete();
+                    mNumFileWrites++;
+                    try {
+                        final StructStat stat = Os.stat(mFile.getPath());
+                        synchronized (mLock) {
+                            mStatTimestamp = stat.st_mtim;
+                            mStatSize = stat.st_size;
+                        }
+                    } catch (ErrnoException e) {
+                        // Do nothing
+                    }
+                }
+            }
+            tempFile.delete();
+        }
+
+        final long fileSize;
+        synchronized (mLock) {
+            mCompactionScheduled = false;
+            fileSize = mStatSize;
+        }
+        // Changes journaled meanwhile didn't schedule another compaction
+        if (mJournal.length() >= Math.max(MIN_JOURNAL_COMPACTION_SIZE, fileSize)) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Changes to the preferences, with absolute values so that applying a delta more than once
+     * is harmless. A null value means the key was removed.
+     */
+    private static final class JournalDelta {
+        private static final int FLAG_CLEAR = 1;
+
+        private static final int TYPE_REMOVED = 0;
+        private static final int TYPE_STRING = 1;
+        private static final int TYPE_INT = 2;
+        private static final int TYPE_LONG = 3;
+        private static final int TYPE_FLOAT = 4;
+        private static final int TYPE_BOOLEAN = 5;
+        private static final int TYPE_STRING_SET = 6;
+
+        /** Whether all values before this delta were removed */
+        boolean cleared;
+        final HashMap<String, Object> values = new HashMap<>();
+        long generation;
+
+        void clearAll() {
+            cleared = true;
+            values.clear();
+        }
+
+        boolean isEmpty() {
+            return !cleared && values.isEmpty();
+        }
+
+        void applyTo(Map<String, Object> map) {
+            if (cleared) {
+                map.clear();
+            }
+            for (Map.Entry<String, Object> e : values.entrySet()) {
+                if (e.getValue() == null) {
+                    map.remove(e.getKey());
+                } else {
+                    map.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        byte[] toRecord() throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(cleared ? FLAG_CLEAR : 0);
+            out.writeInt(values.size());
+            for (Map.Entry<String, Object> e : values.entrySet()) {
+                writeString(out, e.getKey());
+                final Object v = e.getValue();
+                if (v == null) {
+                    out.writeByte(TYPE_REMOVED);
+                } else if (v instanceof String) {
+                    out.writeByte(TYPE_STRING);
+                    writeString(out, (String) v);
+                } else if (v instanceof Integer) {
+                    out.writeByte(TYPE_INT);
+                    out.writeInt((Integer) v);
+                } else if (v instanceof Long) {
+                    out.writeByte(TYPE_LONG);
+                    out.writeLong((Long) v);
+                } else if (v instanceof Float) {
+                    out.writeByte(TYPE_FLOAT);
+                    out.writeFloat((Float) v);
+                } else if (v instanceof Boolean) {
+                    out.writeByte(TYPE_BOOLEAN);
+                    out.writeBoolean((Boolean) v);
+                } else if (v instanceof Set) {
+                    out.writeByte(TYPE_STRING_SET);
+                    final Set<String> set = (Set<String>) v;
+                    out.writeInt(set.size());
+                    for (String item : set) {
+                        writeString(out, item);
+                    }
+                } else {
+                    throw new IOException("Can't journal " + v.getClass());
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        /** Apply a record written by {@link #toRecord} on top of this delta. */
+        void readRecord(byte[] record) throws IOException {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            if ((in.readByte() & FLAG_CLEAR) != 0) {
+                clearAll();
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = readString(in);
+                final int type = in.readByte();
+                final Object v;
+                switch (type) {
+                    case TYPE_REMOVED:
+                        v = null;
+                        break;
+                    case TYPE_STRING:
+                        v = readString(in);
+                        break;
+                    case TYPE_INT:
+                        v = in.readInt();
+                        break;
+                    case TYPE_LONG:
+                        v = in.readLong();
+                        break;
+                    case TYPE_FLOAT:
+                        v = in.readFloat();
+                        break;
+                    case TYPE_BOOLEAN:
+                        v = in.readBoolean();
+                        break;
+                    case TYPE_STRING_SET: {
+                        final int size = in.readInt();
+                        final HashSet<String> set = new HashSet<>(size);
+                        for (int j = 0; j < size; j++) {
+                            set.add(readString(in));
+                        }
+                        v = set;
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown type " + type);
+                }
+                values.put(key, v);
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(s.length());
+                out.writeChars(s);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            final int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            final char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = in.readChar();
+            }
+            return new String(chars);
+        }
+    }
 }
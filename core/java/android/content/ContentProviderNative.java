@@ -104,8 +104,10 @@ abstract public class ContentProviderNative extends Binder implements IContentPr
                         CursorToBulkCursorAdaptor adaptor = null;
 
                         try {
+                            final long windowSizeHint = queryArgs != null ? queryArgs.getLong(
+                                    ContentResolver.QUERY_ARG_CURSOR_WINDOW_SIZE) : 0;
                             adaptor = new CursorToBulkCursorAdaptor(cursor, observer,
-                                    getProviderName());
+                                    getProviderName(), windowSizeHint);
                             cursor = null;
 
                             BulkCursorDescriptor d = adaptor.getBulkCursorDescriptor();
@@ -376,6 +376,16 @@ public abstract class ContentResolver {
      */
     public static final String QUERY_ARG_LIMIT = "android:query-arg-limit";
 
+    /**
+     * Specifies the size in bytes of the cursor windows the provider should stream a
+     * cross-process Cursor in.  The provider fills the window after the one the client is
+     * reading ahead of time.  Sizes above the default cursor window size are capped to it.
+     *
+     * @hide
+     */
+    public static final String QUERY_ARG_CURSOR_WINDOW_SIZE =
+            "android:query-arg-cursor-window-size";
+
     /**
      * Added to {@link Cursor} extras {@link Bundle} to indicate total row count of
      * recordset when paging is supported. Providers must include this when
@@ -20,7 +20,10 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.PooledStringReader;
+import android.os.PooledStringWriter;
 import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.util.Log;
 
 import java.util.ArrayList;
@@ -36,6 +39,9 @@ import java.util.List;
  * a different result if the class name encoded in the Parcelable is a Base type.
  * See b/17671747.
  *
+ * With string pooling, each parcel the list is split into writes every distinct string
+ * only once, see {@link #setPoolStrings}.
+ *
  * @hide
  */
 abstract class BaseParceledListSlice<T> implements Parcelable {
@@ -48,10 +54,15 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
      */
     private static final int MAX_IPC_SIZE = IBinder.MAX_IPC_SIZE;
 
+    private static final boolean POOL_STRINGS_DEFAULT =
+            SystemProperties.getBoolean("persist.sys.parcel.pooled_lists", false);
+
     private final List<T> mList;
 
     private int mInlineCountLimit = Integer.MAX_VALUE;
 
+    private boolean mPoolStrings = POOL_STRINGS_DEFAULT;
+
     public BaseParceledListSlice(List<T> list) {
         mList = list;
     }
@@ -67,24 +78,35 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
 
         Parcelable.Creator<?> creator = readParcelableCreator(p, loader);
         Class<?> listElementClass = null;
+        final boolean pooled = p.readInt() != 0;
+        PooledStringReader pool = pooled ? new PooledStringReader(p) : null;
+        if (pool != null) {
+            pool.install();
+        }
 
         int i = 0;
-        while (i < N) {
-            if (p.readInt() == 0) {
-                break;
-            }
+        try {
+            while (i < N) {
+                if (p.readInt() == 0) {
+                    break;
+                }
 
-            final T parcelable = readCreator(creator, p, loader);
-            if (listElementClass == null) {
-                listElementClass = parcelable.getClass();
-            } else {
-                verifySameType(listElementClass, parcelable.getClass());
-            }
+                final T parcelable = readCreator(creator, p, loader);
+                if (listElementClass == null) {
+                    listElementClass = parcelable.getClass();
+                } else {
+                    verifySameType(listElementClass, parcelable.getClass());
+                }
 
-            mList.add(parcelable);
+                mList.add(parcelable);
 
-            if (DEBUG) Log.d(TAG, "Read inline #" + i + ": " + mList.get(mList.size()-1));
-            i++;
+                if (DEBUG) Log.d(TAG, "Read inline #" + i + ": " + mList.get(mList.size()-1));
+                i++;
+            }
+        } finally {
+            if (pool != null) {
+                pool.finish();
+            }
         }
         if (i >= N) {
             return;
@@ -101,14 +123,24 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
                 Log.w(TAG, "Failure retrieving array; only received " + i + " of " + N, e);
                 return;
             }
-            while (i < N && reply.readInt() != 0) {
-                final T parcelable = readCreator(creator, reply, loader);
-                verifySameType(listElementClass, parcelable.getClass());
+            pool = pooled ? new PooledStringReader(reply) : null;
+            if (pool != null) {
+                pool.install();
+            }
+            try {
+                while (i < N && reply.readInt() != 0) {
+                    final T parcelable = readCreator(creator, reply, loader);
+                    verifySameType(listElementClass, parcelable.getClass());
 
-                mList.add(parcelable);
+                    mList.add(parcelable);
 
-                if (DEBUG) Log.d(TAG, "Read extra #" + i + ": " + mList.get(mList.size()-1));
-                i++;
+                    if (DEBUG) Log.d(TAG, "Read extra #" + i + ": " + mList.get(mList.size()-1));
+                    i++;
+                }
+            } finally {
+                if (pool != null) {
+                    pool.finish();
+                }
             }
             reply.recycle();
             data.recycle();
@@ -144,6 +176,15 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
         mInlineCountLimit = maxCount;
     }
 
+    /**
+     * Set whether to write each distinct string in the parcels holding the entries only
+     * once, which makes lists of entries that share many strings, like package names, much
+     * smaller.  Defaults to the persist.sys.parcel.pooled_lists system property.
+     */
+    public void setPoolStrings(boolean poolStrings) {
+        mPoolStrings = poolStrings;
+    }
+
     /**
      * Write this to another Parcel. Note that this discards the internal Parcel
      * and should not be used anymore. This is so we can pass this to a Binder
@@ -158,16 +199,29 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
         if (N > 0) {
             final Class<?> listElementClass = mList.get(0).getClass();
             writeParcelableCreator(mList.get(0), dest);
+            // Strings can only go through one pool at a time
+            final boolean pooled = mPoolStrings && !dest.hasReadWriteHelper();
+            dest.writeInt(pooled ? 1 : 0);
+            PooledStringWriter pool = pooled ? new PooledStringWriter(dest) : null;
+            if (pool != null) {
+                pool.install();
+            }
             int i = 0;
-            while (i < N && i < mInlineCountLimit && dest.dataSize() < MAX_IPC_SIZE) {
-                dest.writeInt(1);
+            try {
+                while (i < N && i < mInlineCountLimit && dest.dataSize() < MAX_IPC_SIZE) {
+                    dest.writeInt(1);
 
-                final T parcelable = mList.get(i);
-                verifySameType(listElementClass, parcelable.getClass());
-                writeElement(parcelable, dest, callFlags);
+                    final T parcelable = mList.get(i);
+                    verifySameType(listElementClass, parcelable.getClass());
+                    writeElement(parcelable, dest, callFlags);
 
-                if (DEBUG) Log.d(TAG, "Wrote inline #" + i + ": " + mList.get(i));
-                i++;
+                    if (DEBUG) Log.d(TAG, "Wrote inline #" + i + ": " + mList.get(i));
+                    i++;
+                }
+            } finally {
+                if (pool != null) {
+                    pool.finish();
+                }
             }
             if (i < N) {
                 dest.writeInt(0);
@@ -180,15 +234,26 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
                         }
                         int i = data.readInt();
                         if (DEBUG) Log.d(TAG, "Writing more @" + i + " of " + N);
-                        while (i < N && reply.dataSize() < MAX_IPC_SIZE) {
-                            reply.writeInt(1);
+                        final PooledStringWriter pool =
+                                pooled ? new PooledStringWriter(reply) : null;
+                        if (pool != null) {
+                            pool.install();
+                        }
+                        try {
+                            while (i < N && reply.dataSize() < MAX_IPC_SIZE) {
+                                reply.writeInt(1);
 
-                            final T parcelable = mList.get(i);
-                            verifySameType(listElementClass, parcelable.getClass());
-                            writeElement(parcelable, reply, callFlags);
+                                final T parcelable = mList.get(i);
+                                verifySameType(listElementClass, parcelable.getClass());
+                                writeElement(parcelable, reply, callFlags);
 
-                            if (DEBUG) Log.d(TAG, "Wrote extra #" + i + ": " + mList.get(i));
-                            i++;
+                                if (DEBUG) Log.d(TAG, "Wrote extra #" + i + ": " + mList.get(i));
+                                i++;
+                            }
+                        } finally {
+                            if (pool != null) {
+                                pool.finish();
+                            }
                         }
                         if (i < N) {
                             if (DEBUG) Log.d(TAG, "Breaking @" + i + " of " + N);
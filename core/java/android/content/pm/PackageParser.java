@@ -110,6 +110,10 @@ import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.reflect.Constructor;
+import java.nio.MappedByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -232,6 +236,15 @@ public class PackageParser {
      */
     public static final AtomicInteger sCachedPackageReadCount = new AtomicInteger();
 
+    /**
+     * Largest cache entry whose read buffer is kept for reuse by the parser. Larger entries get
+     * a one-off buffer so that we don't pin their memory for the parser's lifetime.
+     */
+    private static final int MAX_REUSED_CACHE_BUFFER_SIZE = 256 * 1024;
+
+    /** Sanity limit on the size of a cache entry; anything larger is treated as corrupt. */
+    private static final int MAX_CACHE_ENTRY_SIZE = 64 * 1024 * 1024;
+
     // Set of broadcast actions that are safe for manifest receivers
     private static final Set<String> SAFE_BROADCASTS = new ArraySet<>();
     static {
@@ -317,6 +330,8 @@ public class PackageParser {
     private DisplayMetrics mMetrics;
     private Callback mCallback;
     private File mCacheDir;
+    /** Scratch buffer reused by consecutive cache reads of this parser. */
+    private byte[] mCacheReadBuffer;
 
     private static final int SDK_VERSION = Build.VERSION.SDK_INT;
     private static final String[] SDK_CODENAMES = Build.VERSION.ACTIVE_CODENAMES;
@@ -1053,16 +1068,26 @@ public class PackageParser {
         return sb.toString();
     }
 
+    /**
+     * Deserialize a package from the first {@code length} bytes of {@code bytes}, which may
+     * be a larger, reused buffer.
+     */
     @VisibleForTesting
-    protected Package fromCacheEntry(byte[] bytes) {
-        return fromCacheEntryStatic(bytes);
+    protected Package fromCacheEntry(byte[] bytes, int length) {
+        return fromCacheEntryStatic(bytes, length);
     }
 
     /** static version of {@link #fromCacheEntry} for unit tests. */
     @VisibleForTesting
     public static Package fromCacheEntryStatic(byte[] bytes) {
+        return fromCacheEntryStatic(bytes, bytes.length);
+    }
+
+    /** static version of {@link #fromCacheEntry} for unit tests. */
+    @VisibleForTesting
+    public static Package fromCacheEntryStatic(byte[] bytes, int length) {
         final Parcel p = Parcel.obtain();
-        p.unmarshall(bytes, 0, bytes.length);
+        p.unmarshall(bytes, 0, length);
         p.setDataPosition(0);
 
         final ReadHelper helper = new ReadHelper(p);
@@ -1148,8 +1173,7 @@ public class PackageParser {
                 return null;
             }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            Package p = fromCacheEntry(bytes);
+            Package p = readCacheEntry(cacheFile);
             if (mCallback != null) {
                 String[] overlayApks = mCallback.getOverlayApks(p.packageName);
                 if (overlayApks != null && overlayApks.length > 0) {
@@ -1172,6 +1196,45 @@ public class PackageParser {
         }
     }
 
+    /**
+     * Map and deserialize the cache entry in {@code cacheFile}. {@link Parcel} can only
+     * unmarshall from an array, so the mapping is copied into a scratch buffer that this parser
+     * reuses, rather than read into a freshly allocated array for every package scanned. The
+     * mapping is released as soon as it has been copied.
+     */
+    @VisibleForTesting
+    protected Package readCacheEntry(File cacheFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(),
+                StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > MAX_CACHE_ENTRY_SIZE) {
+                throw new IOException("Cache entry too large: " + size);
+            }
+            final int length = (int) size;
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            final byte[] buffer;
+            try {
+                buffer = getCacheReadBuffer(length);
+                mapped.get(buffer, 0, length);
+            } finally {
+                // Don't leave the mapping around until the buffer happens to be collected
+                NioUtils.freeDirectBuffer(mapped);
+            }
+            return fromCacheEntry(buffer, length);
+        }
+    }
+
+    private byte[] getCacheReadBuffer(int length) {
+        if (mCacheReadBuffer != null && mCacheReadBuffer.length >= length) {
+            return mCacheReadBuffer;
+        }
+        final byte[] buffer = new byte[length];
+        if (length <= MAX_REUSED_CACHE_BUFFER_SIZE) {
+            mCacheReadBuffer = buffer;
+        }
+        return buffer;
+    }
+
     /**
      * Caches the parse result for {@code packageFile} with flags {@code flags}.
      */
@@ -18,6 +18,16 @@ package android.database;
 
 import android.net.Uri;
 import android.os.*;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -27,6 +37,13 @@ import android.os.*;
  * then it is assumed to own the window.  Otherwise, the adaptor provides a
  * window to be filled and ensures it gets closed as needed during deactivation
  * and requeries.
+ * </p><p>
+ * In streaming mode, the adaptor always fills its own windows straight from the cursor
+ * and keeps two of them: the one last handed to the client, and one that it fills with
+ * the rows that follow in the background, so that a client scanning the cursor from
+ * start to end rarely has to wait for a window to be filled.  The client can ask for
+ * streaming mode with a window size hint, see
+ * {@link android.content.ContentResolver#QUERY_ARG_CURSOR_WINDOW_SIZE}.
  * </p>
  *
  * {@hide}
@@ -35,6 +52,18 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
         implements IBinder.DeathRecipient {
     private static final String TAG = "Cursor";
 
+    private static final boolean STREAMING_ENABLED =
+            SystemProperties.getBoolean("persist.sys.cursor.streaming", false);
+
+    // The smallest window size a client can ask for.  The largest is the default window
+    // size, so that a client can't make the provider hold more memory than it otherwise would.
+    @VisibleForTesting
+    public static final long MIN_STREAMING_WINDOW_SIZE = 16 * 1024;
+
+    private static final long PREFETCH_KEEP_ALIVE_SECONDS = 10;
+
+    private static Executor sPrefetchExecutor;
+
     private final Object mLock = new Object();
     private final String mProviderName;
     private ContentObserverProxy mObserver;
@@ -52,6 +81,45 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
      */
     private CursorWindow mFilledWindow;
 
+    /**
+     * The size of the windows to stream the cursor in, 0 for the default size,
+     * or -1 if not streaming.
+     */
+    private final long mStreamingWindowSize;
+
+    /**
+     * In streaming mode, the window last handed out to the client, and the spare
+     * window that the rows after it are filled into ahead of time.
+     */
+    private CursorWindow mStreamingWindow;
+    private CursorWindow mPrefetchWindow;
+
+    /**
+     * The position to fill the prefetch window from, or -1 if there is nothing to
+     * prefetch, and whether the prefetch window holds the rows from that position.
+     */
+    private int mPrefetchPosition = -1;
+    private boolean mPrefetchFilled;
+
+    /**
+     * Whether {@link #mPrefetchRunnable} has been posted and hasn't run yet.  It fills from
+     * whatever {@link #mPrefetchPosition} is when it runs, so it is only posted once.
+     */
+    @GuardedBy("mLock")
+    private boolean mPrefetchPending;
+
+    private final Executor mPrefetchExecutor;
+
+    private final Runnable mPrefetchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mPrefetchPending = false;
+                prefetchLocked();
+            }
+        }
+    };
+
     private static final class ContentObserverProxy extends ContentObserver {
         protected IContentObserver mRemote;
 
@@ -87,6 +155,21 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
 
     public CursorToBulkCursorAdaptor(Cursor cursor, IContentObserver observer,
             String providerName) {
+        this(cursor, observer, providerName, 0);
+    }
+
+    /**
+     * @param windowSizeHint The size in bytes of the windows the client would like the
+     * cursor streamed in, or 0 if it has no preference.
+     */
+    public CursorToBulkCursorAdaptor(Cursor cursor, IContentObserver observer,
+            String providerName, long windowSizeHint) {
+        this(cursor, observer, providerName, windowSizeHint, null);
+    }
+
+    @VisibleForTesting
+    public CursorToBulkCursorAdaptor(Cursor cursor, IContentObserver observer,
+            String providerName, long windowSizeHint, Executor prefetchExecutor) {
         if (cursor instanceof CrossProcessCursor) {
             mCursor = (CrossProcessCursor)cursor;
         } else {
@@ -94,6 +177,17 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
         }
         mProviderName = providerName;
 
+        // Cursors that want to see every move can't have their windows filled ahead.
+        if (mCursor.getWantsAllOnMoveCalls()) {
+            mStreamingWindowSize = -1;
+        } else if (windowSizeHint > 0) {
+            mStreamingWindowSize = Math.min(CursorWindow.getCursorWindowSize(),
+                    Math.max(MIN_STREAMING_WINDOW_SIZE, windowSizeHint));
+        } else {
+            mStreamingWindowSize = STREAMING_ENABLED ? 0 : -1;
+        }
+        mPrefetchExecutor = prefetchExecutor != null ? prefetchExecutor : getPrefetchExecutor();
+
         synchronized (mLock) {
             createAndRegisterObserverProxyLocked(observer);
         }
@@ -104,6 +198,147 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
             mFilledWindow.close();
             mFilledWindow = null;
         }
+        closeStreamingWindowsLocked();
+    }
+
+    private void closeStreamingWindowsLocked() {
+        mPrefetchPosition = -1;
+        mPrefetchFilled = false;
+        if (mStreamingWindow != null) {
+            mStreamingWindow.close();
+            mStreamingWindow = null;
+        }
+        if (mPrefetchWindow != null) {
+            mPrefetchWindow.close();
+            mPrefetchWindow = null;
+        }
+    }
+
+    /**
+     * Returns the executor that fills windows ahead, shared by all streaming adaptors in the
+     * process.  Its one thread goes away when there is nothing to fill, and prefetches queue up
+     * behind each other rather than taking threads from the app.
+     */
+    private static synchronized Executor getPrefetchExecutor() {
+        if (sPrefetchExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                    PREFETCH_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, "CursorPrefetch"));
+            executor.allowCoreThreadTimeOut(true);
+            sPrefetchExecutor = executor;
+        }
+        return sPrefetchExecutor;
+    }
+
+    @VisibleForTesting
+    public long getStreamingWindowSize() {
+        return mStreamingWindowSize;
+    }
+
+    private boolean isStreaming() {
+        return mStreamingWindowSize >= 0;
+    }
+
+    private CursorWindow newStreamingWindow() {
+        return mStreamingWindowSize > 0
+                ? new CursorWindow(mProviderName, mStreamingWindowSize)
+                : new CursorWindow(mProviderName);
+    }
+
+    private static boolean windowContains(CursorWindow window, int position) {
+        return window != null && position >= window.getStartPosition()
+                && position < window.getStartPosition() + window.getNumRows();
+    }
+
+    /**
+     * Returns the window holding the specified position, and schedules the rows after it
+     * to be filled into the spare window.
+     */
+    private CursorWindow getStreamingWindowLocked(int position) {
+        if (position < 0 || position >= mCursor.getCount()) {
+            closeStreamingWindowsLocked();
+            return null;
+        }
+        if (windowContains(mStreamingWindow, position)) {
+            return mStreamingWindow;
+        }
+
+        CursorWindow window = mPrefetchWindow;
+        if (!mPrefetchFilled || !windowContains(window, position)) {
+            if (window == null) {
+                window = newStreamingWindow();
+            }
+            mCursor.fillWindow(position, window);
+        }
+
+        // The client is done with the window it had, which becomes the spare.
+        mPrefetchWindow = mStreamingWindow;
+        mStreamingWindow = window;
+        mPrefetchFilled = false;
+        final int nextPosition = window.getStartPosition() + window.getNumRows();
+        if (window.getNumRows() > 0 && nextPosition < mCursor.getCount()) {
+            mPrefetchPosition = nextPosition;
+            schedulePrefetchLocked();
+        } else {
+            mPrefetchPosition = -1;
+        }
+        return window;
+    }
+
+    private void schedulePrefetchLocked() {
+        if (mPrefetchPending) {
+            return;
+        }
+        try {
+            mPrefetchExecutor.execute(mPrefetchRunnable);
+            mPrefetchPending = true;
+        } catch (RejectedExecutionException e) {
+            // The next window will be filled when the client asks for it.
+            Log.w(TAG, "Unable to schedule filling the cursor window ahead of "
+                    + mProviderName, e);
+        }
+    }
+
+    /**
+     * Takes over the window the cursor filled when it counted its rows, so that the first
+     * window handed to the client doesn't run the query a second time.
+     */
+    private void adoptCursorWindowLocked() {
+        if (!(mCursor instanceof AbstractWindowedCursor)) {
+            return;
+        }
+        final AbstractWindowedCursor cursor = (AbstractWindowedCursor) mCursor;
+        final CursorWindow window = cursor.getWindow();
+        if (window == null || window.getStartPosition() != 0 || window.getNumRows() == 0) {
+            return;
+        }
+        // Keep the window alive while the cursor lets go of it; the cursor makes itself a new
+        // one if it ever needs one again.
+        window.acquireReference();
+        cursor.setWindow(null);
+        if (mPrefetchWindow != null) {
+            mPrefetchWindow.close();
+        }
+        mPrefetchWindow = window;
+        mPrefetchFilled = true;
+    }
+
+    private void prefetchLocked() {
+        if (mCursor == null || mPrefetchPosition < 0 || mPrefetchFilled) {
+            return;
+        }
+        if (mPrefetchWindow == null) {
+            mPrefetchWindow = newStreamingWindow();
+        }
+        try {
+            mCursor.fillWindow(mPrefetchPosition, mPrefetchWindow);
+            mPrefetchFilled = true;
+        } catch (RuntimeException e) {
+            // The client will get the exception when it asks for these rows.
+            Log.w(TAG, "Unable to fill the cursor window ahead of " + mProviderName, e);
+            mPrefetchWindow.clear();
+        }
+        mPrefetchPosition = -1;
     }
 
     private void disposeLocked() {
@@ -143,7 +378,12 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
             d.columnNames = mCursor.getColumnNames();
             d.wantsAllOnMoveCalls = mCursor.getWantsAllOnMoveCalls();
             d.count = mCursor.getCount();
-            d.window = mCursor.getWindow();
+            if (isStreaming()) {
+                adoptCursorWindowLocked();
+                d.window = getStreamingWindowLocked(0);
+            } else {
+                d.window = mCursor.getWindow();
+            }
             if (d.window != null) {
                 // Acquire a reference to the window because its reference count will be
                 // decremented when it is returned as part of the binder call reply parcel.
@@ -158,6 +398,16 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
         synchronized (mLock) {
             throwIfCursorIsClosed();
 
+            if (isStreaming()) {
+                final CursorWindow window = getStreamingWindowLocked(position);
+                if (window != null) {
+                    // Acquire a reference to the window because its reference count will be
+                    // decremented when it is returned as part of the binder call reply parcel.
+                    window.acquireReference();
+                }
+                return window;
+            }
+
             if (!mCursor.moveToPosition(position)) {
                 closeFilledWindowLocked();
                 return null;
@@ -800,7 +800,8 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
         return "# Open Cursors=" + total + s;
     }
 
-    private static int getCursorWindowSize() {
+    /** @hide */
+    public static int getCursorWindowSize() {
         if (sCursorWindowSize < 0) {
             // The cursor window size. resource xml file specifies the value in kB.
             // convert it to bytes here by multiplying with 1024.
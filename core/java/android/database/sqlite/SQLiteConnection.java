@@ -112,6 +112,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
 
     private boolean mOnlyAllowReadOnlyOperations;
 
+    // The time the pool last handed out this connection.  Guarded by the pool's lock.
+    private long mAcquiredTimeMillis;
+
     // The number of times attachCancellationSignal has been called.
     // Because SQLite statement execution can be reentrant, we keep track of how many
     // times we have attempted to attach a cancellation signal to the connection so that
@@ -500,6 +503,28 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         return mPreparedStatementCache.get(sql) != null;
     }
 
+    // Called by SQLiteConnectionPool only.
+    void setAcquiredTime(long timeMillis) {
+        mAcquiredTimeMillis = timeMillis;
+    }
+
+    // Called by SQLiteConnectionPool only.
+    long getAcquiredTime() {
+        return mAcquiredTimeMillis;
+    }
+
+    // Called by SQLiteConnectionPool only.
+    // The prepared statement cache is thread-safe so the pool may call these
+    // even if it does not own the connection.
+    int getPreparedStatementCacheHitCount() {
+        return mPreparedStatementCache.hitCount();
+    }
+
+    // Called by SQLiteConnectionPool only.
+    int getPreparedStatementCacheMissCount() {
+        return mPreparedStatementCache.missCount();
+    }
+
     /**
      * Gets the unique id of this connection.
      * @return The connection id.
@@ -800,6 +825,76 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         }
     }
 
+    /**
+     * Executes a statement once for each row of a batch of bind arguments, reusing the
+     * prepared statement from one row to the next.  Use for INSERT, UPDATE or DELETE
+     * SQL statements.
+     * <p>
+     * The arguments are given either as {@code bindArgs}, holding the arguments of
+     * each row one row after the other, or as {@code columns}, holding an array of
+     * arguments for each parameter of the statement.  Columns may be primitive
+     * {@code long[]}, {@code int[]} or {@code double[]} arrays, which are bound
+     * without boxing, or object arrays.
+     * </p>
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments of all rows, or null if given as columns.
+     * @param columns The arguments of all rows by parameter, or null if given as rows.
+     * @param startRow The first row of the batch to execute.
+     * @param rowCount The number of rows to execute.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return The number of rows that were changed.
+     *
+     * @throws SQLiteException if an error occurs, such as a syntax error
+     * or invalid number of bind arguments.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    public int executeBatchForChangedRowCount(String sql, Object[] bindArgs, Object[] columns,
+            int startRow, int rowCount, CancellationSignal cancellationSignal) {
+        if (sql == null) {
+            throw new IllegalArgumentException("sql must not be null.");
+        }
+        if ((bindArgs == null) == (columns == null)) {
+            throw new IllegalArgumentException("Exactly one of bindArgs and columns "
+                    + "must be provided.");
+        }
+
+        int changedRows = 0;
+        final int cookie = mRecentOperations.beginOperation("executeBatchForChangedRowCount",
+                sql, null);
+        try {
+            final PreparedStatement statement = acquirePreparedStatement(sql);
+            try {
+                throwIfStatementForbidden(statement);
+                checkBatchArguments(statement, bindArgs, columns, startRow + rowCount);
+                applyBlockGuardPolicy(statement);
+                attachCancellationSignal(cancellationSignal);
+                try {
+                    final long statementPtr = statement.mStatementPtr;
+                    for (int row = startRow; row < startRow + rowCount; row++) {
+                        bindBatchRow(statement, bindArgs, columns, row);
+                        changedRows += nativeExecuteForChangedRowCount(
+                                mConnectionPtr, statementPtr);
+                        nativeResetStatementAndClearBindings(mConnectionPtr, statementPtr);
+                    }
+                    return changedRows;
+                } finally {
+                    detachCancellationSignal(cancellationSignal);
+                }
+            } finally {
+                releasePreparedStatement(statement);
+            }
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            if (mRecentOperations.endOperationDeferLog(cookie)) {
+                mRecentOperations.logOperation(cookie, "rows=" + rowCount
+                        + ", changedRows=" + changedRows);
+            }
+        }
+    }
+
     /**
      * Executes a statement that returns the row id of the last row inserted
      * by the statement.  Use for INSERT SQL statements.
@@ -1039,33 +1134,101 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
 
         final long statementPtr = statement.mStatementPtr;
         for (int i = 0; i < count; i++) {
-            final Object arg = bindArgs[i];
-            switch (DatabaseUtils.getTypeOfObject(arg)) {
-                case Cursor.FIELD_TYPE_NULL:
-                    nativeBindNull(mConnectionPtr, statementPtr, i + 1);
-                    break;
-                case Cursor.FIELD_TYPE_INTEGER:
-                    nativeBindLong(mConnectionPtr, statementPtr, i + 1,
-                            ((Number)arg).longValue());
-                    break;
-                case Cursor.FIELD_TYPE_FLOAT:
-                    nativeBindDouble(mConnectionPtr, statementPtr, i + 1,
-                            ((Number)arg).doubleValue());
-                    break;
-                case Cursor.FIELD_TYPE_BLOB:
-                    nativeBindBlob(mConnectionPtr, statementPtr, i + 1, (byte[])arg);
-                    break;
-                case Cursor.FIELD_TYPE_STRING:
-                default:
-                    if (arg instanceof Boolean) {
-                        // Provide compatibility with legacy applications which may pass
-                        // Boolean values in bind args.
-                        nativeBindLong(mConnectionPtr, statementPtr, i + 1,
-                                ((Boolean)arg).booleanValue() ? 1 : 0);
-                    } else {
-                        nativeBindString(mConnectionPtr, statementPtr, i + 1, arg.toString());
-                    }
-                    break;
+            bindArgument(statementPtr, i + 1, bindArgs[i]);
+        }
+    }
+
+    private void bindArgument(long statementPtr, int index, Object arg) {
+        switch (DatabaseUtils.getTypeOfObject(arg)) {
+            case Cursor.FIELD_TYPE_NULL:
+                nativeBindNull(mConnectionPtr, statementPtr, index);
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                nativeBindLong(mConnectionPtr, statementPtr, index,
+                        ((Number)arg).longValue());
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                nativeBindDouble(mConnectionPtr, statementPtr, index,
+                        ((Number)arg).doubleValue());
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                nativeBindBlob(mConnectionPtr, statementPtr, index, (byte[])arg);
+                break;
+            case Cursor.FIELD_TYPE_STRING:
+            default:
+                if (arg instanceof Boolean) {
+                    // Provide compatibility with legacy applications which may pass
+                    // Boolean values in bind args.
+                    nativeBindLong(mConnectionPtr, statementPtr, index,
+                            ((Boolean)arg).booleanValue() ? 1 : 0);
+                } else {
+                    nativeBindString(mConnectionPtr, statementPtr, index, arg.toString());
+                }
+                break;
+        }
+    }
+
+    private static void checkBatchArguments(PreparedStatement statement, Object[] bindArgs,
+            Object[] columns, int endRow) {
+        final int numParameters = statement.mNumParameters;
+        if (bindArgs != null) {
+            if (bindArgs.length < endRow * numParameters) {
+                throw new SQLiteBindOrColumnIndexOutOfRangeException(
+                        "Expected " + endRow * numParameters + " bind arguments but "
+                        + bindArgs.length + " were provided.");
+            }
+            return;
+        }
+        if (columns.length != numParameters) {
+            throw new SQLiteBindOrColumnIndexOutOfRangeException(
+                    "Expected " + numParameters + " bind argument columns but "
+                    + columns.length + " were provided.");
+        }
+        for (int i = 0; i < numParameters; i++) {
+            final Object column = columns[i];
+            final int length;
+            if (column instanceof long[]) {
+                length = ((long[]) column).length;
+            } else if (column instanceof int[]) {
+                length = ((int[]) column).length;
+            } else if (column instanceof double[]) {
+                length = ((double[]) column).length;
+            } else if (column instanceof Object[]) {
+                length = ((Object[]) column).length;
+            } else {
+                throw new IllegalArgumentException("Unsupported bind argument column "
+                        + column);
+            }
+            if (length < endRow) {
+                throw new SQLiteBindOrColumnIndexOutOfRangeException(
+                        "Expected " + endRow + " bind arguments in column " + i
+                        + " but " + length + " were provided.");
+            }
+        }
+    }
+
+    private void bindBatchRow(PreparedStatement statement, Object[] bindArgs,
+            Object[] columns, int row) {
+        final int numParameters = statement.mNumParameters;
+        final long statementPtr = statement.mStatementPtr;
+        if (bindArgs != null) {
+            final int offset = row * numParameters;
+            for (int i = 0; i < numParameters; i++) {
+                bindArgument(statementPtr, i + 1, bindArgs[offset + i]);
+            }
+            return;
+        }
+        for (int i = 0; i < numParameters; i++) {
+            final Object column = columns[i];
+            if (column instanceof long[]) {
+                nativeBindLong(mConnectionPtr, statementPtr, i + 1, ((long[]) column)[row]);
+            } else if (column instanceof int[]) {
+                nativeBindLong(mConnectionPtr, statementPtr, i + 1, ((int[]) column)[row]);
+            } else if (column instanceof double[]) {
+                nativeBindDouble(mConnectionPtr, statementPtr, i + 1,
+                        ((double[]) column)[row]);
+            } else {
+                bindArgument(statementPtr, i + 1, ((Object[]) column)[row]);
             }
         }
     }
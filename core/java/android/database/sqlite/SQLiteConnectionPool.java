@@ -17,6 +17,7 @@
 package android.database.sqlite;
 
 import android.database.sqlite.SQLiteDebug.DbStats;
+import android.database.sqlite.SQLiteDebug.PoolStats;
 import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Looper;
@@ -84,6 +85,14 @@ public final class SQLiteConnectionPool implements Closeable {
     // and logging a message about the connection pool being busy.
     private static final long CONNECTION_POOL_BUSY_MILLIS = 30 * 1000; // 30 seconds
 
+    // Number of sessions that must be waiting for a non-primary connection before
+    // an adaptive pool opens up another one.
+    private static final int ADAPTIVE_POOL_GROW_WAITERS = 2;
+
+    // Amount of time in milliseconds an adaptive pool must go without sessions waiting
+    // for a non-primary connection before it gives back one of the connections it grew by.
+    private static final long ADAPTIVE_POOL_SHRINK_MILLIS = 30 * 1000; // 30 seconds
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final Object mLock = new Object();
@@ -93,6 +102,14 @@ public final class SQLiteConnectionPool implements Closeable {
     private boolean mIsOpen;
     private int mNextConnectionId;
 
+    // The pool size given by the configuration, and the size an adaptive pool may grow
+    // to while sessions are waiting for connections.  These are the same unless the
+    // adaptive pool is enabled for a WAL database.
+    private int mBaseConnectionPoolSize;
+    private int mAdaptiveConnectionPoolSize;
+    private int mAdaptiveConnectionPoolLimit;
+    private long mLastContentionTime;
+
     private ConnectionWaiter mConnectionWaiterPool;
     private ConnectionWaiter mConnectionWaiterQueue;
 
@@ -106,6 +123,10 @@ public final class SQLiteConnectionPool implements Closeable {
 
     private final AtomicLong mTotalExecutionTimeCounter = new AtomicLong(0);
 
+    // Connection wait and hold times, and statement cache counts of closed connections.
+    @GuardedBy("mLock")
+    private final PoolStats mStats = new PoolStats();
+
     // Describes what should happen to an acquired connection when it is returned to the pool.
     enum AcquiredConnectionStatus {
         // The connection should be returned to the pool as usual.
@@ -160,6 +181,7 @@ public final class SQLiteConnectionPool implements Closeable {
 
     private SQLiteConnectionPool(SQLiteDatabaseConfiguration configuration) {
         mConfiguration = new SQLiteDatabaseConfiguration(configuration);
+        mAdaptiveConnectionPoolLimit = SQLiteGlobal.getWALAdaptiveConnectionPoolSize();
         setMaxConnectionPoolSizeLocked();
         // If timeout is set, setup idle connection handler
         // In case of MAX_VALUE - idle connections are never closed
@@ -407,6 +429,8 @@ public final class SQLiteConnectionPool implements Closeable {
                         + "because the specified connection was not acquired "
                         + "from this pool or has already been released.");
             }
+            recordConnectionHeldLocked(connection);
+            shrinkAdaptivePoolLocked();
 
             if (!mIsOpen) {
                 closeConnectionAndLogExceptionsLocked(connection);
@@ -496,6 +520,41 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    /**
+     * Collects statistics about connection waits, connection hold times and
+     * prepared statement cache use.
+     *
+     * @return The statistics object, never null.
+     */
+    public PoolStats getPoolStats() {
+        synchronized (mLock) {
+            return getPoolStatsLocked();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private PoolStats getPoolStatsLocked() {
+        final PoolStats stats = new PoolStats(mStats);
+        stats.dbName = mConfiguration.path;
+        stats.baseConnections = mBaseConnectionPoolSize;
+        stats.maxConnections = mMaxConnectionPoolSize;
+        if (mAvailablePrimaryConnection != null) {
+            addStatementCacheStats(stats, mAvailablePrimaryConnection);
+        }
+        for (SQLiteConnection connection : mAvailableNonPrimaryConnections) {
+            addStatementCacheStats(stats, connection);
+        }
+        for (SQLiteConnection connection : mAcquiredConnections.keySet()) {
+            addStatementCacheStats(stats, connection);
+        }
+        return stats;
+    }
+
+    private static void addStatementCacheStats(PoolStats stats, SQLiteConnection connection) {
+        stats.statementCacheHits += connection.getPreparedStatementCacheHitCount();
+        stats.statementCacheMisses += connection.getPreparedStatementCacheMissCount();
+    }
+
     // Might throw.
     private SQLiteConnection openConnectionLocked(SQLiteDatabaseConfiguration configuration,
             boolean primaryConnection) {
@@ -604,6 +663,7 @@ public final class SQLiteConnectionPool implements Closeable {
     // Can't throw.
     @GuardedBy("mLock")
     private void closeConnectionAndLogExceptionsLocked(SQLiteConnection connection) {
+        addStatementCacheStats(mStats, connection);
         try {
             connection.close(); // might throw
             if (mIdleConnectionHandler != null) {
@@ -721,6 +781,11 @@ public final class SQLiteConnectionPool implements Closeable {
                 mConnectionWaiterQueue = waiter;
             }
 
+            // Open up another connection if readers are piling up.
+            if (!wantPrimaryConnection && growAdaptivePoolLocked(startTime)) {
+                wakeConnectionWaitersLocked();
+            }
+
             nonce = waiter.mNonce;
         }
 
@@ -763,8 +828,10 @@ public final class SQLiteConnectionPool implements Closeable {
                     final SQLiteConnection connection = waiter.mAssignedConnection;
                     final RuntimeException ex = waiter.mException;
                     if (connection != null || ex != null) {
+                        final long waitMillis = SystemClock.uptimeMillis() - waiter.mStartTime;
                         recycleConnectionWaiterLocked(waiter);
                         if (connection != null) {
+                            recordConnectionWaitLocked(waitMillis);
                             return connection;
                         }
                         throw ex; // rethrow!
@@ -998,6 +1065,8 @@ public final class SQLiteConnectionPool implements Closeable {
             connection.setOnlyAllowReadOnlyOperations(readOnly);
 
             mAcquiredConnections.put(connection, AcquiredConnectionStatus.NORMAL);
+            connection.setAcquiredTime(SystemClock.uptimeMillis());
+            mStats.acquireCount += 1;
         } catch (RuntimeException ex) {
             Log.e(TAG, "Failed to prepare acquired connection for session, closing it: "
                     + connection +", connectionFlags=" + connectionFlags);
@@ -1037,17 +1106,94 @@ public final class SQLiteConnectionPool implements Closeable {
     private void setMaxConnectionPoolSizeLocked() {
         if (!mConfiguration.isInMemoryDb()
                 && (mConfiguration.openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0) {
-            mMaxConnectionPoolSize = SQLiteGlobal.getWALConnectionPoolSize();
+            mBaseConnectionPoolSize = SQLiteGlobal.getWALConnectionPoolSize();
+            mAdaptiveConnectionPoolSize = Math.max(mBaseConnectionPoolSize,
+                    mAdaptiveConnectionPoolLimit);
+            // Keep any connections an adaptive pool has grown by if they still fit.
+            mMaxConnectionPoolSize = Math.min(mAdaptiveConnectionPoolSize,
+                    Math.max(mBaseConnectionPoolSize, mMaxConnectionPoolSize));
         } else {
             // We don't actually need to always restrict the connection pool size to 1
             // for non-WAL databases.  There might be reasons to use connection pooling
             // with other journal modes. However, we should always keep pool size of 1 for in-memory
             // databases since every :memory: db is separate from another.
             // For now, enabling connection pooling and using WAL are the same thing in the API.
+            mBaseConnectionPoolSize = 1;
+            mAdaptiveConnectionPoolSize = 1;
             mMaxConnectionPoolSize = 1;
         }
     }
 
+    // Can't throw.
+    @GuardedBy("mLock")
+    private boolean growAdaptivePoolLocked(long now) {
+        mLastContentionTime = now;
+        if (mMaxConnectionPoolSize >= mAdaptiveConnectionPoolSize) {
+            return false;
+        }
+        int waiters = 0;
+        for (ConnectionWaiter waiter = mConnectionWaiterQueue; waiter != null;
+                waiter = waiter.mNext) {
+            if (!waiter.mWantPrimaryConnection) {
+                waiters += 1;
+            }
+        }
+        if (waiters < ADAPTIVE_POOL_GROW_WAITERS) {
+            return false;
+        }
+        mMaxConnectionPoolSize += 1;
+        mStats.growCount += 1;
+        return true;
+    }
+
+    // Can't throw.
+    @GuardedBy("mLock")
+    private void shrinkAdaptivePoolLocked() {
+        if (mMaxConnectionPoolSize <= mBaseConnectionPoolSize
+                || mConnectionWaiterQueue != null) {
+            return;
+        }
+        // Give back one connection per quiet period, the excess connection is closed
+        // as it is released.
+        final long now = SystemClock.uptimeMillis();
+        if (now - mLastContentionTime >= ADAPTIVE_POOL_SHRINK_MILLIS) {
+            mMaxConnectionPoolSize -= 1;
+            mLastContentionTime = now;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void recordConnectionWaitLocked(long waitMillis) {
+        mStats.waitCount += 1;
+        mStats.totalWaitMillis += waitMillis;
+        mStats.maxWaitMillis = Math.max(mStats.maxWaitMillis, waitMillis);
+    }
+
+    @GuardedBy("mLock")
+    private void recordConnectionHeldLocked(SQLiteConnection connection) {
+        final long holdMillis = SystemClock.uptimeMillis() - connection.getAcquiredTime();
+        if (connection.isPrimaryConnection()) {
+            mStats.totalPrimaryHoldMillis += holdMillis;
+            mStats.maxPrimaryHoldMillis = Math.max(mStats.maxPrimaryHoldMillis, holdMillis);
+        } else {
+            mStats.totalNonPrimaryHoldMillis += holdMillis;
+            mStats.maxNonPrimaryHoldMillis = Math.max(mStats.maxNonPrimaryHoldMillis,
+                    holdMillis);
+        }
+    }
+
+    /**
+     * Lets the pool grow to the specified number of connections while sessions are
+     * waiting for read connections, as it does when debug.sqlite.wal.adaptive_pool is set.
+     */
+    @VisibleForTesting
+    public void setAdaptiveConnectionPoolSize(int size) {
+        synchronized (mLock) {
+            mAdaptiveConnectionPoolLimit = size;
+            setMaxConnectionPoolSizeLocked();
+        }
+    }
+
     /**
      * Set up the handler based on the provided looper and timeout.
      */
@@ -1112,6 +1258,22 @@ public final class SQLiteConnectionPool implements Closeable {
             printer.println("  Open: " + mIsOpen);
             printer.println("  Max connections: " + mMaxConnectionPoolSize);
             printer.println("  Total execution time: " + mTotalExecutionTimeCounter);
+            final PoolStats stats = getPoolStatsLocked();
+            if (mAdaptiveConnectionPoolSize > mBaseConnectionPoolSize) {
+                printer.println("  Adaptive pool: baseConnections=" + mBaseConnectionPoolSize
+                        + ", maxConnections=" + mAdaptiveConnectionPoolSize
+                        + ", growCount=" + stats.growCount);
+            }
+            printer.println("  Statement cache: hits=" + stats.statementCacheHits
+                    + ", misses=" + stats.statementCacheMisses
+                    + ", hitRate=" + stats.getStatementCacheHitRate());
+            printer.println("  Connection waits: " + stats.waitCount + " of "
+                    + stats.acquireCount + " acquisitions, totalWaitTime="
+                    + stats.totalWaitMillis + "ms, maxWaitTime=" + stats.maxWaitMillis + "ms");
+            printer.println("  Connection hold time: primary total="
+                    + stats.totalPrimaryHoldMillis + "ms, max=" + stats.maxPrimaryHoldMillis
+                    + "ms; non-primary total=" + stats.totalNonPrimaryHoldMillis
+                    + "ms, max=" + stats.maxNonPrimaryHoldMillis + "ms");
             printer.println("  Configuration: openFlags=" + mConfiguration.openFlags
                     + ", useCompatibilityWal=" + mConfiguration.useCompatibilityWal()
                     + ", journalMode=" + TextUtils.emptyIfNull(mConfiguration.journalMode)
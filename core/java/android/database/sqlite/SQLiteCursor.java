@@ -166,6 +166,19 @@ public class SQLiteCursor extends AbstractWindowedCursor {
         }
     }
 
+    /**
+     * Fills the window straight from the query rather than by copying rows out of
+     * this cursor's own window.
+     */
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        if (window == null || window == mWindow || position < 0 || position >= getCount()) {
+            super.fillWindow(position, window);
+            return;
+        }
+        mQuery.fillWindow(window, position, position, false);
+    }
+
     @Override
     public int getColumnIndex(String columnName) {
         // Create mColumnNameMap on demand
@@ -28,6 +28,7 @@ import android.database.DatabaseUtils;
 import android.database.DefaultDatabaseErrorHandler;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDebug.DbStats;
+import android.database.sqlite.SQLiteDebug.PoolStats;
 import android.os.CancellationSignal;
 import android.os.Looper;
 import android.os.OperationCanceledException;
@@ -1570,6 +1571,117 @@ public final class SQLiteDatabase extends SQLiteClosable {
         }
     }
 
+    /**
+     * Inserts many rows into the database with as few compiled statements as possible.
+     * Consecutive rows with the same columns are inserted by executing one compiled INSERT
+     * statement for each of them, within one transaction, which is started if the database
+     * is not in a transaction already.
+     *
+     * @param table the table to insert the rows into
+     * @param nullColumnHack optional; may be <code>null</code>.
+     *            See {@link #insertWithOnConflict(String, String, ContentValues, int)}.
+     * @param rows the initial column values of the rows.
+     * @param conflictAlgorithm for insert conflict resolver
+     * @return the number of rows inserted
+     * @throws SQLException
+     * @hide
+     */
+    public int insertBatchWithOnConflict(String table, String nullColumnHack,
+            ContentValues[] rows, int conflictAlgorithm) {
+        acquireReference();
+        try {
+            final boolean ownTransaction = !inTransaction();
+            if (ownTransaction) {
+                beginTransaction();
+            }
+            try {
+                int insertedRows = 0;
+                int start = 0;
+                while (start < rows.length) {
+                    final ContentValues first = rows[start];
+                    final int size = (first != null) ? first.size() : 0;
+                    final String[] columns = (size > 0)
+                            ? first.keySet().toArray(new String[size]) : null;
+
+                    // Find the run of rows with the same columns as the first
+                    int end = start + 1;
+                    while (end < rows.length && hasColumns(rows[end], columns)) {
+                        end++;
+                    }
+                    insertedRows += insertBatchRun(table, nullColumnHack, rows, start, end,
+                            columns, conflictAlgorithm);
+                    start = end;
+                }
+                if (ownTransaction) {
+                    setTransactionSuccessful();
+                }
+                return insertedRows;
+            } finally {
+                if (ownTransaction) {
+                    endTransaction();
+                }
+            }
+        } finally {
+            releaseReference();
+        }
+    }
+
+    private static boolean hasColumns(ContentValues values, String[] columns) {
+        if (columns == null) {
+            return values == null || values.isEmpty();
+        }
+        if (values == null || values.size() != columns.length) {
+            return false;
+        }
+        for (String column : columns) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int insertBatchRun(String table, String nullColumnHack, ContentValues[] rows,
+            int start, int end, String[] columns, int conflictAlgorithm) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("INSERT");
+        sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+        sql.append(" INTO ");
+        sql.append(table);
+        sql.append('(');
+        final int size = (columns != null) ? columns.length : 0;
+        if (size > 0) {
+            for (int i = 0; i < size; i++) {
+                sql.append((i > 0) ? "," : "");
+                sql.append(columns[i]);
+            }
+            sql.append(')');
+            sql.append(" VALUES (");
+            for (int i = 0; i < size; i++) {
+                sql.append((i > 0) ? ",?" : "?");
+            }
+        } else {
+            sql.append(nullColumnHack + ") VALUES (NULL");
+        }
+        sql.append(')');
+
+        final int rowCount = end - start;
+        final Object[] bindArgs = new Object[rowCount * size];
+        for (int row = 0; row < rowCount; row++) {
+            final ContentValues values = rows[start + row];
+            for (int i = 0; i < size; i++) {
+                bindArgs[row * size + i] = values.get(columns[i]);
+            }
+        }
+
+        SQLiteStatement statement = new SQLiteStatement(this, sql.toString(), null);
+        try {
+            return statement.executeBatch(bindArgs, rowCount);
+        } finally {
+            statement.close();
+        }
+    }
+
     /**
      * Convenience method for deleting rows in the database.
      *
@@ -2146,6 +2258,25 @@ public final class SQLiteDatabase extends SQLiteClosable {
         }
     }
 
+    /**
+     * Collects statistics about the connection pools of all active databases.
+     */
+    static ArrayList<PoolStats> getPoolStats() {
+        ArrayList<PoolStats> poolStatsList = new ArrayList<PoolStats>();
+        for (SQLiteDatabase db : getActiveDatabases()) {
+            db.collectPoolStats(poolStatsList);
+        }
+        return poolStatsList;
+    }
+
+    private void collectPoolStats(ArrayList<PoolStats> poolStatsList) {
+        synchronized (mLock) {
+            if (mConnectionPoolLocked != null) {
+                poolStatsList.add(mConnectionPoolLocked.getPoolStats());
+            }
+        }
+    }
+
     private static ArrayList<SQLiteDatabase> getActiveDatabases() {
         ArrayList<SQLiteDatabase> databases = new ArrayList<SQLiteDatabase>();
         synchronized (sActiveDatabases) {
@@ -146,6 +146,75 @@ public final class SQLiteDebug {
         }
     }
 
+    /**
+     * contains statistics about the connection pool of a database
+     *
+     * @hide
+     */
+    public static class PoolStats {
+        /** name of the database */
+        public String dbName;
+
+        /** the number of connections the pool opens when there is no contention */
+        public int baseConnections;
+
+        /** the number of connections the pool may currently open */
+        public int maxConnections;
+
+        /** the number of times the adaptive pool opened up another connection */
+        public int growCount;
+
+        /** prepared statement cache hits over all connections of the pool */
+        public long statementCacheHits;
+
+        /** prepared statement cache misses over all connections of the pool */
+        public long statementCacheMisses;
+
+        /** the number of connections acquired from the pool */
+        public long acquireCount;
+
+        /** the number of acquisitions that had to wait for a connection */
+        public long waitCount;
+
+        /** total and longest time in milliseconds spent waiting for a connection */
+        public long totalWaitMillis;
+        public long maxWaitMillis;
+
+        /** total and longest time in milliseconds the primary connection was held */
+        public long totalPrimaryHoldMillis;
+        public long maxPrimaryHoldMillis;
+
+        /** total and longest time in milliseconds a non-primary connection was held */
+        public long totalNonPrimaryHoldMillis;
+        public long maxNonPrimaryHoldMillis;
+
+        public PoolStats() {
+        }
+
+        public PoolStats(PoolStats other) {
+            dbName = other.dbName;
+            baseConnections = other.baseConnections;
+            maxConnections = other.maxConnections;
+            growCount = other.growCount;
+            statementCacheHits = other.statementCacheHits;
+            statementCacheMisses = other.statementCacheMisses;
+            acquireCount = other.acquireCount;
+            waitCount = other.waitCount;
+            totalWaitMillis = other.totalWaitMillis;
+            maxWaitMillis = other.maxWaitMillis;
+            totalPrimaryHoldMillis = other.totalPrimaryHoldMillis;
+            maxPrimaryHoldMillis = other.maxPrimaryHoldMillis;
+            totalNonPrimaryHoldMillis = other.totalNonPrimaryHoldMillis;
+            maxNonPrimaryHoldMillis = other.maxNonPrimaryHoldMillis;
+        }
+
+        /** @return the fraction of statement cache lookups that were hits */
+        public float getStatementCacheHitRate() {
+            final long lookups = statementCacheHits + statementCacheMisses;
+            return lookups > 0 ? (float) statementCacheHits / lookups : 0;
+        }
+    }
+
     /**
      * return all pager and database stats for the current process.
      * @return {@link PagerStats}
@@ -158,6 +227,15 @@ public final class SQLiteDebug {
         return stats;
     }
 
+    /**
+     * return the connection pool stats of every database open in the current process.
+     *
+     * @hide
+     */
+    public static ArrayList<PoolStats> getConnectionPoolStats() {
+        return SQLiteDatabase.getPoolStats();
+    }
+
     /**
      * Dumps detailed information about all databases used by the process.
      * @param printer The printer for dumping database state.
@@ -154,6 +154,19 @@ public final class SQLiteGlobal {
         return Math.max(2, value);
     }
 
+    /**
+     * Gets the number of connections a WAL connection pool may grow to when sessions have
+     * to wait for read connections, or 0 if pools keep the size from
+     * {@link #getWALConnectionPoolSize}.
+     */
+    public static int getWALAdaptiveConnectionPoolSize() {
+        if (!SystemProperties.getBoolean("debug.sqlite.wal.adaptive_pool", false)) {
+            return 0;
+        }
+        return Math.max(getWALConnectionPoolSize(),
+                SystemProperties.getInt("debug.sqlite.wal.adaptive_poolsize", 8));
+    }
+
     /**
      * The default number of milliseconds that SQLite connection is allowed to be idle before it
      * is closed and removed from the pool.
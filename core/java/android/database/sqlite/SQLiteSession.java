@@ -758,6 +758,41 @@ public final class SQLiteSession {
         }
     }
 
+    /**
+     * Executes a statement once for each row of a batch of bind arguments.
+     * Use for INSERT, UPDATE or DELETE SQL statements.
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments of all rows one row after the other, or null
+     * if given as columns.
+     * @param columns The arguments of all rows by parameter, or null if given as rows.
+     * @param startRow The first row of the batch to execute.
+     * @param rowCount The number of rows to execute.
+     * @param connectionFlags The connection flags to use if a connection must be
+     * acquired by this operation.  Refer to {@link SQLiteConnectionPool}.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return The number of rows that were changed.
+     *
+     * @throws SQLiteException if an error occurs, such as a syntax error
+     * or invalid number of bind arguments.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    public int executeBatchForChangedRowCount(String sql, Object[] bindArgs, Object[] columns,
+            int startRow, int rowCount, int connectionFlags,
+            CancellationSignal cancellationSignal) {
+        if (sql == null) {
+            throw new IllegalArgumentException("sql must not be null.");
+        }
+
+        acquireConnection(sql, connectionFlags, cancellationSignal); // might throw
+        try {
+            return mConnection.executeBatchForChangedRowCount(sql, bindArgs, columns,
+                    startRow, rowCount, cancellationSignal); // might throw
+        } finally {
+            releaseConnection(); // might throw
+        }
+    }
+
     /**
      * Executes a statement that returns the row id of the last row inserted
      * by the statement.  Use for INSERT SQL statements.
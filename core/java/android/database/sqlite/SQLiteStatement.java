@@ -27,6 +27,9 @@ import android.os.ParcelFileDescriptor;
  * </p>
  */
 public final class SQLiteStatement extends SQLiteProgram {
+    // Number of rows of a batch to execute per call into the session.
+    private static final int BATCH_CHUNK_ROWS = 256;
+
     SQLiteStatement(SQLiteDatabase db, String sql, Object[] bindArgs) {
         super(db, sql, bindArgs, null);
     }
@@ -71,6 +74,81 @@ public final class SQLiteStatement extends SQLiteProgram {
         }
     }
 
+    /**
+     * Execute this SQL statement once for each row of bind arguments, for example to insert
+     * many rows with one compiled INSERT statement.  The rows are executed in chunks within
+     * one transaction, which is started if the database is not in a transaction already.
+     * Arguments bound to this statement are ignored.
+     *
+     * @param bindArgs The bind arguments of all the rows, one row after the other, with
+     *         as many arguments per row as the statement has parameters.
+     * @param rowCount The number of rows to execute.
+     * @return the number of rows affected by all executions.
+     * @throws android.database.SQLException If the SQL string is invalid for
+     *         some reason
+     * @hide
+     */
+    public int executeBatch(Object[] bindArgs, int rowCount) {
+        if (bindArgs == null) {
+            throw new IllegalArgumentException("bindArgs must not be null.");
+        }
+        return executeBatch(bindArgs, null, rowCount);
+    }
+
+    /**
+     * Execute this SQL statement once for each row of bind arguments given by column, like
+     * {@link #executeBatch(Object[], int)}.  Each column holds the arguments of one parameter
+     * of the statement for all the rows, and may be a {@code long[]}, {@code int[]} or
+     * {@code double[]}, which are bound without boxing, or an object array such as a
+     * {@code String[]}.
+     *
+     * @param columns The bind arguments of the rows, one array per parameter.
+     * @param rowCount The number of rows to execute.
+     * @return the number of rows affected by all executions.
+     * @throws android.database.SQLException If the SQL string is invalid for
+     *         some reason
+     * @hide
+     */
+    public int executeBatchColumns(Object[] columns, int rowCount) {
+        if (columns == null) {
+            throw new IllegalArgumentException("columns must not be null.");
+        }
+        return executeBatch(null, columns, rowCount);
+    }
+
+    private int executeBatch(Object[] bindArgs, Object[] columns, int rowCount) {
+        acquireReference();
+        try {
+            final SQLiteDatabase db = getDatabase();
+            final boolean ownTransaction = !db.inTransaction();
+            if (ownTransaction) {
+                db.beginTransaction();
+            }
+            try {
+                int changedRows = 0;
+                for (int startRow = 0; startRow < rowCount; startRow += BATCH_CHUNK_ROWS) {
+                    changedRows += getSession().executeBatchForChangedRowCount(getSql(),
+                            bindArgs, columns, startRow,
+                            Math.min(BATCH_CHUNK_ROWS, rowCount - startRow),
+                            getConnectionFlags(), null);
+                }
+                if (ownTransaction) {
+                    db.setTransactionSuccessful();
+                }
+                return changedRows;
+            } finally {
+                if (ownTransaction) {
+                    db.endTransaction();
+                }
+            }
+        } catch (SQLiteDatabaseCorruptException ex) {
+            onCorruption();
+            throw ex;
+        } finally {
+            releaseReference();
+        }
+    }
+
     /**
      * Execute this SQL statement and return the ID of the row inserted due to this call.
      * The SQL statement should be an INSERT for this to be a useful call.
@@ -103,6 +103,9 @@ public class NetworkStats implements Parcelable {
     // Used for correct stats accounting on clatd interfaces.
     private static final int IPV4V6_HEADER_DELTA = 20;
 
+    /** Tables smaller than this are searched linearly, which is cheaper than hashing. */
+    private static final int KEY_INDEX_MIN_SIZE = 16;
+
     // TODO: move fields to "mVariable" notation
 
     /**
@@ -125,6 +128,15 @@ public class NetworkStats implements Parcelable {
     private long[] txPackets;
     private long[] operations;
 
+    /**
+     * Open addressing hash table from row key to {@code row + 1}, with {@code 0} marking empty
+     * slots. Built by the first lookup on a large enough table, kept up to date as rows are
+     * appended, and dropped when rows are rewritten. Only the first row of each key is indexed.
+     */
+    private int[] keyIndex;
+    /** Whether any key was found on more than one row while indexing. */
+    private boolean keyIndexHasDuplicates;
+
     public static class Entry {
         public String iface;
         public int uid;
@@ -315,6 +327,7 @@ public class NetworkStats implements Parcelable {
      * Clear all data stored in this object.
      */
     public void clear() {
+        this.keyIndex = null;
         this.capacity = 0;
         this.iface = EmptyArray.STRING;
         this.uid = EmptyArray.INT;
@@ -358,6 +371,39 @@ public class NetworkStats implements Parcelable {
      * object can be recycled across multiple calls.
      */
     public NetworkStats addValues(Entry entry) {
+        growIfFull();
+        setValues(size, entry);
+        size++;
+        onRowAppended();
+
+        return this;
+    }
+
+    /**
+     * Append a row with the given key and zero values, returning its index.
+     */
+    private int addRow(String iface, int uid, int set, int tag, int metered, int roaming,
+            int defaultNetwork) {
+        growIfFull();
+        final int i = size;
+        this.iface[i] = iface;
+        this.uid[i] = uid;
+        this.set[i] = set;
+        this.tag[i] = tag;
+        this.metered[i] = metered;
+        this.roaming[i] = roaming;
+        this.defaultNetwork[i] = defaultNetwork;
+        rxBytes[i] = 0;
+        rxPackets[i] = 0;
+        txBytes[i] = 0;
+        txPackets[i] = 0;
+        operations[i] = 0;
+        size++;
+        onRowAppended();
+        return i;
+    }
+
+    private void growIfFull() {
         if (size >= capacity) {
             final int newLength = Math.max(size, 10) * 3 / 2;
             iface = Arrays.copyOf(iface, newLength);
@@ -374,11 +420,16 @@ public class NetworkStats implements Parcelable {
             operations = Arrays.copyOf(operations, newLength);
             capacity = newLength;
         }
+    }
 
-        setValues(size, entry);
-        size++;
-
-        return this;
+    private void onRowAppended() {
+        if (keyIndex != null) {
+            if (size * 2 > keyIndex.length) {
+                buildKeyIndex();
+            } else {
+                indexRow(size - 1);
+            }
+        }
     }
 
     private void setValues(int i, Entry entry) {
@@ -461,18 +512,13 @@ public class NetworkStats implements Parcelable {
      * also be used to subtract values from existing rows.
      */
     public NetworkStats combineValues(Entry entry) {
-        final int i = findIndex(entry.iface, entry.uid, entry.set, entry.tag, entry.metered,
+        final int i = findOrAddRow(entry.iface, entry.uid, entry.set, entry.tag, entry.metered,
                 entry.roaming, entry.defaultNetwork);
-        if (i == -1) {
-            // only create new entry when positive contribution
-            addValues(entry);
-        } else {
-            rxBytes[i] += entry.rxBytes;
-            rxPackets[i] += entry.rxPackets;
-            txBytes[i] += entry.txBytes;
-            txPackets[i] += entry.txPackets;
-            operations[i] += entry.operations;
-        }
+        rxBytes[i] += entry.rxBytes;
+        rxPackets[i] += entry.rxPackets;
+        txBytes[i] += entry.txBytes;
+        txPackets[i] += entry.txPackets;
+        operations[i] += entry.operations;
         return this;
     }
 
@@ -480,23 +526,37 @@ public class NetworkStats implements Parcelable {
      * Combine all values from another {@link NetworkStats} into this object.
      */
     public void combineAllValues(NetworkStats another) {
-        NetworkStats.Entry entry = null;
-        for (int i = 0; i < another.size; i++) {
-            entry = another.getValues(i, entry);
-            combineValues(entry);
+        for (int j = 0; j < another.size; j++) {
+            final int i = findOrAddRow(another.iface[j], another.uid[j], another.set[j],
+                    another.tag[j], another.metered[j], another.roaming[j],
+                    another.defaultNetwork[j]);
+            rxBytes[i] += another.rxBytes[j];
+            rxPackets[i] += another.rxPackets[j];
+            txBytes[i] += another.txBytes[j];
+            txPackets[i] += another.txPackets[j];
+            operations[i] += another.operations[j];
         }
     }
 
+    private int findOrAddRow(String iface, int uid, int set, int tag, int metered, int roaming,
+            int defaultNetwork) {
+        final int i = findIndex(iface, uid, set, tag, metered, roaming, defaultNetwork);
+        if (i != -1) {
+            return i;
+        }
+        return addRow(iface, uid, set, tag, metered, roaming, defaultNetwork);
+    }
+
     /**
      * Find first stats index that matches the requested parameters.
      */
     public int findIndex(String iface, int uid, int set, int tag, int metered, int roaming,
             int defaultNetwork) {
+        if (size >= KEY_INDEX_MIN_SIZE) {
+            return findIndexHashed(iface, uid, set, tag, metered, roaming, defaultNetwork);
+        }
         for (int i = 0; i < size; i++) {
-            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
-                    && metered == this.metered[i] && roaming == this.roaming[i]
-                    && defaultNetwork == this.defaultNetwork[i]
-                    && Objects.equals(iface, this.iface[i])) {
+            if (keyEquals(i, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
                 return i;
             }
         }
@@ -510,6 +570,20 @@ public class NetworkStats implements Parcelable {
     @VisibleForTesting
     public int findIndexHinted(String iface, int uid, int set, int tag, int metered, int roaming,
             int defaultNetwork, int hintIndex) {
+        if (size >= KEY_INDEX_MIN_SIZE) {
+            // Rows of snapshots taken in a row usually line up, so try the hint first
+            final int i = hintIndex % size;
+            if (keyEquals(i, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
+                return i;
+            }
+            if (keyIndex == null) {
+                buildKeyIndex();
+            }
+            // With a single row per key, any match is the one the search below would find
+            if (!keyIndexHasDuplicates) {
+                return findIndexHashed(iface, uid, set, tag, metered, roaming, defaultNetwork);
+            }
+        }
         for (int offset = 0; offset < size; offset++) {
             final int halfOffset = offset / 2;
 
@@ -521,16 +595,81 @@ public class NetworkStats implements Parcelable {
                 i = (size + hintIndex - halfOffset - 1) % size;
             }
 
-            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
-                    && metered == this.metered[i] && roaming == this.roaming[i]
-                    && defaultNetwork == this.defaultNetwork[i]
-                    && Objects.equals(iface, this.iface[i])) {
+            if (keyEquals(i, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
                 return i;
             }
         }
         return -1;
     }
 
+    private boolean keyEquals(int i, String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        return uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                && metered == this.metered[i] && roaming == this.roaming[i]
+                && defaultNetwork == this.defaultNetwork[i]
+                && Objects.equals(iface, this.iface[i]);
+    }
+
+    private static int hashKey(String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        int result = Objects.hashCode(iface);
+        result = 31 * result + uid;
+        result = 31 * result + set;
+        result = 31 * result + tag;
+        result = 31 * result + metered;
+        result = 31 * result + roaming;
+        result = 31 * result + defaultNetwork;
+        // The table is indexed with the low bits, so mix in the high ones
+        return result ^ (result >>> 16);
+    }
+
+    private int findIndexHashed(String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        if (keyIndex == null) {
+            buildKeyIndex();
+        }
+        final int mask = keyIndex.length - 1;
+        int slot = hashKey(iface, uid, set, tag, metered, roaming, defaultNetwork) & mask;
+        while (true) {
+            final int i = keyIndex[slot] - 1;
+            if (i < 0) {
+                return -1;
+            }
+            if (keyEquals(i, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
+                return i;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void buildKeyIndex() {
+        // Keep the table at most half full
+        keyIndex = new int[Integer.highestOneBit(Math.max(size, KEY_INDEX_MIN_SIZE) * 2 - 1) * 2];
+        keyIndexHasDuplicates = false;
+        for (int i = 0; i < size; i++) {
+            indexRow(i);
+        }
+    }
+
+    private void indexRow(int i) {
+        final int mask = keyIndex.length - 1;
+        int slot = hashKey(iface[i], uid[i], set[i], tag[i], metered[i], roaming[i],
+                defaultNetwork[i]) & mask;
+        while (true) {
+            final int j = keyIndex[slot] - 1;
+            if (j < 0) {
+                keyIndex[slot] = i + 1;
+                return;
+            }
+            if (keyEquals(j, iface[i], uid[i], set[i], tag[i], metered[i], roaming[i],
+                    defaultNetwork[i])) {
+                keyIndexHasDuplicates = true;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
     /**
      * Splice in {@link #operations} from the given {@link NetworkStats} based
      * on matching {@link #uid} and {@link #tag} rows. Ignores {@link #iface},
@@ -712,53 +851,58 @@ public class NetworkStats implements Parcelable {
         }
 
         // result will have our rows, and elapsed time between snapshots
-        final Entry entry = new Entry();
         final NetworkStats result;
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
-            result.size = 0;
             result.elapsedRealtime = deltaRealtime;
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
         }
-        for (int i = 0; i < left.size; i++) {
-            entry.iface = left.iface[i];
-            entry.uid = left.uid[i];
-            entry.set = left.set[i];
-            entry.tag = left.tag[i];
-            entry.metered = left.metered[i];
-            entry.roaming = left.roaming[i];
-            entry.defaultNetwork = left.defaultNetwork[i];
-            entry.rxBytes = left.rxBytes[i];
-            entry.rxPackets = left.rxPackets[i];
-            entry.txBytes = left.txBytes[i];
-            entry.txPackets = left.txPackets[i];
-            entry.operations = left.operations[i];
+        final int size = left.size;
+        result.size = size;
+        result.keyIndex = null;
+        System.arraycopy(left.iface, 0, result.iface, 0, size);
+        System.arraycopy(left.uid, 0, result.uid, 0, size);
+        System.arraycopy(left.set, 0, result.set, 0, size);
+        System.arraycopy(left.tag, 0, result.tag, 0, size);
+        System.arraycopy(left.metered, 0, result.metered, 0, size);
+        System.arraycopy(left.roaming, 0, result.roaming, 0, size);
+        System.arraycopy(left.defaultNetwork, 0, result.defaultNetwork, 0, size);
+        for (int i = 0; i < size; i++) {
+            long rxBytes = left.rxBytes[i];
+            long rxPackets = left.rxPackets[i];
+            long txBytes = left.txBytes[i];
+            long txPackets = left.txPackets[i];
+            long operations = left.operations[i];
 
             // find remote row that matches, and subtract
-            final int j = right.findIndexHinted(entry.iface, entry.uid, entry.set, entry.tag,
-                    entry.metered, entry.roaming, entry.defaultNetwork, i);
+            final int j = right.findIndexHinted(left.iface[i], left.uid[i], left.set[i],
+                    left.tag[i], left.metered[i], left.roaming[i], left.defaultNetwork[i], i);
             if (j != -1) {
                 // Found matching row, subtract remote value.
-                entry.rxBytes -= right.rxBytes[j];
-                entry.rxPackets -= right.rxPackets[j];
-                entry.txBytes -= right.txBytes[j];
-                entry.txPackets -= right.txPackets[j];
-                entry.operations -= right.operations[j];
+                rxBytes -= right.rxBytes[j];
+                rxPackets -= right.rxPackets[j];
+                txBytes -= right.txBytes[j];
+                txPackets -= right.txPackets[j];
+                operations -= right.operations[j];
             }
 
-            if (entry.isNegative()) {
+            if (rxBytes < 0 || rxPackets < 0 || txBytes < 0 || txPackets < 0 || operations < 0) {
                 if (observer != null) {
                     observer.foundNonMonotonic(left, i, right, j, cookie);
                 }
-                entry.rxBytes = Math.max(entry.rxBytes, 0);
-                entry.rxPackets = Math.max(entry.rxPackets, 0);
-                entry.txBytes = Math.max(entry.txBytes, 0);
-                entry.txPackets = Math.max(entry.txPackets, 0);
-                entry.operations = Math.max(entry.operations, 0);
+                rxBytes = Math.max(rxBytes, 0);
+                rxPackets = Math.max(rxPackets, 0);
+                txBytes = Math.max(txBytes, 0);
+                txPackets = Math.max(txPackets, 0);
+                operations = Math.max(operations, 0);
             }
 
-            result.addValues(entry);
+            result.rxBytes[i] = rxBytes;
+            result.rxPackets[i] = rxPackets;
+            result.txBytes[i] = txBytes;
+            result.txPackets[i] = txPackets;
+            result.operations[i] = operations;
         }
 
         return result;
@@ -850,25 +994,16 @@ public class NetworkStats implements Parcelable {
     public NetworkStats groupedByIface() {
         final NetworkStats stats = new NetworkStats(elapsedRealtime, 10);
 
-        final Entry entry = new Entry();
-        entry.uid = UID_ALL;
-        entry.set = SET_ALL;
-        entry.tag = TAG_NONE;
-        entry.metered = METERED_ALL;
-        entry.roaming = ROAMING_ALL;
-        entry.defaultNetwork = DEFAULT_NETWORK_ALL;
-        entry.operations = 0L;
-
         for (int i = 0; i < size; i++) {
             // skip specific tags, since already counted in TAG_NONE
             if (tag[i] != TAG_NONE) continue;
 
-            entry.iface = iface[i];
-            entry.rxBytes = rxBytes[i];
-            entry.rxPackets = rxPackets[i];
-            entry.txBytes = txBytes[i];
-            entry.txPackets = txPackets[i];
-            stats.combineValues(entry);
+            final int j = stats.findOrAddRow(iface[i], UID_ALL, SET_ALL, TAG_NONE, METERED_ALL,
+                    ROAMING_ALL, DEFAULT_NETWORK_ALL);
+            stats.rxBytes[j] += rxBytes[i];
+            stats.rxPackets[j] += rxPackets[i];
+            stats.txBytes[j] += txBytes[i];
+            stats.txPackets[j] += txPackets[i];
         }
 
         return stats;
@@ -881,25 +1016,17 @@ public class NetworkStats implements Parcelable {
     public NetworkStats groupedByUid() {
         final NetworkStats stats = new NetworkStats(elapsedRealtime, 10);
 
-        final Entry entry = new Entry();
-        entry.iface = IFACE_ALL;
-        entry.set = SET_ALL;
-        entry.tag = TAG_NONE;
-        entry.metered = METERED_ALL;
-        entry.roaming = ROAMING_ALL;
-        entry.defaultNetwork = DEFAULT_NETWORK_ALL;
-
         for (int i = 0; i < size; i++) {
             // skip specific tags, since already counted in TAG_NONE
             if (tag[i] != TAG_NONE) continue;
 
-            entry.uid = uid[i];
-            entry.rxBytes = rxBytes[i];
-            entry.rxPackets = rxPackets[i];
-            entry.txBytes = txBytes[i];
-            entry.txPackets = txPackets[i];
-            entry.operations = operations[i];
-            stats.combineValues(entry);
+            final int j = stats.findOrAddRow(IFACE_ALL, uid[i], SET_ALL, TAG_NONE, METERED_ALL,
+                    ROAMING_ALL, DEFAULT_NETWORK_ALL);
+            stats.rxBytes[j] += rxBytes[i];
+            stats.rxPackets[j] += rxPackets[i];
+            stats.txBytes[j] += txBytes[i];
+            stats.txPackets[j] += txPackets[i];
+            stats.operations[j] += operations[i];
         }
 
         return stats;
@@ -954,6 +1081,7 @@ public class NetworkStats implements Parcelable {
         }
 
         size = nextOutputEntry;
+        keyIndex = null;
     }
 
     public void dump(String prefix, PrintWriter pw) {
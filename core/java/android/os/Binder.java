@@ -25,6 +25,7 @@ import android.util.SparseIntArray;
 
 import com.android.internal.os.BinderCallsStats;
 import com.android.internal.os.BinderInternal;
+import com.android.internal.os.BinderLatencyStats;
 import com.android.internal.util.FastPrintWriter;
 import com.android.internal.util.FunctionalUtils.ThrowingRunnable;
 import com.android.internal.util.FunctionalUtils.ThrowingSupplier;
@@ -715,6 +716,10 @@ public class Binder implements IBinder {
             int flags) {
         BinderCallsStats binderCallsStats = BinderCallsStats.getInstance();
         BinderCallsStats.CallSession callSession = binderCallsStats.callStarted(this, code);
+        final boolean latencyTracking = BinderLatencyStats.isEnabled();
+        if (latencyTracking) {
+            BinderLatencyStats.getInstance().incomingCallStarted(this);
+        }
         Parcel data = Parcel.obtain(dataObj);
         Parcel reply = Parcel.obtain(replyObj);
         // theoretically, we should call transact, which will call onTransact,
@@ -762,6 +767,9 @@ public class Binder implements IBinder {
         // way, strict mode begone!
         StrictMode.clearGatheredViolations();
         binderCallsStats.callEnded(callSession);
+        if (latencyTracking) {
+            BinderLatencyStats.getInstance().incomingCallEnded();
+        }
 
         return res;
     }
@@ -778,6 +786,10 @@ final class BinderProxy implements IBinder {
     // Assume the process-wide default value when created
     volatile boolean mWarnOnBlocking = Binder.sWarnOnBlocking;
 
+    // Interface descriptor outgoing calls are counted under by BinderLatencyStats, read from
+    // the interface token of the first call
+    private volatile String mLatencyStatsDescriptor;
+
     /*
      * Map from longs to BinderProxy, retaining only a WeakReference to the BinderProxies.
      * We roll our own only because we need to lazily remove WeakReferences during accesses
@@ -1125,13 +1137,36 @@ final class BinderProxy implements IBinder {
             Trace.traceBegin(Trace.TRACE_TAG_ALWAYS,
                     stackTraceElement.getClassName() + "." + stackTraceElement.getMethodName());
         }
+        // Only blocking calls wait for the remote process
+        final boolean latencyTracking = BinderLatencyStats.isEnabled()
+                && (flags & FLAG_ONEWAY) == 0;
+        final String latencyDescriptor = latencyTracking ? getLatencyStatsDescriptor(code, data)
+                : null;
+        final long startedNanos = latencyTracking ? SystemClock.elapsedRealtimeNanos() : 0;
         try {
             return transactNative(code, data, reply, flags);
         } finally {
             if (tracingEnabled) {
                 Trace.traceEnd(Trace.TRACE_TAG_ALWAYS);
             }
+            if (latencyTracking) {
+                BinderLatencyStats.getInstance().noteOutgoingCall(latencyDescriptor,
+                        (SystemClock.elapsedRealtimeNanos() - startedNanos) / 1000);
+            }
+        }
+    }
+
+    private String getLatencyStatsDescriptor(int code, Parcel data) {
+        String descriptor = mLatencyStatsDescriptor;
+        if (descriptor == null) {
+            descriptor = BinderLatencyStats.peekInterfaceDescriptor(code, data);
+            if (descriptor == null) {
+                // Try again on the next call, which may have an interface token
+                return BinderLatencyStats.UNKNOWN_DESCRIPTOR;
+            }
+            mLatencyStatsDescriptor = descriptor;
         }
+        return descriptor;
     }
 
     private static native long getNativeFinalizer();
@@ -436,6 +436,14 @@ public final class Parcel {
         mReadWriteHelper = helper != null ? helper : ReadWriteHelper.DEFAULT;
     }
 
+    /**
+     * @return the {@link ReadWriteHelper} of this parcel, which is
+     * {@link ReadWriteHelper#DEFAULT} if none was set.
+     */
+    ReadWriteHelper getReadWriteHelper() {
+        return mReadWriteHelper;
+    }
+
     /**
      * @return whether this parcel has a {@link ReadWriteHelper}.
      *
@@ -1397,6 +1405,32 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Flatten a List containing a particular object type like {@link #writeTypedList},
+     * writing each distinct string the objects write only once.  This makes lists of
+     * objects that share many strings, like package names, much smaller.  The list must
+     * be read with {@link #createPooledTypedArrayList}.
+     *
+     * @hide
+     */
+    public final <T extends Parcelable> void writePooledTypedList(List<T> val,
+            int parcelableFlags) {
+        // Strings can only go through one pool at a time
+        if (hasReadWriteHelper()) {
+            writeInt(0);
+            writeTypedList(val, parcelableFlags);
+            return;
+        }
+        writeInt(1);
+        final PooledStringWriter pool = new PooledStringWriter(this);
+        pool.install();
+        try {
+            writeTypedList(val, parcelableFlags);
+        } finally {
+            pool.finish();
+        }
+    }
+
     /**
      * Flatten a List containing String objects into the parcel, at
      * the current dataPosition() and growing dataCapacity() if needed.  They
@@ -2408,6 +2442,25 @@ public final class Parcel {
         return l;
     }
 
+    /**
+     * Read and return a new ArrayList containing a particular object type that was
+     * written with {@link #writePooledTypedList} at the current dataPosition().
+     *
+     * @hide
+     */
+    public final <T> ArrayList<T> createPooledTypedArrayList(Parcelable.Creator<T> c) {
+        if (readInt() == 0) {
+            return createTypedArrayList(c);
+        }
+        final PooledStringReader pool = new PooledStringReader(this);
+        pool.install();
+        try {
+            return createTypedArrayList(c);
+        } finally {
+            pool.finish();
+        }
+    }
+
     /**
      * Read into the given List items containing a particular object type
      * that were written with {@link #writeTypedList} at the
@@ -30,9 +30,19 @@ public class PooledStringReader {
      */
     private final String[] mPool;
 
+    /**
+     * The helper the parcel had before {@link #install}, put back by {@link #finish}.
+     */
+    private Parcel.ReadWriteHelper mPreviousHelper;
+
     public PooledStringReader(Parcel in) {
         mIn = in;
         final int size = in.readInt();
+        // Every pooled string takes at least an int in the parcel, so a larger pool can only
+        // come from a malformed or hostile parcel.
+        if (size < 0 || size > in.dataAvail() / 4) {
+            throw new BadParcelableException("Invalid string pool size " + size);
+        }
         mPool = new String[size];
     }
 
@@ -40,13 +50,36 @@ public class PooledStringReader {
         return mPool.length;
     }
 
+    /**
+     * Installs this reader as the {@link Parcel.ReadWriteHelper} of the parcel, to read
+     * a parcel written with {@link PooledStringWriter#install}, until {@link #finish}
+     * is called.
+     */
+    public void install() {
+        mPreviousHelper = mIn.getReadWriteHelper();
+        mIn.setReadWriteHelper(new Parcel.ReadWriteHelper() {
+            @Override
+            public String readString(Parcel p) {
+                return PooledStringReader.this.readString();
+            }
+        });
+    }
+
+    /**
+     * Uninstalls this reader from the parcel, restoring the helper it had before.
+     */
+    public void finish() {
+        mIn.setReadWriteHelper(mPreviousHelper);
+        mPreviousHelper = null;
+    }
+
     public String readString() {
         int idx = mIn.readInt();
         if (idx >= 0) {
             return mPool[idx];
         } else {
             idx = (-idx) - 1;
-            String str = mIn.readString();
+            String str = mIn.readStringNoHelper();
             mPool[idx] = str;
             return str;
         }
@@ -48,6 +48,11 @@ public class PooledStringWriter {
      */
     private int mNext;
 
+    /**
+     * Whether this writer is installed as the parcel's {@link Parcel.ReadWriteHelper}.
+     */
+    private boolean mInstalled;
+
     public PooledStringWriter(Parcel out) {
         mOut = out;
         mPool = new HashMap<>();
@@ -62,7 +67,7 @@ public class PooledStringWriter {
         } else {
             mPool.put(str, mNext);
             mOut.writeInt(-(mNext+1));
-            mOut.writeString(str);
+            mOut.writeStringNoHelper(str);
             mNext++;
         }
     }
@@ -71,7 +76,27 @@ public class PooledStringWriter {
         return mPool.size();
     }
 
+    /**
+     * Installs this writer as the {@link Parcel.ReadWriteHelper} of the parcel, so that
+     * every string written to it, including by Parcelables, goes through the pool until
+     * {@link #finish} is called.  The parcel must be read with
+     * {@link PooledStringReader#install}.
+     */
+    public void install() {
+        mOut.setReadWriteHelper(new Parcel.ReadWriteHelper() {
+            @Override
+            public void writeString(Parcel p, String s) {
+                PooledStringWriter.this.writeString(s);
+            }
+        });
+        mInstalled = true;
+    }
+
     public void finish() {
+        if (mInstalled) {
+            mOut.setReadWriteHelper(null);
+            mInstalled = false;
+        }
         final int pos = mOut.dataPosition();
         mOut.setDataPosition(mStart);
         mOut.writeInt(mNext);
@@ -75,9 +75,11 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.provider.SettingsValidators.Validator;
 import android.speech.tts.TextToSpeech;
+import android.system.ErrnoException;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 import android.util.AndroidException;
@@ -1626,6 +1628,19 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide - Specifies that the caller of the fast-path call()-based flow would like a
+     * {@link SettingsSnapshot} of the table it is reading from. If this key is mapped to a
+     * <code>null</code> string extra in the request bundle, and the provider supports snapshots
+     * for the table, the response bundle will contain the same key mapped to a parcelable extra
+     * which would be a read only {@link android.os.SharedMemory}, and an integer mapped to the
+     * {@link #CALL_METHOD_GENERATION_INDEX_KEY} for the generation of the table. Callers should
+     * only request a new snapshot when the generation changes.
+     *
+     * @see #CALL_METHOD_TRACK_GENERATION_KEY
+     */
+    public static final String CALL_METHOD_TRACK_SNAPSHOT_KEY = "_track_snapshot";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -1921,6 +1936,10 @@ public final class Settings {
             return mCurrentGeneration;
         }
 
+        public int getIndex() {
+            return mIndex;
+        }
+
         private int readCurrentGeneration() {
             try {
                 return mArray.get(mIndex);
@@ -1998,6 +2017,23 @@ public final class Settings {
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        // Snapshot of the whole table, which answers reads without a call to the provider
+        // while it's as new as mGenerationTracker.
+        @GuardedBy("this")
+        private SettingsSnapshot mSnapshot;
+
+        @GuardedBy("this")
+        private boolean mSnapshotStale;
+
+        // Set if the provider doesn't hand out snapshots of this table, so we stop asking.
+        @GuardedBy("this")
+        private boolean mSnapshotUnsupported;
+
+        // Values decoded from snapshots. Unlike mValues these survive a generation change, and
+        // are only replaced when the setting's value in the new snapshot is different.
+        @GuardedBy("this")
+        private final HashMap<String, String> mSnapshotValues = new HashMap<>();
+
         public NameValueCache(Uri uri, String getCommand, String setCommand,
                 ContentProviderHolder providerHolder) {
             mUri = uri;
@@ -2040,6 +2076,18 @@ public final class Settings {
                                         + cr.getPackageName() +" and user:" + userHandle);
                             }
                             mValues.clear();
+                            mSnapshotStale = true;
+                        } else if (mSnapshot != null && !mSnapshotStale) {
+                            final int index = mSnapshot.indexOf(name);
+                            if (index < 0) {
+                                return null;
+                            }
+                            if (!mSnapshot.isUncached(index)) {
+                                return getSnapshotValueLocked(name, index);
+                            }
+                            if (mValues.containsKey(name)) {
+                                return mValues.get(name);
+                            }
                         } else if (mValues.containsKey(name)) {
                             return mValues.get(name);
                         }
@@ -2067,6 +2115,7 @@ public final class Settings {
                         args.putInt(CALL_METHOD_USER_KEY, userHandle);
                     }
                     boolean needsGenerationTracker = false;
+                    boolean needsSnapshot = false;
                     synchronized (NameValueCache.this) {
                         if (isSelf && mGenerationTracker == null) {
                             needsGenerationTracker = true;
@@ -2080,6 +2129,14 @@ public final class Settings {
                                         + userHandle);
                             }
                         }
+                        if (isSelf && !mSnapshotUnsupported
+                                && (mSnapshot == null || mSnapshotStale)) {
+                            needsSnapshot = true;
+                            if (args == null) {
+                                args = new Bundle();
+                            }
+                            args.putString(CALL_METHOD_TRACK_SNAPSHOT_KEY, null);
+                        }
                     }
                     Bundle b;
                     // If we're in system server and in a binder transaction we need to clear the
@@ -2131,11 +2188,16 @@ public final class Settings {
                                                     mGenerationTracker = null;
                                                     generationTracker.destroy();
                                                     mValues.clear();
+                                                    mSnapshotStale = true;
                                                 }
                                             }
                                         });
+                                        mSnapshotStale = true;
                                     }
                                 }
+                                if (needsSnapshot) {
+                                    updateSnapshotLocked(b);
+                                }
                                 if (mGenerationTracker != null && currentGeneration ==
                                         mGenerationTracker.getCurrentGeneration()) {
                                     mValues.put(name, value);
@@ -2198,6 +2260,60 @@ public final class Settings {
             }
         }
 
+        private String getSnapshotValueLocked(String name, int index) {
+            final String value = mSnapshotValues.get(name);
+            if (value != null && mSnapshot.valueEquals(index, value)) {
+                return value;
+            }
+            final String newValue = mSnapshot.getValue(index);
+            if (newValue != null) {
+                mSnapshotValues.put(name, newValue);
+            } else {
+                mSnapshotValues.remove(name);
+            }
+            return newValue;
+        }
+
+        private void updateSnapshotLocked(Bundle b) {
+            final SharedMemory memory = b.getParcelable(CALL_METHOD_TRACK_SNAPSHOT_KEY);
+            if (memory == null) {
+                if (DEBUG) {
+                    Log.i(TAG, "No snapshot for type:" + mUri.getPath());
+                }
+                mSnapshotUnsupported = true;
+                closeSnapshotLocked();
+                return;
+            }
+            try {
+                // The snapshot is only useful if it's of the table whose generation we track
+                if (mGenerationTracker == null || mGenerationTracker.getIndex()
+                        != b.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1)) {
+                    mSnapshotUnsupported = true;
+                    closeSnapshotLocked();
+                    return;
+                }
+                final SettingsSnapshot snapshot = SettingsSnapshot.map(memory);
+                closeSnapshotLocked();
+                mSnapshot = snapshot;
+                mSnapshotStale = snapshot.getGeneration()
+                        != mGenerationTracker.getCurrentGeneration();
+            } catch (ErrnoException | IllegalArgumentException e) {
+                Log.e(TAG, "Error mapping settings snapshot", e);
+                mSnapshotUnsupported = true;
+                closeSnapshotLocked();
+            } finally {
+                // The mapping stays valid without the file descriptor
+                memory.close();
+            }
+        }
+
+        private void closeSnapshotLocked() {
+            if (mSnapshot != null) {
+                mSnapshot.close();
+                mSnapshot = null;
+            }
+        }
+
         public void clearGenerationTrackerForTest() {
             synchronized (NameValueCache.this) {
                 if (mGenerationTracker != null) {
@@ -2205,6 +2321,9 @@ public final class Settings {
                 }
                 mValues.clear();
                 mGenerationTracker = null;
+                closeSnapshotLocked();
+                mSnapshotValues.clear();
+                mSnapshotUnsupported = false;
             }
         }
     }
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * An immutable image of one settings table at a given generation, laid out so that it can be
+ * shared with client processes in {@link SharedMemory} and read without any locking or IPC.
+ * <p>
+ * Names are sorted by hash code so a lookup is a binary search that compares names in place,
+ * without decoding them. Some settings are not plain lookups in the table, for example they
+ * depend on the calling app; these are present in the snapshot but marked as uncached, and
+ * must still be read from the provider.
+ * <p>
+ * Layout: int magic, int generation, int count, then count entries of (int hash code,
+ * int name offset, int name length, int value offset, int value length) sorted by hash code,
+ * then the characters of all names and values. Offsets and lengths are in chars, and a value
+ * length of {@link #LENGTH_NULL} or {@link #LENGTH_UNCACHED} marks a null or uncached value.
+ *
+ * @hide
+ */
+public final class SettingsSnapshot implements Closeable {
+    private static final int MAGIC = 0x53534e50; // "SSNP"
+    private static final int HEADER_SIZE = 3 * 4;
+    private static final int ENTRY_SIZE = 5 * 4;
+    private static final int LENGTH_NULL = -1;
+    private static final int LENGTH_UNCACHED = -2;
+
+    private final ByteBuffer mBuffer;
+    private final boolean mMapped;
+    private final int mGeneration;
+    private final int mCount;
+    private final int mDataPos;
+
+    /**
+     * Map a snapshot. The shared memory can be closed once this returns.
+     */
+    public static SettingsSnapshot map(SharedMemory memory) throws ErrnoException {
+        return new SettingsSnapshot(memory.mapReadOnly(), true);
+    }
+
+    /**
+     * Read a snapshot that was written to the buffer by {@link Builder#writeTo}.
+     */
+    public SettingsSnapshot(ByteBuffer buffer) {
+        this(buffer, false);
+    }
+
+    private SettingsSnapshot(ByteBuffer buffer, boolean mapped) {
+        if (buffer.getInt(0) != MAGIC) {
+            if (mapped) {
+                SharedMemory.unmap(buffer);
+            }
+            throw new IllegalArgumentException("Not a settings snapshot");
+        }
+        mBuffer = buffer;
+        mMapped = mapped;
+        mGeneration = buffer.getInt(4);
+        mCount = buffer.getInt(8);
+        mDataPos = HEADER_SIZE + mCount * ENTRY_SIZE;
+    }
+
+    /**
+     * @return the generation of the table this is a snapshot of.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return the index of the setting, or -1 if it isn't set.
+     */
+    public int indexOf(String name) {
+        final int hash = name.hashCode();
+        int lo = 0;
+        int hi = mCount - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int midHash = mBuffer.getInt(HEADER_SIZE + mid * ENTRY_SIZE);
+            if (midHash < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        // lo is the first entry with this hash code, if any
+        for (int i = lo; i < mCount; i++) {
+            final int pos = HEADER_SIZE + i * ENTRY_SIZE;
+            if (mBuffer.getInt(pos) != hash) {
+                break;
+            }
+            if (charsEqual(mBuffer.getInt(pos + 4), mBuffer.getInt(pos + 8), name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether the setting at the index must be read from the provider.
+     */
+    public boolean isUncached(int index) {
+        return getValueLength(index) == LENGTH_UNCACHED;
+    }
+
+    /**
+     * @return whether the value of the setting at the index is {@code value}, which is cheaper
+     *         than decoding it.
+     */
+    public boolean valueEquals(int index, String value) {
+        final int length = getValueLength(index);
+        if (length < 0) {
+            return length == LENGTH_NULL && value == null;
+        }
+        return value != null && charsEqual(
+                mBuffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 12), length, value);
+    }
+
+    public String getValue(int index) {
+        final int length = getValueLength(index);
+        if (length < 0) {
+            return null;
+        }
+        final int offset = mBuffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 12);
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = mBuffer.getChar(mDataPos + (offset + i) * 2);
+        }
+        return new String(chars);
+    }
+
+    private int getValueLength(int index) {
+        return mBuffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 16);
+    }
+
+    private boolean charsEqual(int offset, int length, String s) {
+        if (length != s.length()) {
+            return false;
+        }
+        final int pos = mDataPos + offset * 2;
+        for (int i = 0; i < length; i++) {
+            if (mBuffer.getChar(pos + i * 2) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (mMapped) {
+            SharedMemory.unmap(mBuffer);
+        }
+    }
+
+    /**
+     * Collects the settings of a table and writes them out as a snapshot.
+     */
+    public static final class Builder {
+        private final ArrayMap<String, String> mValues = new ArrayMap<>();
+        private final ArraySet<String> mUncached = new ArraySet<>();
+
+        public Builder add(String name, String value) {
+            mValues.put(name, value);
+            return this;
+        }
+
+        /**
+         * Mark a setting as one that must be read from the provider, whether it's set or not.
+         */
+        public Builder addUncached(String name) {
+            mUncached.add(name);
+            return this;
+        }
+
+        private ArrayList<String> names() {
+            final ArrayList<String> names = new ArrayList<>(mValues.keySet());
+            for (int i = 0; i < mUncached.size(); i++) {
+                if (!mValues.containsKey(mUncached.valueAt(i))) {
+                    names.add(mUncached.valueAt(i));
+                }
+            }
+            return names;
+        }
+
+        /**
+         * @return the number of bytes {@link #writeTo} needs.
+         */
+        public int getSize() {
+            final ArrayList<String> names = names();
+            int chars = 0;
+            for (int i = 0; i < names.size(); i++) {
+                final String name = names.get(i);
+                final String value = mValues.get(name);
+                chars += name.length();
+                if (value != null && !mUncached.contains(name)) {
+                    chars += value.length();
+                }
+            }
+            return HEADER_SIZE + names.size() * ENTRY_SIZE + chars * 2;
+        }
+
+        public void writeTo(ByteBuffer buffer, int generation) {
+            final ArrayList<String> names = names();
+            Collections.sort(names, (a, b) -> Integer.compare(a.hashCode(), b.hashCode()));
+            final int count = names.size();
+            final int dataPos = HEADER_SIZE + count * ENTRY_SIZE;
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, generation);
+            buffer.putInt(8, count);
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                final String name = names.get(i);
+                final int pos = HEADER_SIZE + i * ENTRY_SIZE;
+                buffer.putInt(pos, name.hashCode());
+                buffer.putInt(pos + 4, offset);
+                buffer.putInt(pos + 8, name.length());
+                offset = putChars(buffer, dataPos, offset, name);
+
+                final String value = mValues.get(name);
+                buffer.putInt(pos + 12, offset);
+                if (mUncached.contains(name)) {
+                    buffer.putInt(pos + 16, LENGTH_UNCACHED);
+                } else if (value == null) {
+                    buffer.putInt(pos + 16, LENGTH_NULL);
+                } else {
+                    buffer.putInt(pos + 16, value.length());
+                    offset = putChars(buffer, dataPos, offset, value);
+                }
+            }
+        }
+
+        private static int putChars(ByteBuffer buffer, int dataPos, int offset, String s) {
+            final int length = s.length();
+            for (int i = 0; i < length; i++) {
+                buffer.putChar(dataPos + (offset + i) * 2, s.charAt(i));
+            }
+            return offset + length;
+        }
+
+        /**
+         * Write the snapshot to new shared memory, which is made read only so it can be handed
+         * out to other processes.
+         */
+        public SharedMemory build(String name, int generation) throws ErrnoException {
+            final SharedMemory memory = SharedMemory.create(name, getSize());
+            final ByteBuffer buffer = memory.mapReadWrite();
+            try {
+                writeTo(buffer, generation);
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+            memory.setProtect(OsConstants.PROT_READ);
+            return memory;
+        }
+    }
+}
@@ -33,18 +33,38 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Collects statistics about CPU time spent per binder call across multiple dimensions, e.g.
  * per thread, uid or call description.
+ * <p>
+ * By default every call is recorded under a single lock. In sharded mode each thread records
+ * its calls in its own {@link Shard}, which is only contended when it's merged into the shared
+ * maps every {@link #SHARD_MERGE_CALLS} calls, or when the stats are read. With detailed
+ * tracking, a sampling interval of N only measures CPU time and latency of about one in N calls;
+ * every call is still counted, and times are scaled up to the number of calls.
  */
 public class BinderCallsStats {
     private static final int CALL_SESSIONS_POOL_SIZE = 100;
+    // Number of calls a shard records before it's merged into the shared maps
+    private static final int SHARD_MERGE_CALLS = 1000;
+    /**
+     * Number of buckets in the CPU time and latency histograms of a call. Bucket 0 counts calls
+     * that took less than 1us, and bucket i > 0 the calls that took [2^(i-1), 2^i) us, except
+     * for the last one which has no upper bound.
+     */
+    public static final int HISTOGRAM_BUCKETS = 20;
     private static final BinderCallsStats sInstance = new BinderCallsStats();
 
     private volatile boolean mDetailedTracking = false;
+    private volatile boolean mSharded = false;
+    private volatile int mSamplingInterval = 1;
     @GuardedBy("mLock")
     private final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
+    @GuardedBy("mLock")
+    private final ArrayList<Shard> mShards = new ArrayList<>();
+    private final ThreadLocal<Shard> mThreadShard = ThreadLocal.withInitial(this::newShard);
     private final Queue<CallSession> mCallSessionsPool = new ConcurrentLinkedQueue<>();
     private final Object mLock = new Object();
     private long mStartTime = System.currentTimeMillis();
@@ -69,60 +89,156 @@ public class BinderCallsStats {
         s.mCallStat.className = className;
         s.mCallStat.msg = code;
 
-        s.mStarted = getThreadTimeMicro();
+        // currentThreadTimeMicro is expensive, so we measure cpu time only if detailed tracking is
+        // enabled and the call is sampled
+        s.mDetailed = mDetailedTracking;
+        s.mSampled = s.mDetailed && shouldSample();
+        if (s.mSampled) {
+            s.mStarted = SystemClock.currentThreadTimeMicro();
+            s.mStartedElapsed = getElapsedRealtimeMicro();
+        }
         return s;
     }
 
     public void callEnded(CallSession s) {
         Preconditions.checkNotNull(s);
-        long duration = mDetailedTracking ? getThreadTimeMicro() - s.mStarted : 1;
+        long duration = 0;
+        long latency = 0;
+        if (s.mSampled) {
+            duration = SystemClock.currentThreadTimeMicro() - s.mStarted;
+            latency = getElapsedRealtimeMicro() - s.mStartedElapsed;
+        }
         s.mCallingUId = Binder.getCallingUid();
 
+        if (mSharded) {
+            final Shard shard = mThreadShard.get();
+            synchronized (shard) {
+                recordCall(shard.mUidEntries, s, duration, latency);
+                if (++shard.mCalls >= SHARD_MERGE_CALLS) {
+                    synchronized (mLock) {
+                        mergeShardLocked(shard);
+                    }
+                }
+            }
+        } else {
+            synchronized (mLock) {
+                recordCall(mUidEntries, s, duration, latency);
+            }
+        }
+        if (mCallSessionsPool.size() < CALL_SESSIONS_POOL_SIZE) {
+            mCallSessionsPool.add(s);
+        }
+    }
+
+    private static void recordCall(SparseArray<UidEntry> uidEntries, CallSession s,
+            long duration, long latency) {
+        UidEntry uidEntry = uidEntries.get(s.mCallingUId);
+        if (uidEntry == null) {
+            uidEntry = new UidEntry(s.mCallingUId);
+            uidEntries.put(s.mCallingUId, uidEntry);
+        }
+        uidEntry.callCount++;
+
+        if (!s.mDetailed) {
+            uidEntry.recordedCallCount++;
+            uidEntry.time++;
+            return;
+        }
+        // Find CallDesc entry and update its total time
+        CallStat callStat = uidEntry.mCallStats.get(s.mCallStat);
+        // Only create CallStat if it's a new entry, otherwise update existing instance
+        if (callStat == null) {
+            callStat = new CallStat(s.mCallStat.className, s.mCallStat.msg);
+            uidEntry.mCallStats.put(callStat, callStat);
+        }
+        callStat.callCount++;
+        if (s.mSampled) {
+            callStat.record(duration, latency);
+            uidEntry.recordedCallCount++;
+            uidEntry.time += duration;
+        }
+    }
+
+    /**
+     * Scales the time measured for the sampled calls up to all calls. Done in floating point,
+     * since the time multiplied by the call count can overflow a long.
+     */
+    @VisibleForTesting
+    public static long estimateTotal(long time, long callCount, long recordedCallCount) {
+        return recordedCallCount == 0 ? 0 : (long) ((double) time * callCount / recordedCallCount);
+    }
+
+    private Shard newShard() {
+        final Shard shard = new Shard();
         synchronized (mLock) {
-            UidEntry uidEntry = mUidEntries.get(s.mCallingUId);
+            mShards.add(shard);
+        }
+        return shard;
+    }
+
+    // Also needs the lock of the shard
+    @GuardedBy("mLock")
+    private void mergeShardLocked(Shard shard) {
+        for (int i = 0; i < shard.mUidEntries.size(); i++) {
+            final UidEntry e = shard.mUidEntries.valueAt(i);
+            final UidEntry uidEntry = mUidEntries.get(e.uid);
             if (uidEntry == null) {
-                uidEntry = new UidEntry(s.mCallingUId);
-                mUidEntries.put(s.mCallingUId, uidEntry);
+                mUidEntries.put(e.uid, e);
+            } else {
+                uidEntry.merge(e);
             }
+        }
+        shard.mUidEntries.clear();
+        shard.mCalls = 0;
+    }
 
-            if (mDetailedTracking) {
-                // Find CallDesc entry and update its total time
-                CallStat callStat = uidEntry.mCallStats.get(s.mCallStat);
-                // Only create CallStat if it's a new entry, otherwise update existing instance
-                if (callStat == null) {
-                    callStat = new CallStat(s.mCallStat.className, s.mCallStat.msg);
-                    uidEntry.mCallStats.put(callStat, callStat);
+    /**
+     * Merges the calls recorded by every thread into the shared maps.
+     */
+    private void mergeShards() {
+        final Shard[] shards;
+        synchronized (mLock) {
+            shards = mShards.toArray(new Shard[mShards.size()]);
+        }
+        // Shards are always locked before mLock
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                synchronized (mLock) {
+                    mergeShardLocked(shard);
                 }
-                callStat.callCount++;
-                callStat.time += duration;
             }
-
-            uidEntry.time += duration;
-            uidEntry.callCount++;
-        }
-        if (mCallSessionsPool.size() < CALL_SESSIONS_POOL_SIZE) {
-            mCallSessionsPool.add(s);
         }
     }
 
+    private boolean shouldSample() {
+        final int interval = mSamplingInterval;
+        return interval <= 1 || ThreadLocalRandom.current().nextInt(interval) == 0;
+    }
+
     public void dump(PrintWriter pw) {
+        mergeShards();
         Map<Integer, Long> uidTimeMap = new HashMap<>();
         Map<Integer, Long> uidCallCountMap = new HashMap<>();
         long totalCallsCount = 0;
         long totalCallsTime = 0;
         pw.print("Start time: ");
         pw.println(DateFormat.format("yyyy-MM-dd HH:mm:ss", mStartTime));
-        int uidEntriesSize = mUidEntries.size();
+        pw.print("Sharded: ");
+        pw.print(mSharded);
+        pw.print(", sampling interval: ");
+        pw.println(mSamplingInterval);
         List<UidEntry> entries = new ArrayList<>();
         synchronized (mLock) {
+            int uidEntriesSize = mUidEntries.size();
             for (int i = 0; i < uidEntriesSize; i++) {
                 UidEntry e = mUidEntries.valueAt(i);
                 entries.add(e);
-                totalCallsTime += e.time;
+                final long time = e.getEstimatedTime();
+                totalCallsTime += time;
                 // Update per-uid totals
                 Long totalTimePerUid = uidTimeMap.get(e.uid);
                 uidTimeMap.put(e.uid,
-                        totalTimePerUid == null ? e.time : totalTimePerUid + e.time);
+                        totalTimePerUid == null ? time : totalTimePerUid + time);
                 Long totalCallsPerUid = uidCallCountMap.get(e.uid);
                 uidCallCountMap.put(e.uid, totalCallsPerUid == null ? e.callCount
                         : totalCallsPerUid + e.callCount);
@@ -131,33 +247,51 @@ public class BinderCallsStats {
         }
         if (mDetailedTracking) {
             pw.println("Raw data (uid,call_desc,time):");
-            entries.sort((o1, o2) -> {
-                if (o1.time < o2.time) {
-                    return 1;
-                } else if (o1.time > o2.time) {
-                    return -1;
-                }
-                return 0;
-            });
+            entries.sort((o1, o2) -> Long.compare(o2.getEstimatedTime(), o1.getEstimatedTime()));
             StringBuilder sb = new StringBuilder();
+            List<CallStat> allCallStats = new ArrayList<>();
+            List<Integer> allCallStatUids = new ArrayList<>();
             for (UidEntry uidEntry : entries) {
                 List<CallStat> callStats = new ArrayList<>(uidEntry.mCallStats.keySet());
-                callStats.sort((o1, o2) -> {
-                    if (o1.time < o2.time) {
-                        return 1;
-                    } else if (o1.time > o2.time) {
-                        return -1;
-                    }
-                    return 0;
-                });
+                callStats.sort((o1, o2) -> Long.compare(o2.getEstimatedCpuTime(),
+                        o1.getEstimatedCpuTime()));
                 for (CallStat e : callStats) {
                     sb.setLength(0);
-                    sb.append("    ")
-                            .append(uidEntry.uid).append(",").append(e).append(',').append(e.time);
+                    sb.append("    ").append(uidEntry.uid).append(",").append(e).append(',')
+                            .append(e.getEstimatedCpuTime());
                     pw.println(sb);
+                    allCallStats.add(e);
+                    allCallStatUids.add(uidEntry.uid);
                 }
             }
             pw.println();
+            pw.println("Latency (uid,call_desc,calls_count,sampled_calls_count,max_time,"
+                    + "avg_latency,max_latency):");
+            for (int i = 0; i < allCallStats.size(); i++) {
+                final CallStat e = allCallStats.get(i);
+                sb.setLength(0);
+                sb.append("    ").append(allCallStatUids.get(i)).append(',').append(e)
+                        .append(',').append(e.callCount)
+                        .append(',').append(e.recordedCallCount)
+                        .append(',').append(e.maxCpuTimeMicros)
+                        .append(',').append(e.recordedCallCount == 0
+                                ? 0 : e.latencyMicros / e.recordedCallCount)
+                        .append(',').append(e.maxLatencyMicros);
+                pw.println(sb);
+            }
+            pw.println();
+            pw.println("Histograms (uid,call_desc: time buckets | latency buckets):");
+            for (int i = 0; i < allCallStats.size(); i++) {
+                final CallStat e = allCallStats.get(i);
+                sb.setLength(0);
+                sb.append("    ").append(allCallStatUids.get(i)).append(',').append(e)
+                        .append(':');
+                appendHistogram(sb, e.cpuTimeHistogram);
+                sb.append(" |");
+                appendHistogram(sb, e.latencyHistogram);
+                pw.println(sb);
+            }
+            pw.println();
             pw.println("Per UID Summary(UID: time, % of total_time, calls_count):");
             List<Map.Entry<Integer, Long>> uidTotals = new ArrayList<>(uidTimeMap.entrySet());
             uidTotals.sort((o1, o2) -> o2.getValue().compareTo(o1.getValue()));
@@ -184,10 +318,40 @@ public class BinderCallsStats {
         }
     }
 
-    private long getThreadTimeMicro() {
-        // currentThreadTimeMicro is expensive, so we measure cpu time only if detailed tracking is
-        // enabled
-        return mDetailedTracking ? SystemClock.currentThreadTimeMicro() : 0;
+    private static void appendHistogram(StringBuilder sb, int[] histogram) {
+        for (int count : histogram) {
+            sb.append(' ').append(count);
+        }
+    }
+
+    /**
+     * @return a copy of the stats of each call, with the calls of all threads merged in. Calls
+     *         are only broken down by call description with detailed tracking.
+     */
+    public List<ExportedCallStat> getExportedCallStats() {
+        mergeShards();
+        final List<ExportedCallStat> result = new ArrayList<>();
+        synchronized (mLock) {
+            for (int i = 0; i < mUidEntries.size(); i++) {
+                final UidEntry uidEntry = mUidEntries.valueAt(i);
+                for (CallStat callStat : uidEntry.mCallStats.keySet()) {
+                    result.add(new ExportedCallStat(uidEntry.uid, callStat));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the index of the {@link #HISTOGRAM_BUCKETS} histogram bucket for a duration.
+     */
+    public static int getHistogramBucket(long micros) {
+        return Math.min(HISTOGRAM_BUCKETS - 1,
+                64 - Long.numberOfLeadingZeros(Math.max(0, micros)));
+    }
+
+    private static long getElapsedRealtimeMicro() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
     }
 
     public static BinderCallsStats getInstance() {
@@ -201,7 +365,37 @@ public class BinderCallsStats {
         }
     }
 
+    /**
+     * Enables recording calls per thread, which avoids contention between binder threads.
+     */
+    public void setSharded(boolean enabled) {
+        if (enabled != mSharded) {
+            mSharded = enabled;
+            // Don't leave calls behind in the shards when going back to a single lock
+            mergeShards();
+        }
+    }
+
+    /**
+     * Only measure the CPU time and latency of about one in {@code samplingInterval} calls
+     * with detailed tracking.
+     */
+    public void setSamplingInterval(int samplingInterval) {
+        Preconditions.checkArgumentPositive(samplingInterval, "samplingInterval must be positive");
+        mSamplingInterval = samplingInterval;
+    }
+
     public void reset() {
+        final Shard[] shards;
+        synchronized (mLock) {
+            shards = mShards.toArray(new Shard[mShards.size()]);
+        }
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.mUidEntries.clear();
+                shard.mCalls = 0;
+            }
+        }
         synchronized (mLock) {
             mUidEntries.clear();
             mStartTime = System.currentTimeMillis();
@@ -213,6 +407,13 @@ public class BinderCallsStats {
         int msg;
         long time;
         long callCount;
+        // Number of calls whose time was measured
+        long recordedCallCount;
+        long maxCpuTimeMicros;
+        long latencyMicros;
+        long maxLatencyMicros;
+        int[] cpuTimeHistogram;
+        int[] latencyHistogram;
 
         CallStat() {
         }
@@ -220,6 +421,38 @@ public class BinderCallsStats {
         CallStat(String className, int msg) {
             this.className = className;
             this.msg = msg;
+            cpuTimeHistogram = new int[HISTOGRAM_BUCKETS];
+            latencyHistogram = new int[HISTOGRAM_BUCKETS];
+        }
+
+        void record(long cpuTimeMicros, long latencyMicros) {
+            recordedCallCount++;
+            time += cpuTimeMicros;
+            maxCpuTimeMicros = Math.max(maxCpuTimeMicros, cpuTimeMicros);
+            this.latencyMicros += latencyMicros;
+            maxLatencyMicros = Math.max(maxLatencyMicros, latencyMicros);
+            cpuTimeHistogram[getHistogramBucket(cpuTimeMicros)]++;
+            latencyHistogram[getHistogramBucket(latencyMicros)]++;
+        }
+
+        void merge(CallStat other) {
+            callCount += other.callCount;
+            recordedCallCount += other.recordedCallCount;
+            time += other.time;
+            maxCpuTimeMicros = Math.max(maxCpuTimeMicros, other.maxCpuTimeMicros);
+            latencyMicros += other.latencyMicros;
+            maxLatencyMicros = Math.max(maxLatencyMicros, other.maxLatencyMicros);
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                cpuTimeHistogram[i] += other.cpuTimeHistogram[i];
+                latencyHistogram[i] += other.latencyHistogram[i];
+            }
+        }
+
+        /**
+         * @return the CPU time of the sampled calls, scaled up to all calls.
+         */
+        long getEstimatedCpuTime() {
+            return estimateTotal(time, callCount, recordedCallCount);
         }
 
         @Override
@@ -246,16 +479,62 @@ public class BinderCallsStats {
         }
     }
 
+    /**
+     * A copy of the stats of one call description for one uid.
+     */
+    public static class ExportedCallStat {
+        public final int uid;
+        public final String className;
+        public final int msg;
+        public final long callCount;
+        public final long recordedCallCount;
+        public final long cpuTimeMicros;
+        public final long maxCpuTimeMicros;
+        public final long latencyMicros;
+        public final long maxLatencyMicros;
+        public final int[] cpuTimeHistogram;
+        public final int[] latencyHistogram;
+
+        ExportedCallStat(int uid, CallStat callStat) {
+            this.uid = uid;
+            className = callStat.className;
+            msg = callStat.msg;
+            callCount = callStat.callCount;
+            recordedCallCount = callStat.recordedCallCount;
+            cpuTimeMicros = callStat.time;
+            maxCpuTimeMicros = callStat.maxCpuTimeMicros;
+            latencyMicros = callStat.latencyMicros;
+            maxLatencyMicros = callStat.maxLatencyMicros;
+            cpuTimeHistogram = callStat.cpuTimeHistogram.clone();
+            latencyHistogram = callStat.latencyHistogram.clone();
+        }
+    }
+
     public static class CallSession {
         int mCallingUId;
         long mStarted;
+        long mStartedElapsed;
+        boolean mDetailed;
+        boolean mSampled;
         CallStat mCallStat = new CallStat();
     }
 
+    /**
+     * Calls recorded by one thread since it was last merged.
+     */
+    private static class Shard {
+        @GuardedBy("this")
+        final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
+        @GuardedBy("this")
+        int mCalls;
+    }
+
     private static class UidEntry {
         int uid;
         long time;
         long callCount;
+        // Number of calls whose time was measured
+        long recordedCallCount;
 
         UidEntry(int uid) {
             this.uid = uid;
@@ -264,6 +543,27 @@ public class BinderCallsStats {
         // Aggregate time spent per each call name: call_desc -> cpu_time_micros
         Map<CallStat, CallStat> mCallStats = new ArrayMap<>();
 
+        void merge(UidEntry other) {
+            time += other.time;
+            callCount += other.callCount;
+            recordedCallCount += other.recordedCallCount;
+            for (CallStat callStat : other.mCallStats.keySet()) {
+                final CallStat existing = mCallStats.get(callStat);
+                if (existing == null) {
+                    mCallStats.put(callStat, callStat);
+                } else {
+                    existing.merge(callStat);
+                }
+            }
+        }
+
+        /**
+         * @return the time of the sampled calls, scaled up to all calls.
+         */
+        long getEstimatedTime() {
+            return estimateTotal(time, callCount, recordedCallCount);
+        }
+
         @Override
         public String toString() {
             return "UidEntry{" +
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.SystemProperties;
+import android.text.format.DateFormat;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the latency of outgoing binder calls as seen by the caller, per interface
+ * descriptor, which unlike {@link BinderCallsStats} includes the time a call waits for a free
+ * binder thread in the remote process.
+ * <p>
+ * A caller can't tell that it waited for a thread, so the other half of the picture is kept
+ * from the point of view of this process as a server: incoming calls that arrive while
+ * {@link #setThreadPoolSize the binder thread pool} is fully busy are counted against the
+ * descriptor of the called interface. Collection is off by default, and the number of
+ * descriptors is bounded; calls to any further interfaces are counted under
+ * {@link #OVERFLOW_DESCRIPTOR}.
+ * <p>
+ * Calls are recorded in one of {@link #SHARDS} shards picked by thread id, each with its own
+ * lock, and the shards are merged when the stats are read. {@link BinderCallsStats} keeps a
+ * shard per thread, which is fine for the binder threads of system_server; a fixed number of
+ * shards keeps memory bounded in processes that make calls from many short lived threads.
+ */
+public class BinderLatencyStats {
+    /** Descriptor the calls to interfaces beyond {@link #MAX_DESCRIPTORS} are counted under. */
+    public static final String OVERFLOW_DESCRIPTOR = "<other>";
+    /** Descriptor of calls that don't start with an interface token. */
+    public static final String UNKNOWN_DESCRIPTOR = "<unknown>";
+    /** Enables collection in every process started after it's set. */
+    public static final String PERSIST_SYS_BINDER_LATENCY_TRACKING
+            = "persist.sys.binder_latency_tracking";
+    @VisibleForTesting
+    public static final int MAX_DESCRIPTORS = 200;
+    // libbinder starts up to 15 threads on top of the one that starts the thread pool
+    private static final int DEFAULT_THREAD_POOL_SIZE = 16;
+    // Longest interface descriptor taken from a parcel, anything longer is not a descriptor
+    private static final int MAX_DESCRIPTOR_LENGTH = 256;
+    private static final int SHARDS = 8;
+
+    private static final BinderLatencyStats sInstance = new BinderLatencyStats();
+    private static volatile boolean sEnabled = false;
+
+    private final Shard[] mShards = new Shard[SHARDS];
+    private final AtomicInteger mIncomingCalls = new AtomicInteger();
+    private volatile int mThreadPoolSize = DEFAULT_THREAD_POOL_SIZE;
+    private volatile long mStartTime = System.currentTimeMillis();
+
+    @VisibleForTesting
+    public BinderLatencyStats() {
+        for (int i = 0; i < SHARDS; i++) {
+            mShards[i] = new Shard();
+        }
+    }
+
+    public static BinderLatencyStats getInstance() {
+        return sInstance;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Enables collection if {@link #PERSIST_SYS_BINDER_LATENCY_TRACKING} is set. Called by
+     * every process started from the zygote before it starts its binder thread pool.
+     */
+    public static void initFromSystemProperties() {
+        setEnabled(SystemProperties.getBoolean(PERSIST_SYS_BINDER_LATENCY_TRACKING, false));
+    }
+
+    /**
+     * Sets the number of threads in the binder thread pool of this process, as configured with
+     * {@link BinderInternal#setMaxThreads} plus the thread that started the pool.
+     */
+    public void setThreadPoolSize(int threadPoolSize) {
+        mThreadPoolSize = threadPoolSize;
+    }
+
+    /**
+     * Reads the interface descriptor a proxy wrote at the start of a transaction, without
+     * moving the position of the parcel.
+     *
+     * @return the descriptor, or null if the transaction doesn't start with something that
+     *         looks like an interface token.
+     */
+    public static String peekInterfaceDescriptor(int code, Parcel data) {
+        if (code < IBinder.FIRST_CALL_TRANSACTION || code > IBinder.LAST_CALL_TRANSACTION) {
+            return null;
+        }
+        final int pos = data.dataPosition();
+        final String descriptor;
+        try {
+            data.setDataPosition(0);
+            // Skip the strict mode policy
+            data.readInt();
+            descriptor = data.readString();
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            data.setDataPosition(pos);
+        }
+        return isValidDescriptor(descriptor) ? descriptor : null;
+    }
+
+    private static boolean isValidDescriptor(String descriptor) {
+        if (descriptor == null || descriptor.isEmpty()
+                || descriptor.length() > MAX_DESCRIPTOR_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < descriptor.length(); i++) {
+            final char c = descriptor.charAt(i);
+            if (c <= ' ' || c > '~') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records a blocking outgoing call to an interface.
+     */
+    public void noteOutgoingCall(String descriptor, long latencyMicros) {
+        final Shard shard = getShard();
+        synchronized (shard) {
+            final Entry entry = shard.getEntryLocked(descriptor);
+            entry.calls++;
+            entry.latencyMicros += latencyMicros;
+            entry.maxLatencyMicros = Math.max(entry.maxLatencyMicros, latencyMicros);
+            entry.latencyHistogram[BinderCallsStats.getHistogramBucket(latencyMicros)]++;
+        }
+    }
+
+    /**
+     * Records the start of an incoming call. Must be paired with {@link #incomingCallEnded}.
+     */
+    public void incomingCallStarted(Binder binder) {
+        if (mIncomingCalls.incrementAndGet() < mThreadPoolSize) {
+            return;
+        }
+        String descriptor = binder.getInterfaceDescriptor();
+        if (descriptor == null) {
+            descriptor = binder.getClass().getName();
+        }
+        final Shard shard = getShard();
+        synchronized (shard) {
+            shard.getEntryLocked(descriptor).fullThreadPoolCalls++;
+        }
+    }
+
+    public void incomingCallEnded() {
+        mIncomingCalls.decrementAndGet();
+    }
+
+    private Shard getShard() {
+        return mShards[(int) (Thread.currentThread().getId() % SHARDS)];
+    }
+
+    /**
+     * @return the entry of {@code descriptor} in {@code entries}, or of
+     *         {@link #OVERFLOW_DESCRIPTOR} if there are too many descriptors already.
+     */
+    private static Entry getEntry(ArrayMap<String, Entry> entries, String descriptor) {
+        Entry entry = entries.get(descriptor);
+        if (entry == null) {
+            if (entries.size() >= MAX_DESCRIPTORS) {
+                descriptor = OVERFLOW_DESCRIPTOR;
+                entry = entries.get(descriptor);
+            }
+            if (entry == null) {
+                entry = new Entry(descriptor);
+                entries.put(descriptor, entry);
+            }
+        }
+        return entry;
+    }
+
+    public void reset() {
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                shard.mEntries.clear();
+            }
+        }
+        mStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return a copy of the stats of each interface, merged across shards.
+     */
+    public List<Entry> getEntries() {
+        final ArrayMap<String, Entry> merged = new ArrayMap<>();
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                for (int i = 0; i < shard.mEntries.size(); i++) {
+                    final Entry e = shard.mEntries.valueAt(i);
+                    getEntry(merged, e.descriptor).merge(e);
+                }
+            }
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.print("Start time: ");
+        pw.println(DateFormat.format("yyyy-MM-dd HH:mm:ss", mStartTime));
+        pw.print("Enabled: ");
+        pw.print(sEnabled);
+        pw.print(", thread pool size: ");
+        pw.println(mThreadPoolSize);
+        final List<Entry> entries = getEntries();
+        entries.sort((o1, o2) -> Long.compare(o2.latencyMicros, o1.latencyMicros));
+        pw.println("Outgoing calls (descriptor,calls_count,avg_latency,max_latency,"
+                + "full_thread_pool_calls_count: latency buckets):");
+        final StringBuilder sb = new StringBuilder();
+        for (Entry e : entries) {
+            sb.setLength(0);
+            sb.append("    ").append(e.descriptor)
+                    .append(',').append(e.calls)
+                    .append(',').append(e.calls == 0 ? 0 : e.latencyMicros / e.calls)
+                    .append(',').append(e.maxLatencyMicros)
+                    .append(',').append(e.fullThreadPoolCalls)
+                    .append(':');
+            for (int count : e.latencyHistogram) {
+                sb.append(' ').append(count);
+            }
+            pw.println(sb);
+        }
+    }
+
+    /**
+     * Calls to and from one interface.
+     */
+    public static class Entry {
+        public final String descriptor;
+        /** Number of blocking outgoing calls. */
+        public long calls;
+        public long latencyMicros;
+        public long maxLatencyMicros;
+        /** Latency histogram of outgoing calls, see {@link BinderCallsStats#HISTOGRAM_BUCKETS}. */
+        public final int[] latencyHistogram;
+        /** Number of incoming calls that arrived while every binder thread was busy. */
+        public long fullThreadPoolCalls;
+
+        Entry(String descriptor) {
+            this.descriptor = descriptor;
+            latencyHistogram = new int[BinderCallsStats.HISTOGRAM_BUCKETS];
+        }
+
+        void merge(Entry other) {
+            calls += other.calls;
+            latencyMicros += other.latencyMicros;
+            maxLatencyMicros = Math.max(maxLatencyMicros, other.maxLatencyMicros);
+            for (int i = 0; i < latencyHistogram.length; i++) {
+                latencyHistogram[i] += other.latencyHistogram[i];
+            }
+            fullThreadPoolCalls += other.fullThreadPoolCalls;
+        }
+    }
+
+    /**
+     * Calls recorded by the threads whose id maps to one shard.
+     */
+    private static class Shard {
+        @GuardedBy("this")
+        final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+
+        @GuardedBy("this")
+        Entry getEntryLocked(String descriptor) {
+            return getEntry(mEntries, descriptor);
+        }
+    }
+}
@@ -21,9 +21,11 @@ import static com.android.internal.util.Preconditions.checkNotNull;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.os.StrictMode;
+import android.os.SystemProperties;
 import android.util.IntArray;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -31,6 +33,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.util.function.Consumer;
 
@@ -58,6 +61,10 @@ import java.util.function.Consumer;
  * which has a shorter throttle interval and returns cached result from last read when the request
  * is throttled.
  *
+ * With packed snapshots, the previous results are kept off-heap in the layout of the binary proc
+ * file instead of in a long[] per UID, and are compared to the new contents in place, so a delta
+ * read allocates nothing and only UIDs whose times changed are passed to the callback.
+ *
  * This class is NOT thread-safe and NOT designed to be accessed by more than one caller since each
  * caller has its own view of delta.
  */
@@ -78,6 +85,16 @@ public class KernelUidCpuFreqTimeReader extends
 
     private SparseArray<long[]> mLastUidCpuFreqTimeMs = new SparseArray<>();
 
+    private static final boolean PACKED_SNAPSHOTS_DEFAULT =
+            SystemProperties.getBoolean("persist.sys.batterystats.packed_freq_times", false);
+    private boolean mPackedSnapshots = PACKED_SNAPSHOTS_DEFAULT;
+    // The last times of each uid in units of 10ms, as [uid, time0, ..., timeN] records in the
+    // order of the last proc file, and the index of the record of each uid.
+    private IntBuffer mSnapshot;
+    private IntBuffer mNextSnapshot; // Reuse to prevent GC.
+    private int mSnapshotUids;
+    private final SparseIntArray mSnapshotIndex = new SparseIntArray();
+
     // We check the existence of proc file a few times (just in case it is not ready yet when we
     // start reading) and if it is not available, we simply ignore further read requests.
     private static final int TOTAL_READ_ERROR_COUNT = 5;
@@ -102,8 +119,33 @@ public class KernelUidCpuFreqTimeReader extends
         return mAllUidTimesAvailable;
     }
 
+    /**
+     * Keeps the previous results in packed snapshots rather than per-UID arrays. Must be called
+     * before the first read.
+     */
+    @VisibleForTesting
+    public void setPackedSnapshots(boolean packedSnapshots) {
+        mPackedSnapshots = packedSnapshots;
+    }
+
+    /**
+     * @return the last times of each UID. With packed snapshots this is built from the snapshot
+     *         on every call.
+     */
     public SparseArray<long[]> getAllUidCpuFreqTimeMs() {
-        return mLastUidCpuFreqTimeMs;
+        if (!mPackedSnapshots) {
+            return mLastUidCpuFreqTimeMs;
+        }
+        final SparseArray<long[]> allTimes = new SparseArray<>(mSnapshotUids);
+        final int stride = mCpuFreqsCount + 1;
+        for (int i = 0; i < mSnapshotUids; i++) {
+            final long[] times = new long[mCpuFreqsCount];
+            for (int j = 0; j < mCpuFreqsCount; j++) {
+                times[j] = (long) mSnapshot.get(i * stride + 1 + j) * 10;
+            }
+            allTimes.put(mSnapshot.get(i * stride), times);
+        }
+        return allTimes;
     }
 
     public long[] readFreqs(@NonNull PowerProfile powerProfile) {
@@ -170,6 +212,10 @@ public class KernelUidCpuFreqTimeReader extends
         if (mCpuFreqs == null) {
             return;
         }
+        if (mPackedSnapshots) {
+            readDeltaPacked(callback);
+            return;
+        }
         readImpl((buf) -> {
             int uid = buf.get();
             long[] lastTimes = mLastUidCpuFreqTimeMs.get(uid);
@@ -199,6 +245,87 @@ public class KernelUidCpuFreqTimeReader extends
         });
     }
 
+    private void readDeltaPacked(@Nullable Callback callback) {
+        synchronized (mProcReader) {
+            final IntBuffer buf = readProcLocked();
+            if (buf == null) {
+                return;
+            }
+            final int stride = mCpuFreqsCount + 1;
+            final int numUids = buf.remaining() / stride;
+            final int start = buf.position();
+            final IntBuffer next = mNextSnapshot = ensureCapacity(mNextSnapshot, numUids * stride);
+            // Whether every uid is at the same index as in the last snapshot
+            boolean sameOrder = numUids == mSnapshotUids;
+            for (int i = 0; i < numUids; i++) {
+                final int pos = start + i * stride;
+                final int uid = buf.get(pos);
+                int last;
+                if (i < mSnapshotUids && mSnapshot.get(i * stride) == uid) {
+                    last = i * stride;
+                } else {
+                    sameOrder = false;
+                    last = mSnapshotIndex.get(uid, -1);
+                    if (last >= 0) {
+                        last *= stride;
+                    }
+                }
+                boolean notify = false;
+                boolean valid = true;
+                for (int j = 0; j < mCpuFreqsCount; j++) {
+                    final int time = buf.get(pos + 1 + j);
+                    if (time < 0) {
+                        Slog.e(TAG, "Negative time from freq time proc: " + (long) time * 10);
+                        valid = false;
+                    }
+                    final int lastTime = last < 0 ? 0 : mSnapshot.get(last + 1 + j);
+                    mDeltaTimes[j] = ((long) time - lastTime) * 10; // Unit is 10ms.
+                    if (mDeltaTimes[j] < 0) {
+                        Slog.e(TAG, "Negative delta from freq time proc: " + mDeltaTimes[j]);
+                        valid = false;
+                    }
+                    notify |= mDeltaTimes[j] > 0;
+                }
+                final int nextPos = i * stride;
+                next.put(nextPos, uid);
+                if (notify && valid) {
+                    for (int j = 1; j < stride; j++) {
+                        next.put(nextPos + j, buf.get(pos + j));
+                    }
+                    if (callback != null) {
+                        callback.onUidCpuFreqTime(uid, mDeltaTimes);
+                    }
+                } else {
+                    // Keep the last times, so the next delta is still against them
+                    for (int j = 1; j < stride; j++) {
+                        next.put(nextPos + j, last < 0 ? 0 : mSnapshot.get(last + j));
+                    }
+                }
+            }
+            mNextSnapshot = mSnapshot;
+            mSnapshot = next;
+            mSnapshotUids = numUids;
+            if (!sameOrder) {
+                mSnapshotIndex.clear();
+                for (int i = 0; i < numUids; i++) {
+                    mSnapshotIndex.put(next.get(i * stride), i);
+                }
+            }
+            if (DEBUG) {
+                Slog.d(TAG, "Read uids: #" + numUids);
+            }
+        }
+    }
+
+    private static IntBuffer ensureCapacity(IntBuffer buffer, int ints) {
+        if (buffer != null && buffer.capacity() >= ints) {
+            return buffer;
+        }
+        // Leave room for a few more uids to be added before growing again
+        return ByteBuffer.allocateDirect((ints + ints / 4) * 4).order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+    }
+
     public void readAbsolute(Callback callback) {
         readImpl((buf) -> {
             int uid = buf.get();
@@ -230,26 +357,11 @@ public class KernelUidCpuFreqTimeReader extends
      */
     private void readImpl(Consumer<IntBuffer> processUid) {
         synchronized (mProcReader) {
-            ByteBuffer bytes = mProcReader.readBytes();
-            if (bytes == null || bytes.remaining() <= 4) {
-                // Error already logged in mProcReader.
-                return;
-            }
-            if ((bytes.remaining() & 3) != 0) {
-                Slog.wtf(TAG, "Cannot parse freq time proc bytes to int: " + bytes.remaining());
-                return;
-            }
-            IntBuffer buf = bytes.asIntBuffer();
-            final int freqs = buf.get();
-            if (freqs != mCpuFreqsCount) {
-                Slog.wtf(TAG, "Cpu freqs expect " + mCpuFreqsCount + " , got " + freqs);
-                return;
-            }
-            if (buf.remaining() % (freqs + 1) != 0) {
-                Slog.wtf(TAG, "Freq time format error: " + buf.remaining() + " / " + (freqs + 1));
+            final IntBuffer buf = readProcLocked();
+            if (buf == null) {
                 return;
             }
-            int numUids = buf.remaining() / (freqs + 1);
+            int numUids = buf.remaining() / (mCpuFreqsCount + 1);
             for (int i = 0; i < numUids; i++) {
                 processUid.accept(buf);
             }
@@ -259,11 +371,55 @@ public class KernelUidCpuFreqTimeReader extends
         }
     }
 
+    /**
+     * Reads the proc file, and checks it has the expected number of frequencies.
+     *
+     * @return the uid records, or null if the file couldn't be read.
+     */
+    private IntBuffer readProcLocked() {
+        ByteBuffer bytes = mProcReader.readBytes();
+        if (bytes == null || bytes.remaining() <= 4) {
+            // Error already logged in mProcReader.
+            return null;
+        }
+        if ((bytes.remaining() & 3) != 0) {
+            Slog.wtf(TAG, "Cannot parse freq time proc bytes to int: " + bytes.remaining());
+            return null;
+        }
+        IntBuffer buf = bytes.asIntBuffer();
+        final int freqs = buf.get();
+        if (freqs != mCpuFreqsCount) {
+            Slog.wtf(TAG, "Cpu freqs expect " + mCpuFreqsCount + " , got " + freqs);
+            return null;
+        }
+        if (buf.remaining() % (freqs + 1) != 0) {
+            Slog.wtf(TAG, "Freq time format error: " + buf.remaining() + " / " + (freqs + 1));
+            return null;
+        }
+        return buf;
+    }
+
     public void removeUid(int uid) {
+        if (mPackedSnapshots) {
+            final int index = mSnapshotIndex.get(uid, -1);
+            if (index >= 0) {
+                clearSnapshotTimes(index);
+            }
+            return;
+        }
         mLastUidCpuFreqTimeMs.delete(uid);
     }
 
     public void removeUidsInRange(int startUid, int endUid) {
+        if (mPackedSnapshots) {
+            for (int i = 0; i < mSnapshotUids; i++) {
+                final int uid = mSnapshot.get(i * (mCpuFreqsCount + 1));
+                if (uid >= startUid && uid <= endUid) {
+                    clearSnapshotTimes(i);
+                }
+            }
+            return;
+        }
         mLastUidCpuFreqTimeMs.put(startUid, null);
         mLastUidCpuFreqTimeMs.put(endUid, null);
         final int firstIndex = mLastUidCpuFreqTimeMs.indexOfKey(startUid);
@@ -271,6 +427,17 @@ public class KernelUidCpuFreqTimeReader extends
         mLastUidCpuFreqTimeMs.removeAtRange(firstIndex, lastIndex - firstIndex + 1);
     }
 
+    /**
+     * Forgets the last times of the uid at the index of the snapshot, so that its next delta
+     * holds all of its time, as if it was never read.
+     */
+    private void clearSnapshotTimes(int index) {
+        final int pos = index * (mCpuFreqsCount + 1);
+        for (int j = 1; j <= mCpuFreqsCount; j++) {
+            mSnapshot.put(pos + j, 0);
+        }
+    }
+
     /**
      * Extracts no. of cpu clusters and no. of freqs in each of these clusters from the freqs
      * read from the proc file.
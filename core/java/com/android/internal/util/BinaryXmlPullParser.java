@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.INTERNED_STRING_NEW_MARKER;
+import static com.android.internal.util.BinaryXmlSerializer.NULL_STRING_LENGTH;
+import static com.android.internal.util.BinaryXmlSerializer.PROTOCOL_MAGIC_VERSION_0;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_ATTRIBUTE;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_END_DOCUMENT;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_END_TAG;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_START_DOCUMENT;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_START_TAG;
+import static com.android.internal.util.BinaryXmlSerializer.TOKEN_TEXT;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Implementation of {@link XmlPullParser} that reads documents written by
+ * {@link BinaryXmlSerializer}.
+ * <p>
+ * Only the subset of the pull parser contract used by system XML files is supported: there
+ * are no namespaces, and comments and whitespace are never reported.
+ */
+public class BinaryXmlPullParser implements XmlPullParser {
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int NO_TOKEN = -1;
+
+    private DataInputStream mIn;
+
+    private final ArrayList<String> mInterned = new ArrayList<>();
+
+    private int mCurrentToken = START_DOCUMENT;
+    private int mPendingToken = NO_TOKEN;
+    private int mCurrentDepth;
+    private boolean mDecrementDepthOnNext;
+
+    private String mCurrentName;
+    private String mCurrentText;
+
+    private int mAttributeCount;
+    private String[] mAttributeNames = new String[8];
+    private String[] mAttributeValues = new String[8];
+
+    /**
+     * Return whether the given stream holds a document written by {@link BinaryXmlSerializer}.
+     * The stream must support {@link InputStream#mark}; its position is left unchanged.
+     */
+    public static boolean isBinaryXml(InputStream in) throws IOException {
+        final byte[] magic = new byte[PROTOCOL_MAGIC_VERSION_0.length];
+        in.mark(magic.length);
+        try {
+            int read = 0;
+            while (read < magic.length) {
+                final int n = in.read(magic, read, magic.length - read);
+                if (n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+            return Arrays.equals(magic, PROTOCOL_MAGIC_VERSION_0);
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Create a parser for the given stream, choosing between {@link BinaryXmlPullParser} and
+     * the default text parser based on the contents of the stream.
+     */
+    public static XmlPullParser newPullParser(InputStream in) throws IOException,
+            XmlPullParserException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in, BUFFER_SIZE);
+        }
+        final XmlPullParser parser;
+        if (isBinaryXml(in)) {
+            parser = new BinaryXmlPullParser();
+        } else {
+            parser = Xml.newPullParser();
+        }
+        parser.setInput(in, StandardCharsets.UTF_8.name());
+        return parser;
+    }
+
+    @Override
+    public void setInput(InputStream is, String inputEncoding) throws XmlPullParserException {
+        mIn = new DataInputStream(is.markSupported() ? is : new BufferedInputStream(is,
+                BUFFER_SIZE));
+        mInterned.clear();
+        mCurrentToken = START_DOCUMENT;
+        mPendingToken = NO_TOKEN;
+        mCurrentDepth = 0;
+        mDecrementDepthOnNext = false;
+        mCurrentName = null;
+        mCurrentText = null;
+        mAttributeCount = 0;
+
+        try {
+            final byte[] magic = new byte[PROTOCOL_MAGIC_VERSION_0.length];
+            mIn.readFully(magic);
+            if (!Arrays.equals(magic, PROTOCOL_MAGIC_VERSION_0)) {
+                throw new XmlPullParserException("Unexpected magic " + Arrays.toString(magic));
+            }
+        } catch (IOException e) {
+            throw new XmlPullParserException("Failed to read header", this, e);
+        }
+    }
+
+    @Override
+    public void setInput(Reader in) {
+        throw new UnsupportedOperationException("Binary input requires an InputStream");
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        if (mDecrementDepthOnNext) {
+            mCurrentDepth--;
+            mDecrementDepthOnNext = false;
+        }
+        if (mCurrentToken == END_DOCUMENT) {
+            return END_DOCUMENT;
+        }
+
+        while (true) {
+            final int token = readToken();
+            switch (token) {
+                case TOKEN_START_DOCUMENT:
+                    // Not reported as an event; the parser starts in START_DOCUMENT already
+                    continue;
+                case TOKEN_END_DOCUMENT:
+                    mCurrentName = null;
+                    mCurrentText = null;
+                    mAttributeCount = 0;
+                    return mCurrentToken = END_DOCUMENT;
+                case TOKEN_START_TAG:
+                    mCurrentName = readInternedUTF();
+                    mCurrentText = null;
+                    mCurrentDepth++;
+                    readAttributes();
+                    return mCurrentToken = START_TAG;
+                case TOKEN_END_TAG:
+                    mCurrentName = readInternedUTF();
+                    mCurrentText = null;
+                    mAttributeCount = 0;
+                    mDecrementDepthOnNext = true;
+                    return mCurrentToken = END_TAG;
+                case TOKEN_TEXT:
+                    mCurrentName = null;
+                    mCurrentText = readUTF();
+                    mAttributeCount = 0;
+                    return mCurrentToken = TEXT;
+                default:
+                    throw new XmlPullParserException("Unexpected token " + token, this, null);
+            }
+        }
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        return next();
+    }
+
+    @Override
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException {
+        if (type != mCurrentToken
+                || (namespace != null && !namespace.isEmpty())
+                || (name != null && !name.equals(mCurrentName))) {
+            throw new XmlPullParserException("expected " + TYPES[type] + " "
+                    + getPositionDescription(), this, null);
+        }
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (mCurrentToken != START_TAG) {
+            throw new XmlPullParserException("nextText() requires START_TAG", this, null);
+        }
+        int eventType = next();
+        if (eventType == TEXT) {
+            final String result = mCurrentText;
+            eventType = next();
+            if (eventType != END_TAG) {
+                throw new XmlPullParserException("TEXT must be immediately followed by END_TAG",
+                        this, null);
+            }
+            return result;
+        } else if (eventType == END_TAG) {
+            return "";
+        } else {
+            throw new XmlPullParserException("nextText() found unexpected " + TYPES[eventType],
+                    this, null);
+        }
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        int eventType = next();
+        if (eventType == TEXT && isWhitespace()) {
+            eventType = next();
+        }
+        if (eventType != START_TAG && eventType != END_TAG) {
+            throw new XmlPullParserException("expected START_TAG or END_TAG, found "
+                    + TYPES[eventType], this, null);
+        }
+        return eventType;
+    }
+
+    @Override
+    public int getEventType() {
+        return mCurrentToken;
+    }
+
+    @Override
+    public int getDepth() {
+        return mCurrentDepth;
+    }
+
+    @Override
+    public String getName() {
+        return mCurrentName;
+    }
+
+    @Override
+    public String getText() {
+        return mCurrentText;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        if (mCurrentText == null) {
+            return null;
+        }
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = mCurrentText.length();
+        return mCurrentText.toCharArray();
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (mCurrentToken != TEXT) {
+            throw new XmlPullParserException("Not applicable for " + TYPES[mCurrentToken],
+                    this, null);
+        }
+        return mCurrentText == null || mCurrentText.trim().isEmpty();
+    }
+
+    @Override
+    public boolean isEmptyElementTag() {
+        return mCurrentToken == START_TAG && mPendingToken == TOKEN_END_TAG;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return mCurrentToken == START_TAG ? mAttributeCount : -1;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        checkAttributeIndex(index);
+        return mAttributeNames[index];
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkAttributeIndex(index);
+        return mAttributeValues[index];
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (mAttributeNames[i].equals(name)) {
+                return mAttributeValues[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        checkAttributeIndex(index);
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        checkAttributeIndex(index);
+        return null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        checkAttributeIndex(index);
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        checkAttributeIndex(index);
+        return false;
+    }
+
+    @Override
+    public String getPositionDescription() {
+        return TYPES[mCurrentToken] + (mCurrentName != null ? " <" + mCurrentName + ">" : "")
+                + " at depth " + mCurrentDepth + " in binary XML";
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public String getNamespace() {
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        return null;
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) {
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        // Namespace processing and validation have no meaning for binary documents
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (mCurrentToken != START_TAG || index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException("Attribute " + index + " of " + mAttributeCount);
+        }
+    }
+
+    private int readToken() throws IOException {
+        if (mPendingToken != NO_TOKEN) {
+            final int token = mPendingToken;
+            mPendingToken = NO_TOKEN;
+            return token;
+        }
+        final int token = mIn.read();
+        if (token < 0) {
+            throw new EOFException("Truncated binary XML " + getPositionDescription());
+        }
+        return token;
+    }
+
+    /**
+     * Consume all attributes that directly follow the current start tag, leaving the first
+     * non-attribute token pending for the next call to {@link #next()}.
+     */
+    private void readAttributes() throws IOException {
+        mAttributeCount = 0;
+        while (true) {
+            final int token = mIn.read();
+            if (token < 0) {
+                throw new EOFException("Truncated binary XML " + getPositionDescription());
+            }
+            if (token != TOKEN_ATTRIBUTE) {
+                mPendingToken = token;
+                return;
+            }
+            if (mAttributeCount == mAttributeNames.length) {
+                mAttributeNames = Arrays.copyOf(mAttributeNames, mAttributeCount * 2);
+                mAttributeValues = Arrays.copyOf(mAttributeValues, mAttributeCount * 2);
+            }
+            mAttributeNames[mAttributeCount] = readInternedUTF();
+            mAttributeValues[mAttributeCount] = readUTF();
+            mAttributeCount++;
+        }
+    }
+
+    private String readInternedUTF() throws IOException {
+        final int index = mIn.readUnsignedShort();
+        if (index != INTERNED_STRING_NEW_MARKER) {
+            if (index >= mInterned.size()) {
+                throw new IOException("Invalid interned string " + index);
+            }
+            return mInterned.get(index);
+        }
+        final String s = readUTF();
+        if (mInterned.size() < INTERNED_STRING_NEW_MARKER) {
+            mInterned.add(s);
+        }
+        return s;
+    }
+
+    private String readUTF() throws IOException {
+        final int length = mIn.readInt();
+        if (length == NULL_STRING_LENGTH) {
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        mIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
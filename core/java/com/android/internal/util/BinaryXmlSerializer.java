@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Implementation of {@link XmlSerializer} that writes a compact binary encoding of the
+ * document instead of text. Tag and attribute names are written once into an inline string
+ * pool and referenced by index afterwards, and every value is length-prefixed, so the
+ * matching {@link BinaryXmlPullParser} never has to scan for delimiters or unescape entities.
+ * <p>
+ * Like {@link FastXmlSerializer}, this only does what is needed for the system XML files
+ * being written with it: namespaces, comments and processing instructions are not supported.
+ * <p>
+ * The stream starts with {@link #PROTOCOL_MAGIC_VERSION_0}, which callers can use to tell a
+ * binary file apart from a text one; see {@link BinaryXmlPullParser#isBinaryXml}.
+ */
+public class BinaryXmlSerializer implements XmlSerializer {
+    /**
+     * Magic bytes written at the start of every binary document, followed by the format
+     * version. Chosen so that the first byte can never start a well-formed text XML document.
+     */
+    public static final byte[] PROTOCOL_MAGIC_VERSION_0 = new byte[] { 0x41, 0x42, 0x58, 0x00 };
+
+    static final int TOKEN_START_DOCUMENT = 0;
+    static final int TOKEN_END_DOCUMENT = 1;
+    static final int TOKEN_START_TAG = 2;
+    static final int TOKEN_END_TAG = 3;
+    static final int TOKEN_TEXT = 4;
+    static final int TOKEN_ATTRIBUTE = 5;
+
+    /** Index written in place of a pool reference when the string follows inline. */
+    static final int INTERNED_STRING_NEW_MARKER = 0xFFFF;
+    /** Length written in place of a value length when the value is {@code null}. */
+    static final int NULL_STRING_LENGTH = -1;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private DataOutputStream mOut;
+
+    private final HashMap<String, Integer> mInterned = new HashMap<>();
+    private int mTagDepth;
+    private boolean mInTag;
+
+    @Override
+    public void setOutput(OutputStream os, String encoding) throws IOException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException("Only UTF-8 is supported: " + encoding);
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(os, BUFFER_SIZE));
+        mOut.write(PROTOCOL_MAGIC_VERSION_0);
+        mInterned.clear();
+        mTagDepth = 0;
+        mInTag = false;
+    }
+
+    @Override
+    public void setOutput(Writer writer) {
+        throw new UnsupportedOperationException("Binary output requires an OutputStream");
+    }
+
+    @Override
+    public void startDocument(String encoding, Boolean standalone) throws IOException {
+        mOut.writeByte(TOKEN_START_DOCUMENT);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        mOut.writeByte(TOKEN_END_DOCUMENT);
+        flush();
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) throws IOException {
+        checkNoNamespace(namespace);
+        mOut.writeByte(TOKEN_START_TAG);
+        writeInternedUTF(name);
+        mTagDepth++;
+        mInTag = true;
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value)
+            throws IOException {
+        checkNoNamespace(namespace);
+        if (!mInTag) {
+            throw new IllegalStateException("Attribute " + name + " written outside of a tag");
+        }
+        mOut.writeByte(TOKEN_ATTRIBUTE);
+        writeInternedUTF(name);
+        writeUTF(value);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) throws IOException {
+        checkNoNamespace(namespace);
+        mOut.writeByte(TOKEN_END_TAG);
+        writeInternedUTF(name);
+        mTagDepth--;
+        mInTag = false;
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(String text) throws IOException {
+        mOut.writeByte(TOKEN_TEXT);
+        writeUTF(text);
+        mInTag = false;
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException {
+        return text(new String(buf, start, len));
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public int getDepth() {
+        return mTagDepth;
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Indentation and the like have no meaning for a binary document
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getNamespace() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getName() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void cdsect(String text) throws IOException {
+        text(text);
+    }
+
+    @Override
+    public void entityRef(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void processingInstruction(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void comment(String text) {
+        // Comments are dropped from binary documents
+    }
+
+    @Override
+    public void docdecl(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) {
+        // Whitespace is never significant in binary documents
+    }
+
+    private static void checkNoNamespace(String namespace) {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new UnsupportedOperationException("Namespaces are not supported: " + namespace);
+        }
+    }
+
+    /**
+     * Write a string that is expected to repeat often, such as a tag or attribute name. The
+     * first occurrence is written inline and assigned the next pool index; later ones are
+     * written as just that index.
+     */
+    private void writeInternedUTF(String s) throws IOException {
+        final Integer index = mInterned.get(s);
+        if (index != null) {
+            mOut.writeShort(index);
+            return;
+        }
+        mOut.writeShort(INTERNED_STRING_NEW_MARKER);
+        writeUTF(s);
+        // Once the pool is full, remaining names are simply written inline every time
+        if (mInterned.size() < INTERNED_STRING_NEW_MARKER) {
+            mInterned.put(s, mInterned.size());
+        }
+    }
+
+    private void writeUTF(String s) throws IOException {
+        if (s == null) {
+            mOut.writeInt(NULL_STRING_LENGTH);
+            return;
+        }
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        mOut.writeInt(bytes.length);
+        mOut.write(bytes);
+    }
+}
@@ -20,6 +20,7 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.util.Log;
 
+import java.io.PrintWriter;
 import java.util.Arrays;
 
 /**
@@ -57,6 +58,23 @@ public class ExponentiallyBucketedHistogram {
         }
     }
 
+    /**
+     * @return The number of buckets
+     */
+    public int getNumBuckets() {
+        return mData.length;
+    }
+
+    /**
+     * @param bucket The index of the bucket, bucket {@code i > 0} holds values >= 2<sup>i - 1</sup>
+     *               and < 2<sup>i</sup>
+     *
+     * @return The number of values added to the bucket
+     */
+    public int getCount(int bucket) {
+        return mData[bucket];
+    }
+
     /**
      * Clear all data from the histogram
      */
@@ -71,6 +89,20 @@ public class ExponentiallyBucketedHistogram {
      * @param prefix A custom prefix that is printed in front of the histogram
      */
     public void log(@NonNull String tag, @Nullable CharSequence prefix) {
+        Log.d(tag, format(prefix));
+    }
+
+    /**
+     * Print the histogram on a single line.
+     *
+     * @param pw     The writer to print to
+     * @param prefix A custom prefix that is printed in front of the histogram
+     */
+    public void dump(@NonNull PrintWriter pw, @Nullable CharSequence prefix) {
+        pw.println(format(prefix));
+    }
+
+    private String format(@Nullable CharSequence prefix) {
         StringBuilder builder = new StringBuilder(prefix);
         builder.append('[');
 
@@ -92,6 +124,6 @@ public class ExponentiallyBucketedHistogram {
         }
         builder.append("]");
 
-        Log.d(tag, builder.toString());
+        return builder.toString();
     }
 }
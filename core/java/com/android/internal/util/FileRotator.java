@@ -298,6 +298,26 @@ public class FileRotator {
         }
     }
 
+    /**
+     * Return the start time of the oldest file, or {@link Long#MAX_VALUE} when there are none.
+     * Data from before it was deleted by {@link #maybeRotate(long)}.
+     */
+    public long getOldestStartMillis() {
+        long oldestStart = Long.MAX_VALUE;
+
+        final FileInfo info = new FileInfo(mPrefix);
+        final String[] baseFiles = mBasePath.list();
+        if (baseFiles == null) {
+            return oldestStart;
+        }
+
+        for (String name : baseFiles) {
+            if (!info.parse(name)) continue;
+            oldestStart = Math.min(oldestStart, info.startMillis);
+        }
+        return oldestStart;
+    }
+
     /**
      * Return the currently active file, which may not exist yet.
      */
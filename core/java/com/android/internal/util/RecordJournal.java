@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.os.FileUtils;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of opaque records, used to persist small changes to a larger file
+ * without rewriting it. Owners are expected to replay the records on top of the base file
+ * when reading, and to {@link #delete} the journal once a new base file has been written.
+ * <p>
+ * Every record is written with its length and a CRC32 of its contents, so a record torn by a
+ * crash or power loss is detected and discarded, along with anything after it. Records should
+ * therefore be idempotent: replaying a record on top of a base file that already includes it
+ * must be harmless.
+ * <p>
+ * This class does no locking of its own.
+ */
+public class RecordJournal {
+    private static final String TAG = "RecordJournal";
+
+    /** Upper bound on a single record, to avoid huge allocations when reading garbage. */
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    private final File mFile;
+
+    public RecordJournal(File file) {
+        mFile = file;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Return the size of the journal on disk in bytes, or 0 if it doesn't exist. */
+    public long length() {
+        return mFile.length();
+    }
+
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * Append the given records and sync them to disk before returning.
+     *
+     * @return the number of bytes appended.
+     */
+    public long append(List<byte[]> records) throws IOException {
+        return append(records, true);
+    }
+
+    /**
+     * Append the given records. Without {@code sync} the records survive the process dying
+     * as soon as this returns, but not a crash of the device until {@link #sync} is called.
+     *
+     * @return the number of bytes appended.
+     */
+    public long append(List<byte[]> records, boolean sync) throws IOException {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, true);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            final CRC32 crc = new CRC32();
+            long bytes = 0;
+            for (int i = 0; i < records.size(); i++) {
+                final byte[] record = records.get(i);
+                crc.reset();
+                crc.update(record);
+                out.writeInt(record.length);
+                out.writeInt((int) crc.getValue());
+                out.write(record);
+                bytes += 8 + record.length;
+            }
+            out.flush();
+            if (sync) {
+                FileUtils.sync(fos);
+            }
+            return bytes;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Sync records appended without syncing to disk. This needs no coordination with
+     * {@link #append}, as it only waits for data that was already written.
+     */
+    public void sync() {
+        if (!mFile.exists()) {
+            return;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, true);
+            FileUtils.sync(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to sync " + mFile, e);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Read back all intact records, in the order they were appended. If a torn or corrupt
+     * record is found, it and everything after it are dropped, and the journal is truncated
+     * so that later appends follow the last intact record.
+     */
+    public List<byte[]> readRecords() {
+        final ArrayList<byte[]> records = new ArrayList<>();
+        DataInputStream in = null;
+        long validLength = 0;
+        boolean corrupt = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    // A length cut short by a crash is as torn as a short record
+                    corrupt = validLength < mFile.length();
+                    break;
+                }
+                final int expectedCrc = in.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    throw new IOException("Invalid record length " + length);
+                }
+                final byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != expectedCrc) {
+                    throw new IOException("Checksum mismatch");
+                }
+                records.add(record);
+                validLength += 8 + length;
+            }
+        } catch (FileNotFoundException e) {
+            // No journal is the same as an empty one
+        } catch (IOException e) {
+            Slog.w(TAG, "Dropping journal " + mFile + " after " + records.size()
+                    + " records: " + e);
+            corrupt = true;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        if (corrupt) {
+            truncate(validLength);
+        }
+        return records;
+    }
+
+    /** Discard all records, typically after they were folded into a new base file. */
+    public void delete() {
+        mFile.delete();
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to truncate " + mFile + ", deleting", e);
+            mFile.delete();
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import libcore.io.IoUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests the journaled mode of {@link SharedPreferencesImpl}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SharedPreferencesJournalTest {
+    private File mDir;
+    private File mFile;
+    private File mJournal;
+    private File mOldJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "SharedPreferencesJournalTest");
+        IoUtils.deleteContents(mDir);
+        mDir.mkdirs();
+        mFile = new File(mDir, "prefs.xml");
+        mJournal = new File(mFile.getPath() + ".journal");
+        mOldJournal = new File(mFile.getPath() + ".journal.old");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        IoUtils.deleteContents(mDir);
+        mDir.delete();
+    }
+
+    private SharedPreferencesImpl open(boolean journal) {
+        return new SharedPreferencesImpl(mFile, Context.MODE_PRIVATE, journal);
+    }
+
+    /** Opens the preferences again, as a new process would. */
+    private SharedPreferences reopen() {
+        return open(true);
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    @Test
+    public void testReplayAfterRestart() throws Exception {
+        final SharedPreferences prefs = open(true);
+        assertTrue(prefs.edit().putString("s", "one").putInt("i", 1).commit());
+        assertTrue(prefs.edit().putString("s", "two").remove("i").putBoolean("b", true)
+                .commit());
+
+        // Only the journal was written
+        assertTrue(mJournal.exists());
+        assertFalse(mFile.exists());
+
+        final SharedPreferences restarted = reopen();
+        assertEquals("two", restarted.getString("s", null));
+        assertEquals(-1, restarted.getInt("i", -1));
+        assertTrue(restarted.getBoolean("b", false));
+        assertEquals(2, restarted.getAll().size());
+    }
+
+    @Test
+    public void testReplayOnTopOfFile() throws Exception {
+        assertTrue(open(false).edit().putString("kept", "file").putString("changed", "file")
+                .putString("removed", "file").commit());
+        assertTrue(mFile.exists());
+
+        final SharedPreferences prefs = open(true);
+        assertTrue(prefs.edit().putString("changed", "journal").remove("removed").commit());
+
+        final SharedPreferences restarted = reopen();
+        assertEquals("file", restarted.getString("kept", null));
+        assertEquals("journal", restarted.getString("changed", null));
+        assertNull(restarted.getString("removed", null));
+
+        // Journals are replayed even when journaling is off
+        final SharedPreferences plain = open(false);
+        assertEquals("journal", plain.getString("changed", null));
+        assertNull(plain.getString("removed", null));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        final SharedPreferencesImpl prefs = open(true);
+        assertTrue(prefs.edit().putString("a", "1").putString("b", "2").commit());
+        assertTrue(prefs.edit().remove("b").putString("c", "3").commit());
+
+        prefs.compactJournal();
+        assertTrue(mFile.exists());
+        assertFalse(mJournal.exists());
+        assertFalse(mOldJournal.exists());
+        assertFalse(new File(mFile.getPath() + ".compact").exists());
+
+        // The file alone now has everything
+        final SharedPreferences plain = open(false);
+        assertEquals("1", plain.getString("a", null));
+        assertNull(plain.getString("b", null));
+        assertEquals("3", plain.getString("c", null));
+
+        // Changes after the compaction are journaled again
+        assertTrue(prefs.edit().putString("a", "4").commit());
+        assertTrue(mJournal.exists());
+        assertEquals("4", reopen().getString("a", null));
+    }
+
+    @Test
+    public void testCrashDuringCompaction() throws Exception {
+        assertTrue(open(false).edit().putString("a", "file").putString("b", "file").commit());
+        final SharedPreferences prefs = open(true);
+        assertTrue(prefs.edit().putString("a", "old journal").commit());
+
+        // A compaction set the journal aside and started writing the new file, then the
+        // process died before the rename
+        assertTrue(mJournal.renameTo(mOldJournal));
+        final File compact = new File(mFile.getPath() + ".compact");
+        try (FileOutputStream out = new FileOutputStream(compact)) {
+            out.write("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>"
+                    .getBytes());
+        }
+
+        final SharedPreferencesImpl restarted = open(true);
+        assertEquals("old journal", restarted.getString("a", null));
+        assertEquals("file", restarted.getString("b", null));
+
+        // Newer changes go to a new journal, on top of the one set aside
+        assertTrue(restarted.edit().putString("b", "journal").commit());
+        assertTrue(mJournal.exists());
+        assertTrue(mOldJournal.exists());
+        SharedPreferences again = reopen();
+        assertEquals("old journal", again.getString("a", null));
+        assertEquals("journal", again.getString("b", null));
+
+        // The next compaction folds in the journal set aside first
+        restarted.compactJournal();
+        assertFalse(mOldJournal.exists());
+        assertFalse(compact.exists());
+        final SharedPreferences plain = open(false);
+        assertEquals("old journal", plain.getString("a", null));
+        again = reopen();
+        assertEquals("old journal", again.getString("a", null));
+        assertEquals("journal", again.getString("b", null));
+    }
+
+    @Test
+    public void testTruncatedTailRecord() throws Exception {
+        final SharedPreferences prefs = open(true);
+        assertTrue(prefs.edit().putString("a", "1").commit());
+        final long firstLength = mJournal.length();
+        assertTrue(prefs.edit().putString("a", "2").putString("b", "2").commit());
+        final long secondLength = mJournal.length();
+
+        truncate(mJournal, secondLength - 3);
+        SharedPreferences restarted = reopen();
+        assertEquals("1", restarted.getString("a", null));
+        assertNull(restarted.getString("b", null));
+
+        // Only part of the length of the torn record made it
+        truncate(mJournal, firstLength + 2);
+        restarted = reopen();
+        assertEquals("1", restarted.getString("a", null));
+        assertNull(restarted.getString("b", null));
+
+        // Later changes are appended after the last intact record
+        assertTrue(restarted.edit().putString("c", "3").commit());
+        restarted = reopen();
+        assertEquals("1", restarted.getString("a", null));
+        assertEquals("3", restarted.getString("c", null));
+    }
+
+    @Test
+    public void testCorruptTailRecord() throws Exception {
+        final SharedPreferences prefs = open(true);
+        assertTrue(prefs.edit().putString("a", "1").commit());
+        assertTrue(prefs.edit().putString("a", "2").putString("b", "2").commit());
+
+        // Flip a bit in the last byte of the last record
+        try (RandomAccessFile raf = new RandomAccessFile(mJournal, "rw")) {
+            raf.seek(raf.length() - 1);
+            final int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 1);
+        }
+
+        final SharedPreferences restarted = reopen();
+        assertEquals("1", restarted.getString("a", null));
+        assertNull(restarted.getString("b", null));
+
+        // Changes made after the bad record are still kept
+        assertTrue(restarted.edit().putString("c", "3").commit());
+        final SharedPreferences again = reopen();
+        assertEquals("1", again.getString("a", null));
+        assertEquals("3", again.getString("c", null));
+    }
+
+    @Test
+    public void testGetWhileLoading() throws Exception {
+        // A file large enough that it's still being parsed when the first reads come in
+        final SharedPreferences.Editor editor = open(false).edit();
+        for (int i = 0; i < 2000; i++) {
+            editor.putString("key" + i, "file" + i);
+        }
+        editor.putInt("changed", 1).putInt("removed", 1);
+        assertTrue(editor.commit());
+        assertTrue(open(true).edit().putInt("changed", 2).remove("removed").commit());
+
+        // Values come from the journal, from the part of the file read so far, or once
+        // loading is done, and the journal wins over the file in every case
+        SharedPreferences prefs = reopen();
+        assertEquals(2, prefs.getInt("changed", 0));
+        assertEquals(0, prefs.getInt("removed", 0));
+        assertEquals("file0", prefs.getString("key0", null));
+        assertEquals("file1999", prefs.getString("key1999", null));
+        assertNull(prefs.getString("missing", null));
+
+        prefs = reopen();
+        assertEquals("file1999", prefs.getString("key1999", null));
+        assertEquals(2, prefs.getInt("changed", 0));
+
+        // After a clear() the file no longer counts, even while it's being read
+        assertTrue(open(true).edit().clear().putInt("changed", 3).commit());
+        prefs = reopen();
+        assertNull(prefs.getString("key0", null));
+        assertEquals(3, prefs.getInt("changed", 0));
+        assertEquals(1, prefs.getAll().size());
+    }
+}
@@ -1,5 +1,6 @@
 package android.content.pm;
 
+import android.os.BadParcelableException;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.test.filters.LargeTest;
@@ -96,11 +97,19 @@ public class ParceledListSliceTest extends TestCase {
     }
 
     private void sendParcelStringList(List<String> list) {
+        sendParcelStringList(list, false);
+    }
+
+    private int sendParcelStringList(List<String> list, boolean poolStrings) {
         StringParceledListSlice slice;
         Parcel parcel = Parcel.obtain();
+        final int size;
 
         try {
-            parcel.writeParcelable(new StringParceledListSlice(list), 0);
+            StringParceledListSlice sent = new StringParceledListSlice(list);
+            sent.setPoolStrings(poolStrings);
+            parcel.writeParcelable(sent, 0);
+            size = parcel.dataSize();
             parcel.setDataPosition(0);
             slice = parcel.readParcelable(getClass().getClassLoader());
         } finally {
@@ -110,6 +119,7 @@ public class ParceledListSliceTest extends TestCase {
         assertNotNull(slice);
         assertNotNull(slice.getList());
         assertEquals(list, slice.getList());
+        return size;
     }
 
     public void testStringList() throws Exception {
@@ -131,6 +141,28 @@ public class ParceledListSliceTest extends TestCase {
         sendParcelStringList(list);
     }
 
+    public void testPooledStringList() throws Exception {
+        final List<String> list = new ArrayList<String>();
+        for (int i = 0; i < 400; i++) {
+            list.add("com.example.package" + (i % 10));
+        }
+        list.add(null);
+
+        final int size = sendParcelStringList(list, false);
+        final int pooledSize = sendParcelStringList(list, true);
+        assertTrue("Pooled list should be smaller", pooledSize < size);
+    }
+
+    public void testLargePooledStringList() throws Exception {
+        final int thresholdBytes = 256 * 1024;
+        final List<String> list = new ArrayList<String>();
+        for (int i = 0; i < thresholdBytes / 4; i++) {
+            list.add(Integer.toString(i));
+        }
+
+        sendParcelStringList(list, true);
+    }
+
 
     /**
      * Test that only homogeneous elements may be unparceled.
@@ -157,12 +189,68 @@ public class ParceledListSliceTest extends TestCase {
         }
     }
 
+    /**
+     * Test that a failed unparcel of pooled elements doesn't leave the string pool installed
+     * on the parcel.
+     */
+    public void testHomogeneousElements_pooled() throws Exception {
+        List<BaseObject> list = new ArrayList<BaseObject>();
+        list.add(new LargeObject(0, 1, 2, 3, 4));
+        list.add(new SmallObject(5, 6));
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            writeEvilParceledListSlice(parcel, list, 0 /* poolSize */);
+            parcel.setDataPosition(0);
+            try {
+                ParceledListSlice.CREATOR.createFromParcel(parcel, getClass().getClassLoader());
+                fail("Unparceled heterogeneous ParceledListSlice");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            assertFalse(parcel.hasReadWriteHelper());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Test that a string pool size the parcel can't hold is rejected before it is allocated.
+     */
+    public void testInvalidPoolSize() throws Exception {
+        List<BaseObject> list = new ArrayList<BaseObject>();
+        list.add(new SmallObject(5, 6));
+
+        for (int poolSize : new int[] { -1, Integer.MAX_VALUE, 1000 }) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                writeEvilParceledListSlice(parcel, list, poolSize);
+                parcel.setDataPosition(0);
+                try {
+                    ParceledListSlice.CREATOR.createFromParcel(parcel,
+                            getClass().getClassLoader());
+                    fail("Unparceled string pool of size " + poolSize);
+                } catch (BadParcelableException e) {
+                    // Expected
+                }
+                assertFalse(parcel.hasReadWriteHelper());
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+
+    private static <T extends BaseObject> void writeEvilParceledListSlice(Parcel dest, List<T> list) {
+        writeEvilParceledListSlice(dest, list, null /* poolSize */);
+    }
+
     /**
      * Write a ParcelableListSlice that uses the BaseObject base class as the Creator.
      * This is dangerous, as it may affect how the data is unparceled, then later parceled
      * by the system, leading to a self-modifying data security vulnerability.
      */
-    private static <T extends BaseObject> void writeEvilParceledListSlice(Parcel dest, List<T> list) {
+    private static <T extends BaseObject> void writeEvilParceledListSlice(Parcel dest, List<T> list,
+            Integer poolSize) {
         final int listCount = list.size();
 
         // Number of items.
@@ -172,6 +260,14 @@ public class ParceledListSliceTest extends TestCase {
         // to simulate an attack on ParceledListSlice.
         dest.writeString(BaseObject.class.getName());
 
+        // Whether strings are pooled, and the size of the pool.
+        if (poolSize == null) {
+            dest.writeInt(0);
+        } else {
+            dest.writeInt(1);
+            dest.writeInt(poolSize);
+        }
+
         for (int i = 0; i < listCount; i++) {
             // 1 means the item is present.
             dest.writeInt(1);
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests the streaming mode of {@link CursorToBulkCursorAdaptor}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CursorToBulkCursorAdaptorTest {
+    private static final int ROW_COUNT = 200;
+
+    // Large enough that a window of the smallest streaming size holds only a few rows.
+    private static final String VALUE;
+    static {
+        final char[] value = new char[1000];
+        Arrays.fill(value, 'x');
+        VALUE = new String(value);
+    }
+
+    private final ArrayList<Runnable> mPosted = new ArrayList<>();
+    private final Executor mExecutor = mPosted::add;
+    private final IContentObserver mObserver = new ContentObserver(null).getContentObserver();
+
+    private CountingCursor mCursor;
+    private CursorToBulkCursorAdaptor mAdaptor;
+
+    /** Counts how often it is asked to fill a window. */
+    private static final class CountingCursor extends MatrixCursor {
+        int fillCount;
+
+        CountingCursor() {
+            super(new String[] { "_id", "value" });
+            for (int i = 0; i < ROW_COUNT; i++) {
+                addRow(new Object[] { i, VALUE });
+            }
+        }
+
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            fillCount++;
+            super.fillWindow(position, window);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mCursor = new CountingCursor();
+        mAdaptor = new CursorToBulkCursorAdaptor(mCursor, mObserver, "test",
+                CursorToBulkCursorAdaptor.MIN_STREAMING_WINDOW_SIZE, mExecutor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mAdaptor.close();
+    }
+
+    private CursorWindow getWindow(int position) {
+        final CursorWindow window = mAdaptor.getWindow(position);
+        if (window != null) {
+            // Drop the reference that the binder reply would have taken.
+            window.releaseReference();
+        }
+        return window;
+    }
+
+    private void runPosted() {
+        final ArrayList<Runnable> posted = new ArrayList<>(mPosted);
+        mPosted.clear();
+        for (Runnable r : posted) {
+            r.run();
+        }
+    }
+
+    @Test
+    public void testWindowSizeClamp() throws Exception {
+        assertEquals(CursorToBulkCursorAdaptor.MIN_STREAMING_WINDOW_SIZE,
+                mAdaptor.getStreamingWindowSize());
+
+        final CursorToBulkCursorAdaptor tiny = new CursorToBulkCursorAdaptor(
+                new CountingCursor(), mObserver, "test", 1, mExecutor);
+        assertEquals(CursorToBulkCursorAdaptor.MIN_STREAMING_WINDOW_SIZE,
+                tiny.getStreamingWindowSize());
+        tiny.close();
+
+        final CursorToBulkCursorAdaptor huge = new CursorToBulkCursorAdaptor(
+                new CountingCursor(), mObserver, "test", Long.MAX_VALUE, mExecutor);
+        assertEquals(CursorWindow.getCursorWindowSize(), huge.getStreamingWindowSize());
+        huge.close();
+    }
+
+    @Test
+    public void testPrefetchedWindowIsHandedOver() throws Exception {
+        final BulkCursorDescriptor d = mAdaptor.getBulkCursorDescriptor();
+        d.window.releaseReference();
+        assertEquals(ROW_COUNT, d.count);
+        assertEquals(0, d.window.getStartPosition());
+        final int rows = d.window.getNumRows();
+        assertTrue(rows > 0 && rows < ROW_COUNT);
+        assertEquals(1, mCursor.fillCount);
+        assertEquals(1, mPosted.size());
+
+        runPosted();
+        assertEquals(2, mCursor.fillCount);
+
+        // The client moving on to the next rows gets the window filled ahead, without the
+        // cursor filling another one under the call.
+        final CursorWindow next = getWindow(rows);
+        assertNotSame(d.window, next);
+        assertEquals(rows, next.getStartPosition());
+        assertEquals(2, mCursor.fillCount);
+
+        // The window the client let go of is filled with the rows after the new one.
+        runPosted();
+        assertEquals(3, mCursor.fillCount);
+        final CursorWindow third = getWindow(rows + next.getNumRows());
+        assertSame(d.window, third);
+        assertEquals(rows + next.getNumRows(), third.getStartPosition());
+    }
+
+    @Test
+    public void testPrefetchIsPostedOnce() throws Exception {
+        mAdaptor.getBulkCursorDescriptor().window.releaseReference();
+        final CursorWindow first = getWindow(0);
+        assertEquals(1, mPosted.size());
+
+        // Skipping ahead of a pending prefetch fills the window under the call, and the
+        // pending prefetch fills from the new position when it gets to run.
+        final CursorWindow skipped = getWindow(ROW_COUNT / 2);
+        assertEquals(ROW_COUNT / 2, skipped.getStartPosition());
+        assertEquals(1, mPosted.size());
+
+        runPosted();
+        final int fillCount = mCursor.fillCount;
+        final CursorWindow next = getWindow(ROW_COUNT / 2 + skipped.getNumRows());
+        assertSame(first, next);
+        assertEquals(fillCount, mCursor.fillCount);
+    }
+
+    @Test
+    public void testMovePastEnd() throws Exception {
+        mAdaptor.getBulkCursorDescriptor().window.releaseReference();
+        assertNull(getWindow(ROW_COUNT));
+        assertNull(getWindow(-1));
+
+        // Nothing is left to prefetch once the last rows are handed out.
+        runPosted();
+        final CursorWindow last = getWindow(ROW_COUNT - 1);
+        assertEquals(ROW_COUNT, last.getStartPosition() + last.getNumRows());
+        assertTrue(mPosted.isEmpty());
+    }
+
+    @Test
+    public void testCursorWindowIsReused() throws Exception {
+        final SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE t (i INTEGER)");
+            for (int i = 0; i < 10; i++) {
+                db.execSQL("INSERT INTO t VALUES (" + i + ")");
+            }
+            final AbstractWindowedCursor cursor =
+                    (AbstractWindowedCursor) db.rawQuery("SELECT i FROM t", null);
+            final CursorToBulkCursorAdaptor adaptor = new CursorToBulkCursorAdaptor(cursor,
+                    mObserver, "test", CursorToBulkCursorAdaptor.MIN_STREAMING_WINDOW_SIZE,
+                    mExecutor);
+            try {
+                final BulkCursorDescriptor d = adaptor.getBulkCursorDescriptor();
+                d.window.releaseReference();
+                assertEquals(10, d.count);
+                assertNotNull(d.window);
+                assertEquals(10, d.window.getNumRows());
+                // The window the cursor filled to count its rows was handed out as is.
+                assertNull(cursor.getWindow());
+            } finally {
+                adaptor.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+}
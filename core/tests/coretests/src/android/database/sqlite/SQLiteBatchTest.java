@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link SQLiteStatement#executeBatch}, {@link SQLiteStatement#executeBatchColumns}
+ * and {@link SQLiteDatabase#insertBatchWithOnConflict}.
+ *
+ * <p>Run with:  bit FrameworksCoreTests:android.database.sqlite.SQLiteBatchTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SQLiteBatchTest {
+    private static final String INSERT = "INSERT INTO t (id, name) VALUES (?, ?)";
+
+    // More rows than the statement executes per call into the session
+    private static final int LARGE_ROW_COUNT = 1000;
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL("CREATE TABLE t (id INTEGER PRIMARY KEY, name TEXT NOT NULL)");
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    private long rowCount() {
+        return DatabaseUtils.queryNumEntries(mDatabase, "t");
+    }
+
+    private String nameOf(long id) {
+        try {
+            return DatabaseUtils.stringForQuery(mDatabase, "SELECT name FROM t WHERE id = ?",
+                    new String[] { Long.toString(id) });
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+    }
+
+    private static ContentValues row(long id, String name) {
+        final ContentValues values = new ContentValues();
+        values.put("id", id);
+        values.put("name", name);
+        return values;
+    }
+
+    @Test
+    public void testExecuteBatch() {
+        final SQLiteStatement statement = mDatabase.compileStatement(INSERT);
+        try {
+            assertEquals(3, statement.executeBatch(
+                    new Object[] { 1, "one", 2, "two", 3, "three" }, 3));
+            // Rows beyond rowCount are ignored
+            assertEquals(1, statement.executeBatch(new Object[] { 4, "four", 5, "five" }, 1));
+            assertEquals(0, statement.executeBatch(new Object[0], 0));
+        } finally {
+            statement.close();
+        }
+        assertEquals(4, rowCount());
+        assertEquals("two", nameOf(2));
+        assertNull(nameOf(5));
+    }
+
+    @Test
+    public void testExecuteBatchColumns() {
+        final SQLiteStatement statement = mDatabase.compileStatement(INSERT);
+        try {
+            assertEquals(2, statement.executeBatchColumns(
+                    new Object[] { new long[] { 1, 2 }, new String[] { "one", "two" } }, 2));
+            assertEquals(2, statement.executeBatchColumns(
+                    new Object[] { new int[] { 3, 4 }, new Object[] { "three", 4.5 } }, 2));
+            assertEquals(1, statement.executeBatchColumns(
+                    new Object[] { new long[] { 5 }, new double[] { 5.5 } }, 1));
+        } finally {
+            statement.close();
+        }
+        assertEquals(5, rowCount());
+        assertEquals("two", nameOf(2));
+        assertEquals("4.5", nameOf(4));
+        assertEquals("5.5", nameOf(5));
+    }
+
+    @Test
+    public void testExecuteBatchLarge() {
+        final long[] ids = new long[LARGE_ROW_COUNT];
+        final String[] names = new String[LARGE_ROW_COUNT];
+        for (int i = 0; i < LARGE_ROW_COUNT; i++) {
+            ids[i] = i;
+            names[i] = "name" + i;
+        }
+        final SQLiteStatement statement = mDatabase.compileStatement(INSERT);
+        try {
+            assertEquals(LARGE_ROW_COUNT,
+                    statement.executeBatchColumns(new Object[] { ids, names }, LARGE_ROW_COUNT));
+        } finally {
+            statement.close();
+        }
+        assertEquals(LARGE_ROW_COUNT, rowCount());
+        assertEquals("name999", nameOf(999));
+    }
+
+    @Test
+    public void testExecuteBatchUpdateCountsChangedRows() {
+        mDatabase.execSQL("INSERT INTO t (id, name) VALUES (1, 'a'), (2, 'a'), (3, 'b')");
+        final SQLiteStatement statement =
+                mDatabase.compileStatement("UPDATE t SET name = ? WHERE name = ?");
+        try {
+            // Two rows, then one, then none
+            assertEquals(3, statement.executeBatch(
+                    new Object[] { "x", "a", "y", "b", "z", "missing" }, 3));
+        } finally {
+            statement.close();
+        }
+        assertEquals("x", nameOf(1));
+        assertEquals("y", nameOf(3));
+    }
+
+    @Test
+    public void testMismatchedArguments() {
+        final SQLiteStatement statement = mDatabase.compileStatement(INSERT);
+        try {
+            try {
+                // Half a row short
+                statement.executeBatch(new Object[] { 1, "one", 2 }, 2);
+                fail();
+            } catch (SQLiteBindOrColumnIndexOutOfRangeException expected) {
+            }
+            try {
+                statement.executeBatchColumns(new Object[] { new long[] { 1, 2 } }, 2);
+                fail();
+            } catch (SQLiteBindOrColumnIndexOutOfRangeException expected) {
+            }
+            try {
+                statement.executeBatchColumns(
+                        new Object[] { new long[] { 1, 2 }, new String[] { "one" } }, 2);
+                fail();
+            } catch (SQLiteBindOrColumnIndexOutOfRangeException expected) {
+            }
+            try {
+                statement.executeBatchColumns(
+                        new Object[] { new long[] { 1 }, "not an array" }, 1);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                statement.executeBatch(null, 1);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                statement.executeBatchColumns(null, 1);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+        } finally {
+            statement.close();
+        }
+        assertEquals(0, rowCount());
+        assertFalse(mDatabase.inTransaction());
+    }
+
+    @Test
+    public void testFailureRollsBackBatch() {
+        final long[] ids = new long[LARGE_ROW_COUNT];
+        final String[] names = new String[LARGE_ROW_COUNT];
+        for (int i = 0; i < LARGE_ROW_COUNT; i++) {
+            ids[i] = i;
+            names[i] = "name" + i;
+        }
+        // Fails in a later chunk than the first
+        names[LARGE_ROW_COUNT - 1] = null;
+
+        final SQLiteStatement statement = mDatabase.compileStatement(INSERT);
+        try {
+            statement.executeBatchColumns(new Object[] { ids, names }, LARGE_ROW_COUNT);
+            fail();
+        } catch (SQLiteConstraintException expected) {
+        } finally {
+            statement.close();
+        }
+        assertEquals(0, rowCount());
+        assertFalse(mDatabase.inTransaction());
+    }
+
+    @Test
+    public void testFailureInCallerTransaction() {
+        mDatabase.beginTransaction();
+        try {
+            mDatabase.execSQL("INSERT INTO t (id, name) VALUES (100, 'before')");
+            final SQLiteStatement statement = mDatabase.compileStatement(INSERT);
+            try {
+                statement.executeBatch(new Object[] { 1, "one", 1, "duplicate" }, 2);
+                fail();
+            } catch (SQLiteConstraintException expected) {
+            } finally {
+                statement.close();
+            }
+            // The batch doesn't end a transaction it didn't start
+            assertTrue(mDatabase.inTransaction());
+        } finally {
+            mDatabase.endTransaction();
+        }
+        assertEquals(0, rowCount());
+    }
+
+    @Test
+    public void testInsertBatch() {
+        final ContentValues nameOnly = new ContentValues();
+        nameOnly.put("name", "auto");
+        final ContentValues[] rows = {
+                row(1, "one"), row(2, "two"), row(3, "three"), nameOnly,
+        };
+        assertEquals(4, mDatabase.insertBatchWithOnConflict("t", null, rows,
+                SQLiteDatabase.CONFLICT_NONE));
+        assertEquals(4, rowCount());
+        assertEquals("three", nameOf(3));
+        assertEquals(1, DatabaseUtils.longForQuery(mDatabase,
+                "SELECT COUNT(*) FROM t WHERE name = 'auto'", null));
+    }
+
+    @Test
+    public void testInsertBatchNullColumnHack() {
+        mDatabase.execSQL("CREATE TABLE n (id INTEGER PRIMARY KEY, value TEXT)");
+        assertEquals(2, mDatabase.insertBatchWithOnConflict("n", "value",
+                new ContentValues[] { null, new ContentValues() },
+                SQLiteDatabase.CONFLICT_NONE));
+        assertEquals(2, DatabaseUtils.queryNumEntries(mDatabase, "n", "value IS NULL"));
+    }
+
+    @Test
+    public void testInsertBatchConflictIgnore() {
+        mDatabase.execSQL("INSERT INTO t (id, name) VALUES (2, 'existing')");
+        assertEquals(2, mDatabase.insertBatchWithOnConflict("t", null,
+                new ContentValues[] { row(1, "one"), row(2, "two"), row(3, "three") },
+                SQLiteDatabase.CONFLICT_IGNORE));
+        assertEquals(3, rowCount());
+        assertEquals("existing", nameOf(2));
+    }
+
+    @Test
+    public void testInsertBatchConflictReplace() {
+        mDatabase.execSQL("INSERT INTO t (id, name) VALUES (2, 'existing')");
+        assertEquals(3, mDatabase.insertBatchWithOnConflict("t", null,
+                new ContentValues[] { row(1, "one"), row(2, "two"), row(3, "three") },
+                SQLiteDatabase.CONFLICT_REPLACE));
+        assertEquals(3, rowCount());
+        assertEquals("two", nameOf(2));
+    }
+
+    @Test
+    public void testInsertBatchConflictAbortRollsBack() {
+        mDatabase.execSQL("INSERT INTO t (id, name) VALUES (2, 'existing')");
+        for (int conflictAlgorithm : new int[] {
+                SQLiteDatabase.CONFLICT_NONE, SQLiteDatabase.CONFLICT_ABORT,
+                SQLiteDatabase.CONFLICT_FAIL }) {
+            try {
+                mDatabase.insertBatchWithOnConflict("t", null,
+                        new ContentValues[] { row(1, "one"), row(2, "two"), row(3, "three") },
+                        conflictAlgorithm);
+                fail("conflictAlgorithm=" + conflictAlgorithm);
+            } catch (SQLiteConstraintException expected) {
+            }
+            // Rows before the conflict are rolled back too
+            assertEquals(1, rowCount());
+            assertEquals("existing", nameOf(2));
+            assertFalse(mDatabase.inTransaction());
+        }
+    }
+}
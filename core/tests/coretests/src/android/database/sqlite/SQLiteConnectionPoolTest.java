@@ -17,9 +17,11 @@
 package android.database.sqlite;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDebug.PoolStats;
 import android.os.HandlerThread;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
@@ -32,6 +34,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.util.ArrayList;
 
 /**
  * Tests for {@link SQLiteConnectionPool}
@@ -88,4 +91,59 @@ public class SQLiteConnectionPoolTest {
         pool.close();
         thread.quit();
     }
+
+    @Test
+    public void testAdaptivePoolGrowsWithWaiters() throws InterruptedException {
+        SQLiteDatabaseConfiguration conf = new SQLiteDatabaseConfiguration(
+                mTestDatabase.getPath(), SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        SQLiteConnectionPool pool = SQLiteConnectionPool.open(conf);
+        final int baseSize = pool.getPoolStats().maxConnections;
+        pool.setAdaptiveConnectionPoolSize(baseSize + 1);
+
+        // Hold every connection of the pool so that readers have to wait
+        ArrayList<SQLiteConnection> held = new ArrayList<>();
+        for (int i = 0; i < baseSize; i++) {
+            held.add(pool.acquireConnection("pragma user_version",
+                    SQLiteConnectionPool.CONNECTION_FLAG_READ_ONLY, null));
+        }
+        Thread[] readers = new Thread[2];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> pool.releaseConnection(pool.acquireConnection(
+                    "pragma user_version", SQLiteConnectionPool.CONNECTION_FLAG_READ_ONLY,
+                    null)));
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join(5000);
+            assertFalse("Reader should get a connection once the pool grows", reader.isAlive());
+        }
+
+        PoolStats stats = pool.getPoolStats();
+        assertEquals(baseSize + 1, stats.maxConnections);
+        assertEquals(1, stats.growCount);
+        assertEquals(2, stats.waitCount);
+        assertEquals(baseSize + 2, stats.acquireCount);
+        for (SQLiteConnection connection : held) {
+            pool.releaseConnection(connection);
+        }
+        pool.close();
+    }
+
+    @Test
+    public void testPoolStats() {
+        SQLiteConnectionPool pool = SQLiteConnectionPool.open(mTestConf);
+        SQLiteConnection c1 = pool.acquireConnection("pragma user_version", 0, null);
+        c1.executeForLong("pragma user_version", null, null);
+        c1.executeForLong("pragma user_version", null, null);
+        pool.releaseConnection(c1);
+
+        PoolStats stats = pool.getPoolStats();
+        assertEquals(mTestDatabase.getPath(), stats.dbName);
+        assertEquals(1, stats.maxConnections);
+        assertEquals(1, stats.acquireCount);
+        assertEquals(0, stats.waitCount);
+        assertTrue(stats.statementCacheHits >= 1);
+        assertTrue(stats.statementCacheMisses >= 1);
+        pool.close();
+    }
 }
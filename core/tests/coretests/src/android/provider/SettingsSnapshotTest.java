@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for {@link SettingsSnapshot}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SettingsSnapshotTest {
+
+    private static SettingsSnapshot write(SettingsSnapshot.Builder builder, int generation) {
+        final ByteBuffer buffer = ByteBuffer.allocate(builder.getSize());
+        builder.writeTo(buffer, generation);
+        return new SettingsSnapshot(buffer);
+    }
+
+    @Test
+    public void testLookup() {
+        final SettingsSnapshot.Builder builder = new SettingsSnapshot.Builder();
+        for (int i = 0; i < 100; i++) {
+            builder.add("setting_" + i, Integer.toString(i));
+        }
+        builder.add("null_setting", null);
+        final SettingsSnapshot snapshot = write(builder, 42);
+
+        assertEquals(42, snapshot.getGeneration());
+        for (int i = 0; i < 100; i++) {
+            final int index = snapshot.indexOf("setting_" + i);
+            assertTrue(index >= 0);
+            assertFalse(snapshot.isUncached(index));
+            assertEquals(Integer.toString(i), snapshot.getValue(index));
+            assertTrue(snapshot.valueEquals(index, Integer.toString(i)));
+            assertFalse(snapshot.valueEquals(index, "x"));
+        }
+        final int nullIndex = snapshot.indexOf("null_setting");
+        assertTrue(nullIndex >= 0);
+        assertNull(snapshot.getValue(nullIndex));
+        assertTrue(snapshot.valueEquals(nullIndex, null));
+        assertEquals(-1, snapshot.indexOf("missing_setting"));
+    }
+
+    @Test
+    public void testHashCollisions() {
+        // "Aa" and "BB" have the same hash code
+        final SettingsSnapshot snapshot = write(new SettingsSnapshot.Builder()
+                .add("Aa", "first")
+                .add("BB", "second"), 1);
+        assertEquals("first", snapshot.getValue(snapshot.indexOf("Aa")));
+        assertEquals("second", snapshot.getValue(snapshot.indexOf("BB")));
+        assertEquals(-1, snapshot.indexOf("C#"));
+    }
+
+    @Test
+    public void testUncached() {
+        final SettingsSnapshot snapshot = write(new SettingsSnapshot.Builder()
+                .add(Settings.Secure.ANDROID_ID, "1234")
+                .addUncached(Settings.Secure.ANDROID_ID)
+                .addUncached(Settings.Secure.LOCATION_PROVIDERS_ALLOWED), 1);
+        // Uncached settings are found whether they are set or not, and hold no value
+        assertTrue(snapshot.isUncached(snapshot.indexOf(Settings.Secure.ANDROID_ID)));
+        assertNull(snapshot.getValue(snapshot.indexOf(Settings.Secure.ANDROID_ID)));
+        assertTrue(snapshot.isUncached(
+                snapshot.indexOf(Settings.Secure.LOCATION_PROVIDERS_ALLOWED)));
+    }
+
+    @Test
+    public void testEmpty() {
+        final SettingsSnapshot snapshot = write(new SettingsSnapshot.Builder(), 3);
+        assertEquals(3, snapshot.getGeneration());
+        assertEquals(-1, snapshot.indexOf("setting"));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Binder;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Tests for {@link BinderCallsStats}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BinderCallsStatsTest {
+    private static final int THREADS = 4;
+    private static final int CALLS_PER_THREAD = 2500;
+
+    private static void makeCalls(BinderCallsStats stats, Binder binder, int calls) {
+        for (int i = 0; i < calls; i++) {
+            stats.callEnded(stats.callStarted(binder, i % 2));
+        }
+    }
+
+    private static long sumCallCounts(List<BinderCallsStats.ExportedCallStat> callStats) {
+        long calls = 0;
+        for (BinderCallsStats.ExportedCallStat callStat : callStats) {
+            calls += callStat.callCount;
+        }
+        return calls;
+    }
+
+    @Test
+    public void testDetailedTracking() {
+        final BinderCallsStats stats = new BinderCallsStats(true);
+        makeCalls(stats, new Binder(), 10);
+
+        final List<BinderCallsStats.ExportedCallStat> callStats = stats.getExportedCallStats();
+        assertEquals(2, callStats.size());
+        for (BinderCallsStats.ExportedCallStat callStat : callStats) {
+            assertEquals(Binder.getCallingUid(), callStat.uid);
+            assertEquals(Binder.class.getName(), callStat.className);
+            assertEquals(5, callStat.callCount);
+            assertEquals(5, callStat.recordedCallCount);
+            int histogramCalls = 0;
+            for (int count : callStat.latencyHistogram) {
+                histogramCalls += count;
+            }
+            assertEquals(5, histogramCalls);
+        }
+    }
+
+    @Test
+    public void testShardedCallsAreMerged() throws Exception {
+        final BinderCallsStats stats = new BinderCallsStats(true);
+        stats.setSharded(true);
+        final Binder binder = new Binder();
+        final Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(() -> makeCalls(stats, binder, CALLS_PER_THREAD));
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(THREADS * CALLS_PER_THREAD, sumCallCounts(stats.getExportedCallStats()));
+
+        stats.reset();
+        assertEquals(0, stats.getExportedCallStats().size());
+    }
+
+    @Test
+    public void testSampling() {
+        final BinderCallsStats stats = new BinderCallsStats(true);
+        stats.setSamplingInterval(10);
+        makeCalls(stats, new Binder(), 1000);
+
+        final List<BinderCallsStats.ExportedCallStat> callStats = stats.getExportedCallStats();
+        assertEquals(1000, sumCallCounts(callStats));
+        for (BinderCallsStats.ExportedCallStat callStat : callStats) {
+            assertTrue(callStat.recordedCallCount < callStat.callCount);
+        }
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        assertEquals(0, BinderCallsStats.getHistogramBucket(0));
+        assertEquals(1, BinderCallsStats.getHistogramBucket(1));
+        assertEquals(2, BinderCallsStats.getHistogramBucket(2));
+        assertEquals(2, BinderCallsStats.getHistogramBucket(3));
+        assertEquals(11, BinderCallsStats.getHistogramBucket(1024));
+        assertEquals(BinderCallsStats.HISTOGRAM_BUCKETS - 1,
+                BinderCallsStats.getHistogramBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testEstimateTotal() {
+        assertEquals(0, BinderCallsStats.estimateTotal(100, 10, 0));
+        assertEquals(1000, BinderCallsStats.estimateTotal(100, 10, 1));
+        assertEquals(10, BinderCallsStats.estimateTotal(7, 3, 2));
+        // time * callCount doesn't fit in a long
+        assertEquals(Long.MAX_VALUE / 2000,
+                BinderCallsStats.estimateTotal(Long.MAX_VALUE / 1000, 500, 1000), 1000);
+    }
+}
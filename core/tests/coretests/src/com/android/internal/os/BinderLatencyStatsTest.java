@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Tests for {@link BinderLatencyStats}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BinderLatencyStatsTest {
+
+    @Test
+    public void testPeekInterfaceDescriptor() {
+        final Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken("android.os.ITest");
+            data.writeInt(42);
+            assertEquals("android.os.ITest", BinderLatencyStats.peekInterfaceDescriptor(
+                    IBinder.FIRST_CALL_TRANSACTION, data));
+            assertEquals(data.dataSize(), data.dataPosition());
+            assertNull(BinderLatencyStats.peekInterfaceDescriptor(
+                    IBinder.PING_TRANSACTION, data));
+        } finally {
+            data.recycle();
+        }
+    }
+
+    @Test
+    public void testPeekInvalidInterfaceDescriptor() {
+        final Parcel data = Parcel.obtain();
+        try {
+            data.writeInt(0);
+            data.writeString("");
+            assertNull(BinderLatencyStats.peekInterfaceDescriptor(
+                    IBinder.FIRST_CALL_TRANSACTION, data));
+
+            data.setDataSize(0);
+            data.writeInt(0);
+            data.writeString("not a descriptor");
+            assertNull(BinderLatencyStats.peekInterfaceDescriptor(
+                    IBinder.FIRST_CALL_TRANSACTION, data));
+
+            // Nothing but the strict mode policy
+            data.setDataSize(0);
+            data.writeInt(0);
+            assertNull(BinderLatencyStats.peekInterfaceDescriptor(
+                    IBinder.FIRST_CALL_TRANSACTION, data));
+        } finally {
+            data.recycle();
+        }
+    }
+
+    @Test
+    public void testOutgoingCalls() {
+        final BinderLatencyStats stats = new BinderLatencyStats();
+        stats.noteOutgoingCall("android.os.ITest", 3);
+        stats.noteOutgoingCall("android.os.ITest", 1000);
+
+        final List<BinderLatencyStats.Entry> entries = stats.getEntries();
+        assertEquals(1, entries.size());
+        final BinderLatencyStats.Entry entry = entries.get(0);
+        assertEquals(2, entry.calls);
+        assertEquals(1003, entry.latencyMicros);
+        assertEquals(1000, entry.maxLatencyMicros);
+        assertEquals(1, entry.latencyHistogram[BinderCallsStats.getHistogramBucket(3)]);
+        assertEquals(1, entry.latencyHistogram[BinderCallsStats.getHistogramBucket(1000)]);
+    }
+
+    @Test
+    public void testOutgoingCallsFromSeveralThreads() throws Exception {
+        final BinderLatencyStats stats = new BinderLatencyStats();
+        final Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            final long latencyMicros = i + 1;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    stats.noteOutgoingCall("android.os.ITest", latencyMicros);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        final List<BinderLatencyStats.Entry> entries = stats.getEntries();
+        assertEquals(1, entries.size());
+        final BinderLatencyStats.Entry entry = entries.get(0);
+        assertEquals(1600, entry.calls);
+        assertEquals(100 * (16 * 17 / 2), entry.latencyMicros);
+        assertEquals(16, entry.maxLatencyMicros);
+
+        stats.reset();
+        assertEquals(0, stats.getEntries().size());
+    }
+
+    @Test
+    public void testDescriptorsAreBounded() {
+        final BinderLatencyStats stats = new BinderLatencyStats();
+        for (int i = 0; i < BinderLatencyStats.MAX_DESCRIPTORS * 2; i++) {
+            stats.noteOutgoingCall("android.os.ITest" + i, 1);
+        }
+
+        final List<BinderLatencyStats.Entry> entries = stats.getEntries();
+        assertEquals(BinderLatencyStats.MAX_DESCRIPTORS + 1, entries.size());
+        for (BinderLatencyStats.Entry entry : entries) {
+            if (BinderLatencyStats.OVERFLOW_DESCRIPTOR.equals(entry.descriptor)) {
+                assertEquals(BinderLatencyStats.MAX_DESCRIPTORS, entry.calls);
+            }
+        }
+    }
+
+    @Test
+    public void testFullThreadPool() {
+        final BinderLatencyStats stats = new BinderLatencyStats();
+        stats.setThreadPoolSize(2);
+        final Binder binder = new Binder();
+        binder.attachInterface(null, "android.os.ITest");
+
+        stats.incomingCallStarted(binder);
+        stats.incomingCallStarted(binder);
+        stats.incomingCallEnded();
+        stats.incomingCallEnded();
+        stats.incomingCallStarted(binder);
+        stats.incomingCallEnded();
+
+        final List<BinderLatencyStats.Entry> entries = stats.getEntries();
+        assertEquals(1, entries.size());
+        assertEquals("android.os.ITest", entries.get(0).descriptor);
+        assertEquals(1, entries.get(0).fullThreadPoolCalls);
+        assertEquals(0, entries.get(0).calls);
+    }
+}
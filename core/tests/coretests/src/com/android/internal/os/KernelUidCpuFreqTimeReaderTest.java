@@ -219,6 +219,59 @@ public class KernelUidCpuFreqTimeReaderTest {
         cb.verifyNoMoreInteractions();
     }
 
+    @Test
+    public void testReadDelta_PackedSnapshots() throws Exception {
+        mKernelUidCpuFreqTimeReader.setPackedSnapshots(true);
+        VerifiableCallback cb = new VerifiableCallback();
+        final long[] freqs = {110, 123, 145, 167, 289, 997};
+        final int[] uids = {1, 22, 333, 444, 555};
+        final long[][] times = new long[uids.length][freqs.length];
+        for (int i = 0; i < uids.length; ++i) {
+            for (int j = 0; j < freqs.length; ++j) {
+                times[i][j] = uids[i] * freqs[j] * 10;
+            }
+        }
+        when(mBufferedReader.readLine()).thenReturn(getFreqsLine(freqs));
+        mKernelUidCpuFreqTimeReader.readFreqs(mBufferedReader, mPowerProfile);
+        when(mProcReader.readBytes()).thenReturn(getUidTimesBytes(uids, times));
+        mKernelUidCpuFreqTimeReader.readDeltaImpl(cb);
+        for (int i = 0; i < uids.length; ++i) {
+            cb.verify(uids[i], times[i]);
+        }
+        cb.verifyNoMoreInteractions();
+        final SparseArray<long[]> allTimes = mKernelUidCpuFreqTimeReader.getAllUidCpuFreqTimeMs();
+        assertEquals(uids.length, allTimes.size());
+        for (int i = 0; i < uids.length; ++i) {
+            assertArrayEquals(times[i], allTimes.get(uids[i]));
+        }
+
+        // Only changed uids are reported, even when the uids come in a different order.
+        cb.clear();
+        Mockito.reset(mProcReader);
+        final int[] newUids = {555, 22, 1, 444, 333, 666};
+        final long[][] newTimes = new long[newUids.length][];
+        for (int i = 0; i < newUids.length; ++i) {
+            final int index = Arrays.binarySearch(uids, newUids[i]);
+            newTimes[i] = index < 0 ? new long[freqs.length] : times[index].clone();
+        }
+        newTimes[0][2] += 100;
+        newTimes[5][0] += 50;
+        when(mProcReader.readBytes()).thenReturn(getUidTimesBytes(newUids, newTimes));
+        mKernelUidCpuFreqTimeReader.readDeltaImpl(cb);
+        cb.verify(555, subtract(newTimes[0], times[4]));
+        cb.verify(666, newTimes[5]);
+        cb.verifyNoMoreInteractions();
+
+        // A removed uid has all of its time reported again.
+        cb.clear();
+        Mockito.reset(mProcReader);
+        mKernelUidCpuFreqTimeReader.removeUid(22);
+        when(mProcReader.readBytes()).thenReturn(getUidTimesBytes(newUids, newTimes));
+        mKernelUidCpuFreqTimeReader.readDeltaImpl(cb);
+        cb.verify(22, newTimes[1]);
+        cb.verifyNoMoreInteractions();
+    }
+
     @Test
     public void testReadAbsolute() throws Exception {
         VerifiableCallback cb = new VerifiableCallback();
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.util;
+
+import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.END_TAG;
+import static org.xmlpull.v1.XmlPullParser.START_TAG;
+import static org.xmlpull.v1.XmlPullParser.TEXT;
+
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Run with:
+ atest /android/pi-dev/frameworks/base/core/tests/coretests/src/com/android/internal/util/BinaryXmlTest.java
+ */
+public class BinaryXmlTest extends TestCase {
+    private static void writeSample(XmlSerializer out) throws Exception {
+        out.startDocument(null, true);
+        out.startTag(null, "packages");
+        for (int i = 0; i < 3; i++) {
+            out.startTag(null, "package");
+            out.attribute(null, "name", "com.example.app" + i);
+            out.attribute(null, "userId", Integer.toString(10000 + i));
+            out.startTag(null, "perms");
+            out.endTag(null, "perms");
+            out.endTag(null, "package");
+        }
+        out.startTag(null, "note");
+        out.text("café & <friends>");
+        out.endTag(null, "note");
+        out.endTag(null, "packages");
+        out.endDocument();
+    }
+
+    private static byte[] writeBinary() throws Exception {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final XmlSerializer out = new BinaryXmlSerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        writeSample(out);
+        return os.toByteArray();
+    }
+
+    public void testRoundTrip() throws Exception {
+        final XmlPullParser in = new BinaryXmlPullParser();
+        in.setInput(new ByteArrayInputStream(writeBinary()), StandardCharsets.UTF_8.name());
+
+        assertEquals(START_TAG, in.next());
+        assertEquals("packages", in.getName());
+        assertEquals(1, in.getDepth());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(START_TAG, in.next());
+            assertEquals("package", in.getName());
+            assertEquals(2, in.getDepth());
+            assertEquals(2, in.getAttributeCount());
+            assertEquals("com.example.app" + i, in.getAttributeValue(null, "name"));
+            assertEquals(10000 + i, XmlUtils.readIntAttribute(in, "userId"));
+            assertNull(in.getAttributeValue(null, "missing"));
+
+            assertEquals(START_TAG, in.next());
+            assertEquals("perms", in.getName());
+            assertTrue(in.isEmptyElementTag());
+            assertEquals(3, in.getDepth());
+            assertEquals(END_TAG, in.next());
+            assertEquals(3, in.getDepth());
+            assertEquals(END_TAG, in.next());
+            assertEquals("package", in.getName());
+            assertEquals(2, in.getDepth());
+        }
+        assertEquals(START_TAG, in.next());
+        assertEquals(TEXT, in.next());
+        assertEquals("café & <friends>", in.getText());
+        assertEquals(END_TAG, in.next());
+        assertEquals(END_TAG, in.next());
+        assertEquals("packages", in.getName());
+        assertEquals(1, in.getDepth());
+        assertEquals(END_DOCUMENT, in.next());
+        assertEquals(0, in.getDepth());
+    }
+
+    public void testSkipCurrentTag() throws Exception {
+        final XmlPullParser in = new BinaryXmlPullParser();
+        in.setInput(new ByteArrayInputStream(writeBinary()), StandardCharsets.UTF_8.name());
+
+        assertEquals(START_TAG, in.next());
+        assertEquals(START_TAG, in.next());
+        XmlUtils.skipCurrentTag(in);
+        assertEquals(END_TAG, in.getEventType());
+        assertEquals(START_TAG, in.next());
+        assertEquals("com.example.app1", in.getAttributeValue(null, "name"));
+    }
+
+    public void testNewPullParser_detectsFormat() throws Exception {
+        final XmlPullParser binary = BinaryXmlPullParser.newPullParser(
+                new ByteArrayInputStream(writeBinary()));
+        assertTrue(binary instanceof BinaryXmlPullParser);
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(os, StandardCharsets.UTF_8.name());
+        writeSample(out);
+        final XmlPullParser text = BinaryXmlPullParser.newPullParser(
+                new ByteArrayInputStream(os.toByteArray()));
+        assertFalse(text instanceof BinaryXmlPullParser);
+
+        // Both parsers must report the same document
+        assertEquals(START_TAG, binary.next());
+        assertEquals(START_TAG, text.nextTag());
+        assertEquals(START_TAG, binary.next());
+        assertEquals(START_TAG, text.nextTag());
+        assertEquals(text.getAttributeValue(null, "name"),
+                binary.getAttributeValue(null, "name"));
+    }
+
+    public void testIsBinaryXml_shortInput() throws Exception {
+        assertFalse(BinaryXmlPullParser.isBinaryXml(new ByteArrayInputStream(new byte[] { 0x41 })));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Run with:
+ atest /android/pi-dev/frameworks/base/core/tests/coretests/src/com/android/internal/util/RecordJournalTest.java
+ */
+public class RecordJournalTest extends TestCase {
+    private File mFile;
+    private RecordJournal mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("journal", null);
+        mFile.delete();
+        mJournal = new RecordJournal(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testMissingFile() {
+        assertFalse(mJournal.exists());
+        assertEquals(0, mJournal.length());
+        assertTrue(mJournal.readRecords().isEmpty());
+    }
+
+    public void testAppendAndRead() throws Exception {
+        assertEquals(8 + 3 + 8 + 0, mJournal.append(Arrays.asList(
+                new byte[] { 1, 2, 3 }, new byte[0])));
+        mJournal.append(Arrays.asList(new byte[] { 4 }));
+
+        final List<byte[]> records = mJournal.readRecords();
+        assertEquals(3, records.size());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, records.get(0)));
+        assertEquals(0, records.get(1).length);
+        assertTrue(Arrays.equals(new byte[] { 4 }, records.get(2)));
+
+        mJournal.delete();
+        assertFalse(mJournal.exists());
+    }
+
+    public void testTornRecordIsDropped() throws Exception {
+        mJournal.append(Arrays.asList(new byte[] { 1, 2, 3 }, new byte[] { 4, 5, 6 }));
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        List<byte[]> records = mJournal.readRecords();
+        assertEquals(1, records.size());
+        assertEquals(8 + 3, mJournal.length());
+
+        // Appends after the truncation must be readable again
+        mJournal.append(Arrays.asList(new byte[] { 7 }));
+        records = mJournal.readRecords();
+        assertEquals(2, records.size());
+        assertTrue(Arrays.equals(new byte[] { 7 }, records.get(1)));
+    }
+
+    public void testTornLengthIsDropped() throws Exception {
+        mJournal.append(Arrays.asList(new byte[] { 1, 2, 3 }));
+        try (FileOutputStream fos = new FileOutputStream(mFile, true)) {
+            fos.write(new byte[] { 0, 0 });
+        }
+
+        List<byte[]> records = mJournal.readRecords();
+        assertEquals(1, records.size());
+        assertEquals(8 + 3, mJournal.length());
+
+        mJournal.append(Arrays.asList(new byte[] { 7 }));
+        records = mJournal.readRecords();
+        assertEquals(2, records.size());
+        assertTrue(Arrays.equals(new byte[] { 7 }, records.get(1)));
+    }
+
+    public void testCorruptRecordIsDropped() throws Exception {
+        mJournal.append(Arrays.asList(new byte[] { 1, 2, 3 }, new byte[] { 4, 5, 6 }));
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(raf.length() - 1);
+            raf.write(42);
+        }
+
+        final List<byte[]> records = mJournal.readRecords();
+        assertEquals(1, records.size());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, records.get(0)));
+    }
+
+    public void testGarbageLength() throws Exception {
+        try (FileOutputStream fos = new FileOutputStream(mFile)) {
+            fos.write(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0, 0 });
+        }
+        assertTrue(mJournal.readRecords().isEmpty());
+        assertEquals(0, mJournal.length());
+    }
+}
@@ -91,6 +91,31 @@ final class GenerationRegistry {
         }
     }
 
+    /**
+     * Add only the index of the generation of the table to the bundle, for responses to
+     * clients that already have the backing store.
+     *
+     * @return the current generation, or -1 if it isn't tracked.
+     */
+    public int addGenerationIndex(Bundle bundle, int key) {
+        synchronized (mLock) {
+            MemoryIntArray backingStore = getBackingStoreLocked();
+            try {
+                if (backingStore != null) {
+                    final int index = getKeyIndexLocked(key, mKeyToIndexMap, backingStore);
+                    if (index >= 0) {
+                        bundle.putInt(Settings.CALL_METHOD_GENERATION_INDEX_KEY, index);
+                        return backingStore.get(index);
+                    }
+                }
+            } catch (IOException e) {
+                Slog.e(LOG_TAG, "Error adding generation index", e);
+                destroyBackingStore();
+            }
+            return -1;
+        }
+    }
+
     public void onUserRemoved(int userId) {
         synchronized (mLock) {
             MemoryIntArray backingStore = getBackingStoreLocked();
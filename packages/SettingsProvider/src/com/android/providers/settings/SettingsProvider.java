@@ -60,6 +60,7 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.SELinux;
 import android.os.ServiceManager;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.UserManagerInternal;
@@ -94,6 +95,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -184,6 +186,18 @@ public class SettingsProvider extends ContentProvider {
     private static final Bundle NULL_SETTING_BUNDLE = Bundle.forPair(
             Settings.NameValueTable.VALUE, null);
 
+    // Whether clients are handed shared memory snapshots of the tables they read from.
+    private static final boolean SNAPSHOTS_ENABLED =
+            SystemProperties.getBoolean("persist.sys.settings.snapshots", false);
+
+    // Secure settings whose value depends on the caller, which a snapshot can't answer.
+    private static final Set<String> SNAPSHOT_UNCACHED_SECURE_SETTINGS = new ArraySet<>();
+    static {
+        SNAPSHOT_UNCACHED_SECURE_SETTINGS.add(Secure.ANDROID_ID);
+        SNAPSHOT_UNCACHED_SECURE_SETTINGS.add(Secure.LOCATION_PROVIDERS_ALLOWED);
+        SNAPSHOT_UNCACHED_SECURE_SETTINGS.add("bluetooth_address");
+    }
+
     // Overlay specified settings whitelisted for Instant Apps
     private static final Set<String> OVERLAY_ALLOWED_GLOBAL_INSTANT_APP_SETTINGS = new ArraySet<>();
     private static final Set<String> OVERLAY_ALLOWED_SYSTEM_INSTANT_APP_SETTINGS = new ArraySet<>();
@@ -382,18 +396,21 @@ public class SettingsProvider extends ContentProvider {
         switch (method) {
             case Settings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(SETTINGS_TYPE_GLOBAL, requestingUserId, setting,
+                        args);
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
                 Setting setting = getSecureSetting(name, requestingUserId,
                         /*enableOverride=*/ true);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(SETTINGS_TYPE_SECURE, requestingUserId, setting,
+                        args);
             }
 
             case Settings.CALL_METHOD_GET_SYSTEM: {
                 Setting setting = getSystemSetting(name, requestingUserId);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(SETTINGS_TYPE_SYSTEM, requestingUserId, setting,
+                        args);
             }
 
             case Settings.CALL_METHOD_PUT_GLOBAL: {
@@ -731,6 +748,7 @@ public class SettingsProvider extends ContentProvider {
                 dumpSettingsLocked(globalSettings, pw);
                 pw.println();
                 globalSettings.dumpHistoricalOperations(pw);
+                globalSettings.dumpWriteStats(pw);
             }
         }
 
@@ -741,6 +759,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(secureSettings, pw);
             pw.println();
             secureSettings.dumpHistoricalOperations(pw);
+            secureSettings.dumpWriteStats(pw);
         }
 
         pw.println("SYSTEM SETTINGS (user " + userId + ")");
@@ -750,6 +769,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(systemSettings, pw);
             pw.println();
             systemSettings.dumpHistoricalOperations(pw);
+            systemSettings.dumpWriteStats(pw);
         }
     }
 
@@ -1876,9 +1896,12 @@ public class SettingsProvider extends ContentProvider {
                 "get/set setting for user", null);
     }
 
-    private Bundle packageValueForCallResult(Setting setting,
-            boolean trackingGeneration) {
-        if (!trackingGeneration) {
+    private Bundle packageValueForCallResult(int settingsType, int requestingUserId,
+            Setting setting, Bundle args) {
+        final boolean trackingGeneration = isTrackingGeneration(args);
+        final SettingsState snapshotState = isTrackingSnapshot(args)
+                ? getSnapshotSettingsState(settingsType, requestingUserId) : null;
+        if (!trackingGeneration && snapshotState == null) {
             if (setting == null || setting.isNull()) {
                 return NULL_SETTING_BUNDLE;
             }
@@ -1888,10 +1911,44 @@ public class SettingsProvider extends ContentProvider {
         result.putString(Settings.NameValueTable.VALUE,
                 !setting.isNull() ? setting.getValue() : null);
 
-        mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+        if (snapshotState == null) {
+            mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+            return result;
+        }
+        // Track the table of the snapshot, which for a few secure settings isn't the one the
+        // value came from
+        if (trackingGeneration) {
+            mSettingsRegistry.mGenerationRegistry.addGenerationData(result, snapshotState.mKey);
+        }
+        mSettingsRegistry.mSnapshotRegistry.addSnapshotData(result, snapshotState,
+                settingsType == SETTINGS_TYPE_SECURE
+                        ? SNAPSHOT_UNCACHED_SECURE_SETTINGS : Collections.emptySet());
         return result;
     }
 
+    /**
+     * @return the table a snapshot can be made of for the caller, or null if the caller can't
+     *         be given one: instant apps, whose reads are checked setting by setting, and
+     *         profiles, which read some settings from their parent.
+     */
+    private SettingsState getSnapshotSettingsState(int settingsType, int requestingUserId) {
+        if (!SNAPSHOTS_ENABLED) {
+            return null;
+        }
+        if (UserHandle.getAppId(Binder.getCallingUid()) >= Process.FIRST_APPLICATION_UID
+                && getCallingApplicationInfoOrThrow().isInstantApp()) {
+            return null;
+        }
+        final int userId = settingsType == SETTINGS_TYPE_GLOBAL ? UserHandle.USER_SYSTEM
+                : resolveCallingUserIdEnforcingPermissionsLocked(requestingUserId);
+        synchronized (mLock) {
+            if (getGroupParentLocked(userId) != userId) {
+                return null;
+            }
+            return mSettingsRegistry.getSettingsLocked(settingsType, userId);
+        }
+    }
+
     private static int getRequestingUserId(Bundle args) {
         final int callingUserId = UserHandle.getCallingUserId();
         return (args != null) ? args.getInt(Settings.CALL_METHOD_USER_KEY, callingUserId)
@@ -1902,6 +1959,10 @@ public class SettingsProvider extends ContentProvider {
         return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_GENERATION_KEY);
     }
 
+    private boolean isTrackingSnapshot(Bundle args) {
+        return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY);
+    }
+
     private static String getSettingValue(Bundle args) {
         return (args != null) ? args.getString(Settings.NameValueTable.VALUE) : null;
     }
@@ -2123,6 +2184,8 @@ public class SettingsProvider extends ContentProvider {
 
         private GenerationRegistry mGenerationRegistry;
 
+        private SnapshotRegistry mSnapshotRegistry;
+
         private final Handler mHandler;
 
         private final BackupManager mBackupManager;
@@ -2132,6 +2195,7 @@ public class SettingsProvider extends ContentProvider {
         public SettingsRegistry() {
             mHandler = new MyHandler(getContext().getMainLooper());
             mGenerationRegistry = new GenerationRegistry(mLock);
+            mSnapshotRegistry = new SnapshotRegistry(mLock, mGenerationRegistry);
             mBackupManager = new BackupManager(getContext());
             migrateAllLegacySettingsIfNeeded();
             syncSsaidTableOnStart();
@@ -2380,6 +2444,7 @@ public class SettingsProvider extends ContentProvider {
 
             // Nuke generation tracking data
             mGenerationRegistry.onUserRemoved(userId);
+            mSnapshotRegistry.onUserRemoved(userId);
         }
 
         public boolean insertSettingLocked(int type, int userId, String name, String value,
@@ -31,13 +31,17 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.provider.Settings.Global;
+import android.provider.SettingsSnapshot;
 import android.providers.settings.GlobalSettingsProto;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
@@ -48,7 +52,9 @@ import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.RecordJournal;
 import com.android.server.LocalServices;
 
 import libcore.io.IoUtils;
@@ -57,6 +63,10 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -79,6 +89,14 @@ import java.util.Set;
  * etc, are atomically persisted since the asynchronous persistence is using
  * the same lock to grab the current state to write to disk.
  * </p>
+ * <p>
+ * When journaling is enabled, changes to individual settings are appended to a
+ * journal next to the XML file instead of rewriting the whole file, and the
+ * journal is folded back into the file in the background once it grows large
+ * or old. The journal is only deleted after a full write has been committed,
+ * and replaying it on top of the file is idempotent, so a crash at any point
+ * loses nothing that was persisted.
+ * </p>
  */
 final class SettingsState {
     private static final boolean DEBUG = false;
@@ -93,6 +111,24 @@ final class SettingsState {
     private static final long WRITE_SETTINGS_DELAY_MILLIS = 200;
     private static final long MAX_WRITE_SETTINGS_DELAY_MILLIS = 2000;
 
+    /**
+     * Whether changes to individual settings are appended to a journal instead of
+     * rewriting the whole settings file.
+     */
+    private static final boolean JOURNAL_SETTINGS =
+            SystemProperties.getBoolean("persist.sys.settings.journal", false);
+
+    private static final String JOURNAL_SUFFIX = "-journal";
+
+    /** Size at which the journal is folded back into the settings file. */
+    private static final long MAX_JOURNAL_SIZE = 64 * 1024;
+
+    /** How long journaled changes may sit before being folded back into the settings file. */
+    private static final long JOURNAL_COMPACTION_DELAY_MILLIS = DateUtils.HOUR_IN_MILLIS;
+
+    private static final int JOURNAL_RECORD_UPDATE = 1;
+    private static final int JOURNAL_RECORD_DELETE = 2;
+
     public static final int MAX_BYTES_PER_APP_PACKAGE_UNLIMITED = -1;
     public static final int MAX_BYTES_PER_APP_PACKAGE_LIMITED = 20000;
 
@@ -170,6 +206,8 @@ final class SettingsState {
     @GuardedBy("mLock")
     private final String mStatePersistTag;
 
+    private final RecordJournal mJournal;
+
     private final Setting mNullSetting = new Setting(null, null, false, null, null) {
         @Override
         public boolean isNull() {
@@ -201,6 +239,46 @@ final class SettingsState {
     @GuardedBy("mLock")
     private int mNextHistoricalOpIdx;
 
+    @GuardedBy("mLock")
+    private boolean mJournalEnabled = JOURNAL_SETTINGS;
+
+    // Names of the settings changed since the last write, for the journal
+    @GuardedBy("mLock")
+    private final ArraySet<String> mDirtySettings = new ArraySet<>();
+
+    // Set when something other than individual settings changed
+    @GuardedBy("mLock")
+    private boolean mFullWriteNeeded;
+
+    private final long mStatsStartRealtime = SystemClock.elapsedRealtime();
+
+    @GuardedBy("mWriteLock")
+    private int mFullWrites;
+
+    @GuardedBy("mWriteLock")
+    private long mFullWriteBytes;
+
+    @GuardedBy("mWriteLock")
+    private int mJournalWrites;
+
+    @GuardedBy("mWriteLock")
+    private int mJournalRecords;
+
+    @GuardedBy("mWriteLock")
+    private long mJournalBytes;
+
+    @GuardedBy("mWriteLock")
+    private int mJournalCompactions;
+
+    @GuardedBy("mWriteLock")
+    private long mStatsDay;
+
+    @GuardedBy("mWriteLock")
+    private long mBytesWrittenToday;
+
+    @GuardedBy("mWriteLock")
+    private long mBytesWrittenPreviousDay;
+
     public static final int SETTINGS_TYPE_GLOBAL = 0;
     public static final int SETTINGS_TYPE_SYSTEM = 1;
     public static final int SETTINGS_TYPE_SECURE = 2;
@@ -255,6 +333,7 @@ final class SettingsState {
         mLock = lock;
         mStatePersistFile = file;
         mStatePersistTag = "settings-" + getTypeFromKey(key) + "-" + getUserIdFromKey(key);
+        mJournal = new RecordJournal(getJournalFile(file));
         mKey = key;
         mHandler = new MyHandler(looper);
         if (maxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_LIMITED) {
@@ -289,6 +368,7 @@ final class SettingsState {
         }
         mVersion = version;
 
+        mFullWriteNeeded = true;
         scheduleWriteIfNeededLocked();
     }
 
@@ -307,6 +387,7 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                markDirtyLocked(name);
                 removedSomething = true;
             }
         }
@@ -327,6 +408,15 @@ final class SettingsState {
         return names;
     }
 
+    // The settings provider must hold its lock when calling here.
+    public void addToSnapshotLocked(SettingsSnapshot.Builder builder) {
+        final int settingCount = mSettings.size();
+        for (int i = 0; i < settingCount; i++) {
+            final Setting setting = mSettings.valueAt(i);
+            builder.add(setting.getName(), setting.getValue());
+        }
+    }
+
     // The settings provider must hold its lock when calling here.
     public Setting getSettingLocked(String name) {
         if (TextUtils.isEmpty(name)) {
@@ -361,6 +451,7 @@ final class SettingsState {
             mSettings.put(name, newSetting);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
+            markDirtyLocked(name);
             scheduleWriteIfNeededLocked();
         }
     }
@@ -395,6 +486,7 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
+        markDirtyLocked(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -423,6 +515,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
+        markDirtyLocked(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -452,6 +545,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
+        markDirtyLocked(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -460,6 +554,8 @@ final class SettingsState {
     // The settings provider must hold its lock when calling here.
     public void destroyLocked(Runnable callback) {
         mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
+        // Anything still in the journal is replayed when the state is loaded again
+        mHandler.removeMessages(MyHandler.MSG_COMPACT_JOURNAL);
         if (callback != null) {
             if (mDirty) {
                 // Do it without a delay.
@@ -592,6 +688,17 @@ final class SettingsState {
         return mSettings.indexOfKey(name) >= 0;
     }
 
+    private void markDirtyLocked(String name) {
+        if (mJournalEnabled && !mFullWriteNeeded) {
+            mDirtySettings.add(name);
+        }
+    }
+
+    private boolean canJournalLocked() {
+        return mJournalEnabled && !mFullWriteNeeded && mStatePersistFile.exists()
+                && mJournal.length() < MAX_JOURNAL_SIZE;
+    }
+
     private void scheduleWriteIfNeededLocked() {
         // If dirty then we have a write already scheduled.
         if (!mDirty) {
@@ -632,15 +739,41 @@ final class SettingsState {
     private void doWriteState() {
         boolean wroteState = false;
         final int version;
+        final boolean journal;
         final ArrayMap<String, Setting> settings;
 
         synchronized (mLock) {
             version = mVersion;
-            settings = new ArrayMap<>(mSettings);
+            journal = canJournalLocked();
+            if (journal) {
+                // Just the changed settings, mapped to null if they were deleted
+                final int dirtyCount = mDirtySettings.size();
+                settings = new ArrayMap<>(dirtyCount);
+                for (int i = 0; i < dirtyCount; i++) {
+                    final String name = mDirtySettings.valueAt(i);
+                    final Setting setting = mSettings.get(name);
+                    settings.put(name, setting != null ? new Setting(setting) : null);
+                }
+            } else {
+                settings = new ArrayMap<>(mSettings);
+            }
+            mDirtySettings.clear();
+            mFullWriteNeeded = false;
             mDirty = false;
             mWriteScheduled = false;
         }
 
+        if (journal) {
+            if (!writeJournal(settings)) {
+                // Fall back to writing everything, which includes these changes
+                synchronized (mLock) {
+                    mFullWriteNeeded = true;
+                }
+                doWriteState();
+            }
+            return;
+        }
+
         synchronized (mWriteLock) {
             if (DEBUG_PERSISTENCE) {
                 Slog.i(LOG_TAG, "[PERSIST START]");
@@ -686,6 +819,16 @@ final class SettingsState {
 
                 wroteState = true;
 
+                // Everything journaled so far is now part of the file itself
+                mHandler.removeMessages(MyHandler.MSG_COMPACT_JOURNAL);
+                if (mJournal.exists()) {
+                    mJournal.delete();
+                    mJournalCompactions++;
+                }
+                mFullWrites++;
+                mFullWriteBytes += mStatePersistFile.length();
+                noteBytesWrittenLocked(mStatePersistFile.length());
+
                 if (DEBUG_PERSISTENCE) {
                     Slog.i(LOG_TAG, "[PERSIST END]");
                 }
@@ -697,13 +840,200 @@ final class SettingsState {
             }
         }
 
-        if (wroteState) {
-            synchronized (mLock) {
+        synchronized (mLock) {
+            if (wroteState) {
                 addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+            } else {
+                // Changes that were only going to be journaled are not in the file either
+                mFullWriteNeeded = true;
+            }
+        }
+    }
+
+    /**
+     * Append the given settings to the journal, and schedule folding the journal back into
+     * the settings file.
+     *
+     * @param settings the changed settings, mapped to null if they were deleted.
+     * @return whether the settings were persisted.
+     */
+    private boolean writeJournal(ArrayMap<String, Setting> settings) {
+        synchronized (mWriteLock) {
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[JOURNAL START]");
+            }
+
+            final ArrayList<byte[]> records = new ArrayList<>(settings.size());
+            try {
+                final int settingCount = settings.size();
+                for (int i = 0; i < settingCount; i++) {
+                    final Setting setting = settings.valueAt(i);
+                    if (setting != null && setting.isTransient()) {
+                        continue;
+                    }
+                    records.add(toJournalRecord(settings.keyAt(i), setting));
+                }
+                if (records.isEmpty()) {
+                    return true;
+                }
+                final long bytes = mJournal.append(records);
+                mJournalWrites++;
+                mJournalRecords += records.size();
+                mJournalBytes += bytes;
+                noteBytesWrittenLocked(bytes);
+            } catch (IOException e) {
+                Slog.w(LOG_TAG, "Failed to journal settings, writing them in full", e);
+                return false;
+            }
+
+            if (mJournal.length() >= MAX_JOURNAL_SIZE) {
+                mHandler.removeMessages(MyHandler.MSG_COMPACT_JOURNAL);
+                mHandler.sendEmptyMessage(MyHandler.MSG_COMPACT_JOURNAL);
+            } else if (!mHandler.hasMessages(MyHandler.MSG_COMPACT_JOURNAL)) {
+                mHandler.sendEmptyMessageDelayed(MyHandler.MSG_COMPACT_JOURNAL,
+                        JOURNAL_COMPACTION_DELAY_MILLIS);
+            }
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[JOURNAL END] " + records.size() + " records");
+            }
+        }
+
+        synchronized (mLock) {
+            addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+        }
+        return true;
+    }
+
+    private void compactJournal() {
+        synchronized (mLock) {
+            if (!mJournal.exists()) {
+                return;
+            }
+            mFullWriteNeeded = true;
+        }
+        doWriteState();
+    }
+
+    @GuardedBy("mWriteLock")
+    private void noteBytesWrittenLocked(long bytes) {
+        final long day = (SystemClock.elapsedRealtime() - mStatsStartRealtime)
+                / DateUtils.DAY_IN_MILLIS;
+        if (day != mStatsDay) {
+            mBytesWrittenPreviousDay = (day == mStatsDay + 1) ? mBytesWrittenToday : 0;
+            mBytesWrittenToday = 0;
+            mStatsDay = day;
+        }
+        mBytesWrittenToday += bytes;
+    }
+
+    private static byte[] toJournalRecord(String name, Setting setting) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        if (setting == null) {
+            out.writeByte(JOURNAL_RECORD_DELETE);
+            writeJournalString(out, name);
+        } else {
+            out.writeByte(JOURNAL_RECORD_UPDATE);
+            writeJournalString(out, name);
+            writeJournalString(out, setting.getValue());
+            writeJournalString(out, setting.getDefaultValue());
+            writeJournalString(out, setting.getPackageName());
+            writeJournalString(out, setting.getTag());
+            writeJournalString(out, setting.getId());
+            out.writeBoolean(setting.isDefaultFromSystem());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Strings are written as raw UTF-16 so that they are preserved as-is, like the
+    // base64 encoding of the XML file does.
+    private static void writeJournalString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(s.length());
+            out.writeChars(s);
+        }
+    }
+
+    private static String readJournalString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Apply the changes journaled since the settings file was last written in full.
+     */
+    private void readJournalLocked() {
+        final List<byte[]> records = mJournal.readRecords();
+        for (int i = 0; i < records.size(); i++) {
+            final DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(records.get(i)));
+            try {
+                final int type = in.readByte();
+                final String name = readJournalString(in);
+                if (type == JOURNAL_RECORD_DELETE) {
+                    mSettings.remove(name);
+                } else if (type == JOURNAL_RECORD_UPDATE) {
+                    final String value = readJournalString(in);
+                    final String defaultValue = readJournalString(in);
+                    final String packageName = readJournalString(in);
+                    final String tag = readJournalString(in);
+                    final String id = readJournalString(in);
+                    final boolean fromSystem = in.readBoolean();
+                    mSettings.put(name, new Setting(name, value, defaultValue, packageName, tag,
+                            fromSystem, id));
+                }
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[REPLAYED] " + name);
+                }
+            } catch (IOException | NumberFormatException e) {
+                Slog.w(LOG_TAG, "Skipping bad journal record in " + mJournal.getFile(), e);
             }
         }
     }
 
+    static File getJournalFile(File stateFile) {
+        return new File(stateFile.getPath() + JOURNAL_SUFFIX);
+    }
+
+    @VisibleForTesting
+    void setJournalEnabledForTest(boolean enabled) {
+        synchronized (mLock) {
+            mJournalEnabled = enabled;
+            mDirtySettings.clear();
+            mFullWriteNeeded = true;
+        }
+    }
+
+    public void dumpWriteStats(PrintWriter pw) {
+        synchronized (mWriteLock) {
+            // Roll the daily counters over even if nothing was written since
+            noteBytesWrittenLocked(0);
+            pw.println("Persistence");
+            pw.print("  Journaling enabled: "); pw.println(mJournalEnabled);
+            pw.print("  Full writes: "); pw.print(mFullWrites);
+            pw.print(" ("); pw.print(mFullWriteBytes); pw.println(" bytes)");
+            pw.print("  Journal writes: "); pw.print(mJournalWrites);
+            pw.print(" ("); pw.print(mJournalRecords); pw.print(" settings, ");
+            pw.print(mJournalBytes); pw.println(" bytes)");
+            pw.print("  Journal compactions: "); pw.println(mJournalCompactions);
+            pw.print("  Journal size: "); pw.print(mJournal.length()); pw.println(" bytes");
+            pw.print("  Bytes written today: "); pw.print(mBytesWrittenToday);
+            pw.print(", previous day: "); pw.println(mBytesWrittenPreviousDay);
+            pw.println();
+        }
+    }
+
     static void writeSingleSetting(int version, XmlSerializer serializer, String id,
             String name, String value, String defaultValue, String packageName,
             String tag, boolean defaultSysSet) throws IOException {
@@ -777,6 +1107,8 @@ final class SettingsState {
             in = new AtomicFile(mStatePersistFile).openRead();
         } catch (FileNotFoundException fnfe) {
             Slog.i(LOG_TAG, "No settings state " + mStatePersistFile);
+            // A journal without a file to apply it to is meaningless
+            mJournal.delete();
             addHistoricalOperationLocked(HISTORICAL_OPERATION_INITIALIZE, null);
             return;
         }
@@ -784,6 +1116,7 @@ final class SettingsState {
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(in, StandardCharsets.UTF_8.name());
             parseStateLocked(parser);
+            readJournalLocked();
         } catch (XmlPullParserException | IOException e) {
             String message = "Failed parsing settings file: " + mStatePersistFile;
             Slog.wtf(LOG_TAG, message);
@@ -860,6 +1193,7 @@ final class SettingsState {
 
     private final class MyHandler extends Handler {
         public static final int MSG_PERSIST_SETTINGS = 1;
+        public static final int MSG_COMPACT_JOURNAL = 2;
 
         public MyHandler(Looper looper) {
             super(looper);
@@ -876,6 +1210,11 @@ final class SettingsState {
                     }
                 }
                 break;
+
+                case MSG_COMPACT_JOURNAL: {
+                    compactJournal();
+                }
+                break;
             }
         }
     }
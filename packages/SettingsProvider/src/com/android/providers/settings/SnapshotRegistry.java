@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.os.Bundle;
+import android.os.SharedMemory;
+import android.provider.Settings;
+import android.provider.SettingsSnapshot;
+import android.system.ErrnoException;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.Set;
+
+/**
+ * This class hands out {@link SettingsSnapshot}s of the global/secure/system tables in shared
+ * memory, so client processes can read settings without calling into the provider. A snapshot
+ * is built the first time it's asked for after its table changed, and is stamped with the
+ * generation from the {@link GenerationRegistry}, which clients use to tell when it's stale.
+ */
+final class SnapshotRegistry {
+    private static final String LOG_TAG = "SnapshotRegistry";
+
+    private static final boolean DEBUG = false;
+
+    private final Object mLock;
+
+    private final GenerationRegistry mGenerationRegistry;
+
+    @GuardedBy("mLock")
+    private final SparseArray<SharedMemory> mSnapshots = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private final SparseIntArray mSnapshotGenerations = new SparseIntArray();
+
+    public SnapshotRegistry(Object lock, GenerationRegistry generationRegistry) {
+        mLock = lock;
+        mGenerationRegistry = generationRegistry;
+    }
+
+    /**
+     * Add a snapshot of the table to the bundle, along with the index of its generation.
+     *
+     * @param uncached names of settings that clients must still read from the provider.
+     */
+    public void addSnapshotData(Bundle bundle, SettingsState settingsState,
+            Set<String> uncached) {
+        synchronized (mLock) {
+            final int key = settingsState.mKey;
+            final int generation = mGenerationRegistry.addGenerationIndex(bundle, key);
+            if (generation < 0) {
+                return;
+            }
+            SharedMemory snapshot = mSnapshots.get(key);
+            if (snapshot == null || mSnapshotGenerations.get(key) != generation) {
+                removeSnapshotLocked(key);
+                final SettingsSnapshot.Builder builder = new SettingsSnapshot.Builder();
+                settingsState.addToSnapshotLocked(builder);
+                for (String name : uncached) {
+                    builder.addUncached(name);
+                }
+                try {
+                    snapshot = builder.build("settings-" + key, generation);
+                } catch (ErrnoException e) {
+                    Slog.e(LOG_TAG, "Error creating snapshot", e);
+                    return;
+                }
+                mSnapshots.put(key, snapshot);
+                mSnapshotGenerations.put(key, generation);
+                if (DEBUG) {
+                    Slog.i(LOG_TAG, "Built snapshot of " + snapshot.getSize() + " bytes for key:"
+                            + SettingsProvider.keyToString(key) + " generation:" + generation);
+                }
+            }
+            bundle.putParcelable(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY, snapshot);
+        }
+    }
+
+    public void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            removeSnapshotLocked(SettingsProvider.makeKey(
+                    SettingsProvider.SETTINGS_TYPE_SECURE, userId));
+            removeSnapshotLocked(SettingsProvider.makeKey(
+                    SettingsProvider.SETTINGS_TYPE_SYSTEM, userId));
+        }
+    }
+
+    private void removeSnapshotLocked(int key) {
+        final SharedMemory snapshot = mSnapshots.get(key);
+        if (snapshot != null) {
+            // Clients that mapped it keep their mapping
+            snapshot.close();
+            mSnapshots.remove(key);
+            mSnapshotGenerations.delete(key);
+        }
+    }
+}
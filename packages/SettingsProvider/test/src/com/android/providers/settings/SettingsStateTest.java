@@ -148,6 +148,64 @@ public class SettingsStateTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * Make sure changes appended to the journal are applied on top of the settings file, and
+     * folded back into it on compaction.
+     */
+    public void testJournal() {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File journalFile = SettingsState.getJournalFile(file);
+        file.delete();
+        journalFile.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        ssWriter.setJournalEnabledForTest(true);
+        ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+        ssWriter.insertSettingLocked("k1", "v1", null, false, "package");
+        ssWriter.insertSettingLocked("k2", "v2", null, false, "package");
+        synchronized (lock) {
+            ssWriter.persistSyncLocked();
+        }
+        // The first write has nothing to append to
+        assertFalse(journalFile.exists());
+        final long fileLength = file.length();
+
+        ssWriter.insertSettingLocked("k1", CRAZY_STRING, null, false, "p2");
+        ssWriter.deleteSettingLocked("k2");
+        ssWriter.insertSettingLocked("k3", null, null, false, "p3");
+        synchronized (lock) {
+            ssWriter.persistSyncLocked();
+        }
+        assertTrue(journalFile.exists());
+        assertEquals(fileLength, file.length());
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k1").getValue());
+            assertEquals("p2", ssReader.getSettingLocked("k1").getPackageName());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+            assertFalse(ssReader.getSettingLocked("k3").isNull());
+            assertEquals(null, ssReader.getSettingLocked("k3").getValue());
+        }
+
+        // A full write makes the journal redundant
+        ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING + 1);
+        synchronized (lock) {
+            ssWriter.persistSyncLocked();
+        }
+        assertFalse(journalFile.exists());
+
+        final SettingsState ssCompacted = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(CRAZY_STRING, ssCompacted.getSettingLocked("k1").getValue());
+            assertTrue(ssCompacted.getSettingLocked("k2").isNull());
+        }
+    }
+
     /**
      * In version 120, value "null" meant {code NULL}.
      */
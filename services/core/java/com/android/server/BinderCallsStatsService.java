@@ -22,6 +22,7 @@ import android.os.SystemProperties;
 import android.util.Slog;
 
 import com.android.internal.os.BinderCallsStats;
+import com.android.internal.os.BinderLatencyStats;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
@@ -33,6 +34,12 @@ public class BinderCallsStatsService extends Binder {
     private static final String PERSIST_SYS_BINDER_CALLS_DETAILED_TRACKING
             = "persist.sys.binder_calls_detailed_tracking";
 
+    private static final String PERSIST_SYS_BINDER_CALLS_SHARDED
+            = "persist.sys.binder_calls_sharded";
+
+    private static final String PERSIST_SYS_BINDER_CALLS_SAMPLING_INTERVAL
+            = "persist.sys.binder_calls_sampling_interval";
+
     public static void start() {
         BinderCallsStatsService service = new BinderCallsStatsService();
         ServiceManager.addService("binder_calls_stats", service);
@@ -45,17 +52,26 @@ public class BinderCallsStatsService extends Binder {
                     + " or via dumpsys binder_calls_stats --enable-detailed-tracking");
             BinderCallsStats.getInstance().setDetailedTracking(true);
         }
+        BinderCallsStats.getInstance().setSharded(
+                SystemProperties.getBoolean(PERSIST_SYS_BINDER_CALLS_SHARDED, false));
+        final int samplingInterval = SystemProperties.getInt(
+                PERSIST_SYS_BINDER_CALLS_SAMPLING_INTERVAL, 1);
+        if (samplingInterval > 0) {
+            BinderCallsStats.getInstance().setSamplingInterval(samplingInterval);
+        }
     }
 
     public static void reset() {
         Slog.i(TAG, "Resetting stats");
         BinderCallsStats.getInstance().reset();
+        BinderLatencyStats.getInstance().reset();
     }
 
     @Override
     protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (args != null) {
-            for (final String arg : args) {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
                 if ("-a".equals(arg)) {
                     // We currently dump all information by default
                     continue;
@@ -73,11 +89,62 @@ public class BinderCallsStatsService extends Binder {
                     BinderCallsStats.getInstance().setDetailedTracking(false);
                     pw.println("Detailed tracking disabled");
                     return;
+                } else if ("--enable-sharding".equals(arg)) {
+                    SystemProperties.set(PERSIST_SYS_BINDER_CALLS_SHARDED, "1");
+                    BinderCallsStats.getInstance().setSharded(true);
+                    pw.println("Per-thread collection enabled");
+                    return;
+                } else if ("--disable-sharding".equals(arg)) {
+                    SystemProperties.set(PERSIST_SYS_BINDER_CALLS_SHARDED, "");
+                    BinderCallsStats.getInstance().setSharded(false);
+                    pw.println("Per-thread collection disabled");
+                    return;
+                } else if ("--sampling-interval".equals(arg)) {
+                    final int samplingInterval;
+                    try {
+                        samplingInterval = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        pw.println("--sampling-interval needs a number");
+                        return;
+                    }
+                    if (samplingInterval <= 0) {
+                        pw.println("Sampling interval must be positive");
+                        return;
+                    }
+                    SystemProperties.set(PERSIST_SYS_BINDER_CALLS_SAMPLING_INTERVAL,
+                            Integer.toString(samplingInterval));
+                    BinderCallsStats.getInstance().setSamplingInterval(samplingInterval);
+                    pw.println("Sampling interval set to " + samplingInterval);
+                    return;
+                } else if ("--enable-latency-tracking".equals(arg)) {
+                    SystemProperties.set(
+                            BinderLatencyStats.PERSIST_SYS_BINDER_LATENCY_TRACKING, "1");
+                    BinderLatencyStats.setEnabled(true);
+                    pw.println("Latency tracking enabled");
+                    return;
+                } else if ("--disable-latency-tracking".equals(arg)) {
+                    SystemProperties.set(
+                            BinderLatencyStats.PERSIST_SYS_BINDER_LATENCY_TRACKING, "");
+                    BinderLatencyStats.setEnabled(false);
+                    pw.println("Latency tracking disabled");
+                    return;
+                } else if ("--latency".equals(arg)) {
+                    BinderLatencyStats.getInstance().dump(pw);
+                    return;
                 } else if ("-h".equals(arg)) {
                     pw.println("binder_calls_stats commands:");
                     pw.println("  --reset: Reset stats");
                     pw.println("  --enable-detailed-tracking: Enables detailed tracking");
                     pw.println("  --disable-detailed-tracking: Disables detailed tracking");
+                    pw.println("  --enable-sharding: Records calls per thread, merging them "
+                            + "periodically");
+                    pw.println("  --disable-sharding: Records calls under a single lock");
+                    pw.println("  --sampling-interval N: With detailed tracking, measures "
+                            + "about one in N calls");
+                    pw.println("  --enable-latency-tracking: Enables tracking the latency of "
+                            + "outgoing calls here, and in processes started afterwards");
+                    pw.println("  --disable-latency-tracking: Disables latency tracking");
+                    pw.println("  --latency: Dumps the latency of outgoing calls");
                     return;
                 } else {
                     pw.println("Unknown option: " + arg);
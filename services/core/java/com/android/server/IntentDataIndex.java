@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.PatternMatcher;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of intent filters by the URI scheme, host and path they can match, used by
+ * {@link IntentResolver} to avoid matching every filter of a scheme against an intent's data.
+ * <p>
+ * For each scheme, hosts are kept in a trie over their reversed, case folded characters, so
+ * that exact hosts and wildcard host suffixes ("*.example.com") are found with one walk of the
+ * intent's host. Below each host, filters whose paths are all literals or prefixes are kept in a
+ * trie over those paths. Filters that can match regardless of the host (no authorities, or a
+ * scheme specific part) are never pruned.
+ * <p>
+ * The index only ever returns a superset of the filters that can match; the caller must still
+ * run {@link IntentFilter#match} on every candidate. Candidates are returned in the order the
+ * filters were added, which is also the order of the scheme lists in {@link IntentResolver}.
+ * <p>
+ * Callers must provide their own locking.
+ */
+class IntentDataIndex<F extends IntentFilter> {
+    private final ArrayMap<String, SchemeNode<F>> mSchemes = new ArrayMap<>();
+    private final ArrayMap<F, IndexedFilter<F>> mFilters = new ArrayMap<>();
+    private long mNextSequence;
+
+    /** Bookkeeping needed to order candidates and to remove a filter again. */
+    private static class IndexedFilter<F> {
+        final long sequence;
+        final ArrayList<ArrayList<F>> lists = new ArrayList<>();
+
+        IndexedFilter(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private static class SchemeNode<F> {
+        /** Filters that may match any host. */
+        final ArrayList<F> anyHost = new ArrayList<>();
+        final HostNode<F> hosts = new HostNode<>();
+    }
+
+    private static class HostNode<F> {
+        SparseArray<HostNode<F>> children;
+        /** Filters with a host that is exactly the reversed path to this node. */
+        PathNode<F> exact;
+        /** Filters with a wildcard host whose suffix is the reversed path to this node. */
+        PathNode<F> wild;
+
+        HostNode<F> child(char c, boolean create) {
+            HostNode<F> child = children != null ? children.get(c) : null;
+            if (child == null && create) {
+                if (children == null) {
+                    children = new SparseArray<>(2);
+                }
+                child = new HostNode<>();
+                children.put(c, child);
+            }
+            return child;
+        }
+    }
+
+    private static class PathNode<F> {
+        SparseArray<PathNode<F>> children;
+        /** Filters without paths, or with a path type that can't be indexed. Root only. */
+        ArrayList<F> anyPath;
+        ArrayList<F> literal;
+        ArrayList<F> prefix;
+
+        PathNode<F> child(char c, boolean create) {
+            PathNode<F> child = children != null ? children.get(c) : null;
+            if (child == null && create) {
+                if (children == null) {
+                    children = new SparseArray<>(2);
+                }
+                child = new PathNode<>();
+                children.put(c, child);
+            }
+            return child;
+        }
+    }
+
+    public void addFilter(F filter) {
+        final int schemeCount = filter.countDataSchemes();
+        if (schemeCount == 0 || mFilters.containsKey(filter)) {
+            return;
+        }
+        final IndexedFilter<F> indexed = new IndexedFilter<>(mNextSequence++);
+        mFilters.put(filter, indexed);
+
+        final boolean anyHost = filter.countDataAuthorities() == 0
+                || filter.countDataSchemeSpecificParts() != 0;
+        for (int i = 0; i < schemeCount; i++) {
+            final String scheme = filter.getDataScheme(i);
+            SchemeNode<F> schemeNode = mSchemes.get(scheme);
+            if (schemeNode == null) {
+                schemeNode = new SchemeNode<>();
+                mSchemes.put(scheme, schemeNode);
+            }
+            if (anyHost) {
+                add(schemeNode.anyHost, filter, indexed);
+                continue;
+            }
+            final int authorityCount = filter.countDataAuthorities();
+            for (int j = 0; j < authorityCount; j++) {
+                final String host = filter.getDataAuthority(j).getHost();
+                final boolean wild = host.length() > 0 && host.charAt(0) == '*';
+                HostNode<F> node = schemeNode.hosts;
+                for (int k = host.length() - 1; k >= (wild ? 1 : 0); k--) {
+                    node = node.child(foldCase(host.charAt(k)), true);
+                }
+                final PathNode<F> paths;
+                if (wild) {
+                    paths = node.wild != null ? node.wild : (node.wild = new PathNode<>());
+                } else {
+                    paths = node.exact != null ? node.exact : (node.exact = new PathNode<>());
+                }
+                addToPaths(paths, filter, indexed);
+            }
+        }
+    }
+
+    private void addToPaths(PathNode<F> root, F filter, IndexedFilter<F> indexed) {
+        final int pathCount = filter.countDataPaths();
+        boolean indexable = pathCount > 0;
+        for (int i = 0; i < pathCount && indexable; i++) {
+            final int type = filter.getDataPath(i).getType();
+            indexable = type == PatternMatcher.PATTERN_LITERAL
+                    || type == PatternMatcher.PATTERN_PREFIX;
+        }
+        if (!indexable) {
+            if (root.anyPath == null) {
+                root.anyPath = new ArrayList<>(2);
+            }
+            add(root.anyPath, filter, indexed);
+            return;
+        }
+        for (int i = 0; i < pathCount; i++) {
+            final PatternMatcher pattern = filter.getDataPath(i);
+            final String path = pattern.getPath();
+            PathNode<F> node = root;
+            for (int j = 0; j < path.length(); j++) {
+                node = node.child(path.charAt(j), true);
+            }
+            if (pattern.getType() == PatternMatcher.PATTERN_LITERAL) {
+                if (node.literal == null) {
+                    node.literal = new ArrayList<>(2);
+                }
+                add(node.literal, filter, indexed);
+            } else {
+                if (node.prefix == null) {
+                    node.prefix = new ArrayList<>(2);
+                }
+                add(node.prefix, filter, indexed);
+            }
+        }
+    }
+
+    private static <F> void add(ArrayList<F> list, F filter, IndexedFilter<F> indexed) {
+        if (!list.contains(filter)) {
+            list.add(filter);
+            indexed.lists.add(list);
+        }
+    }
+
+    public void removeFilter(F filter) {
+        final IndexedFilter<F> indexed = mFilters.remove(filter);
+        if (indexed == null) {
+            return;
+        }
+        // Empty trie nodes are kept; they're bounded by the set of hosts and paths ever seen.
+        for (int i = 0; i < indexed.lists.size(); i++) {
+            indexed.lists.get(i).remove(filter);
+        }
+    }
+
+    /**
+     * Collect, in the order they were added, the filters registered for {@code scheme} that
+     * might match {@code data}.
+     *
+     * @return false if nothing is indexed for the scheme, in which case no filter can match.
+     */
+    public boolean queryCandidates(String scheme, Uri data, List<F> out) {
+        final SchemeNode<F> schemeNode = mSchemes.get(scheme);
+        if (schemeNode == null) {
+            return false;
+        }
+        out.addAll(schemeNode.anyHost);
+
+        final String host = data.getHost();
+        if (host != null) {
+            final String path = data.getPath();
+            HostNode<F> node = schemeNode.hosts;
+            collectPaths(node.wild, path, out);
+            for (int i = host.length() - 1; i >= 0 && node != null; i--) {
+                node = node.child(foldCase(host.charAt(i)), false);
+                if (node != null) {
+                    collectPaths(node.wild, path, out);
+                }
+            }
+            if (node != null) {
+                collectPaths(node.exact, path, out);
+            }
+        }
+
+        if (out.size() > 1) {
+            Collections.sort(out, (a, b) -> Long.compare(mFilters.get(a).sequence,
+                    mFilters.get(b).sequence));
+            // A filter with several matching hosts or paths is collected more than once
+            for (int i = out.size() - 1; i > 0; i--) {
+                if (out.get(i) == out.get(i - 1)) {
+                    out.remove(i);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static <F> void collectPaths(PathNode<F> root, String path, List<F> out) {
+        if (root == null) {
+            return;
+        }
+        if (path == null) {
+            // Nothing to prune on; be conservative and take everything below this host
+            collectAll(root, out);
+            return;
+        }
+        if (root.anyPath != null) {
+            out.addAll(root.anyPath);
+        }
+        PathNode<F> node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.prefix != null) {
+                out.addAll(node.prefix);
+            }
+            if (i == path.length()) {
+                if (node.literal != null) {
+                    out.addAll(node.literal);
+                }
+                break;
+            }
+            node = node.child(path.charAt(i), false);
+        }
+    }
+
+    private static <F> void collectAll(PathNode<F> node, List<F> out) {
+        if (node.anyPath != null) {
+            out.addAll(node.anyPath);
+        }
+        if (node.literal != null) {
+            out.addAll(node.literal);
+        }
+        if (node.prefix != null) {
+            out.addAll(node.prefix);
+        }
+        if (node.children != null) {
+            for (int i = 0; i < node.children.size(); i++) {
+                collectAll(node.children.valueAt(i), out);
+            }
+        }
+    }
+
+    /**
+     * Fold a host character so that two characters fold to the same value exactly when
+     * {@link String#compareToIgnoreCase}, which {@link IntentFilter.AuthorityEntry} uses,
+     * considers them equal.
+     */
+    private static char foldCase(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
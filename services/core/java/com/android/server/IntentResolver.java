@@ -59,6 +59,9 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        if (mDataIndex != null) {
+            mDataIndex.addFilter(f);
+        }
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -202,6 +205,9 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
+        if (mDataIndex != null) {
+            mDataIndex.removeFilter(f);
+        }
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
@@ -215,6 +221,25 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     }
 
+    /**
+     * Enable or disable indexing filters by the hosts and paths of their data URIs. When
+     * enabled, {@link #queryIntent} only matches an intent with a data URI against the filters
+     * whose authorities and paths could accept it, instead of every filter for its scheme.
+     */
+    public void setDataIndexEnabled(boolean enabled) {
+        if (enabled == (mDataIndex != null)) {
+            return;
+        }
+        if (enabled) {
+            mDataIndex = new IntentDataIndex<>();
+            for (int i = 0; i < mFilters.size(); i++) {
+                mDataIndex.addFilter(mFilters.valueAt(i));
+            }
+        } else {
+            mDataIndex = null;
+        }
+    }
+
     boolean dumpMap(PrintWriter out, String titlePrefix, String title,
             String prefix, ArrayMap<String, F[]> map, String packageName,
             boolean printFilter, boolean collapseDuplicates) {
@@ -456,7 +481,15 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         // the filters that match its scheme (we will further refine matches
         // on the authority and path by directly matching each resulting filter).
         if (scheme != null) {
-            schemeCut = mSchemeToFilter.get(scheme);
+            final Uri data = intent.getData();
+            if (mDataIndex != null && data != null) {
+                final ArrayList<F> candidates = new ArrayList<>();
+                if (mDataIndex.queryCandidates(scheme, data, candidates)) {
+                    schemeCut = candidates.toArray(newArray(candidates.size()));
+                }
+            } else {
+                schemeCut = mSchemeToFilter.get(scheme);
+            }
             if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
         }
 
@@ -838,6 +871,12 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      */
     private final ArraySet<F> mFilters = new ArraySet<F>();
 
+    /**
+     * Filters with data URIs, by scheme, host and path; null unless enabled with
+     * {@link #setDataIndexEnabled}.
+     */
+    private IntentDataIndex<F> mDataIndex;
+
     /**
      * All of the MIME types that have been registered, such as "image/jpeg",
      * "image/*", or "{@literal *}/*".
@@ -1753,6 +1753,7 @@ public final class ActiveServices {
 
         final long origId = Binder.clearCallingIdentity();
         try {
+            final ArraySet<ProcessRecord> serviceApps = new ArraySet<>();
             while (clist.size() > 0) {
                 ConnectionRecord r = clist.get(0);
                 removeConnectionLocked(r, null, null);
@@ -1773,11 +1774,11 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    serviceApps.add(r.binding.service.app);
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            mAm.updateOomAdjReachableLocked(serviceApps);
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -2445,7 +2446,7 @@ public final class ActiveServices {
         bumpServiceExecutingLocked(r, execInFg, "create");
         mAm.updateLruProcessLocked(app, false, null);
         updateServiceForegroundLocked(r.app, /* oomAdj= */ false);
-        mAm.updateOomAdjLocked();
+        mAm.updateOomAdjReachableLocked(app);
 
         boolean created = false;
         try {
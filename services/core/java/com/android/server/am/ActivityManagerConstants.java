@@ -68,6 +68,7 @@ final class ActivityManagerConstants extends ContentObserver {
     static final String KEY_BOUND_SERVICE_CRASH_MAX_RETRY = "service_crash_max_retry";
     static final String KEY_PROCESS_START_ASYNC = "process_start_async";
     static final String KEY_TOP_TO_FGS_GRACE_DURATION = "top_to_fgs_grace_duration";
+    static final String KEY_INCREMENTAL_OOM_ADJ = "incremental_oom_adj";
 
     private static final int DEFAULT_MAX_CACHED_PROCESSES = 32;
     private static final long DEFAULT_BACKGROUND_SETTLE_TIME = 60*1000;
@@ -97,6 +98,7 @@ final class ActivityManagerConstants extends ContentObserver {
     private static final int DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY = 16;
     private static final boolean DEFAULT_PROCESS_START_ASYNC = true;
     private static final long DEFAULT_TOP_TO_FGS_GRACE_DURATION = 15 * 1000;
+    private static final boolean DEFAULT_INCREMENTAL_OOM_ADJ = false;
 
     // Maximum number of cached processes we will allow.
     public int MAX_CACHED_PROCESSES = DEFAULT_MAX_CACHED_PROCESSES;
@@ -212,6 +214,10 @@ final class ActivityManagerConstants extends ContentObserver {
     // this long.
     public long TOP_TO_FGS_GRACE_DURATION = DEFAULT_TOP_TO_FGS_GRACE_DURATION;
 
+    // When a change only affects some processes, such as an unbind or a receiver finishing,
+    // update those and the processes they are bound to instead of doing a full update.
+    public boolean INCREMENTAL_OOM_ADJ = DEFAULT_INCREMENTAL_OOM_ADJ;
+
     // Indicates whether the activity starts logging is enabled.
     // Controlled by Settings.Global.ACTIVITY_STARTS_LOGGING_ENABLED
     boolean mFlagActivityStartsLoggingEnabled;
@@ -355,6 +361,8 @@ final class ActivityManagerConstants extends ContentObserver {
                     DEFAULT_PROCESS_START_ASYNC);
             TOP_TO_FGS_GRACE_DURATION = mParser.getDurationMillis(KEY_TOP_TO_FGS_GRACE_DURATION,
                     DEFAULT_TOP_TO_FGS_GRACE_DURATION);
+            INCREMENTAL_OOM_ADJ = mParser.getBoolean(KEY_INCREMENTAL_OOM_ADJ,
+                    DEFAULT_INCREMENTAL_OOM_ADJ);
 
             updateMaxCachedProcesses();
         }
@@ -432,6 +440,8 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.println(BG_START_TIMEOUT);
         pw.print("  "); pw.print(KEY_TOP_TO_FGS_GRACE_DURATION); pw.print("=");
         pw.println(TOP_TO_FGS_GRACE_DURATION);
+        pw.print("  "); pw.print(KEY_INCREMENTAL_OOM_ADJ); pw.print("=");
+        pw.println(INCREMENTAL_OOM_ADJ);
 
         pw.println();
         if (mOverrideMaxCachedProcesses >= 0) {
@@ -725,11 +725,22 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     private static final String SYSUI_COMPONENT_NAME = "com.android.systemui/.SystemUIService";
 
+    /**
+     * Number of extra background queues that ordered broadcasts are spread over, so that a
+     * slow receiver only holds up later broadcasts to packages that share its queue. Zero
+     * keeps all background broadcasts in one queue.
+     */
+    private static final int BROADCAST_LANES = Math.max(0,
+            SystemProperties.getInt("persist.sys.am.broadcast_lanes", 0));
+
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
     // Convenient for easy iteration over the queues. Foreground is first
-    // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2];
+    // so that dispatch of foreground broadcasts gets precedence. Any lanes
+    // follow the background queue.
+    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2 + BROADCAST_LANES];
+    // Keeps track of which background queue each package is waiting in, if there are lanes.
+    final BroadcastLanes mBroadcastLanes = BROADCAST_LANES > 0 ? new BroadcastLanes() : null;
 
     BroadcastStats mLastBroadcastStats;
     BroadcastStats mCurBroadcastStats;
@@ -742,6 +753,18 @@ public class ActivityManagerService extends IActivityManager.Stub
         return (isFg) ? mFgBroadcastQueue : mBgBroadcastQueue;
     }
 
+    /**
+     * Pick the queue for an ordered broadcast. Background broadcasts are spread over the
+     * background queue and its lanes, if lanes are enabled; see {@link BroadcastLanes}.
+     */
+    BroadcastQueue broadcastQueueForOrderedLocked(Intent intent, List receivers) {
+        final BroadcastQueue queue = broadcastQueueForIntent(intent);
+        if (mBroadcastLanes == null || queue != mBgBroadcastQueue) {
+            return queue;
+        }
+        return mBroadcastLanes.pickQueueLocked(receivers);
+    }
+
     /**
      * The last resumed activity. This is identical to the current resumed activity most
      * of the time but could be different when we're pausing one activity before we resume
@@ -1568,6 +1591,23 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mAdjSeq = 0;
 
+    /**
+     * Number of processes whose oom adj has been computed, across all updates. Used to count
+     * the processes visited by each update.
+     */
+    int mOomAdjComputeCount = 0;
+
+    /**
+     * Timing of oom adj updates, for dumpsys.
+     */
+    final OomAdjStats mOomAdjStats = new OomAdjStats();
+
+    /**
+     * Scratch state for incremental oom adj updates.
+     */
+    private final ArrayList<ProcessRecord> mTmpOomAdjQueue = new ArrayList<>();
+    private final ArraySet<ProcessRecord> mTmpOomAdjQueued = new ArraySet<>();
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -3090,10 +3130,22 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         mFgBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "foreground", BROADCAST_FG_TIMEOUT, false);
+        final BroadcastReplaceIndex bgOrderedReplaceIndex = new BroadcastReplaceIndex();
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
-                "background", BROADCAST_BG_TIMEOUT, true);
+                "background", BROADCAST_BG_TIMEOUT, true, bgOrderedReplaceIndex,
+                mBroadcastLanes);
         mBroadcastQueues[0] = mFgBroadcastQueue;
         mBroadcastQueues[1] = mBgBroadcastQueue;
+        for (int i = 0; i < BROADCAST_LANES; i++) {
+            mBroadcastQueues[2 + i] = new BroadcastQueue(this, mHandler,
+                    "background-lane" + i, BROADCAST_BG_TIMEOUT, true, bgOrderedReplaceIndex,
+                    mBroadcastLanes);
+        }
+        if (mBroadcastLanes != null) {
+            for (int i = 1; i < mBroadcastQueues.length; i++) {
+                mBroadcastLanes.addQueue(mBroadcastQueues[i]);
+            }
+        }
 
         mServices = new ActiveServices(this);
         mProviderMap = new ProviderMap(this);
@@ -12718,7 +12770,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    updateOomAdjReachableLocked(conn.provider.proc);
                 }
             }
         } finally {
@@ -12752,7 +12804,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             ContentProviderRecord localCpr = mProviderMap.getProviderByClass(comp, userId);
             if (localCpr.hasExternalProcessHandles()) {
                 if (localCpr.removeExternalProcessHandleLocked(token)) {
-                    updateOomAdjLocked();
+                    updateOomAdjReachableLocked(localCpr.proc);
                 } else {
                     Slog.e(TAG, "Attmpt to remove content provider " + localCpr
                             + " with no external reference for token: "
@@ -16187,6 +16239,11 @@ public class ActivityManagerService extends IActivityManager.Stub
                 synchronized (this) {
                     writeBroadcastsToProtoLocked(proto);
                 }
+            } else if ("broadcast-stats".equals(cmd)) {
+                // output proto is described in BroadcastStats
+                synchronized (this) {
+                    writeBroadcastStatsToProtoLocked(proto);
+                }
             } else if ("provider".equals(cmd)) {
                 String[] newArgs;
                 String name;
@@ -17691,6 +17748,9 @@ public class ActivityManagerService extends IActivityManager.Stub
             pw.println("  mHeavyWeightProcess: " + mHeavyWeightProcess);
         }
 
+        pw.println();
+        mOomAdjStats.dump(pw, "  ");
+
         return true;
     }
 
@@ -17969,6 +18029,15 @@ public class ActivityManagerService extends IActivityManager.Stub
             printedAnything |= needSep;
         }
 
+        if (mBroadcastLanes != null && dumpPackage == null) {
+            if (needSep) {
+                pw.println();
+            }
+            mBroadcastLanes.dumpLocked(pw);
+            needSep = true;
+            printedAnything = true;
+        }
+
         needSep = true;
 
         if (!onlyHistory && mStickyBroadcasts != null && dumpPackage == null) {
@@ -18056,6 +18125,15 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
     }
 
+    void writeBroadcastStatsToProtoLocked(ProtoOutputStream proto) {
+        if (mLastBroadcastStats != null) {
+            mLastBroadcastStats.writeToProto(proto, BroadcastStats.DUMP_LAST);
+        }
+        if (mCurBroadcastStats != null) {
+            mCurBroadcastStats.writeToProto(proto, BroadcastStats.DUMP_CURRENT);
+        }
+    }
+
     void dumpBroadcastStatsCheckinLocked(FileDescriptor fd, PrintWriter pw, String[] args,
             int opti, boolean fullCheckin, String dumpPackage) {
         if (mCurBroadcastStats == null) {
@@ -20879,8 +20957,12 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     boolean isPendingBroadcastProcessLocked(int pid) {
-        return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+        for (BroadcastQueue queue : mBroadcastQueues) {
+            if (queue.isPendingBroadcastProcessLocked(pid)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -21904,7 +21986,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         if ((receivers != null && receivers.size() > 0)
                 || resultTo != null) {
-            BroadcastQueue queue = broadcastQueueForIntent(intent);
+            BroadcastQueue queue = broadcastQueueForOrderedLocked(intent, receivers);
             BroadcastRecord r = new BroadcastRecord(queue, intent, callerApp,
                     callerPackage, callingPid, callingUid, callerInstantApp, resolvedType,
                     requiredPermissions, appOp, brOptions, receivers, resultTo, resultCode,
@@ -21918,6 +22000,10 @@ public class ActivityManagerService extends IActivityManager.Stub
             final BroadcastRecord oldRecord =
                     replacePending ? queue.replaceOrderedBroadcastLocked(r) : null;
             if (oldRecord != null) {
+                if (oldRecord.queue != queue) {
+                    // The replacement was moved to this queue from another lane
+                    queue.scheduleBroadcastsLocked();
+                }
                 // Replaced, fire the result-to receiver.
                 if (oldRecord.resultTo != null) {
                     final BroadcastQueue oldQueue = broadcastQueueForIntent(oldRecord.intent);
@@ -21981,6 +22067,17 @@ public class ActivityManagerService extends IActivityManager.Stub
         mCurBroadcastStats.addBroadcast(action, srcPackage, receiveCount, skipCount, dispatchTime);
     }
 
+    final void addBroadcastTimingStatLocked(String action, long dispatchLatency,
+            long deliveryTime) {
+        rotateBroadcastStatsIfNeededLocked();
+        mCurBroadcastStats.addBroadcastTiming(action, dispatchLatency, deliveryTime);
+    }
+
+    final void addReceiverTimingStatLocked(String receiver, long startTime, long runTime) {
+        rotateBroadcastStatsIfNeededLocked();
+        mCurBroadcastStats.addReceiverTiming(receiver, startTime, runTime);
+    }
+
     final void addBackgroundCheckViolationLocked(String action, String targetPackage) {
         rotateBroadcastStatsIfNeededLocked();
         mCurBroadcastStats.addBackgroundCheckViolation(action, targetPackage);
@@ -22134,9 +22231,15 @@ public class ActivityManagerService extends IActivityManager.Stub
             BroadcastRecord r;
 
             synchronized(this) {
-                BroadcastQueue queue = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
-                        ? mFgBroadcastQueue : mBgBroadcastQueue;
-                r = queue.getMatchingOrderedReceiver(who);
+                if ((flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0) {
+                    r = mFgBroadcastQueue.getMatchingOrderedReceiver(who);
+                } else {
+                    // The background queue, or one of its lanes
+                    r = null;
+                    for (int i = 1; i < mBroadcastQueues.length && r == null; i++) {
+                        r = mBroadcastQueues[i].getMatchingOrderedReceiver(who);
+                    }
+                }
                 if (r != null) {
                     doNext = r.queue.finishReceiverLocked(r, resultCode,
                         resultData, resultExtras, resultAbort, true);
@@ -23130,7 +23233,8 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
     }
 
-    private final boolean computeOomAdjLocked(ProcessRecord app, int cachedAdj, ProcessRecord TOP_APP,
+    @VisibleForTesting
+    final boolean computeOomAdjLocked(ProcessRecord app, int cachedAdj, ProcessRecord TOP_APP,
             boolean doingAll, long now) {
         if (mAdjSeq == app.adjSeq) {
             if (app.adjSeq == app.completedAdjSeq) {
@@ -23145,6 +23249,8 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
         }
 
+        mOomAdjComputeCount++;
+
         if (app.thread == null) {
             app.adjSeq = mAdjSeq;
             app.curSchedGroup = ProcessList.SCHED_GROUP_BACKGROUND;
@@ -25028,6 +25134,8 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     @GuardedBy("this")
     final boolean updateOomAdjLocked(ProcessRecord app, boolean oomAdjAll) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final int startComputeCount = mOomAdjComputeCount;
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final boolean wasCached = app.cached;
@@ -25042,17 +25150,154 @@ public class ActivityManagerService extends IActivityManager.Stub
                 ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
         boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false,
                 SystemClock.uptimeMillis());
-        if (oomAdjAll
-                && (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ)) {
+        final int visited = mOomAdjComputeCount - startComputeCount;
+        final boolean fullUpdate = oomAdjAll
+                && (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ);
+        mOomAdjStats.noteUpdate(OomAdjStats.SINGLE,
+                (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000, visited);
+        if (fullUpdate) {
             // Changed to/from cached state, so apps after it in the LRU
             // list may also be changed.
-            updateOomAdjLocked();
+            updateOomAdjAllLocked(OomAdjStats.FULL_FOR_PROCESS);
         }
         return success;
     }
 
+    /**
+     * Updates the oom adj after a change that only affects {@code app}, such as a service or
+     * provider connection going away, or a receiver or service callback starting or finishing.
+     * Use this rather than {@link #updateOomAdjLocked()} when nothing global, like the top app
+     * or the LRU list, changed.
+     * <p>
+     * With the incremental mode on, only {@code app} and the processes it is bound to through
+     * services and content providers, and the processes those are bound to in turn, are updated,
+     * since only their importance can depend on that of {@code app}. A full update is still done
+     * if any of them moves to or from the cached state, since that shifts the cached adj of the
+     * processes after it in the LRU list, or if a binding cycle is found. With the incremental
+     * mode off, this is a full update.
+     */
+    @GuardedBy("this")
+    final void updateOomAdjReachableLocked(ProcessRecord app) {
+        if (app == null || !mConstants.INCREMENTAL_OOM_ADJ) {
+            updateOomAdjAllLocked(OomAdjStats.FULL_FOR_PROCESS);
+            return;
+        }
+        mTmpOomAdjQueue.add(app);
+        updateOomAdjQueuedLocked();
+    }
+
+    /**
+     * Like {@link #updateOomAdjReachableLocked(ProcessRecord)}, for changes to several
+     * processes. Nothing is updated in the incremental mode if {@code apps} is empty.
+     */
+    @GuardedBy("this")
+    final void updateOomAdjReachableLocked(ArraySet<ProcessRecord> apps) {
+        if (!mConstants.INCREMENTAL_OOM_ADJ) {
+            updateOomAdjAllLocked(OomAdjStats.FULL_FOR_PROCESS);
+            return;
+        }
+        if (apps.isEmpty()) {
+            return;
+        }
+        mTmpOomAdjQueue.addAll(apps);
+        updateOomAdjQueuedLocked();
+    }
+
+    /** Update the processes in {@link #mTmpOomAdjQueue} and those reachable from them. */
+    @GuardedBy("this")
+    private void updateOomAdjQueuedLocked() {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final int startComputeCount = mOomAdjComputeCount;
+        final ActivityRecord TOP_ACT = resumedAppLocked();
+        final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        final long now = SystemClock.uptimeMillis();
+        final long nowElapsed = SystemClock.elapsedRealtime();
+
+        final ArrayList<ProcessRecord> queue = mTmpOomAdjQueue;
+        final boolean needFullUpdate = computeOomAdjReachableLocked(queue, TOP_APP, now);
+        if (!needFullUpdate) {
+            for (int i = 0; i < queue.size(); i++) {
+                final ProcessRecord proc = queue.get(i);
+                if (proc.thread != null) {
+                    applyOomAdjLocked(proc, false, now, nowElapsed);
+                }
+            }
+        }
+        queue.clear();
+        mOomAdjStats.noteUpdate(OomAdjStats.REACHABLE,
+                (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000,
+                mOomAdjComputeCount - startComputeCount);
+
+        if (needFullUpdate) {
+            // The full update computes and applies everything again, so there is no point in
+            // applying what was computed here.
+            mOomAdjStats.noteReachableFallback();
+            updateOomAdjAllLocked(OomAdjStats.FULL_FOR_PROCESS);
+        }
+    }
+
+    /**
+     * Computes the oom adj of the processes in {@code queue} and of the processes reachable from
+     * them, for {@link #updateOomAdjReachableLocked}, without applying it.
+     *
+     * @param queue The changed processes, without duplicates. Receives the processes reachable
+     *              from them, in the order they were looked at.
+     * @return whether a full update is needed for the result to match one.
+     */
+    @VisibleForTesting
+    @GuardedBy("this")
+    boolean computeOomAdjReachableLocked(ArrayList<ProcessRecord> queue, ProcessRecord TOP_APP,
+            long now) {
+        mAdjSeq++;
+
+        final ArraySet<ProcessRecord> queued = mTmpOomAdjQueued;
+        queued.addAll(queue);
+        boolean needFullUpdate = false;
+        for (int i = 0; i < queue.size(); i++) {
+            final ProcessRecord proc = queue.get(i);
+            if (proc.thread == null) {
+                continue;
+            }
+            final boolean wasCached = proc.cached;
+            final int cachedAdj = proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? proc.curRawAdj : ProcessList.UNKNOWN_ADJ;
+            proc.containsCycle = false;
+            computeOomAdjLocked(proc, cachedAdj, TOP_APP, false, now);
+            if (wasCached != proc.cached || proc.curRawAdj == ProcessList.UNKNOWN_ADJ
+                    || proc.containsCycle) {
+                needFullUpdate = true;
+            }
+
+            for (int j = proc.connections.size() - 1; j >= 0; j--) {
+                final ProcessRecord service = proc.connections.valueAt(j).binding.service.app;
+                if (service != null && queued.add(service)) {
+                    queue.add(service);
+                }
+            }
+            for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+                final ProcessRecord provider = proc.conProviders.get(j).provider.proc;
+                if (provider != null && queued.add(provider)) {
+                    queue.add(provider);
+                }
+            }
+        }
+        queued.clear();
+        return needFullUpdate;
+    }
+
     @GuardedBy("this")
     final void updateOomAdjLocked() {
+        updateOomAdjAllLocked(OomAdjStats.FULL);
+    }
+
+    /**
+     * @param statsType {@link OomAdjStats#FULL} or {@link OomAdjStats#FULL_FOR_PROCESS}, for
+     *                  dumpsys.
+     */
+    @GuardedBy("this")
+    private void updateOomAdjAllLocked(int statsType) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final int startComputeCount = mOomAdjComputeCount;
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final long now = SystemClock.uptimeMillis();
@@ -25571,6 +25816,10 @@ public class ActivityManagerService extends IActivityManager.Stub
                 Slog.d(TAG_OOM_ADJ, "Did OOM ADJ in " + duration + "ms");
             }
         }
+
+        mOomAdjStats.noteUpdate(statsType,
+                (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000,
+                mOomAdjComputeCount - startComputeCount);
     }
 
     @Override
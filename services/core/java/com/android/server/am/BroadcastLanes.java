@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spreads background ordered broadcasts over the background queue and a number of extra lanes,
+ * so that a slow receiver only holds up later broadcasts to packages that share its queue.
+ * <p>
+ * A package must still get the broadcasts sent to it in order, so while it has ordered
+ * broadcasts waiting in one queue, every later broadcast to it goes to that same queue.
+ * Otherwise, a broadcast whose receivers all belong to one package goes to the lane picked by
+ * hashing that package, and a broadcast to several packages goes to the background queue.
+ * <p>
+ * If the packages of a broadcast are already waiting in different queues, no queue keeps the
+ * order for all of them. The broadcast then goes to the background queue, where it may overtake
+ * earlier broadcasts waiting in a lane, and is counted as a conflict in dumpsys.
+ * <p>
+ * Guarded by the activity manager lock.
+ */
+final class BroadcastLanes {
+    /** The background queue, followed by the lanes. */
+    private final ArrayList<BroadcastQueue> mQueues = new ArrayList<>();
+
+    /** For each package with ordered broadcasts waiting, how many wait in each queue. */
+    private final ArrayMap<String, int[]> mPending = new ArrayMap<>();
+
+    private long mConflictCount;
+
+    /** Add the background queue first, then each lane. */
+    void addQueue(BroadcastQueue queue) {
+        mQueues.add(queue);
+    }
+
+    private static String packageKey(Object target) {
+        if (target instanceof BroadcastFilter) {
+            final BroadcastFilter filter = (BroadcastFilter) target;
+            return filter.packageName + '/' + filter.owningUid;
+        }
+        final ActivityInfo info = ((ResolveInfo) target).activityInfo;
+        return info.packageName + '/' + info.applicationInfo.uid;
+    }
+
+    /**
+     * Pick the queue for a background ordered broadcast to {@code receivers}.
+     */
+    BroadcastQueue pickQueueLocked(List receivers) {
+        final BroadcastQueue background = mQueues.get(0);
+        if (receivers == null || receivers.isEmpty() || mQueues.size() == 1) {
+            return background;
+        }
+        String onlyPackage = null;
+        boolean onePackage = true;
+        int waitingIn = -1;
+        for (int i = 0; i < receivers.size(); i++) {
+            final String key = packageKey(receivers.get(i));
+            if (i == 0) {
+                onlyPackage = key;
+            } else if (onePackage && !key.equals(onlyPackage)) {
+                onePackage = false;
+            }
+            final int[] counts = mPending.get(key);
+            if (counts == null) {
+                continue;
+            }
+            for (int slot = 0; slot < counts.length; slot++) {
+                if (counts[slot] == 0) {
+                    continue;
+                }
+                if (waitingIn < 0) {
+                    waitingIn = slot;
+                } else if (waitingIn != slot) {
+                    mConflictCount++;
+                    return background;
+                }
+            }
+        }
+        if (waitingIn >= 0) {
+            return mQueues.get(waitingIn);
+        }
+        if (!onePackage) {
+            return background;
+        }
+        final int laneCount = mQueues.size() - 1;
+        return mQueues.get(1 + (onlyPackage.hashCode() & Integer.MAX_VALUE) % laneCount);
+    }
+
+    /** Note that {@code r} was added to the ordered list of its queue. */
+    void onEnqueuedLocked(BroadcastRecord r) {
+        final int slot = mQueues.indexOf(r.queue);
+        if (slot < 0 || r.receivers == null) {
+            return;
+        }
+        final ArraySet<String> keys = new ArraySet<>();
+        for (int i = 0; i < r.receivers.size(); i++) {
+            keys.add(packageKey(r.receivers.get(i)));
+        }
+        // Receivers can be removed from the record while it waits, so remember what was counted
+        r.lanePackages = keys.toArray(new String[keys.size()]);
+        for (String key : r.lanePackages) {
+            int[] counts = mPending.get(key);
+            if (counts == null) {
+                counts = new int[mQueues.size()];
+                mPending.put(key, counts);
+            }
+            counts[slot]++;
+        }
+    }
+
+    /** Note that {@code r} was removed from the ordered list of its queue. */
+    void onRemovedLocked(BroadcastRecord r) {
+        final int slot = mQueues.indexOf(r.queue);
+        if (slot < 0 || r.lanePackages == null) {
+            return;
+        }
+        for (String key : r.lanePackages) {
+            final int[] counts = mPending.get(key);
+            if (counts == null) {
+                continue;
+            }
+            counts[slot]--;
+            boolean waiting = false;
+            for (int count : counts) {
+                waiting |= count > 0;
+            }
+            if (!waiting) {
+                mPending.remove(key);
+            }
+        }
+        r.lanePackages = null;
+    }
+
+    int getWaitingPackageCount() {
+        return mPending.size();
+    }
+
+    long getConflictCount() {
+        return mConflictCount;
+    }
+
+    void dumpLocked(PrintWriter pw) {
+        pw.print("  Broadcast lanes: "); pw.print(mQueues.size() - 1);
+                pw.print(" packagesWaiting="); pw.print(mPending.size());
+                pw.print(" conflicts="); pw.println(mConflictCount);
+    }
+}
@@ -48,11 +48,14 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.UserHandle;
+import android.util.ArraySet;
 import android.util.EventLog;
 import android.util.Slog;
 import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.util.ExponentiallyBucketedHistogram;
+
 import static com.android.server.am.ActivityManagerDebugConfig.*;
 
 /**
@@ -69,6 +72,7 @@ public final class BroadcastQueue {
     static final int MAX_BROADCAST_HISTORY = ActivityManager.isLowRamDeviceStatic() ? 10 : 50;
     static final int MAX_BROADCAST_SUMMARY_HISTORY
             = ActivityManager.isLowRamDeviceStatic() ? 25 : 300;
+    static final int DISPATCH_LATENCY_BUCKETS = 20;
 
     final ActivityManagerService mService;
 
@@ -106,6 +110,36 @@ public final class BroadcastQueue {
      */
     final ArrayList<BroadcastRecord> mOrderedBroadcasts = new ArrayList<>();
 
+    /**
+     * Indexes of mParallelBroadcasts and mOrderedBroadcasts, for finding the broadcast
+     * a FLAG_RECEIVER_REPLACE_PENDING broadcast replaces. The background queue and its
+     * lanes share one index of their ordered broadcasts, since a broadcast can replace one
+     * that went to another of them.
+     */
+    final BroadcastReplaceIndex mParallelReplaceIndex = new BroadcastReplaceIndex();
+    final BroadcastReplaceIndex mOrderedReplaceIndex;
+
+    /**
+     * The lanes this queue is one of, or null.
+     */
+    final BroadcastLanes mLanes;
+
+    /**
+     * Largest number of broadcasts that were waiting in mParallelBroadcasts and
+     * mOrderedBroadcasts at once.
+     */
+    int mMaxParallelDepth;
+    int mMaxOrderedDepth;
+
+    /**
+     * How long broadcasts waited between being enqueued and being dispatched to their
+     * first receiver, in milliseconds.
+     */
+    final ExponentiallyBucketedHistogram mParallelDispatchLatency =
+            new ExponentiallyBucketedHistogram(DISPATCH_LATENCY_BUCKETS);
+    final ExponentiallyBucketedHistogram mOrderedDispatchLatency =
+            new ExponentiallyBucketedHistogram(DISPATCH_LATENCY_BUCKETS);
+
     /**
      * Historical data of past broadcasts, for debugging.  This is a ring buffer
      * whose last element is at mHistoryNext.
@@ -148,6 +182,12 @@ public final class BroadcastQueue {
      */
     BroadcastRecord mPendingBroadcast = null;
 
+    /**
+     * Processes that finished running a receiver since the oom adj was last updated for this
+     * queue, so they may have become less important.
+     */
+    final ArraySet<ProcessRecord> mFinishedReceiverApps = new ArraySet<>();
+
     /**
      * The receiver index that is pending, to restart the broadcast if needed.
      */
@@ -197,7 +237,16 @@ public final class BroadcastQueue {
 
     BroadcastQueue(ActivityManagerService service, Handler handler,
             String name, long timeoutPeriod, boolean allowDelayBehindServices) {
+        this(service, handler, name, timeoutPeriod, allowDelayBehindServices,
+                new BroadcastReplaceIndex(), null);
+    }
+
+    BroadcastQueue(ActivityManagerService service, Handler handler,
+            String name, long timeoutPeriod, boolean allowDelayBehindServices,
+            BroadcastReplaceIndex orderedReplaceIndex, BroadcastLanes lanes) {
         mService = service;
+        mOrderedReplaceIndex = orderedReplaceIndex;
+        mLanes = lanes;
         mHandler = new BroadcastHandler(handler.getLooper());
         mQueueName = name;
         mTimeoutPeriod = timeoutPeriod;
@@ -215,11 +264,22 @@ public final class BroadcastQueue {
 
     public void enqueueParallelBroadcastLocked(BroadcastRecord r) {
         mParallelBroadcasts.add(r);
+        mParallelReplaceIndex.add(r);
+        if (mParallelBroadcasts.size() > mMaxParallelDepth) {
+            mMaxParallelDepth = mParallelBroadcasts.size();
+        }
         enqueueBroadcastHelper(r);
     }
 
     public void enqueueOrderedBroadcastLocked(BroadcastRecord r) {
         mOrderedBroadcasts.add(r);
+        mOrderedReplaceIndex.add(r);
+        if (mLanes != null) {
+            mLanes.onEnqueuedLocked(r);
+        }
+        if (mOrderedBroadcasts.size() > mMaxOrderedDepth) {
+            mMaxOrderedDepth = mOrderedBroadcasts.size();
+        }
         enqueueBroadcastHelper(r);
     }
 
@@ -228,6 +288,7 @@ public final class BroadcastQueue {
      * enqueueOrderedBroadcastLocked.
      */
     private void enqueueBroadcastHelper(BroadcastRecord r) {
+        r.enqueueTime = SystemClock.uptimeMillis();
         r.enqueueClockTime = System.currentTimeMillis();
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
@@ -242,32 +303,65 @@ public final class BroadcastQueue {
      * the old one.
      */
     public final BroadcastRecord replaceParallelBroadcastLocked(BroadcastRecord r) {
-        return replaceBroadcastLocked(mParallelBroadcasts, r, "PARALLEL");
+        if (mParallelBroadcasts.isEmpty()) {
+            return null;
+        }
+        final BroadcastRecord old = mParallelReplaceIndex.findReplaceable(r,
+                mParallelBroadcasts.get(0));
+        if (old != null) {
+            replaceBroadcastLocked(mParallelBroadcasts, mParallelReplaceIndex, old, r,
+                    "PARALLEL");
+        }
+        return old;
     }
 
     /**
      * Find the same intent from queued ordered broadcast, replace with a new one and return
-     * the old one.
+     * the old one. If the old one was waiting in another queue, the new one is enqueued here
+     * instead, and the caller needs to schedule this queue.
      */
     public final BroadcastRecord replaceOrderedBroadcastLocked(BroadcastRecord r) {
-        return replaceBroadcastLocked(mOrderedBroadcasts, r, "ORDERED");
+        final BroadcastRecord old = mOrderedReplaceIndex.findReplaceableOrdered(r);
+        if (old == null) {
+            return null;
+        }
+        if (old.queue == this) {
+            replaceBroadcastLocked(mOrderedBroadcasts, mOrderedReplaceIndex, old, r, "ORDERED");
+            if (mLanes != null) {
+                mLanes.onRemovedLocked(old);
+                mLanes.onEnqueuedLocked(r);
+            }
+            return old;
+        }
+        // The index is shared with the lanes, and the old broadcast waits in another one.
+        // The receivers may have changed, so the replacement goes to the lane picked for it
+        // and the old broadcast is dropped from its own.
+        if (DEBUG_BROADCAST) {
+            Slog.v(TAG_BROADCAST, "***** DROPPING ORDERED [" + old.queue.mQueueName
+                    + "] for [" + mQueueName + "]: " + r.intent);
+        }
+        if (mLanes != null) {
+            mLanes.onRemovedLocked(old);
+        }
+        old.queue.mOrderedBroadcasts.remove(old);
+        mOrderedReplaceIndex.remove(old);
+        r.queue = this;
+        enqueueOrderedBroadcastLocked(r);
+        return old;
     }
 
-    private BroadcastRecord replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
-            BroadcastRecord r, String typeForLogging) {
-        final Intent intent = r.intent;
-        for (int i = queue.size() - 1; i > 0; i--) {
-            final BroadcastRecord old = queue.get(i);
-            if (old.userId == r.userId && intent.filterEquals(old.intent)) {
-                if (DEBUG_BROADCAST) {
-                    Slog.v(TAG_BROADCAST, "***** DROPPING "
-                            + typeForLogging + " [" + mQueueName + "]: " + intent);
-                }
-                queue.set(i, r);
-                return old;
-            }
-        }
-        return null;
+    private void replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
+            BroadcastReplaceIndex index, BroadcastRecord old, BroadcastRecord r,
+            String typeForLogging) {
+        if (DEBUG_BROADCAST) {
+            Slog.v(TAG_BROADCAST, "***** DROPPING "
+                    + typeForLogging + " [" + mQueueName + "]: " + r.intent);
+        }
+        // The replacement keeps the enqueue time of the broadcast it replaces, so that
+        // dispatch latency covers the whole time the slot was waiting
+        r.enqueueTime = old.enqueueTime;
+        queue.set(queue.lastIndexOf(old), r);
+        index.replace(old, r);
     }
 
     private final void processCurBroadcastLocked(BroadcastRecord r,
@@ -284,11 +378,14 @@ public final class BroadcastQueue {
 
         r.receiver = app.thread.asBinder();
         r.curApp = app;
+        noteReceiverDeliveredLocked(r);
         app.curReceivers.add(r);
         app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
         mService.updateLruProcessLocked(app, false, null);
         if (!skipOomAdj) {
-            mService.updateOomAdjLocked();
+            mFinishedReceiverApps.add(app);
+            mService.updateOomAdjReachableLocked(mFinishedReceiverApps);
+            mFinishedReceiverApps.clear();
         }
 
         // Tell the application to launch this receiver.
@@ -383,6 +480,42 @@ public final class BroadcastQueue {
         scheduleBroadcastsLocked();
     }
 
+    /**
+     * Name the current receiver of an ordered broadcast is tracked under in the broadcast
+     * stats: its component, or its package for registered receivers.
+     */
+    private static String getReceiverStatsName(BroadcastRecord r) {
+        if (r.curFilter != null) {
+            return r.curFilter.packageName;
+        }
+        return r.curComponent != null ? r.curComponent.flattenToShortString() : null;
+    }
+
+    private void noteReceiverDeliveredLocked(BroadcastRecord r) {
+        r.receiverDeliverTime = SystemClock.uptimeMillis();
+        final String name = getReceiverStatsName(r);
+        if (name != null) {
+            mService.addReceiverTimingStatLocked(name, r.receiverDeliverTime - r.receiverTime,
+                    -1);
+        }
+    }
+
+    private void noteReceiverFinishedLocked(BroadcastRecord r) {
+        final String name = getReceiverStatsName(r);
+        if (name == null) {
+            return;
+        }
+        if (r.receiverDeliverTime != 0) {
+            mService.addReceiverTimingStatLocked(name, -1,
+                    SystemClock.uptimeMillis() - r.receiverDeliverTime);
+        } else {
+            // Never handed the broadcast, e.g. its process didn't start in time
+            mService.addReceiverTimingStatLocked(name,
+                    SystemClock.uptimeMillis() - r.receiverTime, -1);
+        }
+        r.receiverDeliverTime = 0;
+    }
+
     public void scheduleBroadcastsLocked() {
         if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Schedule broadcasts ["
                 + mQueueName + "]: current="
@@ -412,11 +545,14 @@ public final class BroadcastQueue {
         r.state = BroadcastRecord.IDLE;
         if (state == BroadcastRecord.IDLE) {
             Slog.w(TAG, "finishReceiver [" + mQueueName + "] called but state is IDLE");
+        } else {
+            noteReceiverFinishedLocked(r);
         }
         r.receiver = null;
         r.intent.setComponent(null);
         if (r.curApp != null && r.curApp.curReceivers.contains(r)) {
             r.curApp.curReceivers.remove(r);
+            mFinishedReceiverApps.add(r.curApp);
         }
         if (r.curFilter != null) {
             r.curFilter.receiverList.curBroadcast = null;
@@ -680,6 +816,7 @@ public final class BroadcastQueue {
         if (ordered) {
             r.receiver = filter.receiverList.receiver.asBinder();
             r.curFilter = filter;
+            noteReceiverDeliveredLocked(r);
             filter.receiverList.curBroadcast = r;
             r.state = BroadcastRecord.CALL_IN_RECEIVE;
             if (filter.receiverList.app != null) {
@@ -843,7 +980,12 @@ public final class BroadcastQueue {
         // First, deliver any non-serialized broadcasts right away.
         while (mParallelBroadcasts.size() > 0) {
             r = mParallelBroadcasts.remove(0);
+            mParallelReplaceIndex.remove(r);
             r.dispatchTime = SystemClock.uptimeMillis();
+            mParallelDispatchLatency.add((int) Math.min(r.dispatchTime - r.enqueueTime,
+                    Integer.MAX_VALUE));
+            mService.addBroadcastTimingStatLocked(r.intent.getAction(),
+                    r.dispatchTime - r.enqueueTime, -1);
             r.dispatchClockTime = System.currentTimeMillis();
 
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
@@ -915,7 +1057,8 @@ public final class BroadcastQueue {
                     // If we had finished the last ordered broadcast, then
                     // make sure all processes have correct oom and sched
                     // adjustments.
-                    mService.updateOomAdjLocked();
+                    mService.updateOomAdjReachableLocked(mFinishedReceiverApps);
+                    mFinishedReceiverApps.clear();
                 }
                 return;
             }
@@ -996,7 +1139,16 @@ public final class BroadcastQueue {
                     mService.addBroadcastStatLocked(r.intent.getAction(), r.callerPackage,
                             r.manifestCount, r.manifestSkipCount, r.finishTime-r.dispatchTime);
                 }
+                if (r.dispatchTime > 0) {
+                    mService.addBroadcastTimingStatLocked(r.intent.getAction(),
+                            r.dispatchTime - r.enqueueTime,
+                            SystemClock.uptimeMillis() - r.dispatchTime);
+                }
                 mOrderedBroadcasts.remove(0);
+                mOrderedReplaceIndex.remove(r);
+                if (mLanes != null) {
+                    mLanes.onRemovedLocked(r);
+                }
                 r = null;
                 looped = true;
                 continue;
@@ -1009,8 +1161,11 @@ public final class BroadcastQueue {
         // Keep track of when this receiver started, and make sure there
         // is a timeout message pending to kill it if need be.
         r.receiverTime = SystemClock.uptimeMillis();
+        r.receiverDeliverTime = 0;
         if (recIdx == 0) {
             r.dispatchTime = r.receiverTime;
+            mOrderedDispatchLatency.add((int) Math.min(r.dispatchTime - r.enqueueTime,
+                    Integer.MAX_VALUE));
             r.dispatchClockTime = System.currentTimeMillis();
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -1822,6 +1977,20 @@ public final class BroadcastQueue {
             } while (ringIndex != lastIndex);
         }
 
+        if (dumpPackage == null) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.println("  Queue stats [" + mQueueName + "]:");
+            pw.print("    Parallel: depth="); pw.print(mParallelBroadcasts.size());
+            pw.print(" max="); pw.println(mMaxParallelDepth);
+            mParallelDispatchLatency.dump(pw, "      Dispatch latency (ms): ");
+            pw.print("    Ordered: depth="); pw.print(mOrderedBroadcasts.size());
+            pw.print(" max="); pw.println(mMaxOrderedDepth);
+            mOrderedDispatchLatency.dump(pw, "      Dispatch latency (ms): ");
+        }
+
         return needSep;
     }
 }
@@ -61,10 +61,12 @@ final class BroadcastRecord extends Binder {
     final List receivers;   // contains BroadcastFilter and ResolveInfo
     final int[] delivery;   // delivery state of each receiver
     IIntentReceiver resultTo; // who receives final result if non-null
+    long enqueueTime;       // uptime the broadcast was enqueued
     long enqueueClockTime;  // the clock time the broadcast was enqueued
     long dispatchTime;      // when dispatch started on this set of receivers
     long dispatchClockTime; // the clock time the dispatch started
     long receiverTime;      // when current receiver started for timeouts.
+    long receiverDeliverTime; // when current receiver was handed the broadcast.
     long finishTime;        // when we finished the broadcast.
     int resultCode;         // current result code value.
     String resultData;      // current result data value.
@@ -77,6 +79,8 @@ final class BroadcastRecord extends Binder {
     int manifestCount;      // number of manifest receivers dispatched.
     int manifestSkipCount;  // number of manifest receivers skipped.
     BroadcastQueue queue;   // the outbound queue handling this broadcast
+    BroadcastReplaceIndex.Key replaceKey; // how the queue indexed this broadcast
+    String[] lanePackages;  // packages BroadcastLanes counted this broadcast as waiting for
 
     static final int IDLE = 0;
     static final int APP_RECEIVE = 1;
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.content.Intent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Index of the broadcasts in one of the lists of a {@link BroadcastQueue}, or in the ordered
+ * lists of the background queue and its lanes, by user and
+ * {@link Intent#filterEquals intent filter identity}, so that FLAG_RECEIVER_REPLACE_PENDING
+ * broadcasts can find the record they replace without scanning the whole list.
+ * <p>
+ * The intent of the broadcast at the head of an ordered list is modified while it's delivered,
+ * so each record remembers the key it was indexed under, built from a copy of its intent taken
+ * when it was enqueued.
+ * <p>
+ * Guarded by the activity manager lock.
+ */
+final class BroadcastReplaceIndex {
+    private final HashMap<Key, ArrayList<BroadcastRecord>> mRecords = new HashMap<>();
+
+    static final class Key {
+        final int userId;
+        final Intent intent;
+        final int hashCode;
+
+        Key(int userId, Intent intent) {
+            this.userId = userId;
+            this.intent = intent;
+            this.hashCode = intent.filterHashCode() * 31 + userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return userId == other.userId && intent.filterEquals(other.intent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /** Index a record that was just appended to the end of the list. */
+    void add(BroadcastRecord r) {
+        final Key key = new Key(r.userId, r.intent.cloneFilter());
+        r.replaceKey = key;
+        ArrayList<BroadcastRecord> records = mRecords.get(key);
+        if (records == null) {
+            records = new ArrayList<>(1);
+            mRecords.put(key, records);
+        }
+        records.add(r);
+    }
+
+    /** Forget a record that was removed from the list. */
+    void remove(BroadcastRecord r) {
+        final ArrayList<BroadcastRecord> records = mRecords.get(r.replaceKey);
+        if (records != null && records.remove(r) && records.isEmpty()) {
+            mRecords.remove(r.replaceKey);
+        }
+        r.replaceKey = null;
+    }
+
+    /**
+     * Find the most recently enqueued record that {@code r} may replace, skipping {@code head}
+     * since it may already be in the middle of delivery.
+     */
+    BroadcastRecord findReplaceable(BroadcastRecord r, BroadcastRecord head) {
+        final ArrayList<BroadcastRecord> records = mRecords.get(new Key(r.userId, r.intent));
+        if (records == null) {
+            return null;
+        }
+        // Records are kept in list order, so if the latest one is the head, it's the only one
+        final BroadcastRecord old = records.get(records.size() - 1);
+        return old != head ? old : null;
+    }
+
+    /**
+     * Find the most recently enqueued ordered record that {@code r} may replace, in an index
+     * that may be shared by several queues. The record at the head of its queue is skipped,
+     * since it may already be in the middle of delivery.
+     */
+    BroadcastRecord findReplaceableOrdered(BroadcastRecord r) {
+        final ArrayList<BroadcastRecord> records = mRecords.get(new Key(r.userId, r.intent));
+        if (records == null) {
+            return null;
+        }
+        for (int i = records.size() - 1; i >= 0; i--) {
+            final BroadcastRecord old = records.get(i);
+            if (old.queue.mOrderedBroadcasts.get(0) != old) {
+                return old;
+            }
+        }
+        return null;
+    }
+
+    /** Note that {@code r} took the place of {@code old} in the list. */
+    void replace(BroadcastRecord old, BroadcastRecord r) {
+        final ArrayList<BroadcastRecord> records = mRecords.get(old.replaceKey);
+        records.set(records.lastIndexOf(old), r);
+        r.replaceKey = old.replaceKey;
+        old.replaceKey = null;
+    }
+
+    int size() {
+        return mRecords.size();
+    }
+}
@@ -19,11 +19,15 @@ package com.android.server.am;
 import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.TimeUtils;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.util.ExponentiallyBucketedHistogram;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.function.Supplier;
 
 public final class BroadcastStats {
     final long mStartRealtime;
@@ -32,6 +36,66 @@ public final class BroadcastStats {
     long mEndUptime;
     final ArrayMap<String, ActionEntry> mActions = new ArrayMap<>();
 
+    /**
+     * Timing histograms are kept for at most this many actions and receivers; the rest are
+     * combined under {@link #OTHER_KEY} so that memory use stays bounded.
+     */
+    static final int MAX_TIMED_ACTIONS = 100;
+    static final int MAX_TIMED_RECEIVERS = 200;
+    static final String OTHER_KEY = "(other)";
+
+    /** Number of buckets of the timing histograms; the last one holds everything over 16s. */
+    static final int TIMING_BUCKETS = 16;
+
+    final ArrayMap<String, ActionTiming> mActionTimings = new ArrayMap<>();
+    final ArrayMap<String, ReceiverTiming> mReceiverTimings = new ArrayMap<>();
+
+    /*
+     * Proto fields written for "dumpsys activity --proto broadcast-stats":
+     *
+     * message BroadcastStatsDump {
+     *   BroadcastStats last = 1;
+     *   BroadcastStats current = 2;
+     * }
+     * message BroadcastStats {
+     *   int64 start_realtime_ms = 1;
+     *   int64 end_realtime_ms = 2;      // 0 for the current stats
+     *   repeated ActionTiming actions = 3;
+     *   repeated ReceiverTiming receivers = 4;
+     * }
+     * message ActionTiming {
+     *   string action = 1;
+     *   repeated int32 dispatch_latency = 2;  // histogram buckets, in milliseconds
+     *   repeated int32 delivery_time = 3;
+     * }
+     * message ReceiverTiming {
+     *   string receiver = 1;
+     *   repeated int32 start_time = 2;
+     *   repeated int32 run_time = 3;
+     * }
+     *
+     * Bucket i of a histogram counts values below 2^i ms and at least 2^(i-1) ms, except that
+     * the first bucket also counts 0 and the last one has no upper bound.
+     */
+    static final long DUMP_LAST = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+    static final long DUMP_CURRENT = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+    static final long START_REALTIME_MS = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+    static final long END_REALTIME_MS = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+    static final long ACTIONS = ProtoOutputStream.makeFieldId(3,
+            ProtoOutputStream.FIELD_COUNT_REPEATED | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+    static final long RECEIVERS = ProtoOutputStream.makeFieldId(4,
+            ProtoOutputStream.FIELD_COUNT_REPEATED | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+    static final long TIMING_NAME = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_STRING);
+    static final long TIMING_FIRST = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_COUNT_REPEATED | ProtoOutputStream.FIELD_TYPE_INT32);
+    static final long TIMING_SECOND = ProtoOutputStream.makeFieldId(3,
+            ProtoOutputStream.FIELD_COUNT_REPEATED | ProtoOutputStream.FIELD_TYPE_INT32);
+
     static final Comparator<ActionEntry> ACTIONS_COMPARATOR = new Comparator<ActionEntry>() {
         @Override public int compare(ActionEntry o1, ActionEntry o2) {
             if (o1.mTotalDispatchTime < o2.mTotalDispatchTime) {
@@ -66,6 +130,25 @@ public final class BroadcastStats {
         int mCount;
     }
 
+    static final class ActionTiming {
+        /** From enqueueing a broadcast to handing it to its first receiver. */
+        final ExponentiallyBucketedHistogram mDispatchLatency =
+                new ExponentiallyBucketedHistogram(TIMING_BUCKETS);
+        /** From handing an ordered broadcast to its first receiver to its last one finishing. */
+        final ExponentiallyBucketedHistogram mDeliveryTime =
+                new ExponentiallyBucketedHistogram(TIMING_BUCKETS);
+    }
+
+    static final class ReceiverTiming {
+        /** From a receiver's turn coming up to it being handed the broadcast, which includes
+         * starting its process if needed. */
+        final ExponentiallyBucketedHistogram mStartTime =
+                new ExponentiallyBucketedHistogram(TIMING_BUCKETS);
+        /** From a receiver being handed the broadcast to it finishing. */
+        final ExponentiallyBucketedHistogram mRunTime =
+                new ExponentiallyBucketedHistogram(TIMING_BUCKETS);
+    }
+
     public BroadcastStats() {
         mStartRealtime = SystemClock.elapsedRealtime();
         mStartUptime = SystemClock.uptimeMillis();
@@ -106,6 +189,58 @@ public final class BroadcastStats {
         ve.mCount++;
     }
 
+    /**
+     * Record the timing of a broadcast.
+     *
+     * @param deliveryTime time from dispatch to finish, or -1 if the broadcast wasn't ordered.
+     */
+    public void addBroadcastTiming(String action, long dispatchLatency, long deliveryTime) {
+        final ActionTiming at = getBounded(mActionTimings, action != null ? action : "(none)",
+                MAX_TIMED_ACTIONS, ActionTiming::new);
+        at.mDispatchLatency.add(toMillisBucketValue(dispatchLatency));
+        if (deliveryTime >= 0) {
+            at.mDeliveryTime.add(toMillisBucketValue(deliveryTime));
+        }
+    }
+
+    /**
+     * Record the timing of one receiver of an ordered broadcast.
+     *
+     * @param receiver the receiver's component, or package for registered receivers.
+     * @param startTime time until the receiver was handed the broadcast, or -1 if not known.
+     * @param runTime time the receiver took, or -1 if not known.
+     */
+    public void addReceiverTiming(String receiver, long startTime, long runTime) {
+        final ReceiverTiming rt = getBounded(mReceiverTimings, receiver, MAX_TIMED_RECEIVERS,
+                ReceiverTiming::new);
+        if (startTime >= 0) {
+            rt.mStartTime.add(toMillisBucketValue(startTime));
+        }
+        if (runTime >= 0) {
+            rt.mRunTime.add(toMillisBucketValue(runTime));
+        }
+    }
+
+    private static <T> T getBounded(ArrayMap<String, T> map, String key, int max,
+            Supplier<T> factory) {
+        T entry = map.get(key);
+        if (entry == null) {
+            if (map.size() >= max - 1) {
+                key = OTHER_KEY;
+                entry = map.get(key);
+            }
+            if (entry == null) {
+                entry = factory.get();
+                map.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    private static int toMillisBucketValue(long duration) {
+        return (int) Math.min(duration, Integer.MAX_VALUE);
+    }
+
     public boolean dumpStats(PrintWriter pw, String prefix, String dumpPackage) {
         boolean printedSomething = false;
         ArrayList<ActionEntry> actions = new ArrayList<>(mActions.size());
@@ -152,9 +287,73 @@ public final class BroadcastStats {
                 pw.println(" times");
             }
         }
+        if (dumpPackage == null && mActionTimings.size() > 0) {
+            printedSomething = true;
+            pw.print(prefix);
+            pw.println("Action timings (ms):");
+            for (int i = 0; i < mActionTimings.size(); i++) {
+                final ActionTiming at = mActionTimings.valueAt(i);
+                pw.print(prefix);
+                pw.print("  ");
+                pw.print(mActionTimings.keyAt(i));
+                pw.println(":");
+                at.mDispatchLatency.dump(pw, prefix + "    Dispatch latency: ");
+                at.mDeliveryTime.dump(pw, prefix + "    Delivery time: ");
+            }
+        }
+        boolean printedReceivers = false;
+        for (int i = 0; i < mReceiverTimings.size(); i++) {
+            final String receiver = mReceiverTimings.keyAt(i);
+            if (dumpPackage != null && !receiver.equals(dumpPackage)
+                    && !receiver.startsWith(dumpPackage + "/")) {
+                continue;
+            }
+            if (!printedReceivers) {
+                printedSomething = printedReceivers = true;
+                pw.print(prefix);
+                pw.println("Receiver timings (ms):");
+            }
+            final ReceiverTiming rt = mReceiverTimings.valueAt(i);
+            pw.print(prefix);
+            pw.print("  ");
+            pw.print(receiver);
+            pw.println(":");
+            rt.mStartTime.dump(pw, prefix + "    Start time: ");
+            rt.mRunTime.dump(pw, prefix + "    Run time: ");
+        }
         return printedSomething;
     }
 
+    public void writeToProto(ProtoOutputStream proto, long fieldId) {
+        final long token = proto.start(fieldId);
+        proto.write(START_REALTIME_MS, mStartRealtime);
+        proto.write(END_REALTIME_MS, mEndRealtime);
+        for (int i = 0; i < mActionTimings.size(); i++) {
+            final ActionTiming at = mActionTimings.valueAt(i);
+            writeTimingToProto(proto, ACTIONS, mActionTimings.keyAt(i), at.mDispatchLatency,
+                    at.mDeliveryTime);
+        }
+        for (int i = 0; i < mReceiverTimings.size(); i++) {
+            final ReceiverTiming rt = mReceiverTimings.valueAt(i);
+            writeTimingToProto(proto, RECEIVERS, mReceiverTimings.keyAt(i), rt.mStartTime,
+                    rt.mRunTime);
+        }
+        proto.end(token);
+    }
+
+    private static void writeTimingToProto(ProtoOutputStream proto, long fieldId, String name,
+            ExponentiallyBucketedHistogram first, ExponentiallyBucketedHistogram second) {
+        final long token = proto.start(fieldId);
+        proto.write(TIMING_NAME, name);
+        for (int i = 0; i < first.getNumBuckets(); i++) {
+            proto.write(TIMING_FIRST, first.getCount(i));
+        }
+        for (int i = 0; i < second.getNumBuckets(); i++) {
+            proto.write(TIMING_SECOND, second.getCount(i));
+        }
+        proto.end(token);
+    }
+
     public void dumpCheckinStats(PrintWriter pw, String dumpPackage) {
         pw.print("broadcast-stats,1,");
         pw.print(mStartRealtime);
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import com.android.internal.util.ExponentiallyBucketedHistogram;
+
+import java.io.PrintWriter;
+
+/**
+ * Cost of oom adj updates: how long they hold the activity manager lock and how many
+ * processes they compute. Full updates are split by what triggered them, so dumpsys shows how
+ * many full walks the incremental mode replaced, and how many it still fell back to.
+ * Guarded by the activity manager lock.
+ */
+final class OomAdjStats {
+    private static final int NUM_BUCKETS = 20;
+
+    /** A full update for a change of global state, such as the top app or the LRU list. */
+    static final int FULL = 0;
+    /** A full update for a change to some processes, such as a binding or a receiver. */
+    static final int FULL_FOR_PROCESS = 1;
+    /** An update of one process only. */
+    static final int SINGLE = 2;
+    /** An update of the changed processes and of the processes reachable from them. */
+    static final int REACHABLE = 3;
+
+    private static final String[] TYPE_NAMES = {
+            "Full (global change)", "Full (process change)", "Single process", "Reachable set" };
+
+    private final ExponentiallyBucketedHistogram[] mTimeUs =
+            new ExponentiallyBucketedHistogram[TYPE_NAMES.length];
+    private final ExponentiallyBucketedHistogram[] mVisited =
+            new ExponentiallyBucketedHistogram[TYPE_NAMES.length];
+    private final long[] mCounts = new long[TYPE_NAMES.length];
+
+    /** Reachable set updates that ended in a full update anyway. */
+    private long mReachableFallbacks;
+
+    OomAdjStats() {
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            mTimeUs[i] = new ExponentiallyBucketedHistogram(NUM_BUCKETS);
+            mVisited[i] = new ExponentiallyBucketedHistogram(NUM_BUCKETS);
+        }
+    }
+
+    /**
+     * @param type One of {@link #FULL}, {@link #FULL_FOR_PROCESS}, {@link #SINGLE} or
+     *             {@link #REACHABLE}.
+     */
+    void noteUpdate(int type, long durationUs, int visited) {
+        mCounts[type]++;
+        mTimeUs[type].add((int) Math.min(durationUs, Integer.MAX_VALUE));
+        mVisited[type].add(visited);
+    }
+
+    /** Note that a reachable set update needed a full update, which is noted on its own. */
+    void noteReachableFallback() {
+        mReachableFallbacks++;
+    }
+
+    long getCount(int type) {
+        return mCounts[type];
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.println("OOM adj updates:");
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            pw.print(prefix); pw.print("  "); pw.print(TYPE_NAMES[i]); pw.print(": ");
+            pw.print(mCounts[i]);
+            if (i == REACHABLE) {
+                pw.print(" ("); pw.print(mReachableFallbacks); pw.print(" fell back to full)");
+            }
+            pw.println();
+            mTimeUs[i].dump(pw, prefix + "    Time (us): ");
+            mVisited[i].dump(pw, prefix + "    Processes: ");
+        }
+    }
+}
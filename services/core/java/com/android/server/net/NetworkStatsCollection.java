@@ -81,7 +81,7 @@ import java.util.Objects;
  * Collection of {@link NetworkStatsHistory}, stored based on combined key of
  * {@link NetworkIdentitySet}, UID, set, and tag. Knows how to persist itself.
  */
-public class NetworkStatsCollection implements FileRotator.Reader {
+public class NetworkStatsCollection implements FileRotator.Reader, NetworkStatsQueryable {
     /** File header magic number: "ANET" */
     private static final int FILE_MAGIC = 0x414E4554;
 
@@ -214,6 +214,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return r / den;
     }
 
+    @Override
     public int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel) {
         return getRelevantUids(accessLevel, Binder.getCallingUid());
     }
@@ -239,6 +240,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
      * Combine all {@link NetworkStatsHistory} in this collection which match
      * the requested parameters.
      */
+    @Override
     public NetworkStatsHistory getHistory(NetworkTemplate template, SubscriptionPlan augmentPlan,
             int uid, int set, int tag, int fields, long start, long end,
             @NetworkStatsAccess.Level int accessLevel, int callerUid) {
@@ -352,6 +354,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
      * Summarize all {@link NetworkStatsHistory} in this collection which match
      * the requested parameters.
      */
+    @Override
     public NetworkStats getSummary(NetworkTemplate template, long start, long end,
             @NetworkStatsAccess.Level int accessLevel, int callerUid) {
         final long now = System.currentTimeMillis();
@@ -453,6 +456,11 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
+    @Override
+    public void release() {
+        // Nothing to release on the heap
+    }
+
     @Override
     public void read(InputStream in) throws IOException {
         read(new DataInputStream(in));
@@ -666,6 +674,21 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                 / mBucketDuration);
     }
 
+    /**
+     * Visits each {@link NetworkStatsHistory} in this collection.
+     */
+    void forEachHistory(HistoryVisitor visitor) {
+        for (int i = 0; i < mStats.size(); i++) {
+            final Key key = mStats.keyAt(i);
+            visitor.visit(key.ident, key.uid, key.set, key.tag, mStats.valueAt(i));
+        }
+    }
+
+    interface HistoryVisitor {
+        void visit(NetworkIdentitySet ident, int uid, int set, int tag,
+                NetworkStatsHistory history);
+    }
+
     private ArrayList<Key> getSortedKeys() {
         final ArrayList<Key> keys = Lists.newArrayList();
         keys.addAll(mStats.keySet());
@@ -763,7 +786,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
      * Test if given {@link NetworkTemplate} matches any {@link NetworkIdentity}
      * in the given {@link NetworkIdentitySet}.
      */
-    private static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
+    static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
         for (NetworkIdentity ident : identSet) {
             if (template.matches(ident)) {
                 return true;
@@ -0,0 +1,631 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.DEFAULT_NETWORK_NO;
+import static android.net.NetworkStats.DEFAULT_NETWORK_YES;
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.METERED_NO;
+import static android.net.NetworkStats.METERED_YES;
+import static android.net.NetworkStats.ROAMING_NO;
+import static android.net.NetworkStats.ROAMING_YES;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.Binder;
+import android.telephony.SubscriptionPlan;
+import android.text.format.DateUtils;
+import android.util.ArrayMap;
+import android.util.IntArray;
+import android.util.MathUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Read-only stats of a {@link NetworkStatsCollection}, stored in a columnar file that is mapped
+ * into memory rather than loaded on the heap. Queries only touch the keys and buckets they
+ * need, so they cost neither the time nor the heap of loading the whole collection.
+ * <p>
+ * Layout, big endian: int magic, int version, long bucket duration, long start, long end,
+ * long total bytes, int length and bytes of the {@link NetworkIdentitySet} table, int key
+ * count, then the keys sorted by (uid, set, tag, ident) as (int uid, int set, int tag,
+ * int ident index, long bucket duration, int first bucket, int bucket count), int bucket
+ * count, and one column of longs per field of {@link NetworkStatsHistory}, each holding the
+ * buckets of every key in key order.
+ * <p>
+ * Stats recorded since the file was written can be overlaid as a
+ * {@link NetworkStatsCollection}, and are included in every query. The file is unmapped once
+ * the collection and every copy made with an overlay have been released.
+ */
+public class NetworkStatsColumnarCollection implements NetworkStatsQueryable {
+    /** File header magic number: "NSCL" */
+    private static final int FILE_MAGIC = 0x4E53434C;
+
+    private static final int VERSION_INIT = 1;
+
+    private static final int HEADER_SIZE = 2 * 4 + 4 * 8;
+    private static final int KEY_SIZE = 6 * 4 + 8;
+
+    private static final int COLUMN_BUCKET_START = 0;
+    private static final int COLUMN_ACTIVE_TIME = 1;
+    private static final int COLUMN_RX_BYTES = 2;
+    private static final int COLUMN_RX_PACKETS = 3;
+    private static final int COLUMN_TX_BYTES = 4;
+    private static final int COLUMN_TX_PACKETS = 5;
+    private static final int COLUMN_OPERATIONS = 6;
+    private static final int COLUMNS = 7;
+
+    private final Mapping mMapping;
+    private final ByteBuffer mBuffer;
+    private final long mBucketDuration;
+    private final long mStartMillis;
+    private final long mEndMillis;
+    private final long mTotalBytes;
+    private final NetworkIdentitySet[] mIdents;
+    private final int mKeyCount;
+    private final int mKeysPos;
+    private final int mBucketCount;
+    private final int mColumnsPos;
+    private final NetworkStatsCollection mOverlay;
+    private boolean mReleased;
+
+    /**
+     * Mapped file shared by a collection and its copies with overlays. Queries hold a
+     * reference too, so a copy released while another thread queries it stays mapped.
+     */
+    private static class Mapping {
+        final ByteBuffer buffer;
+        private int mRefs = 1;
+
+        Mapping(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        synchronized void acquire() {
+            if (mRefs == 0) {
+                throw new IllegalStateException("mapping already released");
+            }
+            mRefs++;
+        }
+
+        synchronized void release() {
+            if (--mRefs == 0) {
+                NioUtils.freeDirectBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Map a file written by {@link #write}. The caller must {@link #release} the result.
+     */
+    public static NetworkStatsColumnarCollection map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            final ByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return new NetworkStatsColumnarCollection(buffer);
+            } catch (IOException | RuntimeException e) {
+                NioUtils.freeDirectBuffer(buffer);
+                throw e;
+            }
+        }
+    }
+
+    private NetworkStatsColumnarCollection(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE) {
+            throw new ProtocolException("truncated header");
+        }
+        final int magic = buffer.getInt(0);
+        if (magic != FILE_MAGIC) {
+            throw new ProtocolException("unexpected magic: " + magic);
+        }
+        final int version = buffer.getInt(4);
+        if (version != VERSION_INIT) {
+            throw new ProtocolException("unexpected version: " + version);
+        }
+        mMapping = new Mapping(buffer);
+        mBuffer = buffer;
+        mBucketDuration = buffer.getLong(8);
+        mStartMillis = buffer.getLong(16);
+        mEndMillis = buffer.getLong(24);
+        mTotalBytes = buffer.getLong(32);
+
+        final int identsLength = buffer.getInt(HEADER_SIZE);
+        final byte[] idents = new byte[identsLength];
+        final ByteBuffer identsBuffer = buffer.duplicate();
+        identsBuffer.position(HEADER_SIZE + 4);
+        identsBuffer.get(idents);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(idents));
+        mIdents = new NetworkIdentitySet[in.readInt()];
+        for (int i = 0; i < mIdents.length; i++) {
+            mIdents[i] = new NetworkIdentitySet(in);
+        }
+
+        final int keyCountPos = HEADER_SIZE + 4 + identsLength;
+        mKeyCount = buffer.getInt(keyCountPos);
+        mKeysPos = keyCountPos + 4;
+        final int bucketCountPos = mKeysPos + mKeyCount * KEY_SIZE;
+        mBucketCount = buffer.getInt(bucketCountPos);
+        mColumnsPos = bucketCountPos + 4;
+        if ((long) mColumnsPos + (long) COLUMNS * mBucketCount * 8 > buffer.capacity()) {
+            throw new ProtocolException("truncated columns");
+        }
+        mOverlay = null;
+    }
+
+    private NetworkStatsColumnarCollection(NetworkStatsColumnarCollection base,
+            NetworkStatsCollection overlay) {
+        base.mMapping.acquire();
+        mMapping = base.mMapping;
+        mBuffer = base.mBuffer;
+        mBucketDuration = base.mBucketDuration;
+        mStartMillis = base.mStartMillis;
+        mEndMillis = base.mEndMillis;
+        mTotalBytes = base.mTotalBytes;
+        mIdents = base.mIdents;
+        mKeyCount = base.mKeyCount;
+        mKeysPos = base.mKeysPos;
+        mBucketCount = base.mBucketCount;
+        mColumnsPos = base.mColumnsPos;
+        mOverlay = overlay;
+    }
+
+    /**
+     * @return the same stats, with the stats of the given collection added to every query. The
+     *         caller must {@link #release} the result.
+     */
+    public NetworkStatsColumnarCollection withOverlay(NetworkStatsCollection overlay) {
+        return new NetworkStatsColumnarCollection(this, overlay);
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            if (mReleased) return;
+            mReleased = true;
+        }
+        mMapping.release();
+    }
+
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    public long getEndMillis() {
+        return mEndMillis;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    private int keyUid(int key) {
+        return mBuffer.getInt(mKeysPos + key * KEY_SIZE);
+    }
+
+    private int keySet(int key) {
+        return mBuffer.getInt(mKeysPos + key * KEY_SIZE + 4);
+    }
+
+    private int keyTag(int key) {
+        return mBuffer.getInt(mKeysPos + key * KEY_SIZE + 8);
+    }
+
+    private int keyIdent(int key) {
+        return mBuffer.getInt(mKeysPos + key * KEY_SIZE + 12);
+    }
+
+    private long keyBucketDuration(int key) {
+        return mBuffer.getLong(mKeysPos + key * KEY_SIZE + 16);
+    }
+
+    private int keyFirstBucket(int key) {
+        return mBuffer.getInt(mKeysPos + key * KEY_SIZE + 24);
+    }
+
+    private int keyBucketCount(int key) {
+        return mBuffer.getInt(mKeysPos + key * KEY_SIZE + 28);
+    }
+
+    private long getValue(int column, int bucket) {
+        return mBuffer.getLong(mColumnsPos + (column * mBucketCount + bucket) * 8);
+    }
+
+    /**
+     * @return the index of the first key of the uid, or of the first key after it.
+     */
+    private int findFirstKey(int uid) {
+        int lo = 0;
+        int hi = mKeyCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (keyUid(mid) < uid) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the index of the first of the buckets that starts at or after the time.
+     */
+    private int findFirstBucket(int first, int count, long time) {
+        int lo = first;
+        int hi = first + count;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (getValue(COLUMN_BUCKET_START, mid) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private boolean[] matchIdents(NetworkTemplate template) {
+        final boolean[] matches = new boolean[mIdents.length];
+        for (int i = 0; i < mIdents.length; i++) {
+            matches[i] = NetworkStatsCollection.templateMatches(template, mIdents[i]);
+        }
+        return matches;
+    }
+
+    @Override
+    public int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel) {
+        return getRelevantUids(accessLevel, Binder.getCallingUid());
+    }
+
+    public int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel,
+            final int callerUid) {
+        mMapping.acquire();
+        try {
+            return getRelevantUidsMapped(accessLevel, callerUid);
+        } finally {
+            mMapping.release();
+        }
+    }
+
+    private int[] getRelevantUidsMapped(@NetworkStatsAccess.Level int accessLevel,
+            int callerUid) {
+        final IntArray uids = new IntArray();
+        for (int i = 0; i < mKeyCount; i++) {
+            final int uid = keyUid(i);
+            // Keys are sorted by uid
+            if ((uids.size() == 0 || uids.get(uids.size() - 1) != uid)
+                    && NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+                uids.add(uid);
+            }
+        }
+        if (mOverlay != null) {
+            for (int uid : mOverlay.getRelevantUids(accessLevel, callerUid)) {
+                final int j = uids.binarySearch(uid);
+                if (j < 0) {
+                    uids.add(~j, uid);
+                }
+            }
+        }
+        return uids.toArray();
+    }
+
+    /**
+     * Combine the buckets which match the requested parameters. Unlike
+     * {@link NetworkStatsCollection}, the history can't be augmented with a
+     * {@link SubscriptionPlan}, which is only ever done for network-wide stats.
+     */
+    @Override
+    public NetworkStatsHistory getHistory(NetworkTemplate template, SubscriptionPlan augmentPlan,
+            int uid, int set, int tag, int fields, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        if (augmentPlan != null) {
+            throw new IllegalArgumentException("Augmenting history is not supported");
+        }
+        if (!NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+            throw new SecurityException("Network stats history of uid " + uid
+                    + " is forbidden for caller " + callerUid);
+        }
+        mMapping.acquire();
+        try {
+            return getHistoryMapped(template, uid, set, tag, fields, start, end, accessLevel,
+                    callerUid);
+        } finally {
+            mMapping.release();
+        }
+    }
+
+    private NetworkStatsHistory getHistoryMapped(NetworkTemplate template, int uid, int set,
+            int tag, int fields, long start, long end, @NetworkStatsAccess.Level int accessLevel,
+            int callerUid) {
+
+        final int bucketEstimate = (int) MathUtils.constrain(((end - start) / mBucketDuration), 0,
+                (180 * DateUtils.DAY_IN_MILLIS) / mBucketDuration);
+        final NetworkStatsHistory combined = new NetworkStatsHistory(
+                mBucketDuration, bucketEstimate, fields);
+
+        // shortcut when we know stats will be empty
+        if (start == end) return combined;
+
+        final boolean[] identMatches = matchIdents(template);
+        final NetworkStats.Entry entry = new NetworkStats.Entry(
+                IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, 0L, 0L, 0L, 0L, 0L);
+        for (int k = findFirstKey(uid); k < mKeyCount && keyUid(k) == uid; k++) {
+            if (!NetworkStats.setMatches(set, keySet(k)) || keyTag(k) != tag
+                    || !identMatches[keyIdent(k)]) {
+                continue;
+            }
+            final long duration = keyBucketDuration(k);
+            final int first = keyFirstBucket(k);
+            final int last = first + keyBucketCount(k);
+            // Only copy buckets that atomically occur in the requested range
+            for (int b = findFirstBucket(first, last - first, start); b < last; b++) {
+                final long bucketStart = getValue(COLUMN_BUCKET_START, b);
+                if (bucketStart + duration > end) break;
+                entry.rxBytes = getValue(COLUMN_RX_BYTES, b);
+                entry.rxPackets = getValue(COLUMN_RX_PACKETS, b);
+                entry.txBytes = getValue(COLUMN_TX_BYTES, b);
+                entry.txPackets = getValue(COLUMN_TX_PACKETS, b);
+                entry.operations = getValue(COLUMN_OPERATIONS, b);
+                combined.recordData(bucketStart, bucketStart + duration, entry);
+            }
+        }
+
+        if (mOverlay != null) {
+            combined.recordEntireHistory(mOverlay.getHistory(template, null, uid, set, tag,
+                    fields, start, end, accessLevel, callerUid));
+        }
+        return combined;
+    }
+
+    @Override
+    public NetworkStats getSummary(NetworkTemplate template, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        mMapping.acquire();
+        try {
+            return getSummaryMapped(template, start, end, accessLevel, callerUid);
+        } finally {
+            mMapping.release();
+        }
+    }
+
+    private NetworkStats getSummaryMapped(NetworkTemplate template, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        final long now = System.currentTimeMillis();
+
+        final NetworkStats stats = new NetworkStats(end - start, 24);
+
+        // shortcut when we know stats will be empty
+        if (start == end) return stats;
+
+        final boolean[] identMatches = matchIdents(template);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int k = 0; k < mKeyCount; k++) {
+            final int ident = keyIdent(k);
+            final int uid = keyUid(k);
+            final int set = keySet(k);
+            if (!identMatches[ident]
+                    || !NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)
+                    || set >= NetworkStats.SET_DEBUG_START) {
+                continue;
+            }
+
+            entry.iface = IFACE_ALL;
+            entry.uid = uid;
+            entry.set = set;
+            entry.tag = keyTag(k);
+            entry.defaultNetwork = mIdents[ident].areAllMembersOnDefaultNetwork()
+                    ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
+            entry.metered = mIdents[ident].isAnyMemberMetered() ? METERED_YES : METERED_NO;
+            entry.roaming = mIdents[ident].isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+            entry.rxBytes = 0;
+            entry.rxPackets = 0;
+            entry.txBytes = 0;
+            entry.txPackets = 0;
+            entry.operations = 0;
+
+            // Interpolate across buckets, the same way as NetworkStatsHistory#getValues
+            final long duration = keyBucketDuration(k);
+            final int first = keyFirstBucket(k);
+            final int last = first + keyBucketCount(k);
+            // The bucket before the first one starting at or after start may still overlap it.
+            // Search from start rather than start - duration, which overflows for MIN_VALUE.
+            final int firstOverlap =
+                    Math.max(first, findFirstBucket(first, last - first, start) - 1);
+            for (int b = firstOverlap; b < last; b++) {
+                final long curStart = getValue(COLUMN_BUCKET_START, b);
+                final long curEnd = curStart + duration;
+
+                // bucket is older than request
+                if (curEnd <= start) continue;
+                // bucket is newer than request; we're finished
+                if (curStart >= end) break;
+
+                // include full value for active buckets, otherwise only fractional
+                final boolean activeBucket = curStart < now && curEnd > now;
+                final long overlap;
+                if (activeBucket) {
+                    overlap = duration;
+                } else {
+                    final long overlapEnd = curEnd < end ? curEnd : end;
+                    final long overlapStart = curStart > start ? curStart : start;
+                    overlap = overlapEnd - overlapStart;
+                }
+                if (overlap <= 0) continue;
+
+                entry.rxBytes += getValue(COLUMN_RX_BYTES, b) * overlap / duration;
+                entry.rxPackets += getValue(COLUMN_RX_PACKETS, b) * overlap / duration;
+                entry.txBytes += getValue(COLUMN_TX_BYTES, b) * overlap / duration;
+                entry.txPackets += getValue(COLUMN_TX_PACKETS, b) * overlap / duration;
+                entry.operations += getValue(COLUMN_OPERATIONS, b) * overlap / duration;
+            }
+
+            if (!entry.isEmpty()) {
+                stats.combineValues(entry);
+            }
+        }
+
+        if (mOverlay != null) {
+            stats.combineAllValues(
+                    mOverlay.getSummary(template, start, end, accessLevel, callerUid));
+        }
+        return stats;
+    }
+
+    /**
+     * Record the buckets that start at or after the cutoff into the given collection, to write
+     * an updated file. The overlay isn't included.
+     */
+    public void recordInto(NetworkStatsCollection collection, long cutoffMillis) {
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int k = 0; k < mKeyCount; k++) {
+            final NetworkIdentitySet ident = mIdents[keyIdent(k)];
+            final int uid = keyUid(k);
+            final int set = keySet(k);
+            final int tag = keyTag(k);
+            final long duration = keyBucketDuration(k);
+            final int first = keyFirstBucket(k);
+            final int last = first + keyBucketCount(k);
+            for (int b = findFirstBucket(first, last - first, cutoffMillis); b < last; b++) {
+                final long bucketStart = getValue(COLUMN_BUCKET_START, b);
+                entry.rxBytes = getValue(COLUMN_RX_BYTES, b);
+                entry.rxPackets = getValue(COLUMN_RX_PACKETS, b);
+                entry.txBytes = getValue(COLUMN_TX_BYTES, b);
+                entry.txPackets = getValue(COLUMN_TX_PACKETS, b);
+                entry.operations = getValue(COLUMN_OPERATIONS, b);
+                collection.recordData(ident, uid, set, tag, bucketStart, bucketStart + duration,
+                        entry);
+            }
+        }
+    }
+
+    private static class Row {
+        final int ident;
+        final int uid;
+        final int set;
+        final int tag;
+        final NetworkStatsHistory history;
+
+        Row(int ident, int uid, int set, int tag, NetworkStatsHistory history) {
+            this.ident = ident;
+            this.uid = uid;
+            this.set = set;
+            this.tag = tag;
+            this.history = history;
+        }
+    }
+
+    /**
+     * Write the collection in the format read by {@link #map}.
+     */
+    public static void write(NetworkStatsCollection collection, long bucketDuration,
+            DataOutputStream out) throws IOException {
+        final ArrayMap<NetworkIdentitySet, Integer> identIndexes = new ArrayMap<>();
+        final ArrayList<NetworkIdentitySet> idents = new ArrayList<>();
+        final ArrayList<Row> rows = new ArrayList<>();
+        collection.forEachHistory((ident, uid, set, tag, history) -> {
+            Integer index = identIndexes.get(ident);
+            if (index == null) {
+                index = idents.size();
+                identIndexes.put(ident, index);
+                idents.add(ident);
+            }
+            rows.add(new Row(index, uid, set, tag, history));
+        });
+        rows.sort((a, b) -> {
+            int res = Integer.compare(a.uid, b.uid);
+            if (res == 0) res = Integer.compare(a.set, b.set);
+            if (res == 0) res = Integer.compare(a.tag, b.tag);
+            if (res == 0) res = Integer.compare(a.ident, b.ident);
+            return res;
+        });
+
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(VERSION_INIT);
+        out.writeLong(bucketDuration);
+        out.writeLong(collection.getStartMillis());
+        out.writeLong(collection.getEndMillis());
+        out.writeLong(collection.getTotalBytes());
+
+        final ByteArrayOutputStream identBytes = new ByteArrayOutputStream();
+        final DataOutputStream identOut = new DataOutputStream(identBytes);
+        identOut.writeInt(idents.size());
+        for (NetworkIdentitySet ident : idents) {
+            ident.writeToStream(identOut);
+        }
+        identOut.flush();
+        out.writeInt(identBytes.size());
+        identBytes.writeTo(out);
+
+        out.writeInt(rows.size());
+        int bucketCount = 0;
+        for (Row row : rows) {
+            out.writeInt(row.uid);
+            out.writeInt(row.set);
+            out.writeInt(row.tag);
+            out.writeInt(row.ident);
+            out.writeLong(row.history.getBucketDuration());
+            out.writeInt(bucketCount);
+            out.writeInt(row.history.size());
+            bucketCount += row.history.size();
+        }
+
+        out.writeInt(bucketCount);
+        NetworkStatsHistory.Entry entry = null;
+        for (int column = 0; column < COLUMNS; column++) {
+            for (Row row : rows) {
+                for (int i = 0; i < row.history.size(); i++) {
+                    entry = row.history.getValues(i, entry);
+                    out.writeLong(getColumnValue(entry, column));
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static long getColumnValue(NetworkStatsHistory.Entry entry, int column) {
+        final long value;
+        switch (column) {
+            case COLUMN_BUCKET_START: return entry.bucketStart;
+            case COLUMN_ACTIVE_TIME: value = entry.activeTime; break;
+            case COLUMN_RX_BYTES: value = entry.rxBytes; break;
+            case COLUMN_RX_PACKETS: value = entry.rxPackets; break;
+            case COLUMN_TX_BYTES: value = entry.txBytes; break;
+            case COLUMN_TX_PACKETS: value = entry.txPackets; break;
+            case COLUMN_OPERATIONS: value = entry.operations; break;
+            default: throw new IllegalArgumentException("unknown column " + column);
+        }
+        // Fields the history doesn't track count as nothing
+        return value == NetworkStatsHistory.Entry.UNKNOWN ? 0 : value;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.telephony.SubscriptionPlan;
+
+/**
+ * Stats that can be queried like a {@link NetworkStatsCollection}, whether or not they are
+ * loaded on the heap.
+ */
+interface NetworkStatsQueryable {
+    int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel);
+
+    /**
+     * Combine all {@link NetworkStatsHistory} which match the requested parameters.
+     */
+    NetworkStatsHistory getHistory(NetworkTemplate template, SubscriptionPlan augmentPlan,
+            int uid, int set, int tag, int fields, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid);
+
+    /**
+     * Summarize all {@link NetworkStatsHistory} which match the requested parameters.
+     */
+    NetworkStats getSummary(NetworkTemplate template, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid);
+
+    /**
+     * Called when the caller is done querying, so any memory mapped for the stats can be
+     * released. The stats must not be queried afterwards.
+     */
+    void release();
+}
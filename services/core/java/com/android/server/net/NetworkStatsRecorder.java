@@ -31,12 +31,16 @@ import android.net.NetworkTemplate;
 import android.net.TrafficStats;
 import android.os.Binder;
 import android.os.DropBoxManager;
+import android.os.Handler;
 import android.service.NetworkStatsRecorderProto;
+import android.util.AtomicFile;
+import android.util.IntArray;
 import android.util.Log;
 import android.util.MathUtils;
 import android.util.Slog;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.net.VpnInfo;
 import com.android.internal.util.FileRotator;
 import com.android.internal.util.IndentingPrintWriter;
@@ -45,9 +49,11 @@ import libcore.io.IoUtils;
 
 import com.google.android.collect.Sets;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -85,6 +91,8 @@ public class NetworkStatsRecorder {
 
     private long mPersistThresholdBytes = 2 * MB_IN_BYTES;
     private NetworkStats mLastSnapshot;
+    /** Delta of the last snapshot, reused by the next one since nothing keeps it. */
+    private NetworkStats mDeltaRecycle;
 
     private final NetworkStatsCollection mPending;
     private final NetworkStatsCollection mSinceBoot;
@@ -93,6 +101,41 @@ public class NetworkStatsRecorder {
 
     private WeakReference<NetworkStatsCollection> mComplete;
 
+    /** Columnar copy of the persisted history, if enabled with {@link #setColumnarFile}. */
+    private AtomicFile mColumnarFile;
+    private Handler mColumnarHandler;
+
+    /**
+     * Guards the columnar copy, which is rebuilt on {@link #mColumnarHandler} without holding
+     * the lock of the caller.
+     */
+    private final Object mColumnarLock = new Object();
+    /** Whether the columnar copy was built. From then on, it is rebuilt as history changes. */
+    @GuardedBy("mColumnarLock")
+    private boolean mColumnarBuilt;
+    /** Last columnar copy written, or null when the persisted history was deleted since. */
+    @GuardedBy("mColumnarLock")
+    private NetworkStatsColumnarCollection mColumnar;
+    /** Stats persisted since {@link #mColumnar} was written, for the next rebuild. */
+    @GuardedBy("mColumnarLock")
+    private NetworkStatsCollection mColumnarDelta;
+    /** Stats persisted since {@link #mColumnar} was written, taken by the running rebuild. */
+    @GuardedBy("mColumnarLock")
+    private NetworkStatsCollection mColumnarRebuildDelta;
+    /** UIDs removed since the running rebuild took its changes. */
+    @GuardedBy("mColumnarLock")
+    private final IntArray mColumnarRemovedUids = new IntArray();
+    /** Start of the rotated files; rotation deleted anything older. */
+    @GuardedBy("mColumnarLock")
+    private long mColumnarCutoff = Long.MIN_VALUE;
+    /** Bumped when persisted history is deleted, to drop the result of a running rebuild. */
+    @GuardedBy("mColumnarLock")
+    private int mColumnarGeneration;
+    @GuardedBy("mColumnarLock")
+    private boolean mColumnarDirty;
+    @GuardedBy("mColumnarLock")
+    private boolean mColumnarRebuilding;
+
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
      */
@@ -138,6 +181,28 @@ public class NetworkStatsRecorder {
                 thresholdBytes, 1 * KB_IN_BYTES, 100 * MB_IN_BYTES);
     }
 
+    /**
+     * Serve {@link #getOrLoadQueryableLocked()} from a columnar copy of the persisted history
+     * in the given file, which is mapped rather than loaded on the heap. The copy is rebuilt on
+     * the given handler when the persisted history changes.
+     */
+    public void setColumnarFile(File file, Handler handler) {
+        synchronized (mColumnarLock) {
+            if (mColumnar != null) {
+                mColumnar.release();
+                mColumnar = null;
+            }
+            mColumnarFile = file != null ? new AtomicFile(file) : null;
+            mColumnarHandler = handler;
+            mColumnarBuilt = false;
+            mColumnarDelta = null;
+            mColumnarRebuildDelta = null;
+            mColumnarRemovedUids.clear();
+            mColumnarGeneration++;
+            mColumnarDirty = false;
+        }
+    }
+
     public void resetLocked() {
         mLastSnapshot = null;
         if (mPending != null) {
@@ -176,6 +241,201 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Return complete history for queries, which the caller must
+     * {@link NetworkStatsQueryable#release} when done. When a columnar file is set and complete
+     * history isn't already loaded, this is the last mapped columnar copy of the persisted
+     * history, overlaid with a copy of the stats persisted since and of the pending stats.
+     */
+    public NetworkStatsQueryable getOrLoadQueryableLocked() {
+        checkNotNull(mRotator, "missing FileRotator");
+        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        if (complete != null || mColumnarFile == null) {
+            return getOrLoadCompleteLocked();
+        }
+        synchronized (mColumnarLock) {
+            if (!mColumnarBuilt && !buildColumnar()) {
+                return getOrLoadCompleteLocked();
+            }
+            final NetworkStatsCollection overlay = new NetworkStatsCollection(mBucketDuration);
+            if (mColumnarRebuildDelta != null) {
+                overlay.recordCollection(mColumnarRebuildDelta);
+            }
+            overlay.recordCollection(mColumnarDelta);
+            overlay.recordCollection(mPending);
+            if (mColumnar == null) {
+                // Everything persisted before the delta was deleted
+                return overlay;
+            }
+            return mColumnar.withOverlay(overlay);
+        }
+    }
+
+    /**
+     * Build the first columnar copy from the rotated files. Later copies are rebuilt from it.
+     */
+    @GuardedBy("mColumnarLock")
+    private boolean buildColumnar() {
+        if (LOGD) Slog.d(TAG, "buildColumnar() for " + mCookie);
+        final NetworkStatsCollection persisted = new NetworkStatsCollection(mBucketDuration);
+        try {
+            mRotator.readMatching(persisted, Long.MIN_VALUE, Long.MAX_VALUE);
+        } catch (IOException e) {
+            Slog.w(TAG, "problem reading stats for columnar copy of " + mCookie, e);
+            return false;
+        }
+        final NetworkStatsColumnarCollection columnar = writeColumnar(persisted);
+        if (columnar == null) {
+            return false;
+        }
+        mColumnar = columnar;
+        mColumnarBuilt = true;
+        mColumnarDelta = new NetworkStatsCollection(mBucketDuration);
+        return true;
+    }
+
+    /**
+     * Write the collection to the columnar file and map it, or return null on failure.
+     */
+    private NetworkStatsColumnarCollection writeColumnar(NetworkStatsCollection collection) {
+        FileOutputStream fos = null;
+        try {
+            fos = mColumnarFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            NetworkStatsColumnarCollection.write(collection, mBucketDuration, out);
+            mColumnarFile.finishWrite(fos);
+            return NetworkStatsColumnarCollection.map(mColumnarFile.getBaseFile());
+        } catch (IOException e) {
+            Slog.w(TAG, "problem building columnar stats for " + mCookie, e);
+            mColumnarFile.failWrite(fos);
+            return null;
+        }
+    }
+
+    @GuardedBy("mColumnarLock")
+    private void scheduleColumnarRebuild() {
+        mColumnarDirty = true;
+        if (!mColumnarRebuilding) {
+            mColumnarRebuilding = true;
+            mColumnarHandler.post(this::rebuildColumnar);
+        }
+    }
+
+    /**
+     * Write a new columnar copy from the last one and the changes since, without reading the
+     * rotated files. Neither queries nor persisting wait for it: until the new copy is mapped,
+     * queries use the last one with the persisted stats as an overlay.
+     */
+    private void rebuildColumnar() {
+        while (true) {
+            final NetworkStatsColumnarCollection base;
+            final NetworkStatsCollection delta;
+            final int[] removedUids;
+            final long cutoff;
+            final int generation;
+            synchronized (mColumnarLock) {
+                if (!mColumnarDirty || !mColumnarBuilt) {
+                    mColumnarRebuilding = false;
+                    return;
+                }
+                mColumnarDirty = false;
+                base = mColumnar != null ? mColumnar.withOverlay(null) : null;
+                delta = mColumnarDelta;
+                mColumnarRebuildDelta = delta;
+                mColumnarDelta = new NetworkStatsCollection(mBucketDuration);
+                removedUids = mColumnarRemovedUids.toArray();
+                mColumnarRemovedUids.clear();
+                cutoff = mColumnarCutoff;
+                generation = mColumnarGeneration;
+            }
+            if (LOGD) Slog.d(TAG, "rebuildColumnar() for " + mCookie);
+
+            final NetworkStatsCollection merged = new NetworkStatsCollection(mBucketDuration);
+            if (base != null) {
+                try {
+                    base.recordInto(merged, cutoff);
+                } finally {
+                    base.release();
+                }
+            }
+            // The delta had them removed already
+            merged.removeUids(removedUids);
+            merged.recordCollection(delta);
+            final NetworkStatsColumnarCollection columnar = writeColumnar(merged);
+
+            NetworkStatsColumnarCollection unused = null;
+            synchronized (mColumnarLock) {
+                if (generation != mColumnarGeneration) {
+                    // History was deleted while rebuilding
+                    unused = columnar;
+                } else if (columnar == null) {
+                    // Keep the changes for the rebuild after the next persist
+                    delta.recordCollection(mColumnarDelta);
+                    mColumnarDelta = delta;
+                    mColumnarRebuildDelta = null;
+                    mColumnarRemovedUids.addAll(IntArray.wrap(removedUids));
+                    mColumnarRebuilding = false;
+                    return;
+                } else {
+                    unused = mColumnar;
+                    mColumnar = columnar;
+                    mColumnarRebuildDelta = null;
+                }
+            }
+            if (unused != null) {
+                unused.release();
+            }
+        }
+    }
+
+    /**
+     * Copy stats about to be written to the rotated files for the columnar copy, since writing
+     * them resets them.
+     *
+     * @return the copy, or null when there is no columnar copy to update.
+     */
+    private NetworkStatsCollection copyForColumnarLocked(NetworkStatsCollection stats) {
+        synchronized (mColumnarLock) {
+            if (!mColumnarBuilt) return null;
+        }
+        final NetworkStatsCollection copy = new NetworkStatsCollection(mBucketDuration);
+        copy.recordCollection(stats);
+        return copy;
+    }
+
+    /**
+     * Note stats that were just written to the rotated files, to rebuild the columnar copy.
+     */
+    private void notePersistedLocked(@Nullable NetworkStatsCollection persisted) {
+        if (persisted == null) return;
+        synchronized (mColumnarLock) {
+            if (!mColumnarBuilt) return;
+            mColumnarDelta.recordCollection(persisted);
+            mColumnarCutoff = mRotator.getOldestStartMillis();
+            scheduleColumnarRebuild();
+        }
+    }
+
+    /**
+     * Note that the rotated files were deleted, so the columnar copy only holds what is
+     * persisted from now on.
+     */
+    private void noteDeletedLocked() {
+        synchronized (mColumnarLock) {
+            if (!mColumnarBuilt) return;
+            if (mColumnar != null) {
+                mColumnar.release();
+                mColumnar = null;
+            }
+            mColumnarDelta = new NetworkStatsCollection(mBucketDuration);
+            mColumnarRebuildDelta = null;
+            mColumnarRemovedUids.clear();
+            mColumnarCutoff = Long.MIN_VALUE;
+            mColumnarGeneration++;
+            scheduleColumnarRebuild();
+        }
+    }
+
     public NetworkStatsCollection getOrLoadPartialLocked(long start, long end) {
         checkNotNull(mRotator, "missing FileRotator");
         NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
@@ -228,7 +488,8 @@ public class NetworkStatsRecorder {
         final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
 
         final NetworkStats delta = NetworkStats.subtract(
-                snapshot, mLastSnapshot, mObserver, mCookie);
+                snapshot, mLastSnapshot, mObserver, mCookie, mDeltaRecycle);
+        mDeltaRecycle = delta;
         final long end = currentTimeMillis;
         final long start = end - delta.getElapsedRealtime();
 
@@ -311,8 +572,10 @@ public class NetworkStatsRecorder {
         if (mPending.isDirty()) {
             if (LOGD) Slog.d(TAG, "forcePersistLocked() writing for " + mCookie);
             try {
+                final NetworkStatsCollection persisted = copyForColumnarLocked(mPending);
                 mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
                 mRotator.maybeRotate(currentTimeMillis);
+                notePersistedLocked(persisted);
                 mPending.reset();
             } catch (IOException e) {
                 Log.wtf(TAG, "problem persisting pending stats", e);
@@ -346,6 +609,13 @@ public class NetworkStatsRecorder {
         if (mPending != null) {
             mPending.removeUids(uids);
         }
+        synchronized (mColumnarLock) {
+            if (mColumnarBuilt) {
+                mColumnarDelta.removeUids(uids);
+                mColumnarRemovedUids.addAll(IntArray.wrap(uids));
+                scheduleColumnarRebuild();
+            }
+        }
         if (mSinceBoot != null) {
             mSinceBoot.removeUids(uids);
         }
@@ -436,6 +706,7 @@ public class NetworkStatsRecorder {
 
         // legacy file still exists; start empty to avoid double importing
         mRotator.deleteAll();
+        noteDeletedLocked();
 
         final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
         collection.readLegacyNetwork(file);
@@ -446,8 +717,10 @@ public class NetworkStatsRecorder {
         if (!collection.isEmpty()) {
             // process legacy data, creating active file at starting time, then
             // using end time to possibly trigger rotation.
+            final NetworkStatsCollection persisted = copyForColumnarLocked(collection);
             mRotator.rewriteActive(new CombiningRewriter(collection), startMillis);
             mRotator.maybeRotate(endMillis);
+            notePersistedLocked(persisted);
         }
     }
 
@@ -456,6 +729,7 @@ public class NetworkStatsRecorder {
 
         // legacy file still exists; start empty to avoid double importing
         mRotator.deleteAll();
+        noteDeletedLocked();
 
         final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
         collection.readLegacyUid(file, mOnlyTags);
@@ -466,8 +740,10 @@ public class NetworkStatsRecorder {
         if (!collection.isEmpty()) {
             // process legacy data, creating active file at starting time, then
             // using end time to possibly trigger rotation.
+            final NetworkStatsCollection persisted = copyForColumnarLocked(collection);
             mRotator.rewriteActive(new CombiningRewriter(collection), startMillis);
             mRotator.maybeRotate(endMillis);
+            notePersistedLocked(persisted);
         }
     }
 
@@ -517,5 +793,6 @@ public class NetworkStatsRecorder {
         }
 
         mRotator.deleteAll();
+        noteDeletedLocked();
     }
 }
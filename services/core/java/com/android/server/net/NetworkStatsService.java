@@ -110,6 +110,7 @@ import android.os.Messenger;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -132,6 +133,7 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.net.NetworkStatsFactory;
 import com.android.internal.net.VpnInfo;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.FileRotator;
@@ -211,6 +213,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     private static final String PREFIX_UID = "uid";
     private static final String PREFIX_UID_TAG = "uid_tag";
 
+    /** Serve uid stats queries from mapped columnar copies of the history. */
+    private static final String PROP_COLUMNAR_STATS = "persist.sys.netstats.columnar";
+
     /**
      * Virtual network interface for video telephony. This is for VT data usage counting purpose.
      */
@@ -437,9 +442,15 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             String prefix, NetworkStatsSettings.Config config, boolean includeTags) {
         final DropBoxManager dropBox = (DropBoxManager) mContext.getSystemService(
                 Context.DROPBOX_SERVICE);
-        return new NetworkStatsRecorder(new FileRotator(
+        final NetworkStatsRecorder recorder = new NetworkStatsRecorder(new FileRotator(
                 mBaseDir, prefix, config.rotateAgeMillis, config.deleteAgeMillis),
                 mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags);
+        if (SystemProperties.getBoolean(PROP_COLUMNAR_STATS, false)) {
+            // Without a dash, the name is never mistaken for one of the rotated files
+            recorder.setColumnarFile(new File(mBaseDir, prefix + ".columnar"),
+                    BackgroundThread.getHandler());
+        }
+        return recorder;
     }
 
     @GuardedBy("mStatsLock")
@@ -576,22 +587,22 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             private final @NetworkStatsAccess.Level int mAccessLevel = checkAccessLevel(
                     callingPackage);
 
-            private NetworkStatsCollection mUidComplete;
-            private NetworkStatsCollection mUidTagComplete;
+            private NetworkStatsQueryable mUidComplete;
+            private NetworkStatsQueryable mUidTagComplete;
 
-            private NetworkStatsCollection getUidComplete() {
+            private NetworkStatsQueryable getUidComplete() {
                 synchronized (mStatsLock) {
                     if (mUidComplete == null) {
-                        mUidComplete = mUidRecorder.getOrLoadCompleteLocked();
+                        mUidComplete = mUidRecorder.getOrLoadQueryableLocked();
                     }
                     return mUidComplete;
                 }
             }
 
-            private NetworkStatsCollection getUidTagComplete() {
+            private NetworkStatsQueryable getUidTagComplete() {
                 synchronized (mStatsLock) {
                     if (mUidTagComplete == null) {
-                        mUidTagComplete = mUidTagRecorder.getOrLoadCompleteLocked();
+                        mUidTagComplete = mUidTagRecorder.getOrLoadQueryableLocked();
                     }
                     return mUidTagComplete;
                 }
@@ -673,8 +684,16 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
             @Override
             public void close() {
-                mUidComplete = null;
-                mUidTagComplete = null;
+                synchronized (mStatsLock) {
+                    if (mUidComplete != null) {
+                        mUidComplete.release();
+                        mUidComplete = null;
+                    }
+                    if (mUidTagComplete != null) {
+                        mUidTagComplete.release();
+                        mUidTagComplete = null;
+                    }
+                }
             }
         };
     }
@@ -758,12 +777,16 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         assertSystemReady();
         assertBandwidthControlEnabled();
 
-        final NetworkStatsCollection uidComplete;
+        final NetworkStatsQueryable uidComplete;
         synchronized (mStatsLock) {
-            uidComplete = mUidRecorder.getOrLoadCompleteLocked();
+            uidComplete = mUidRecorder.getOrLoadQueryableLocked();
+        }
+        try {
+            return uidComplete.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
+                    android.os.Process.SYSTEM_UID);
+        } finally {
+            uidComplete.release();
         }
-        return uidComplete.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
-                android.os.Process.SYSTEM_UID);
     }
 
     @Override
@@ -41,6 +41,9 @@ public final class DumpState {
     public static final int DUMP_CHANGES = 1 << 22;
     public static final int DUMP_VOLUMES = 1 << 23;
     public static final int DUMP_SERVICE_PERMISSIONS = 1 << 24;
+    public static final int DUMP_WRITE_STATS = 1 << 25;
+    public static final int DUMP_PARSE_STATS = 1 << 26;
+    public static final int DUMP_RESOLVE_CACHE = 1 << 27;
 
     public static final int OPTION_SHOW_FILTERS = 1 << 0;
 
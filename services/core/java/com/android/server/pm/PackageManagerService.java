@@ -441,6 +441,24 @@ public class PackageManagerService extends IPackageManager.Stub
     private static final boolean ENABLE_FREE_CACHE_V2 =
             SystemProperties.getBoolean("fw.free_cache_v2", true);
 
+    /**
+     * Whether boot scans size the parsing pool to the number of cores and parse the largest
+     * packages first. See {@link ParallelPackageParser}.
+     */
+    private static final boolean ADAPTIVE_PACKAGE_PARSING =
+            SystemProperties.getBoolean("persist.sys.pm.adaptive_parse", false);
+
+    /**
+     * Whether activity and receiver resolvers index filters by data host and path, so that
+     * resolving e.g. a web URL doesn't match it against every http(s) filter.
+     */
+    private static final boolean INDEX_INTENT_FILTER_DATA =
+            SystemProperties.getBoolean("persist.sys.pm.intent_data_index", false);
+
+    /** Whether queryIntentActivities results are cached. See {@link ResolveResultCache}. */
+    private static final boolean CACHE_RESOLVE_RESULTS =
+            SystemProperties.getBoolean("persist.sys.pm.resolve_cache", false);
+
     private static final int RADIO_UID = Process.PHONE_UID;
     private static final int LOG_UID = Process.LOG_UID;
     private static final int NFC_UID = Process.NFC_UID;
@@ -1194,7 +1212,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     if (needUpdate) {
                         mSettings.updateIntentFilterVerificationStatusLPw(
                                 packageName, updatedStatus, userId);
-                        scheduleWritePackageRestrictionsLocked(userId);
+                        scheduleWritePackageUserStateLocked(packageName, userId);
                     }
                 }
             }
@@ -1341,6 +1359,18 @@ public class PackageManagerService extends IPackageManager.Stub
     // Stores a list of users whose package restrictions file needs to be updated
     private ArraySet<Integer> mDirtyUsers = new ArraySet<Integer>();
 
+    // Stores, per user, the packages whose user state alone needs to be updated in the
+    // package restrictions file. Ignored for users that are also in mDirtyUsers.
+    private final SparseArray<ArraySet<String>> mDirtyPackageUserStates = new SparseArray<>();
+
+    // Activity resolution results; invalidated by invalidateResolveCacheLocked()
+    @GuardedBy("mPackages")
+    private final ResolveResultCache mResolveResultCache = new ResolveResultCache();
+
+    // Timing of the parallel package scans done by scanDirLI, for dumpsys
+    private final ParallelPackageParser.Stats mParallelPackageParserStats =
+            new ParallelPackageParser.Stats();
+
     final private DefaultContainerConnection mDefContainerConn =
             new DefaultContainerConnection();
     class DefaultContainerConnection implements ServiceConnection {
@@ -1732,6 +1762,7 @@ public class PackageManagerService extends IPackageManager.Stub
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
                         mSettings.writeLPr();
                         mDirtyUsers.clear();
+                        mDirtyPackageUserStates.clear();
                     }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } break;
@@ -1739,10 +1770,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
                     synchronized (mPackages) {
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
-                        for (int userId : mDirtyUsers) {
-                            mSettings.writePackageRestrictionsLPr(userId);
-                        }
-                        mDirtyUsers.clear();
+                        writePendingPackageRestrictionsLocked();
                     }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } break;
@@ -2271,7 +2299,17 @@ public class PackageManagerService extends IPackageManager.Stub
         return extras;
     }
 
+    /**
+     * Drop cached activity resolution results. Called whenever state that resolution depends
+     * on changes; every such change is persisted, so the write scheduling methods below cover
+     * most callers.
+     */
+    void invalidateResolveCacheLocked() {
+        mResolveResultCache.invalidate();
+    }
+
     void scheduleWriteSettingsLocked() {
+        invalidateResolveCacheLocked();
         if (!mHandler.hasMessages(WRITE_SETTINGS)) {
             mHandler.sendEmptyMessageDelayed(WRITE_SETTINGS, WRITE_SETTINGS_DELAY);
         }
@@ -2291,6 +2329,7 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     void scheduleWritePackageRestrictionsLocked(int userId) {
+        invalidateResolveCacheLocked();
         final int[] userIds = (userId == UserHandle.USER_ALL)
                 ? sUserManager.getUserIds() : new int[]{userId};
         for (int nextUserId : userIds) {
@@ -2302,6 +2341,39 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
+    /**
+     * Like {@link #scheduleWritePackageRestrictionsLocked(int)}, for changes that only touch
+     * the per-user state of a single package, such as its stopped or component enabled
+     * state. Such changes can be persisted without rewriting the whole file.
+     */
+    void scheduleWritePackageUserStateLocked(String packageName, int userId) {
+        invalidateResolveCacheLocked();
+        if (!sUserManager.exists(userId)) return;
+        ArraySet<String> packageNames = mDirtyPackageUserStates.get(userId);
+        if (packageNames == null) {
+            packageNames = new ArraySet<>();
+            mDirtyPackageUserStates.put(userId, packageNames);
+        }
+        packageNames.add(packageName);
+        if (!mHandler.hasMessages(WRITE_PACKAGE_RESTRICTIONS)) {
+            mHandler.sendEmptyMessageDelayed(WRITE_PACKAGE_RESTRICTIONS, WRITE_SETTINGS_DELAY);
+        }
+    }
+
+    private void writePendingPackageRestrictionsLocked() {
+        for (int userId : mDirtyUsers) {
+            mSettings.writePackageRestrictionsLPr(userId);
+        }
+        for (int i = 0; i < mDirtyPackageUserStates.size(); i++) {
+            final int userId = mDirtyPackageUserStates.keyAt(i);
+            if (!mDirtyUsers.contains(userId)) {
+                mSettings.writePackageUserStatesLPr(userId, mDirtyPackageUserStates.valueAt(i));
+            }
+        }
+        mDirtyUsers.clear();
+        mDirtyPackageUserStates.clear();
+    }
+
     public static PackageManagerService main(Context context, Installer installer,
             boolean factoryTest, boolean onlyCore) {
         // Self-check for initial settings.
@@ -2412,6 +2484,9 @@ public class PackageManagerService extends IPackageManager.Stub
 
         mContext = context;
 
+        mActivities.setDataIndexEnabled(INDEX_INTENT_FILTER_DATA);
+        mReceivers.setDataIndexEnabled(INDEX_INTENT_FILTER_DATA);
+
         mFactoryTest = factoryTest;
         mOnlyCore = onlyCore;
         mMetrics = new DisplayMetrics();
@@ -6068,13 +6143,18 @@ public class PackageManagerService extends IPackageManager.Stub
         return mWebInstantAppsDisabled;
     }
 
+    /**
+     * Whether an instant app resolver and installer are set up, without which resolution never
+     * adds the instant app installer.
+     */
+    private boolean isInstantAppResolverAvailable() {
+        return mInstantAppResolverConnection != null && mInstantAppInstallerActivity != null;
+    }
+
     private boolean isInstantAppResolutionAllowed(
             Intent intent, List<ResolveInfo> resolvedActivities, int userId,
             boolean skipPackageCheck) {
-        if (mInstantAppResolverConnection == null) {
-            return false;
-        }
-        if (mInstantAppInstallerActivity == null) {
+        if (!isInstantAppResolverAvailable()) {
             return false;
         }
         if (intent.getComponent() != null) {
@@ -6638,17 +6718,44 @@ public class PackageManagerService extends IPackageManager.Stub
         boolean addInstant = false;
         List<ResolveInfo> result;
         synchronized (mPackages) {
-            if (pkgName == null) {
+            final boolean useCache = pkgName == null && CACHE_RESOLVE_RESULTS
+                    && ResolveResultCache.isCacheable(intent);
+            final boolean webInstantAppsDisabled = areWebInstantAppsDisabled();
+            final boolean instantAppResolverAvailable = isInstantAppResolverAvailable();
+            final ResolveResultCache.Entry cached = useCache ? mResolveResultCache.get(
+                    intent, resolvedType, flags, userId, webInstantAppsDisabled,
+                    instantAppResolverAvailable) : null;
+            if (cached != null) {
+                // Only results that didn't need an instant app installer are cached
+                result = cached.copyResult();
+                if (cached.returnImmediately) {
+                    return applyPostResolutionFilter(result, instantAppPkgName,
+                            allowDynamicSplits, filterCallingUid, resolveForStart, userId,
+                            intent);
+                }
+                sortResult = cached.sortResult;
+            } else if (pkgName == null) {
                 List<CrossProfileIntentFilter> matchingFilters =
                         getMatchingCrossProfileIntentFilters(intent, resolvedType, userId);
+                // Cross profile results depend on whether other users are enabled, in quiet
+                // mode or even still there, which changes in the user manager, so only results
+                // that stay within the user are cached.
+                final boolean cacheResult = useCache
+                        && (matchingFilters == null || matchingFilters.isEmpty())
+                        && (!intent.hasWebURI() || getProfileParent(userId) == null);
                 // Check for results that need to skip the current profile.
                 ResolveInfo xpResolveInfo  = querySkipCurrentProfileIntents(matchingFilters, intent,
                         resolvedType, flags, userId);
                 if (xpResolveInfo != null) {
                     List<ResolveInfo> xpResult = new ArrayList<ResolveInfo>(1);
                     xpResult.add(xpResolveInfo);
-                    return applyPostResolutionFilter(
-                            filterIfNotSystemUser(xpResult, userId), instantAppPkgName,
+                    xpResult = filterIfNotSystemUser(xpResult, userId);
+                    if (cacheResult) {
+                        mResolveResultCache.put(intent, resolvedType, flags, userId, xpResult,
+                                false /*sortResult*/, true /*returnImmediately*/,
+                                webInstantAppsDisabled, instantAppResolverAvailable);
+                    }
+                    return applyPostResolutionFilter(xpResult, instantAppPkgName,
                             allowDynamicSplits, filterCallingUid, resolveForStart, userId, intent);
                 }
 
@@ -6688,6 +6795,11 @@ public class PackageManagerService extends IPackageManager.Stub
                             // And we are not going to add emphemeral app, so we can return the
                             // result straight away.
                             result.add(xpDomainInfo.resolveInfo);
+                            if (cacheResult) {
+                                mResolveResultCache.put(intent, resolvedType, flags, userId,
+                                        result, false /*sortResult*/, true /*returnImmediately*/,
+                                        webInstantAppsDisabled, instantAppResolverAvailable);
+                            }
                             return applyPostResolutionFilter(result, instantAppPkgName,
                                     allowDynamicSplits, filterCallingUid, resolveForStart, userId,
                                     intent);
@@ -6696,6 +6808,11 @@ public class PackageManagerService extends IPackageManager.Stub
                         // No result in parent user and <= 1 result in current profile, and we
                         // are not going to add emphemeral app, so we can return the result without
                         // further processing.
+                        if (cacheResult) {
+                            mResolveResultCache.put(intent, resolvedType, flags, userId,
+                                    result, false /*sortResult*/, true /*returnImmediately*/,
+                                    webInstantAppsDisabled, instantAppResolverAvailable);
+                        }
                         return applyPostResolutionFilter(result, instantAppPkgName,
                                 allowDynamicSplits, filterCallingUid, resolveForStart, userId,
                                 intent);
@@ -6706,6 +6823,11 @@ public class PackageManagerService extends IPackageManager.Stub
                             intent, flags, result, xpDomainInfo, userId);
                     sortResult = true;
                 }
+                if (cacheResult && !addInstant) {
+                    mResolveResultCache.put(intent, resolvedType, flags, userId, result,
+                            sortResult, false /*returnImmediately*/, webInstantAppsDisabled,
+                            instantAppResolverAvailable);
+                }
             } else {
                 final PackageParser.Package pkg = mPackages.get(pkgName);
                 result = null;
@@ -8420,9 +8542,10 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         try (ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback)) {
+                mParallelPackageParserCallback, ADAPTIVE_PACKAGE_PARSING,
+                mParallelPackageParserStats)) {
             // Submit files for parsing in parallel
-            int fileCount = 0;
+            final ArrayList<File> packageFiles = new ArrayList<>(files.length);
             for (File file : files) {
                 final boolean isPackage = (isApkFile(file) || file.isDirectory())
                         && !PackageInstallerService.isStageName(file.getName());
@@ -8430,9 +8553,10 @@ public class PackageManagerService extends IPackageManager.Stub
                     // Ignore entries which are not packages
                     continue;
                 }
-                parallelPackageParser.submit(file, parseFlags);
-                fileCount++;
+                packageFiles.add(file);
             }
+            parallelPackageParser.submitAll(packageFiles, parseFlags);
+            int fileCount = packageFiles.size();
 
             // Process results one by one
             for (; fileCount > 0; fileCount--) {
@@ -9496,10 +9620,7 @@ public class PackageManagerService extends IPackageManager.Stub
         synchronized (mPackages) {
             if (mHandler.hasMessages(WRITE_PACKAGE_RESTRICTIONS)) {
                 mHandler.removeMessages(WRITE_PACKAGE_RESTRICTIONS);
-                for (int userId : mDirtyUsers) {
-                    mSettings.writePackageRestrictionsLPr(userId);
-                }
-                mDirtyUsers.clear();
+                writePendingPackageRestrictionsLocked();
             }
         }
     }
@@ -11570,6 +11691,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 a.info.processName = fixProcessName(pkg.applicationInfo.processName,
                         a.info.processName);
                 mActivities.addActivity(a, "activity");
+                invalidateResolveCacheLocked();
                 if (chatty) {
                     if (r == null) {
                         r = new StringBuilder(256);
@@ -12331,6 +12453,7 @@ public class PackageManagerService extends IPackageManager.Stub
         for (i=0; i<N; i++) {
             PackageParser.Activity a = pkg.activities.get(i);
             mActivities.removeActivity(a, "activity");
+            invalidateResolveCacheLocked();
             if (DEBUG_REMOVE && chatty) {
                 if (r == null) {
                     r = new StringBuilder(256);
@@ -20972,7 +21095,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             }
         }
         synchronized (mPackages) {
-            scheduleWritePackageRestrictionsLocked(userId);
+            scheduleWritePackageUserStateLocked(packageName, userId);
             updateSequenceNumberLP(pkgSetting, new int[] { userId });
             final long callingId = Binder.clearCallingIdentity();
             try {
@@ -21029,7 +21152,8 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         synchronized (mPackages) {
             mSettings.writePackageRestrictionsLPr(userId);
             mDirtyUsers.remove(userId);
-            if (mDirtyUsers.isEmpty()) {
+            mDirtyPackageUserStates.remove(userId);
+            if (mDirtyUsers.isEmpty() && mDirtyPackageUserStates.size() == 0) {
                 mHandler.removeMessages(WRITE_PACKAGE_RESTRICTIONS);
             }
         }
@@ -21078,7 +21202,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             if (!filterAppAccessLPr(ps, callingUid, userId)
                     && mSettings.setPackageStoppedStateLPw(this, packageName, stopped,
                             allowedByPermission, callingUid, userId)) {
-                scheduleWritePackageRestrictionsLocked(userId);
+                scheduleWritePackageUserStateLocked(packageName, userId);
             }
         }
     }
@@ -21387,6 +21511,9 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 pw.println("    dexopt: dump dexopt state");
                 pw.println("    compiler-stats: dump compiler statistics");
                 pw.println("    service-permissions: dump permissions required by services");
+                pw.println("    write-stats: dump statistics on how settings are persisted");
+                pw.println("    parse-stats: dump timing of parallel package parsing");
+                pw.println("    resolve-cache: dump activity resolution cache statistics");
                 pw.println("    <package.name>: info about given package");
                 return;
             } else if ("--checkin".equals(opt)) {
@@ -21524,6 +21651,12 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpState.setDump(DumpState.DUMP_CHANGES);
             } else if ("service-permissions".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_SERVICE_PERMISSIONS);
+            } else if ("write-stats".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_WRITE_STATS);
+            } else if ("parse-stats".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_PARSE_STATS);
+            } else if ("resolve-cache".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_RESOLVE_CACHE);
             } else if ("write".equals(cmd)) {
                 synchronized (mPackages) {
                     mSettings.writeLPr();
@@ -21933,6 +22066,25 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpCompilerStatsLPr(pw, packageName);
             }
 
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_WRITE_STATS)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+                mSettings.dumpPackageRestrictionsWriteStatsLPr(pw);
+            }
+
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_PARSE_STATS)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+                mParallelPackageParserStats.dump(new IndentingPrintWriter(pw, "  "));
+            }
+
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_RESOLVE_CACHE)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+                pw.print("Resolve cache enabled: "); pw.println(CACHE_RESOLVE_RESULTS);
+                mResolveResultCache.dump(pw);
+            }
+
             if (!checkin && dumpState.isDumping(DumpState.DUMP_MESSAGES) && packageName == null) {
                 if (dumpState.onTitlePrinted()) pw.println();
                 mSettings.dumpReadMessagesLPr(pw, dumpState);
@@ -23241,6 +23393,8 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
     void cleanUpUser(UserManagerService userManager, int userHandle) {
         synchronized (mPackages) {
             mDirtyUsers.remove(userHandle);
+            mDirtyPackageUserStates.remove(userHandle);
+            invalidateResolveCacheLocked();
             mUserNeedsBadging.delete(userHandle);
             mSettings.removeUserLPw(userHandle);
             mPendingBroadcasts.remove(userHandle);
@@ -18,17 +18,25 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
+import android.util.ArrayMap;
 import android.util.DisplayMetrics;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ConcurrentUtils;
+import com.android.internal.util.IndentingPrintWriter;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
@@ -36,31 +44,70 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
  * Helper class for parallel parsing of packages using {@link PackageParser}.
  * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>In adaptive mode the pool is instead sized to the number of available cores, work
+ * submitted through {@link #submitAll} is started largest package first so that one big APK
+ * doesn't end up parsing alone at the end of a scan, and results are handed over through a
+ * queue whose producer and consumer sides don't share a lock.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
     private static final int QUEUE_CAPACITY = 10;
     private static final int MAX_THREADS = 4;
 
+    /** Number of results buffered per parsing thread in adaptive mode. */
+    private static final int ADAPTIVE_RESULTS_PER_THREAD = 4;
+
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
     private final DisplayMetrics mMetrics;
     private final File mCacheDir;
     private final PackageParser.Callback mPackageParserCallback;
+    private final boolean mAdaptive;
+    private final Stats mStats;
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<ParseResult> mQueue;
+
+    /**
+     * Parsers done with their last package, reused for the next one so that their cache read
+     * buffers are too. There are at most as many as threads, and they are dropped on
+     * {@link #close}.
+     */
+    private final ConcurrentLinkedQueue<PackageParser> mIdleParsers =
+            new ConcurrentLinkedQueue<>();
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
-            "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    private final ExecutorService mService;
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback, false /* adaptive */,
+                null /* stats */);
+    }
+
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            boolean adaptive, Stats stats) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mAdaptive = adaptive;
+        mStats = stats;
+
+        final int threads;
+        if (adaptive) {
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            mQueue = new LinkedBlockingQueue<>(threads * ADAPTIVE_RESULTS_PER_THREAD);
+        } else {
+            threads = MAX_THREADS;
+            mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        }
+        mService = ConcurrentUtils.newFixedThreadPool(threads, "package-parsing-thread",
+                Process.THREAD_PRIORITY_FOREGROUND);
+        if (mStats != null) {
+            mStats.onPoolCreated(threads);
+        }
     }
 
     static class ParseResult {
@@ -89,7 +136,13 @@ class ParallelPackageParser implements AutoCloseable {
             if (mInterruptedInThread != null) {
                 throw new InterruptedException("Interrupted in " + mInterruptedInThread);
             }
-            return mQueue.take();
+            if (mStats == null) {
+                return mQueue.take();
+            }
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            final ParseResult result = mQueue.take();
+            mStats.onResultTaken(SystemClock.elapsedRealtimeNanos() - startNanos);
+            return result;
         } catch (InterruptedException e) {
             // We cannot recover from interrupt here
             Thread.currentThread().interrupt();
@@ -97,6 +150,26 @@ class ParallelPackageParser implements AutoCloseable {
         }
     }
 
+    /**
+     * Submits all files for parsing. In adaptive mode the largest packages are started first.
+     * @param scanFiles files to scan
+     * @param parseFlags parse flags
+     */
+    public void submitAll(List<File> scanFiles, int parseFlags) {
+        List<File> ordered = scanFiles;
+        if (mAdaptive) {
+            final ArrayMap<File, Long> sizes = new ArrayMap<>(scanFiles.size());
+            for (int i = 0; i < scanFiles.size(); i++) {
+                sizes.put(scanFiles.get(i), getPackageSize(scanFiles.get(i)));
+            }
+            ordered = new ArrayList<>(scanFiles);
+            Collections.sort(ordered, (a, b) -> Long.compare(sizes.get(b), sizes.get(a)));
+        }
+        for (int i = 0; i < ordered.size(); i++) {
+            submit(ordered.get(i), parseFlags);
+        }
+    }
+
     /**
      * Submits the file for parsing
      * @param scanFile file to scan
@@ -106,20 +179,26 @@ class ParallelPackageParser implements AutoCloseable {
         mService.submit(() -> {
             ParseResult pr = new ParseResult();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
             try {
-                PackageParser pp = new PackageParser();
-                pp.setSeparateProcesses(mSeparateProcesses);
-                pp.setOnlyCoreApps(mOnlyCore);
-                pp.setDisplayMetrics(mMetrics);
-                pp.setCacheDir(mCacheDir);
-                pp.setCallback(mPackageParserCallback);
+                PackageParser pp = mIdleParsers.poll();
+                if (pp == null) {
+                    pp = new PackageParser();
+                    pp.setSeparateProcesses(mSeparateProcesses);
+                    pp.setOnlyCoreApps(mOnlyCore);
+                    pp.setDisplayMetrics(mMetrics);
+                    pp.setCacheDir(mCacheDir);
+                    pp.setCallback(mPackageParserCallback);
+                }
                 pr.scanFile = scanFile;
                 pr.pkg = parsePackage(pp, scanFile, parseFlags);
+                mIdleParsers.offer(pp);
             } catch (Throwable e) {
                 pr.throwable = e;
             } finally {
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
+            final long parsedNanos = SystemClock.elapsedRealtimeNanos();
             try {
                 mQueue.put(pr);
             } catch (InterruptedException e) {
@@ -129,6 +208,10 @@ class ParallelPackageParser implements AutoCloseable {
                 // ParallelPackageParser to finish in case of interruption
                 mInterruptedInThread = Thread.currentThread().getName();
             }
+            if (mStats != null) {
+                mStats.onPackageParsed(scanFile, parsedNanos - startNanos,
+                        SystemClock.elapsedRealtimeNanos() - parsedNanos);
+            }
         });
     }
 
@@ -138,12 +221,124 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    /**
+     * Returns the size used to order {@code scanFile} for parsing: its length for a monolithic
+     * APK, or the combined length of its APKs for a cluster package directory.
+     */
+    @VisibleForTesting
+    static long getPackageSize(File scanFile) {
+        if (!scanFile.isDirectory()) {
+            return scanFile.length();
+        }
+        long size = 0;
+        final File[] files = scanFile.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (PackageParser.isApkFile(file)) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+
     @Override
     public void close() {
+        mIdleParsers.clear();
         List<Runnable> unfinishedTasks = mService.shutdownNow();
         if (!unfinishedTasks.isEmpty()) {
             throw new IllegalStateException("Not all tasks finished before calling close: "
                     + unfinishedTasks);
         }
     }
+
+    /**
+     * Timing statistics across all scans done with a {@link ParallelPackageParser}, for
+     * dumpsys. Only the slowest packages are kept individually, so memory use is bounded.
+     */
+    static class Stats {
+        private static final int MAX_SLOWEST_PACKAGES = 20;
+
+        private final Object mLock = new Object();
+
+        @GuardedBy("mLock")
+        private int mThreads;
+        @GuardedBy("mLock")
+        private int mPackagesParsed;
+        @GuardedBy("mLock")
+        private long mTotalParseNanos;
+        @GuardedBy("mLock")
+        private long mTotalProducerWaitNanos;
+        @GuardedBy("mLock")
+        private long mTotalConsumerWaitNanos;
+        @GuardedBy("mLock")
+        private final ArrayList<File> mSlowestFiles = new ArrayList<>();
+        @GuardedBy("mLock")
+        private final ArrayList<Long> mSlowestNanos = new ArrayList<>();
+
+        void onPoolCreated(int threads) {
+            synchronized (mLock) {
+                mThreads = threads;
+            }
+        }
+
+        void onPackageParsed(File scanFile, long parseNanos, long queueWaitNanos) {
+            synchronized (mLock) {
+                mPackagesParsed++;
+                mTotalParseNanos += parseNanos;
+                mTotalProducerWaitNanos += queueWaitNanos;
+
+                // Keep the slowest packages sorted, slowest first
+                int index = mSlowestNanos.size();
+                while (index > 0 && mSlowestNanos.get(index - 1) < parseNanos) {
+                    index--;
+                }
+                if (index < MAX_SLOWEST_PACKAGES) {
+                    mSlowestFiles.add(index, scanFile);
+                    mSlowestNanos.add(index, parseNanos);
+                    if (mSlowestNanos.size() > MAX_SLOWEST_PACKAGES) {
+                        mSlowestFiles.remove(MAX_SLOWEST_PACKAGES);
+                        mSlowestNanos.remove(MAX_SLOWEST_PACKAGES);
+                    }
+                }
+            }
+        }
+
+        void onResultTaken(long waitNanos) {
+            synchronized (mLock) {
+                mTotalConsumerWaitNanos += waitNanos;
+            }
+        }
+
+        void dump(IndentingPrintWriter pw) {
+            synchronized (mLock) {
+                pw.println("Package parsing:");
+                pw.increaseIndent();
+                pw.print("Threads: "); pw.println(mThreads);
+                pw.print("Packages parsed: "); pw.println(mPackagesParsed);
+                pw.print("Total parse time: "); printMillis(pw, mTotalParseNanos);
+                pw.println();
+                pw.print("Parser time blocked on full queue: ");
+                printMillis(pw, mTotalProducerWaitNanos);
+                pw.println();
+                pw.print("Scanner time waiting for results: ");
+                printMillis(pw, mTotalConsumerWaitNanos);
+                pw.println();
+                pw.println("Slowest packages:");
+                pw.increaseIndent();
+                for (int i = 0; i < mSlowestFiles.size(); i++) {
+                    printMillis(pw, mSlowestNanos.get(i));
+                    pw.print(" ");
+                    pw.println(mSlowestFiles.get(i));
+                }
+                pw.decreaseIndent();
+                pw.decreaseIndent();
+            }
+        }
+
+        private static void printMillis(IndentingPrintWriter pw, long nanos) {
+            pw.print(nanos / 1000000);
+            pw.print("ms");
+        }
+    }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Cache of activity resolution results, keyed by the parts of the intent that resolution
+ * looks at, the resolved type, the resolve flags and the user.
+ * <p>
+ * Rather than tracking which entries a change affects, the owner bumps a generation with
+ * {@link #invalidate} whenever packages, components or per-user package state change; entries
+ * from an older generation are treated as misses and replaced.
+ * <p>
+ * Results that depend on the state of other users aren't cached, since that state changes
+ * outside the package manager.
+ * <p>
+ * Results are copied in and out, since callers are free to modify what they get back.
+ * Callers must provide their own locking.
+ */
+class ResolveResultCache {
+    private static final int MAX_ENTRIES = 128;
+
+    private final LruCache<Key, Entry> mCache = new LruCache<>(MAX_ENTRIES);
+    private int mGeneration;
+
+    private long mHits;
+    private long mMisses;
+    private long mInvalidations;
+
+    /** Result of resolving an intent, before per-caller filtering is applied. */
+    static class Entry {
+        final int generation;
+        final List<ResolveInfo> result;
+        /** Whether the result must be sorted by priority before it's returned. */
+        final boolean sortResult;
+        /** Whether resolution stopped early, skipping instant apps and sorting. */
+        final boolean returnImmediately;
+        /** Value of the web instant apps kill switch the result was computed with. */
+        final boolean webInstantAppsDisabled;
+        /** Whether an instant app resolver was available when the result was computed. */
+        final boolean instantAppResolverAvailable;
+
+        Entry(int generation, List<ResolveInfo> result, boolean sortResult,
+                boolean returnImmediately, boolean webInstantAppsDisabled,
+                boolean instantAppResolverAvailable) {
+            this.generation = generation;
+            this.result = copyOf(result);
+            this.sortResult = sortResult;
+            this.returnImmediately = returnImmediately;
+            this.webInstantAppsDisabled = webInstantAppsDisabled;
+            this.instantAppResolverAvailable = instantAppResolverAvailable;
+        }
+
+        /** Return a copy of the result that the caller may modify. */
+        List<ResolveInfo> copyResult() {
+            return copyOf(result);
+        }
+    }
+
+    private static final class Key {
+        final Intent filter;
+        final int intentFlags;
+        final String resolvedType;
+        final int flags;
+        final int userId;
+        final int hashCode;
+
+        Key(Intent intent, String resolvedType, int flags, int userId) {
+            this.filter = intent.cloneFilter();
+            this.intentFlags = intent.getFlags();
+            this.resolvedType = resolvedType;
+            this.flags = flags;
+            this.userId = userId;
+            this.hashCode = ((filter.filterHashCode() * 31 + intentFlags) * 31
+                    + Objects.hashCode(resolvedType)) * 31 + flags * 17 + userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return intentFlags == other.intentFlags && flags == other.flags
+                    && userId == other.userId
+                    && Objects.equals(resolvedType, other.resolvedType)
+                    && filter.filterEquals(other.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /** Whether results for this intent may be cached at all. */
+    static boolean isCacheable(Intent intent) {
+        return intent.getPackage() == null && intent.getComponent() == null
+                && intent.getSelector() == null
+                && (intent.getFlags() & Intent.FLAG_DEBUG_LOG_RESOLUTION) == 0;
+    }
+
+    Entry get(Intent intent, String resolvedType, int flags, int userId,
+            boolean webInstantAppsDisabled, boolean instantAppResolverAvailable) {
+        final Entry entry = mCache.get(new Key(intent, resolvedType, flags, userId));
+        if (entry == null || entry.generation != mGeneration
+                || entry.webInstantAppsDisabled != webInstantAppsDisabled
+                || entry.instantAppResolverAvailable != instantAppResolverAvailable) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry;
+    }
+
+    void put(Intent intent, String resolvedType, int flags, int userId, List<ResolveInfo> result,
+            boolean sortResult, boolean returnImmediately, boolean webInstantAppsDisabled,
+            boolean instantAppResolverAvailable) {
+        mCache.put(new Key(intent, resolvedType, flags, userId), new Entry(mGeneration, result,
+                sortResult, returnImmediately, webInstantAppsDisabled,
+                instantAppResolverAvailable));
+    }
+
+    /** Drop all cached results, because something that resolution depends on changed. */
+    void invalidate() {
+        mGeneration++;
+        mInvalidations++;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Resolve cache:");
+        pw.print("  Entries: "); pw.print(mCache.size());
+        pw.print(" / "); pw.println(mCache.maxSize());
+        pw.print("  Generation: "); pw.println(mGeneration);
+        pw.print("  Hits: "); pw.println(mHits);
+        pw.print("  Misses: "); pw.println(mMisses);
+        pw.print("  Invalidations: "); pw.println(mInvalidations);
+    }
+
+    private static List<ResolveInfo> copyOf(List<ResolveInfo> result) {
+        final ArrayList<ResolveInfo> copy = new ArrayList<>(result.size());
+        for (int i = 0; i < result.size(); i++) {
+            final ResolveInfo info = new ResolveInfo(result.get(i));
+            if (info.activityInfo != null) {
+                info.activityInfo = new ActivityInfo(info.activityInfo);
+            }
+            copy.add(info);
+        }
+        return copy;
+    }
+}
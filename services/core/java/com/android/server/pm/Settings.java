@@ -63,6 +63,7 @@ import android.os.PatternMatcher;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManager;
@@ -84,9 +85,12 @@ import android.util.proto.ProtoOutputStream;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.JournaledFile;
+import com.android.internal.util.RecordJournal;
 import com.android.internal.util.XmlUtils;
 import com.android.server.pm.Installer.InstallerException;
 import com.android.server.pm.permission.BasePermission;
@@ -103,6 +107,8 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -173,6 +179,23 @@ public final class Settings {
     private static final boolean DEBUG_KERNEL = false;
     private static final boolean DEBUG_PARSER = false;
 
+    /**
+     * Whether packages.xml is written with {@link BinaryXmlSerializer} instead of as text.
+     * Both formats are always accepted when reading, so this may change across reboots.
+     */
+    private static final boolean WRITE_BINARY_SETTINGS =
+            SystemProperties.getBoolean("persist.sys.pm.binary_settings", false);
+
+    /**
+     * Whether changes to the per-user state of individual packages are appended to a journal
+     * next to package-restrictions.xml instead of rewriting the whole file.
+     */
+    private static final boolean JOURNAL_PACKAGE_RESTRICTIONS =
+            SystemProperties.getBoolean("persist.sys.pm.restrictions_journal", false);
+
+    /** Size at which the package restrictions journal is folded back into the main file. */
+    private static final long MAX_PACKAGE_RESTRICTIONS_JOURNAL_SIZE = 64 * 1024;
+
     private static final String RUNTIME_PERMISSIONS_FILE_NAME = "runtime-permissions.xml";
 
     private static final String TAG_READ_EXTERNAL_STORAGE = "read-external-storage";
@@ -407,6 +430,14 @@ public final class Settings {
 
     final StringBuilder mReadMessages = new StringBuilder();
 
+    // Statistics on how package restrictions were persisted, for dumpsys.
+    private int mPackageRestrictionsFullWrites;
+    private long mPackageRestrictionsFullBytes;
+    private int mPackageRestrictionsJournalWrites;
+    private int mPackageRestrictionsJournalRecords;
+    private long mPackageRestrictionsJournalBytes;
+    private int mPackageRestrictionsCompactions;
+
     /**
      * Used to track packages that have a shared user ID that hasn't been read
      * in yet.
@@ -1380,6 +1411,11 @@ public final class Settings {
                 "package-restrictions-backup.xml");
     }
 
+    private RecordJournal getUserPackagesStateJournal(int userId) {
+        return new RecordJournal(new File(getUserPackagesStateFile(userId).getParentFile(),
+                "package-restrictions-journal"));
+    }
+
     void writeAllUsersPackageRestrictionsLPr() {
         List<UserInfo> users = getAllUsers(UserManagerService.getInstance());
         if (users == null) return;
@@ -1648,6 +1684,8 @@ public final class Settings {
                                 0, PackageManager.INSTALL_REASON_UNKNOWN,
                                 null /*harmfulAppWarning*/);
                     }
+                    // A journal without a file to apply it to is meaningless
+                    getUserPackagesStateJournal(userId).delete();
                     return;
                 }
                 str = new FileInputStream(userPackagesStateFile);
@@ -1671,7 +1709,6 @@ public final class Settings {
             int maxAppLinkGeneration = 0;
 
             int outerDepth = parser.getDepth();
-            PackageSetting ps = null;
             while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
                    && (type != XmlPullParser.END_TAG
                            || parser.getDepth() > outerDepth)) {
@@ -1682,106 +1719,10 @@ public final class Settings {
 
                 String tagName = parser.getName();
                 if (tagName.equals(TAG_PACKAGE)) {
-                    String name = parser.getAttributeValue(null, ATTR_NAME);
-                    ps = mPackages.get(name);
-                    if (ps == null) {
-                        Slog.w(PackageManagerService.TAG, "No package known for stopped package "
-                                + name);
-                        XmlUtils.skipCurrentTag(parser);
-                        continue;
-                    }
-
-                    final long ceDataInode = XmlUtils.readLongAttribute(parser, ATTR_CE_DATA_INODE,
-                            0);
-                    final boolean installed = XmlUtils.readBooleanAttribute(parser, ATTR_INSTALLED,
-                            true);
-                    final boolean stopped = XmlUtils.readBooleanAttribute(parser, ATTR_STOPPED,
-                            false);
-                    final boolean notLaunched = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_NOT_LAUNCHED, false);
-
-                    // For backwards compatibility with the previous name of "blocked", which
-                    // now means hidden, read the old attribute as well.
-                    final String blockedStr = parser.getAttributeValue(null, ATTR_BLOCKED);
-                    boolean hidden = blockedStr == null
-                            ? false : Boolean.parseBoolean(blockedStr);
-                    final String hiddenStr = parser.getAttributeValue(null, ATTR_HIDDEN);
-                    hidden = hiddenStr == null
-                            ? hidden : Boolean.parseBoolean(hiddenStr);
-
-                    final boolean suspended = XmlUtils.readBooleanAttribute(parser, ATTR_SUSPENDED,
-                            false);
-                    String suspendingPackage = parser.getAttributeValue(null,
-                            ATTR_SUSPENDING_PACKAGE);
-                    final String dialogMessage = parser.getAttributeValue(null,
-                            ATTR_SUSPEND_DIALOG_MESSAGE);
-                    if (suspended && suspendingPackage == null) {
-                        suspendingPackage = PLATFORM_PACKAGE_NAME;
-                    }
-
-                    final boolean blockUninstall = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_BLOCK_UNINSTALL, false);
-                    final boolean instantApp = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_INSTANT_APP, false);
-                    final boolean virtualPreload = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_VIRTUAL_PRELOAD, false);
-                    final int enabled = XmlUtils.readIntAttribute(parser, ATTR_ENABLED,
-                            COMPONENT_ENABLED_STATE_DEFAULT);
-                    final String enabledCaller = parser.getAttributeValue(null,
-                            ATTR_ENABLED_CALLER);
-                    final String harmfulAppWarning =
-                            parser.getAttributeValue(null, ATTR_HARMFUL_APP_WARNING);
-                    final int verifState = XmlUtils.readIntAttribute(parser,
-                            ATTR_DOMAIN_VERIFICATON_STATE,
-                            PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED);
-                    final int linkGeneration = XmlUtils.readIntAttribute(parser,
-                            ATTR_APP_LINK_GENERATION, 0);
+                    final int linkGeneration = readPackageUserStateLPw(parser, userId);
                     if (linkGeneration > maxAppLinkGeneration) {
                         maxAppLinkGeneration = linkGeneration;
                     }
-                    final int installReason = XmlUtils.readIntAttribute(parser,
-                            ATTR_INSTALL_REASON, PackageManager.INSTALL_REASON_UNKNOWN);
-
-                    ArraySet<String> enabledComponents = null;
-                    ArraySet<String> disabledComponents = null;
-                    PersistableBundle suspendedAppExtras = null;
-                    PersistableBundle suspendedLauncherExtras = null;
-
-                    int packageDepth = parser.getDepth();
-                    while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
-                            && (type != XmlPullParser.END_TAG
-                            || parser.getDepth() > packageDepth)) {
-                        if (type == XmlPullParser.END_TAG
-                                || type == XmlPullParser.TEXT) {
-                            continue;
-                        }
-                        switch (parser.getName()) {
-                            case TAG_ENABLED_COMPONENTS:
-                                enabledComponents = readComponentsLPr(parser);
-                                break;
-                            case TAG_DISABLED_COMPONENTS:
-                                disabledComponents = readComponentsLPr(parser);
-                                break;
-                            case TAG_SUSPENDED_APP_EXTRAS:
-                                suspendedAppExtras = PersistableBundle.restoreFromXml(parser);
-                                break;
-                            case TAG_SUSPENDED_LAUNCHER_EXTRAS:
-                                suspendedLauncherExtras = PersistableBundle.restoreFromXml(parser);
-                                break;
-                            default:
-                                Slog.wtf(TAG, "Unknown tag " + parser.getName() + " under tag "
-                                        + TAG_PACKAGE);
-                        }
-                    }
-
-                    if (blockUninstall) {
-                        setBlockUninstallLPw(userId, name, true);
-                    }
-                    ps.setUserState(userId, ceDataInode, enabled, installed, stopped, notLaunched,
-                            hidden, suspended, suspendingPackage, dialogMessage, suspendedAppExtras,
-                            suspendedLauncherExtras, instantApp, virtualPreload, enabledCaller,
-                            enabledComponents, disabledComponents, verifState, linkGeneration,
-                            installReason, harmfulAppWarning);
                 } else if (tagName.equals("preferred-activities")) {
                     readPreferredActivitiesLPw(parser, userId);
                 } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
@@ -1801,6 +1742,11 @@ public final class Settings {
 
             str.close();
 
+            final int journalAppLinkGeneration = readPackageUserStatesJournalLPw(userId);
+            if (journalAppLinkGeneration > maxAppLinkGeneration) {
+                maxAppLinkGeneration = journalAppLinkGeneration;
+            }
+
             mNextAppLinkGeneration.put(userId, maxAppLinkGeneration + 1);
 
         } catch (XmlPullParserException e) {
@@ -1818,6 +1764,144 @@ public final class Settings {
         }
     }
 
+    /**
+     * Read the state of a single package for the given user from a {@link #TAG_PACKAGE}
+     * element and apply it to the matching {@link PackageSetting}.
+     *
+     * @return the app link generation of the package, or 0 if the package is unknown.
+     */
+    private int readPackageUserStateLPw(XmlPullParser parser, int userId)
+            throws IOException, XmlPullParserException {
+        String name = parser.getAttributeValue(null, ATTR_NAME);
+        final PackageSetting ps = mPackages.get(name);
+        if (ps == null) {
+            Slog.w(PackageManagerService.TAG, "No package known for stopped package "
+                    + name);
+            XmlUtils.skipCurrentTag(parser);
+            return 0;
+        }
+
+        final long ceDataInode = XmlUtils.readLongAttribute(parser, ATTR_CE_DATA_INODE,
+                0);
+        final boolean installed = XmlUtils.readBooleanAttribute(parser, ATTR_INSTALLED,
+                true);
+        final boolean stopped = XmlUtils.readBooleanAttribute(parser, ATTR_STOPPED,
+                false);
+        final boolean notLaunched = XmlUtils.readBooleanAttribute(parser,
+                ATTR_NOT_LAUNCHED, false);
+
+        // For backwards compatibility with the previous name of "blocked", which
+        // now means hidden, read the old attribute as well.
+        final String blockedStr = parser.getAttributeValue(null, ATTR_BLOCKED);
+        boolean hidden = blockedStr == null
+                ? false : Boolean.parseBoolean(blockedStr);
+        final String hiddenStr = parser.getAttributeValue(null, ATTR_HIDDEN);
+        hidden = hiddenStr == null
+                ? hidden : Boolean.parseBoolean(hiddenStr);
+
+        final boolean suspended = XmlUtils.readBooleanAttribute(parser, ATTR_SUSPENDED,
+                false);
+        String suspendingPackage = parser.getAttributeValue(null,
+                ATTR_SUSPENDING_PACKAGE);
+        final String dialogMessage = parser.getAttributeValue(null,
+                ATTR_SUSPEND_DIALOG_MESSAGE);
+        if (suspended && suspendingPackage == null) {
+            suspendingPackage = PLATFORM_PACKAGE_NAME;
+        }
+
+        final boolean blockUninstall = XmlUtils.readBooleanAttribute(parser,
+                ATTR_BLOCK_UNINSTALL, false);
+        final boolean instantApp = XmlUtils.readBooleanAttribute(parser,
+                ATTR_INSTANT_APP, false);
+        final boolean virtualPreload = XmlUtils.readBooleanAttribute(parser,
+                ATTR_VIRTUAL_PRELOAD, false);
+        final int enabled = XmlUtils.readIntAttribute(parser, ATTR_ENABLED,
+                COMPONENT_ENABLED_STATE_DEFAULT);
+        final String enabledCaller = parser.getAttributeValue(null,
+                ATTR_ENABLED_CALLER);
+        final String harmfulAppWarning =
+                parser.getAttributeValue(null, ATTR_HARMFUL_APP_WARNING);
+        final int verifState = XmlUtils.readIntAttribute(parser,
+                ATTR_DOMAIN_VERIFICATON_STATE,
+                PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED);
+        final int linkGeneration = XmlUtils.readIntAttribute(parser,
+                ATTR_APP_LINK_GENERATION, 0);
+        final int installReason = XmlUtils.readIntAttribute(parser,
+                ATTR_INSTALL_REASON, PackageManager.INSTALL_REASON_UNKNOWN);
+
+        ArraySet<String> enabledComponents = null;
+        ArraySet<String> disabledComponents = null;
+        PersistableBundle suspendedAppExtras = null;
+        PersistableBundle suspendedLauncherExtras = null;
+
+        int type;
+        int packageDepth = parser.getDepth();
+        while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG
+                || parser.getDepth() > packageDepth)) {
+            if (type == XmlPullParser.END_TAG
+                    || type == XmlPullParser.TEXT) {
+                continue;
+            }
+            switch (parser.getName()) {
+                case TAG_ENABLED_COMPONENTS:
+                    enabledComponents = readComponentsLPr(parser);
+                    break;
+                case TAG_DISABLED_COMPONENTS:
+                    disabledComponents = readComponentsLPr(parser);
+                    break;
+                case TAG_SUSPENDED_APP_EXTRAS:
+                    suspendedAppExtras = PersistableBundle.restoreFromXml(parser);
+                    break;
+                case TAG_SUSPENDED_LAUNCHER_EXTRAS:
+                    suspendedLauncherExtras = PersistableBundle.restoreFromXml(parser);
+                    break;
+                default:
+                    Slog.wtf(TAG, "Unknown tag " + parser.getName() + " under tag "
+                            + TAG_PACKAGE);
+            }
+        }
+
+        if (blockUninstall) {
+            setBlockUninstallLPw(userId, name, true);
+        }
+        ps.setUserState(userId, ceDataInode, enabled, installed, stopped, notLaunched,
+                hidden, suspended, suspendingPackage, dialogMessage, suspendedAppExtras,
+                suspendedLauncherExtras, instantApp, virtualPreload, enabledCaller,
+                enabledComponents, disabledComponents, verifState, linkGeneration,
+                installReason, harmfulAppWarning);
+        return linkGeneration;
+    }
+
+    /**
+     * Apply the package states journaled by {@link #writePackageUserStatesLPr} since the
+     * user's package-restrictions file was last written in full.
+     *
+     * @return the highest app link generation found in the journal.
+     */
+    private int readPackageUserStatesJournalLPw(int userId) {
+        final List<byte[]> records = getUserPackagesStateJournal(userId).readRecords();
+        int maxAppLinkGeneration = 0;
+        for (int i = 0; i < records.size(); i++) {
+            try {
+                final XmlPullParser parser = new BinaryXmlPullParser();
+                parser.setInput(new ByteArrayInputStream(records.get(i)),
+                        StandardCharsets.UTF_8.name());
+                if (parser.next() == XmlPullParser.START_TAG
+                        && TAG_PACKAGE.equals(parser.getName())) {
+                    final int linkGeneration = readPackageUserStateLPw(parser, userId);
+                    if (linkGeneration > maxAppLinkGeneration) {
+                        maxAppLinkGeneration = linkGeneration;
+                    }
+                }
+            } catch (IOException | XmlPullParserException e) {
+                Slog.w(PackageManagerService.TAG, "Skipping bad package restrictions journal"
+                        + " record for user " + userId, e);
+            }
+        }
+        return maxAppLinkGeneration;
+    }
+
     void setBlockUninstallLPw(int userId, String packageName, boolean blockUninstall) {
         ArraySet<String> packages = mBlockUninstallPackages.get(userId);
         if (blockUninstall) {
@@ -2025,6 +2109,165 @@ public final class Settings {
         }
     }
 
+    private void writePackageUserStateLPr(XmlSerializer serializer, PackageSetting pkg,
+            int userId) throws IOException {
+        final PackageUserState ustate = pkg.readUserState(userId);
+        if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
+
+        serializer.startTag(null, TAG_PACKAGE);
+        serializer.attribute(null, ATTR_NAME, pkg.name);
+        if (ustate.ceDataInode != 0) {
+            XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
+        }
+        if (!ustate.installed) {
+            serializer.attribute(null, ATTR_INSTALLED, "false");
+        }
+        if (ustate.stopped) {
+            serializer.attribute(null, ATTR_STOPPED, "true");
+        }
+        if (ustate.notLaunched) {
+            serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
+        }
+        if (ustate.hidden) {
+            serializer.attribute(null, ATTR_HIDDEN, "true");
+        }
+        if (ustate.suspended) {
+            serializer.attribute(null, ATTR_SUSPENDED, "true");
+            if (ustate.suspendingPackage != null) {
+                serializer.attribute(null, ATTR_SUSPENDING_PACKAGE,
+                        ustate.suspendingPackage);
+            }
+            if (ustate.dialogMessage != null) {
+                serializer.attribute(null, ATTR_SUSPEND_DIALOG_MESSAGE,
+                        ustate.dialogMessage);
+            }
+            if (ustate.suspendedAppExtras != null) {
+                serializer.startTag(null, TAG_SUSPENDED_APP_EXTRAS);
+                try {
+                    ustate.suspendedAppExtras.saveToXml(serializer);
+                } catch (XmlPullParserException xmle) {
+                    Slog.wtf(TAG, "Exception while trying to write suspendedAppExtras for "
+                            + pkg + ". Will be lost on reboot", xmle);
+                }
+                serializer.endTag(null, TAG_SUSPENDED_APP_EXTRAS);
+            }
+            if (ustate.suspendedLauncherExtras != null) {
+                serializer.startTag(null, TAG_SUSPENDED_LAUNCHER_EXTRAS);
+                try {
+                    ustate.suspendedLauncherExtras.saveToXml(serializer);
+                } catch (XmlPullParserException xmle) {
+                    Slog.wtf(TAG, "Exception while trying to write suspendedLauncherExtras"
+                            + " for " + pkg + ". Will be lost on reboot", xmle);
+                }
+                serializer.endTag(null, TAG_SUSPENDED_LAUNCHER_EXTRAS);
+            }
+        }
+        if (ustate.instantApp) {
+            serializer.attribute(null, ATTR_INSTANT_APP, "true");
+        }
+        if (ustate.virtualPreload) {
+            serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
+        }
+        if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
+            serializer.attribute(null, ATTR_ENABLED,
+                    Integer.toString(ustate.enabled));
+            if (ustate.lastDisableAppCaller != null) {
+                serializer.attribute(null, ATTR_ENABLED_CALLER,
+                        ustate.lastDisableAppCaller);
+            }
+        }
+        if (ustate.domainVerificationStatus !=
+                PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
+            XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
+                    ustate.domainVerificationStatus);
+        }
+        if (ustate.appLinkGeneration != 0) {
+            XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
+                    ustate.appLinkGeneration);
+        }
+        if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
+            serializer.attribute(null, ATTR_INSTALL_REASON,
+                    Integer.toString(ustate.installReason));
+        }
+        if (ustate.harmfulAppWarning != null) {
+            serializer.attribute(null, ATTR_HARMFUL_APP_WARNING,
+                    ustate.harmfulAppWarning);
+        }
+        if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
+            serializer.startTag(null, TAG_ENABLED_COMPONENTS);
+            for (final String name : ustate.enabledComponents) {
+                serializer.startTag(null, TAG_ITEM);
+                serializer.attribute(null, ATTR_NAME, name);
+                serializer.endTag(null, TAG_ITEM);
+            }
+            serializer.endTag(null, TAG_ENABLED_COMPONENTS);
+        }
+        if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
+            serializer.startTag(null, TAG_DISABLED_COMPONENTS);
+            for (final String name : ustate.disabledComponents) {
+                serializer.startTag(null, TAG_ITEM);
+                serializer.attribute(null, ATTR_NAME, name);
+                serializer.endTag(null, TAG_ITEM);
+            }
+            serializer.endTag(null, TAG_DISABLED_COMPONENTS);
+        }
+
+        serializer.endTag(null, TAG_PACKAGE);
+    }
+
+    /**
+     * Persist the per-user state of just the given packages. When journaling is enabled the
+     * states are appended to the user's package restrictions journal; otherwise, or when the
+     * journal has grown large enough to be compacted, the whole file is rewritten.
+     */
+    void writePackageUserStatesLPr(int userId, ArraySet<String> packageNames) {
+        final RecordJournal journal = getUserPackagesStateJournal(userId);
+        if (!JOURNAL_PACKAGE_RESTRICTIONS
+                || !getUserPackagesStateFile(userId).exists()
+                || getUserPackagesStateBackupFile(userId).exists()
+                || journal.length() >= MAX_PACKAGE_RESTRICTIONS_JOURNAL_SIZE) {
+            writePackageRestrictionsLPr(userId);
+            return;
+        }
+        if (DEBUG_MU) {
+            Log.i(TAG, "Journaling " + packageNames.size() + " package states for user="
+                    + userId);
+        }
+        final long startTime = SystemClock.uptimeMillis();
+
+        try {
+            final ArrayList<byte[]> records = new ArrayList<>(packageNames.size());
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            for (int i = 0; i < packageNames.size(); i++) {
+                final PackageSetting pkg = mPackages.get(packageNames.valueAt(i));
+                if (pkg == null) {
+                    // Removed since it was marked dirty; removal does a full write
+                    continue;
+                }
+                os.reset();
+                final XmlSerializer serializer = new BinaryXmlSerializer();
+                serializer.setOutput(os, StandardCharsets.UTF_8.name());
+                serializer.startDocument(null, true);
+                writePackageUserStateLPr(serializer, pkg, userId);
+                serializer.endDocument();
+                records.add(os.toByteArray());
+            }
+            if (records.isEmpty()) {
+                return;
+            }
+            mPackageRestrictionsJournalBytes += journal.append(records);
+            mPackageRestrictionsJournalWrites++;
+            mPackageRestrictionsJournalRecords += records.size();
+
+            com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
+                    "package-user-journal-" + userId, SystemClock.uptimeMillis() - startTime);
+        } catch (IOException e) {
+            Slog.w(PackageManagerService.TAG, "Unable to journal package states for user "
+                    + userId + ", writing them in full", e);
+            writePackageRestrictionsLPr(userId);
+        }
+    }
+
     void writePackageRestrictionsLPr(int userId) {
         if (DEBUG_MU) {
             Log.i(TAG, "Writing package restrictions for user=" + userId);
@@ -2066,108 +2309,7 @@ public final class Settings {
             serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
 
             for (final PackageSetting pkg : mPackages.values()) {
-                final PackageUserState ustate = pkg.readUserState(userId);
-                if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
-
-                serializer.startTag(null, TAG_PACKAGE);
-                serializer.attribute(null, ATTR_NAME, pkg.name);
-                if (ustate.ceDataInode != 0) {
-                    XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
-                }
-                if (!ustate.installed) {
-                    serializer.attribute(null, ATTR_INSTALLED, "false");
-                }
-                if (ustate.stopped) {
-                    serializer.attribute(null, ATTR_STOPPED, "true");
-                }
-                if (ustate.notLaunched) {
-                    serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
-                }
-                if (ustate.hidden) {
-                    serializer.attribute(null, ATTR_HIDDEN, "true");
-                }
-                if (ustate.suspended) {
-                    serializer.attribute(null, ATTR_SUSPENDED, "true");
-                    if (ustate.suspendingPackage != null) {
-                        serializer.attribute(null, ATTR_SUSPENDING_PACKAGE,
-                                ustate.suspendingPackage);
-                    }
-                    if (ustate.dialogMessage != null) {
-                        serializer.attribute(null, ATTR_SUSPEND_DIALOG_MESSAGE,
-                                ustate.dialogMessage);
-                    }
-                    if (ustate.suspendedAppExtras != null) {
-                        serializer.startTag(null, TAG_SUSPENDED_APP_EXTRAS);
-                        try {
-                            ustate.suspendedAppExtras.saveToXml(serializer);
-                        } catch (XmlPullParserException xmle) {
-                            Slog.wtf(TAG, "Exception while trying to write suspendedAppExtras for "
-                                    + pkg + ". Will be lost on reboot", xmle);
-                        }
-                        serializer.endTag(null, TAG_SUSPENDED_APP_EXTRAS);
-                    }
-                    if (ustate.suspendedLauncherExtras != null) {
-                        serializer.startTag(null, TAG_SUSPENDED_LAUNCHER_EXTRAS);
-                        try {
-                            ustate.suspendedLauncherExtras.saveToXml(serializer);
-                        } catch (XmlPullParserException xmle) {
-                            Slog.wtf(TAG, "Exception while trying to write suspendedLauncherExtras"
-                                    + " for " + pkg + ". Will be lost on reboot", xmle);
-                        }
-                        serializer.endTag(null, TAG_SUSPENDED_LAUNCHER_EXTRAS);
-                    }
-                }
-                if (ustate.instantApp) {
-                    serializer.attribute(null, ATTR_INSTANT_APP, "true");
-                }
-                if (ustate.virtualPreload) {
-                    serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
-                }
-                if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
-                    serializer.attribute(null, ATTR_ENABLED,
-                            Integer.toString(ustate.enabled));
-                    if (ustate.lastDisableAppCaller != null) {
-                        serializer.attribute(null, ATTR_ENABLED_CALLER,
-                                ustate.lastDisableAppCaller);
-                    }
-                }
-                if (ustate.domainVerificationStatus !=
-                        PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
-                            ustate.domainVerificationStatus);
-                }
-                if (ustate.appLinkGeneration != 0) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
-                            ustate.appLinkGeneration);
-                }
-                if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
-                    serializer.attribute(null, ATTR_INSTALL_REASON,
-                            Integer.toString(ustate.installReason));
-                }
-                if (ustate.harmfulAppWarning != null) {
-                    serializer.attribute(null, ATTR_HARMFUL_APP_WARNING,
-                            ustate.harmfulAppWarning);
-                }
-                if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
-                    serializer.startTag(null, TAG_ENABLED_COMPONENTS);
-                    for (final String name : ustate.enabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_ENABLED_COMPONENTS);
-                }
-                if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
-                    serializer.startTag(null, TAG_DISABLED_COMPONENTS);
-                    for (final String name : ustate.disabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_DISABLED_COMPONENTS);
-                }
-
-                serializer.endTag(null, TAG_PACKAGE);
+                writePackageUserStateLPr(serializer, pkg, userId);
             }
 
             writePreferredActivitiesLPr(serializer, userId, true);
@@ -2192,6 +2334,15 @@ public final class Settings {
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
 
+            // Everything journaled so far is now part of the file itself
+            final RecordJournal journal = getUserPackagesStateJournal(userId);
+            if (journal.exists()) {
+                journal.delete();
+                mPackageRestrictionsCompactions++;
+            }
+            mPackageRestrictionsFullWrites++;
+            mPackageRestrictionsFullBytes += userPackagesStateFile.length();
+
             com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
                     "package-user-" + userId, SystemClock.uptimeMillis() - startTime);
 
@@ -2500,7 +2651,8 @@ public final class Settings {
             BufferedOutputStream str = new BufferedOutputStream(fstr);
 
             //XmlSerializer serializer = XmlUtils.serializerInstance();
-            XmlSerializer serializer = new FastXmlSerializer();
+            XmlSerializer serializer = WRITE_BINARY_SETTINGS
+                    ? new BinaryXmlSerializer() : new FastXmlSerializer();
             serializer.setOutput(str, StandardCharsets.UTF_8.name());
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
@@ -3031,8 +3183,9 @@ public final class Settings {
                 }
                 str = new FileInputStream(mSettingsFilename);
             }
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
+            // Settings may have been persisted in either format, regardless of which one
+            // we are currently configured to write
+            XmlPullParser parser = BinaryXmlPullParser.newPullParser(str);
 
             int type;
             while ((type = parser.next()) != XmlPullParser.START_TAG
@@ -4180,6 +4333,7 @@ public final class Settings {
         file.delete();
         file = getUserPackagesStateBackupFile(userId);
         file.delete();
+        getUserPackagesStateJournal(userId).delete();
         removeCrossProfileIntentFiltersLPw(userId);
 
         mRuntimePermissionsPersistence.onUserRemovedLPw(userId);
@@ -4990,6 +5144,18 @@ public final class Settings {
         }
     }
 
+    void dumpPackageRestrictionsWriteStatsLPr(PrintWriter pw) {
+        pw.println("Package restrictions writes:");
+        pw.print("  Journaling enabled: "); pw.println(JOURNAL_PACKAGE_RESTRICTIONS);
+        pw.print("  Full writes: "); pw.print(mPackageRestrictionsFullWrites);
+        pw.print(" ("); pw.print(mPackageRestrictionsFullBytes); pw.println(" bytes)");
+        pw.print("  Journal writes: "); pw.print(mPackageRestrictionsJournalWrites);
+        pw.print(" ("); pw.print(mPackageRestrictionsJournalRecords); pw.print(" packages, ");
+        pw.print(mPackageRestrictionsJournalBytes); pw.println(" bytes)");
+        pw.print("  Full writes avoided: "); pw.println(mPackageRestrictionsJournalWrites);
+        pw.print("  Journal compactions: "); pw.println(mPackageRestrictionsCompactions);
+    }
+
     void dumpReadMessagesLPr(PrintWriter pw, DumpState dumpState) {
         pw.println("Settings parse messages:");
         pw.print(mReadMessages.toString());
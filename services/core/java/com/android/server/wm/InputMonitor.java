@@ -40,6 +40,7 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.util.ArrayMap;
@@ -61,6 +62,12 @@ import java.util.Set;
 import java.util.function.Consumer;
 
 final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
+    /**
+     * When set, updates that don't add, remove, reorder or change any input window are not sent
+     * to the input dispatcher.
+     */
+    private static final String PROP_DIFF_INPUT_WINDOWS = "persist.sys.wm.input_window_diff";
+
     private final WindowManagerService mService;
 
     // Current window with input focus for keys and other non-touch events.  May be null.
@@ -85,6 +92,9 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
     private int mInputWindowHandleCount;
     private InputWindowHandle mFocusedInputWindowHandle;
 
+    private final boolean mDiffInputWindows;
+    private final InputWindowDiff mInputWindowDiff = new InputWindowDiff();
+
     private boolean mAddInputConsumerHandle;
     private boolean mAddPipInputConsumerHandle;
     private boolean mAddWallpaperInputConsumerHandle;
@@ -132,6 +142,7 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
 
     public InputMonitor(WindowManagerService service) {
         mService = service;
+        mDiffInputWindows = SystemProperties.getBoolean(PROP_DIFF_INPUT_WINDOWS, false);
     }
 
     private void addInputConsumer(String name, InputConsumerImpl consumer) {
@@ -608,6 +619,8 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
                 mInputConsumers.get(key).dump(pw, key, prefix);
             }
         }
+        pw.println(prefix + "mDiffInputWindows=" + mDiffInputWindows);
+        mInputWindowDiff.dump(pw, prefix);
     }
 
     private final class UpdateInputForAllWindowsConsumer implements Consumer<WindowState> {
@@ -645,7 +658,22 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
             }
 
             // Send windows to native code.
-            mService.mInputManager.setInputWindows(mInputWindowHandles, mFocusedInputWindowHandle);
+            if (!mDiffInputWindows) {
+                mInputWindowDiff.countUpdate(mInputWindowHandleCount);
+                mService.mInputManager.setInputWindows(mInputWindowHandles,
+                        mFocusedInputWindowHandle);
+            } else if (mInputWindowDiff.update(mInputWindowHandles, mInputWindowHandleCount,
+                    mFocusedInputWindowHandle)) {
+                if (DEBUG_INPUT) {
+                    Slog.d(TAG_WM, "Sending input windows generation="
+                            + mInputWindowDiff.getGeneration()
+                            + " added=" + mInputWindowDiff.getLastAdded()
+                            + " removed=" + mInputWindowDiff.getLastRemoved()
+                            + " changed=" + mInputWindowDiff.getLastChanged());
+                }
+                mService.mInputManager.setInputWindows(mInputWindowHandles,
+                        mFocusedInputWindowHandle);
+            }
 
             clearInputWindowHandlesLw();
 
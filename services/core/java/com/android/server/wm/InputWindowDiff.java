@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.graphics.Region;
+import android.util.ArrayMap;
+import android.view.InputChannel;
+
+import com.android.server.input.InputApplicationHandle;
+import com.android.server.input.InputWindowHandle;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Remembers the input windows last sent to the input dispatcher, so that {@link InputMonitor}
+ * can tell which handles an update adds, removes or changes, and skip updates that change
+ * nothing. Also counts how often and how large the updates are.
+ *
+ * Handles are filled in place by the window manager, so the values sent are copied here rather
+ * than compared by reference.
+ */
+class InputWindowDiff {
+
+    /** The values of one handle as they were last sent. */
+    private static final class SentHandle {
+        long generation;
+        InputApplicationHandle inputApplicationHandle;
+        String applicationName;
+        long applicationDispatchingTimeoutNanos;
+        InputChannel inputChannel;
+        String name;
+        int layoutParamsFlags;
+        int layoutParamsType;
+        long dispatchingTimeoutNanos;
+        int frameLeft;
+        int frameTop;
+        int frameRight;
+        int frameBottom;
+        float scaleFactor;
+        final Region touchableRegion = new Region();
+        boolean visible;
+        boolean canReceiveKeys;
+        boolean hasFocus;
+        boolean hasWallpaper;
+        boolean paused;
+        int layer;
+        int ownerPid;
+        int ownerUid;
+        int inputFeatures;
+        int displayId;
+
+        void set(InputWindowHandle h) {
+            inputApplicationHandle = h.inputApplicationHandle;
+            if (inputApplicationHandle != null) {
+                applicationName = inputApplicationHandle.name;
+                applicationDispatchingTimeoutNanos = inputApplicationHandle.dispatchingTimeoutNanos;
+            }
+            inputChannel = h.inputChannel;
+            name = h.name;
+            layoutParamsFlags = h.layoutParamsFlags;
+            layoutParamsType = h.layoutParamsType;
+            dispatchingTimeoutNanos = h.dispatchingTimeoutNanos;
+            frameLeft = h.frameLeft;
+            frameTop = h.frameTop;
+            frameRight = h.frameRight;
+            frameBottom = h.frameBottom;
+            scaleFactor = h.scaleFactor;
+            touchableRegion.set(h.touchableRegion);
+            visible = h.visible;
+            canReceiveKeys = h.canReceiveKeys;
+            hasFocus = h.hasFocus;
+            hasWallpaper = h.hasWallpaper;
+            paused = h.paused;
+            layer = h.layer;
+            ownerPid = h.ownerPid;
+            ownerUid = h.ownerUid;
+            inputFeatures = h.inputFeatures;
+            displayId = h.displayId;
+        }
+
+        boolean matches(InputWindowHandle h) {
+            if (inputApplicationHandle != h.inputApplicationHandle) {
+                return false;
+            }
+            if (inputApplicationHandle != null
+                    && (!Objects.equals(applicationName, inputApplicationHandle.name)
+                    || applicationDispatchingTimeoutNanos
+                            != inputApplicationHandle.dispatchingTimeoutNanos)) {
+                return false;
+            }
+            return inputChannel == h.inputChannel
+                    && Objects.equals(name, h.name)
+                    && layoutParamsFlags == h.layoutParamsFlags
+                    && layoutParamsType == h.layoutParamsType
+                    && dispatchingTimeoutNanos == h.dispatchingTimeoutNanos
+                    && frameLeft == h.frameLeft
+                    && frameTop == h.frameTop
+                    && frameRight == h.frameRight
+                    && frameBottom == h.frameBottom
+                    && scaleFactor == h.scaleFactor
+                    && visible == h.visible
+                    && canReceiveKeys == h.canReceiveKeys
+                    && hasFocus == h.hasFocus
+                    && hasWallpaper == h.hasWallpaper
+                    && paused == h.paused
+                    && layer == h.layer
+                    && ownerPid == h.ownerPid
+                    && ownerUid == h.ownerUid
+                    && inputFeatures == h.inputFeatures
+                    && displayId == h.displayId
+                    && touchableRegion.equals(h.touchableRegion);
+        }
+    }
+
+    // InputWindowHandle doesn't override equals() or hashCode(), so this is keyed by identity.
+    private final ArrayMap<InputWindowHandle, SentHandle> mSent = new ArrayMap<>();
+    private InputWindowHandle[] mSentOrder = new InputWindowHandle[0];
+    private int mSentCount;
+    private InputWindowHandle mSentFocus;
+
+    /** Bumped every time a new set of input windows is sent. */
+    private long mGeneration;
+
+    private int mLastAdded;
+    private int mLastRemoved;
+    private int mLastChanged;
+
+    // Counters for dumpsys, since boot.
+    private long mUpdateCount;
+    private long mSkippedCount;
+    private long mHandlesSent;
+    private long mAddedCount;
+    private long mRemovedCount;
+    private long mChangedCount;
+
+    /**
+     * Compares the handles about to be sent with the ones sent last time and, if anything
+     * differs, remembers the new ones as sent.
+     *
+     * @return True if the handles, their order or the focused handle differ from the last ones
+     *         sent, in which case the caller must send them.
+     */
+    boolean update(InputWindowHandle[] handles, int count, InputWindowHandle focus) {
+        mUpdateCount++;
+        int added = 0;
+        int changed = 0;
+        boolean reordered = count != mSentCount || focus != mSentFocus;
+        for (int i = 0; i < count; i++) {
+            final InputWindowHandle handle = handles[i];
+            final SentHandle sent = mSent.get(handle);
+            if (sent == null) {
+                added++;
+            } else if (!sent.matches(handle)) {
+                changed++;
+            }
+            if (!reordered && mSentOrder[i] != handle) {
+                reordered = true;
+            }
+        }
+        if (!reordered && added == 0 && changed == 0) {
+            mSkippedCount++;
+            return false;
+        }
+
+        mGeneration++;
+        for (int i = 0; i < count; i++) {
+            final InputWindowHandle handle = handles[i];
+            SentHandle sent = mSent.get(handle);
+            if (sent == null) {
+                sent = new SentHandle();
+                mSent.put(handle, sent);
+            }
+            sent.set(handle);
+            sent.generation = mGeneration;
+        }
+        int removed = 0;
+        for (int i = mSent.size() - 1; i >= 0; i--) {
+            if (mSent.valueAt(i).generation != mGeneration) {
+                mSent.removeAt(i);
+                removed++;
+            }
+        }
+
+        if (mSentOrder.length < count) {
+            mSentOrder = new InputWindowHandle[handles.length];
+        }
+        if (count > 0) {
+            System.arraycopy(handles, 0, mSentOrder, 0, count);
+        }
+        Arrays.fill(mSentOrder, count, mSentOrder.length, null);
+        mSentCount = count;
+        mSentFocus = focus;
+
+        mLastAdded = added;
+        mLastRemoved = removed;
+        mLastChanged = changed;
+        mHandlesSent += count;
+        mAddedCount += added;
+        mRemovedCount += removed;
+        mChangedCount += changed;
+        return true;
+    }
+
+    /**
+     * Counts an update sent without comparing it, when diffing is turned off.
+     */
+    void countUpdate(int count) {
+        mUpdateCount++;
+        mGeneration++;
+        mSentCount = count;
+        mHandlesSent += count;
+    }
+
+    long getGeneration() {
+        return mGeneration;
+    }
+
+    long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    int getLastAdded() {
+        return mLastAdded;
+    }
+
+    int getLastRemoved() {
+        return mLastRemoved;
+    }
+
+    int getLastChanged() {
+        return mLastChanged;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("InputWindowDiff: generation="); pw.print(mGeneration);
+                pw.print(" windows="); pw.println(mSentCount);
+        pw.print(prefix); pw.print("  updates="); pw.print(mUpdateCount);
+                pw.print(" skipped="); pw.print(mSkippedCount);
+                pw.print(" handlesSent="); pw.println(mHandlesSent);
+        pw.print(prefix); pw.print("  added="); pw.print(mAddedCount);
+                pw.print(" removed="); pw.print(mRemovedCount);
+                pw.print(" changed="); pw.print(mChangedCount);
+                pw.print(" last=+"); pw.print(mLastAdded);
+                pw.print("/-"); pw.print(mLastRemoved);
+                pw.print("/~"); pw.println(mLastChanged);
+    }
+}
@@ -113,6 +113,21 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
     private boolean mSustainedPerformanceModeEnabled = false;
     private boolean mSustainedPerformanceModeCurrent = false;
 
+    /**
+     * What the windows of one display added to the state above during its last surface placement
+     * pass, so the display can be skipped by a pass that only repeats layout for other displays.
+     */
+    static final class PlacementContribution {
+        boolean valid;
+        Session holdScreen;
+        WindowState holdScreenWindow;
+        WindowState obscuringWindow;
+        float screenBrightness;
+        long userActivityTimeout;
+        boolean sustainedPerformanceMode;
+        boolean obscureApplicationContentOnSecondaryDisplays;
+    }
+
     boolean mWallpaperMayChange = false;
     // During an orientation change, we track whether all windows have rendered
     // at the new orientation, and this will be false from changing orientation until that occurs.
@@ -557,6 +572,15 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
     // "Something has changed!  Let's make it correct now."
     // TODO: Super crazy long method that should be broken down...
     void performSurfacePlacement(boolean recoveringMemory) {
+        performSurfacePlacement(recoveringMemory, false /* repeatLayoutOnly */);
+    }
+
+    /**
+     * @param repeatLayoutOnly True if this pass only repeats layout for the displays that still
+     *        needed it after the previous pass, so that displays with nothing to lay out can keep
+     *        the results of that pass.
+     */
+    void performSurfacePlacement(boolean recoveringMemory, boolean repeatLayoutOnly) {
         if (DEBUG_WINDOW_TRACE) Slog.v(TAG, "performSurfacePlacementInner: entry. Called by "
                 + Debug.getCallers(3));
 
@@ -593,7 +617,8 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
                 ">>> OPEN TRANSACTION performLayoutAndPlaceSurfaces");
         mService.openSurfaceTransaction();
         try {
-            applySurfaceChangesTransaction(recoveringMemory, defaultDw, defaultDh);
+            applySurfaceChangesTransaction(recoveringMemory, repeatLayoutOnly, defaultDw,
+                    defaultDh);
         } catch (RuntimeException e) {
             Slog.wtf(TAG, "Unhandled exception in Window Manager", e);
         } finally {
@@ -666,7 +691,11 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
             }
         }
 
-        if (isLayoutNeeded()) {
+        // Laying out another display doesn't change the default one, so with incremental layout
+        // only the displays that need it get another pass.
+        final boolean layoutNeeded = surfacePlacer.isIncrementalLayout()
+                ? defaultDisplay.isLayoutNeeded() : isLayoutNeeded();
+        if (layoutNeeded) {
             defaultDisplay.pendingLayoutChanges |= FINISH_LAYOUT_REDO_LAYOUT;
             if (DEBUG_LAYOUT_REPEATS) surfacePlacer.debugLayoutRepeats("mLayoutNeeded",
                     defaultDisplay.pendingLayoutChanges);
@@ -823,8 +852,8 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
                 "performSurfacePlacementInner exit: animating=" + mService.mAnimator.isAnimating());
     }
 
-    private void applySurfaceChangesTransaction(boolean recoveringMemory, int defaultDw,
-            int defaultDh) {
+    private void applySurfaceChangesTransaction(boolean recoveringMemory,
+            boolean repeatLayoutOnly, int defaultDw, int defaultDh) {
         mHoldScreenWindow = null;
         mObscuringWindow = null;
 
@@ -846,10 +875,56 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
 
         boolean focusDisplayed = false;
 
+        final WindowSurfacePlacer surfacePlacer = mService.mWindowPlacerLocked;
+        final boolean trackContributions = surfacePlacer.isIncrementalLayout();
         final int count = mChildren.size();
         for (int j = 0; j < count; ++j) {
             final DisplayContent dc = mChildren.get(j);
+            final PlacementContribution contribution = dc.mPlacementContribution;
+            if (repeatLayoutOnly && canSkipSurfaceChanges(dc)) {
+                applyContribution(contribution);
+                surfacePlacer.onDisplaySkipped();
+                continue;
+            }
+            if (!trackContributions) {
+                focusDisplayed |= dc.applySurfaceChangesTransaction(recoveringMemory);
+                continue;
+            }
+
+            // Let the display start from nothing, record what it sets, then fold that into what
+            // the displays before it set the same way handleNotObscuredLocked would have.
+            final Session holdScreen = mHoldScreen;
+            final WindowState holdScreenWindow = mHoldScreenWindow;
+            final WindowState obscuringWindow = mObscuringWindow;
+            final float screenBrightness = mScreenBrightness;
+            final long userActivityTimeout = mUserActivityTimeout;
+            final boolean sustainedPerformanceMode = mSustainedPerformanceModeCurrent;
+            mHoldScreen = null;
+            mHoldScreenWindow = null;
+            mObscuringWindow = null;
+            mScreenBrightness = -1;
+            mUserActivityTimeout = -1;
+            mSustainedPerformanceModeCurrent = false;
+
             focusDisplayed |= dc.applySurfaceChangesTransaction(recoveringMemory);
+
+            contribution.holdScreen = mHoldScreen;
+            contribution.holdScreenWindow = mHoldScreenWindow;
+            contribution.obscuringWindow = mObscuringWindow;
+            contribution.screenBrightness = mScreenBrightness;
+            contribution.userActivityTimeout = mUserActivityTimeout;
+            contribution.sustainedPerformanceMode = mSustainedPerformanceModeCurrent;
+            contribution.obscureApplicationContentOnSecondaryDisplays =
+                    mObscureApplicationContentOnSecondaryDisplays;
+            contribution.valid = true;
+
+            mHoldScreen = holdScreen;
+            mHoldScreenWindow = holdScreenWindow;
+            mObscuringWindow = obscuringWindow;
+            mScreenBrightness = screenBrightness;
+            mUserActivityTimeout = userActivityTimeout;
+            mSustainedPerformanceModeCurrent = sustainedPerformanceMode;
+            applyContribution(contribution);
         }
 
         if (focusDisplayed) {
@@ -862,6 +937,40 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
         SurfaceControl.mergeToGlobalTransaction(mDisplayTransaction);
     }
 
+    /**
+     * @return True if the display has nothing to lay out and the state it contributed during the
+     *         previous pass is still what it would contribute now.
+     */
+    private boolean canSkipSurfaceChanges(DisplayContent dc) {
+        final PlacementContribution contribution = dc.mPlacementContribution;
+        if (!contribution.valid || dc.isLayoutNeeded() || dc.pendingLayoutChanges != 0) {
+            return false;
+        }
+        // Secondary displays decide whether they have content based on what the default display
+        // set before them.
+        return dc.isDefaultDisplay || contribution.obscureApplicationContentOnSecondaryDisplays
+                == mObscureApplicationContentOnSecondaryDisplays;
+    }
+
+    private void applyContribution(PlacementContribution contribution) {
+        if (contribution.holdScreen != null) {
+            mHoldScreen = contribution.holdScreen;
+            mHoldScreenWindow = contribution.holdScreenWindow;
+        }
+        if (contribution.obscuringWindow != null) {
+            mObscuringWindow = contribution.obscuringWindow;
+        }
+        if (mScreenBrightness < 0) {
+            mScreenBrightness = contribution.screenBrightness;
+        }
+        if (mUserActivityTimeout < 0) {
+            mUserActivityTimeout = contribution.userActivityTimeout;
+        }
+        mSustainedPerformanceModeCurrent |= contribution.sustainedPerformanceMode;
+        mObscureApplicationContentOnSecondaryDisplays |=
+                contribution.obscureApplicationContentOnSecondaryDisplays;
+    }
+
     /**
      * Handles resizing windows during surface placement.
      *
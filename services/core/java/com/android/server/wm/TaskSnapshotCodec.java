@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.os.SystemProperties;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes the bitmaps of persisted {@link android.app.ActivityManager.TaskSnapshot}s.
+ * <p>
+ * Which codec is used is chosen by persist.sys.wm.snapshot_codec: "jpeg" (the default) or "raw".
+ * Each codec writes files with its own extension, so files left behind by another codec are
+ * never read.
+ */
+abstract class TaskSnapshotCodec {
+
+    private static final String PROP_CODEC = "persist.sys.wm.snapshot_codec";
+
+    /** JPEG at high quality: small files, but slow to encode. */
+    static final TaskSnapshotCodec JPEG = new JpegCodec();
+
+    /** The raw pixels, compressed with the fastest deflate level. Lossless. */
+    static final TaskSnapshotCodec RAW = new RawCodec();
+
+    static final TaskSnapshotCodec[] ALL = { JPEG, RAW };
+
+    static TaskSnapshotCodec fromSystemProperties() {
+        return "raw".equals(SystemProperties.get(PROP_CODEC)) ? RAW : JPEG;
+    }
+
+    /**
+     * @return The extension, including the dot, of the files this codec writes.
+     */
+    abstract String getExtension();
+
+    /**
+     * Encodes a software bitmap.
+     */
+    abstract void encode(Bitmap bitmap, OutputStream out) throws IOException;
+
+    /**
+     * Decodes a file written by {@link #encode}.
+     *
+     * @param config The config of the returned bitmap, {@link Config#HARDWARE} or
+     *               {@link Config#ARGB_8888}.
+     * @return The bitmap, or {@code null} if the file couldn't be decoded.
+     */
+    abstract Bitmap decode(File file, Config config) throws IOException;
+
+    private static final class JpegCodec extends TaskSnapshotCodec {
+        private static final int QUALITY = 95;
+
+        @Override
+        String getExtension() {
+            return ".jpg";
+        }
+
+        @Override
+        void encode(Bitmap bitmap, OutputStream out) throws IOException {
+            if (!bitmap.compress(CompressFormat.JPEG, QUALITY, out)) {
+                throw new IOException("Unable to compress " + bitmap);
+            }
+        }
+
+        @Override
+        Bitmap decode(File file, Config config) {
+            final Options options = new Options();
+            options.inPreferredConfig = config;
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+    }
+
+    /**
+     * A header with the size of the bitmap followed by its unpremultiplied ARGB pixels, deflated
+     * at {@link Deflater#BEST_SPEED}. Snapshots are mostly flat UI, which this still shrinks a
+     * lot, while costing a fraction of the CPU time of JPEG. Lossless for opaque pixels.
+     * <p>
+     * Pixels go through a buffer of one row at a time, so encoding doesn't keep a copy of the
+     * whole bitmap around.
+     */
+    private static final class RawCodec extends TaskSnapshotCodec {
+        private static final int MAGIC = 0x54534e50; // "TSNP"
+        private static final int VERSION = 2;
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final Object mLock = new Object();
+
+        @GuardedBy("mLock")
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+
+        @Override
+        String getExtension() {
+            return ".raw";
+        }
+
+        @Override
+        void encode(Bitmap bitmap, OutputStream out) throws IOException {
+            if (bitmap.getConfig() != Config.ARGB_8888) {
+                throw new IOException("Unsupported config " + bitmap.getConfig());
+            }
+            final int width = bitmap.getWidth();
+            final int height = bitmap.getHeight();
+            final int[] row = new int[width];
+            final ByteBuffer rowBytes = ByteBuffer.allocate(width * 4);
+            synchronized (mLock) {
+                final DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.writeInt(width);
+                header.writeInt(height);
+                header.writeInt(width * height * 4);
+                header.flush();
+
+                mDeflater.reset();
+                final DeflaterOutputStream deflated = new DeflaterOutputStream(out, mDeflater,
+                        BUFFER_SIZE);
+                for (int y = 0; y < height; y++) {
+                    bitmap.getPixels(row, 0, width, 0, y, width, 1);
+                    rowBytes.asIntBuffer().put(row);
+                    deflated.write(rowBytes.array(), 0, rowBytes.capacity());
+                }
+                deflated.finish();
+                deflated.flush();
+            }
+        }
+
+        @Override
+        Bitmap decode(File file, Config config) throws IOException {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                final int width = in.readInt();
+                final int height = in.readInt();
+                final int byteCount = in.readInt();
+                if (width <= 0 || height <= 0 || byteCount != width * height * 4) {
+                    return null;
+                }
+                final DataInputStream pixels = new DataInputStream(new InflaterInputStream(in));
+                final int[] row = new int[width];
+                final ByteBuffer rowBytes = ByteBuffer.allocate(width * 4);
+
+                final Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+                try {
+                    for (int y = 0; y < height; y++) {
+                        pixels.readFully(rowBytes.array());
+                        rowBytes.asIntBuffer().get(row);
+                        bitmap.setPixels(row, 0, width, 0, y, width, 1);
+                    }
+                } catch (IOException e) {
+                    bitmap.recycle();
+                    throw e;
+                }
+                if (config == Config.ARGB_8888) {
+                    return bitmap;
+                }
+                final Bitmap converted = bitmap.copy(config, false /* isMutable */);
+                bitmap.recycle();
+                return converted;
+            }
+        }
+    }
+}
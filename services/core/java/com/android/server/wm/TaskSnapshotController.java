@@ -92,7 +92,7 @@ class TaskSnapshotController {
 
     private final TaskSnapshotCache mCache;
     private final TaskSnapshotPersister mPersister = new TaskSnapshotPersister(
-            Environment::getDataSystemCeDirectory);
+            Environment::getDataSystemCeDirectory, TaskSnapshotCodec.fromSystemProperties());
     private final TaskSnapshotLoader mLoader = new TaskSnapshotLoader(mPersister);
     private final ArraySet<Task> mSkipClosingAppSnapshotTasks = new ArraySet<>();
     private final ArraySet<Task> mTmpTasks = new ArraySet<>();
@@ -452,5 +452,6 @@ class TaskSnapshotController {
 
     void dump(PrintWriter pw, String prefix) {
         mCache.dump(pw, prefix);
+        mPersister.dump(pw, prefix);
     }
 }
@@ -16,7 +16,6 @@
 
 package com.android.server.wm;
 
-import static android.graphics.Bitmap.CompressFormat.*;
 import static com.android.server.wm.WindowManagerDebugConfig.TAG_WITH_CLASS_NAME;
 import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
 
@@ -35,10 +34,13 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.AtomicFile;
 import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayDeque;
+import java.util.Iterator;
 
 /**
  * Persists {@link TaskSnapshot}s to disk.
@@ -53,10 +55,9 @@ class TaskSnapshotPersister {
     static final float REDUCED_SCALE = ActivityManager.isLowRamDeviceStatic() ? 0.6f : 0.5f;
     static final boolean DISABLE_FULL_SIZED_BITMAPS = ActivityManager.isLowRamDeviceStatic();
     private static final long DELAY_MS = 100;
-    private static final int QUALITY = 95;
     private static final String PROTO_EXTENSION = ".proto";
-    private static final String BITMAP_EXTENSION = ".jpg";
     private static final int MAX_STORE_QUEUE_DEPTH = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     @GuardedBy("mLock")
     private final ArrayDeque<WriteQueueItem> mWriteQueue = new ArrayDeque<>();
@@ -69,6 +70,17 @@ class TaskSnapshotPersister {
     private boolean mStarted;
     private final Object mLock = new Object();
     private final DirectoryResolver mDirectoryResolver;
+    private final TaskSnapshotCodec mCodec;
+
+    // Counters for dumpsys, since boot.
+    @GuardedBy("mLock")
+    private int mStoredCount;
+    @GuardedBy("mLock")
+    private int mCoalescedCount;
+    @GuardedBy("mLock")
+    private long mStoredBytes;
+    @GuardedBy("mLock")
+    private long mEncodeTimeNanos;
 
     /**
      * The list of ids of the tasks that have been persisted since {@link #removeObsoleteFiles} was
@@ -78,7 +90,16 @@ class TaskSnapshotPersister {
     private final ArraySet<Integer> mPersistedTaskIdsSinceLastRemoveObsolete = new ArraySet<>();
 
     TaskSnapshotPersister(DirectoryResolver resolver) {
+        this(resolver, TaskSnapshotCodec.JPEG);
+    }
+
+    TaskSnapshotPersister(DirectoryResolver resolver, TaskSnapshotCodec codec) {
         mDirectoryResolver = resolver;
+        mCodec = codec;
+    }
+
+    TaskSnapshotCodec getCodec() {
+        return mCodec;
     }
 
     /**
@@ -154,6 +175,20 @@ class TaskSnapshotPersister {
         }
     }
 
+    @VisibleForTesting
+    int getStoredCount() {
+        synchronized (mLock) {
+            return mStoredCount;
+        }
+    }
+
+    @VisibleForTesting
+    int getCoalescedCount() {
+        synchronized (mLock) {
+            return mCoalescedCount;
+        }
+    }
+
     @GuardedBy("mLock")
     private void sendToQueueLocked(WriteQueueItem item) {
         mWriteQueue.offer(item);
@@ -187,11 +222,11 @@ class TaskSnapshotPersister {
             Slog.wtf(TAG, "This device does not support full sized resolution bitmaps.");
             return null;
         }
-        return new File(getDirectory(userId), taskId + BITMAP_EXTENSION);
+        return new File(getDirectory(userId), taskId + mCodec.getExtension());
     }
 
     File getReducedResolutionBitmapFile(int taskId, int userId) {
-        return new File(getDirectory(userId), taskId + REDUCED_POSTFIX + BITMAP_EXTENSION);
+        return new File(getDirectory(userId), taskId + REDUCED_POSTFIX + mCodec.getExtension());
     }
 
     private boolean createDirectory(int userId) {
@@ -201,14 +236,27 @@ class TaskSnapshotPersister {
 
     private void deleteSnapshot(int taskId, int userId) {
         final File protoFile = getProtoFile(taskId, userId);
-        final File bitmapReducedFile = getReducedResolutionBitmapFile(taskId, userId);
         protoFile.delete();
-        bitmapReducedFile.delete();
 
-        // Low ram devices do not have a full sized file to delete
-        if (!DISABLE_FULL_SIZED_BITMAPS) {
-            final File bitmapFile = getBitmapFile(taskId, userId);
-            bitmapFile.delete();
+        // Also delete what another codec may have written before the codec was changed. Low ram
+        // devices do not have a full sized file to delete, but deleting a missing file is fine.
+        final File dir = getDirectory(userId);
+        for (TaskSnapshotCodec codec : TaskSnapshotCodec.ALL) {
+            new File(dir, taskId + REDUCED_POSTFIX + codec.getExtension()).delete();
+            new File(dir, taskId + codec.getExtension()).delete();
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix); pw.print("TaskSnapshotPersister codec=");
+                    pw.print(mCodec.getExtension());
+                    pw.print(" stored="); pw.print(mStoredCount);
+                    pw.print(" coalesced="); pw.println(mCoalescedCount);
+            pw.print(prefix); pw.print("  bytesPerSnapshot=");
+                    pw.print(mStoredCount == 0 ? 0 : mStoredBytes / mStoredCount);
+                    pw.print(" encodeMsPerSnapshot=");
+                    pw.println(mStoredCount == 0 ? 0 : mEncodeTimeNanos / mStoredCount / 1000000);
         }
     }
 
@@ -281,6 +329,16 @@ class TaskSnapshotPersister {
         @GuardedBy("mLock")
         @Override
         void onQueuedLocked() {
+            // A newer snapshot of the same task supersedes one that hasn't been written yet, so
+            // a task that changes quickly is only written once.
+            for (Iterator<StoreWriteQueueItem> it = mStoreQueueItems.iterator(); it.hasNext(); ) {
+                final StoreWriteQueueItem item = it.next();
+                if (item.mTaskId == mTaskId && item.mUserId == mUserId) {
+                    it.remove();
+                    mWriteQueue.remove(item);
+                    mCoalescedCount++;
+                }
+            }
             mStoreQueueItems.offer(this);
         }
 
@@ -342,6 +400,7 @@ class TaskSnapshotPersister {
                 return false;
             }
 
+            final long startTime = SystemClock.elapsedRealtimeNanos();
             final Bitmap swBitmap = bitmap.copy(Config.ARGB_8888, false /* isMutable */);
             final File reducedFile = getReducedResolutionBitmapFile(mTaskId, mUserId);
             final Bitmap reduced = mSnapshot.isReducedResolution()
@@ -349,34 +408,46 @@ class TaskSnapshotPersister {
                     : Bitmap.createScaledBitmap(swBitmap,
                             (int) (bitmap.getWidth() * REDUCED_SCALE),
                             (int) (bitmap.getHeight() * REDUCED_SCALE), true /* filter */);
-            try {
-                FileOutputStream reducedFos = new FileOutputStream(reducedFile);
-                reduced.compress(JPEG, QUALITY, reducedFos);
-                reducedFos.close();
-            } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + reducedFile +" for persisting.", e);
+            if (!writeBitmap(reduced, reducedFile)) {
                 return false;
             }
 
             // For snapshots with reduced resolution, do not create or save full sized bitmaps
             if (mSnapshot.isReducedResolution()) {
                 swBitmap.recycle();
+                onStored(startTime, reducedFile.length());
                 return true;
             }
 
             final File file = getBitmapFile(mTaskId, mUserId);
-            try {
-                FileOutputStream fos = new FileOutputStream(file);
-                swBitmap.compress(JPEG, QUALITY, fos);
-                fos.close();
-            } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
+            if (!writeBitmap(swBitmap, file)) {
                 return false;
             }
             reduced.recycle();
             swBitmap.recycle();
+            onStored(startTime, reducedFile.length() + file.length());
             return true;
         }
+
+        private boolean writeBitmap(Bitmap bitmap, File file) {
+            try (FileOutputStream fos = new FileOutputStream(file);
+                 BufferedOutputStream out = new BufferedOutputStream(fos, BUFFER_SIZE)) {
+                mCodec.encode(bitmap, out);
+            } catch (IOException e) {
+                Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
+                return false;
+            }
+            return true;
+        }
+
+        private void onStored(long startTime, long bytes) {
+            final long duration = SystemClock.elapsedRealtimeNanos() - startTime;
+            synchronized (mLock) {
+                mStoredCount++;
+                mStoredBytes += bytes;
+                mEncodeTimeNanos += duration;
+            }
+        }
     }
 
     private class DeleteWriteQueueItem extends WriteQueueItem {
@@ -430,7 +501,7 @@ class TaskSnapshotPersister {
 
         @VisibleForTesting
         int getTaskId(String fileName) {
-            if (!fileName.endsWith(PROTO_EXTENSION) && !fileName.endsWith(BITMAP_EXTENSION)) {
+            if (!fileName.endsWith(PROTO_EXTENSION) && !isBitmapFileName(fileName)) {
                 return -1;
             }
             final int end = fileName.lastIndexOf('.');
@@ -447,5 +518,14 @@ class TaskSnapshotPersister {
                 return -1;
             }
         }
+
+        private boolean isBitmapFileName(String fileName) {
+            for (TaskSnapshotCodec codec : TaskSnapshotCodec.ALL) {
+                if (fileName.endsWith(codec.getExtension())) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 }
@@ -57,6 +57,8 @@ import static com.android.server.wm.WindowManagerService.UPDATE_FOCUS_PLACING_SU
 
 import android.app.WindowConfiguration;
 import android.os.Debug;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.util.ArraySet;
 import android.util.Slog;
@@ -83,6 +85,13 @@ import java.util.function.Predicate;
  */
 class WindowSurfacePlacer {
     private static final String TAG = TAG_WITH_CLASS_NAME ? "WindowSurfacePlacer" : TAG_WM;
+
+    /**
+     * When set, the extra passes made only because a display still needed layout after the
+     * previous pass skip the displays that have nothing left to lay out.
+     */
+    private static final String PROP_INCREMENTAL_LAYOUT = "persist.sys.wm.incremental_layout";
+
     private final WindowManagerService mService;
     private final WallpaperController mWallpaperControllerLocked;
 
@@ -100,6 +109,24 @@ class WindowSurfacePlacer {
     private boolean mTraversalScheduled;
     private int mDeferDepth = 0;
 
+    @VisibleForTesting
+    boolean mIncrementalLayout;
+
+    /**
+     * True while the only scheduled traversal is the repeat requested by the previous pass for
+     * displays that still need layout, and nothing else asked for a traversal since.
+     */
+    private boolean mLayoutRepeatOnly;
+
+    // Counters for dumpsys, since boot.
+    private long mPlacementCount;
+    private long mPassCount;
+    private long mSkippedDisplayCount;
+    private long mWindowsVisited;
+    private long mLastPlacementNanos;
+    private long mMaxPlacementNanos;
+    private long mTotalPlacementNanos;
+
     private static final class LayerAndToken {
         public int layer;
         public AppWindowToken token;
@@ -113,6 +140,7 @@ class WindowSurfacePlacer {
     public WindowSurfacePlacer(WindowManagerService service) {
         mService = service;
         mWallpaperControllerLocked = mService.mRoot.mWallpaperController;
+        mIncrementalLayout = SystemProperties.getBoolean(PROP_INCREMENTAL_LAYOUT, false);
         mPerformSurfacePlacement = () -> {
             synchronized (mService.mWindowMap) {
                 performSurfacePlacement();
@@ -149,17 +177,28 @@ class WindowSurfacePlacer {
         if (mDeferDepth > 0 && !force) {
             return;
         }
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        // The first pass always visits every display, as the caller may have changed any of them.
+        boolean repeatLayoutOnly = false;
         int loopCount = 6;
         do {
             mTraversalScheduled = false;
-            performSurfacePlacementLoop();
+            mLayoutRepeatOnly = false;
+            performSurfacePlacementLoop(repeatLayoutOnly);
             mService.mAnimationHandler.removeCallbacks(mPerformSurfacePlacement);
+            repeatLayoutOnly = mIncrementalLayout && mLayoutRepeatOnly;
             loopCount--;
         } while (mTraversalScheduled && loopCount > 0);
         mService.mRoot.mWallpaperActionPending = false;
+
+        final long duration = SystemClock.elapsedRealtimeNanos() - startTime;
+        mPlacementCount++;
+        mLastPlacementNanos = duration;
+        mTotalPlacementNanos += duration;
+        mMaxPlacementNanos = Math.max(mMaxPlacementNanos, duration);
     }
 
-    private void performSurfacePlacementLoop() {
+    private void performSurfacePlacementLoop(boolean repeatLayoutOnly) {
         if (mInLayout) {
             if (DEBUG) {
                 throw new RuntimeException("Recursive call!");
@@ -204,13 +243,14 @@ class WindowSurfacePlacer {
         }
 
         try {
-            mService.mRoot.performSurfacePlacement(recoveringMemory);
+            mPassCount++;
+            mService.mRoot.performSurfacePlacement(recoveringMemory, repeatLayoutOnly);
 
             mInLayout = false;
 
             if (mService.mRoot.isLayoutNeeded()) {
                 if (++mLayoutRepeatCount < 6) {
-                    requestTraversal();
+                    requestLayoutRepeat();
                 } else {
                     Slog.e(TAG, "Performed 6 layouts in a row. Skipping");
                     mLayoutRepeatCount = 0;
@@ -797,15 +837,55 @@ class WindowSurfacePlacer {
     }
 
     void requestTraversal() {
+        mLayoutRepeatOnly = false;
         if (!mTraversalScheduled) {
             mTraversalScheduled = true;
             mService.mAnimationHandler.post(mPerformSurfacePlacement);
         }
     }
 
+    /**
+     * Schedules another pass because a display still needs layout after the current one. Unless
+     * something else also requested a traversal, that pass only has to visit the displays that
+     * need layout.
+     */
+    private void requestLayoutRepeat() {
+        if (!mTraversalScheduled) {
+            requestTraversal();
+            mLayoutRepeatOnly = true;
+        }
+    }
+
+    boolean isIncrementalLayout() {
+        return mIncrementalLayout;
+    }
+
+    @VisibleForTesting
+    long getSkippedDisplayCount() {
+        return mSkippedDisplayCount;
+    }
+
+    void onDisplaySkipped() {
+        mSkippedDisplayCount++;
+    }
+
+    void onWindowVisited() {
+        mWindowsVisited++;
+    }
+
     public void dump(PrintWriter pw, String prefix) {
         pw.println(prefix + "mTraversalScheduled=" + mTraversalScheduled);
         pw.println(prefix + "mHoldScreenWindow=" + mService.mRoot.mHoldScreenWindow);
         pw.println(prefix + "mObscuringWindow=" + mService.mRoot.mObscuringWindow);
+        pw.println(prefix + "mIncrementalLayout=" + mIncrementalLayout);
+        pw.print(prefix); pw.print("placements="); pw.print(mPlacementCount);
+                pw.print(" passes="); pw.print(mPassCount);
+                pw.print(" skippedDisplays="); pw.print(mSkippedDisplayCount);
+                pw.print(" windowsVisited="); pw.println(mWindowsVisited);
+        pw.print(prefix); pw.print("placementTime last="); pw.print(mLastPlacementNanos / 1000);
+                pw.print("us max="); pw.print(mMaxPlacementNanos / 1000);
+                pw.print("us avg=");
+                pw.print(mPlacementCount == 0 ? 0 : mTotalPlacementNanos / mPlacementCount / 1000);
+                pw.println("us");
     }
 }
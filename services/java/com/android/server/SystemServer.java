@@ -60,6 +60,7 @@ import com.android.internal.app.ColorDisplayController;
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.notification.SystemNotificationChannels;
 import com.android.internal.os.BinderInternal;
+import com.android.internal.os.BinderLatencyStats;
 import com.android.internal.util.ConcurrentUtils;
 import com.android.internal.util.EmergencyAffordanceManager;
 import com.android.internal.widget.ILockSettings;
@@ -400,6 +401,7 @@ public final class SystemServer {
 
             // Increase the number of binder threads in system_server
             BinderInternal.setMaxThreads(sMaxBinderThreads);
+            BinderLatencyStats.getInstance().setThreadPoolSize(sMaxBinderThreads + 1);
 
             // Prepare the main looper thread (this thread).
             android.os.Process.setThreadPriority(
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.PatternMatcher;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link IntentDataIndex}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class IntentDataIndexTest {
+    private IntentDataIndex<IntentFilter> mIndex;
+
+    private IntentFilter mAnyHttp;
+    private IntentFilter mExample;
+    private IntentFilter mWildExample;
+    private IntentFilter mExampleLiteral;
+    private IntentFilter mExamplePrefix;
+    private IntentFilter mExampleGlob;
+
+    @Before
+    public void setUp() {
+        mIndex = new IntentDataIndex<>();
+
+        mAnyHttp = newFilter("http", null);
+        mExample = newFilter("http", "www.example.com");
+        mWildExample = newFilter("http", "*.example.com");
+        mExampleLiteral = newFilter("http", "www.example.com");
+        mExampleLiteral.addDataPath("/exact", PatternMatcher.PATTERN_LITERAL);
+        mExamplePrefix = newFilter("http", "www.example.com");
+        mExamplePrefix.addDataPath("/pre", PatternMatcher.PATTERN_PREFIX);
+        mExampleGlob = newFilter("http", "www.example.com");
+        mExampleGlob.addDataPath("/.*", PatternMatcher.PATTERN_SIMPLE_GLOB);
+
+        mIndex.addFilter(mAnyHttp);
+        mIndex.addFilter(mExample);
+        mIndex.addFilter(mWildExample);
+        mIndex.addFilter(mExampleLiteral);
+        mIndex.addFilter(mExamplePrefix);
+        mIndex.addFilter(mExampleGlob);
+        mIndex.addFilter(newFilter("http", "www.other.com"));
+    }
+
+    private static IntentFilter newFilter(String scheme, String host) {
+        final IntentFilter filter = new IntentFilter(android.content.Intent.ACTION_VIEW);
+        filter.addDataScheme(scheme);
+        if (host != null) {
+            filter.addDataAuthority(host, null);
+        }
+        return filter;
+    }
+
+    private List<IntentFilter> query(String scheme, String uri) {
+        final ArrayList<IntentFilter> out = new ArrayList<>();
+        mIndex.queryCandidates(scheme, Uri.parse(uri), out);
+        return out;
+    }
+
+    @Test
+    public void testHostAndPath() {
+        assertEquals(Arrays.asList(mAnyHttp, mExample, mWildExample, mExamplePrefix,
+                mExampleGlob), query("http", "http://www.example.com/prefixed"));
+        assertEquals(Arrays.asList(mAnyHttp, mExample, mWildExample, mExampleLiteral,
+                mExampleGlob), query("http", "http://www.example.com/exact"));
+    }
+
+    @Test
+    public void testWildcardHostAndCase() {
+        assertEquals(Arrays.asList(mAnyHttp, mWildExample),
+                query("http", "http://m.EXAMPLE.com/"));
+        assertEquals(Arrays.asList(mAnyHttp), query("http", "http://example.org/"));
+    }
+
+    @Test
+    public void testUnknownScheme() {
+        final ArrayList<IntentFilter> out = new ArrayList<>();
+        assertFalse(mIndex.queryCandidates("ftp", Uri.parse("ftp://www.example.com/"), out));
+        assertTrue(out.isEmpty());
+    }
+
+    @Test
+    public void testRemove() {
+        mIndex.removeFilter(mWildExample);
+        mIndex.removeFilter(mExamplePrefix);
+        assertEquals(Arrays.asList(mAnyHttp, mExample, mExampleGlob),
+                query("http", "http://www.example.com/prefixed"));
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import android.app.AppOpsManager;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link BroadcastLanes}
+ *
+ * Run with: atest FrameworksServicesTests:BroadcastLanesTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BroadcastLanesTest {
+    private static final String ACTION = "com.android.server.am.TEST";
+    private static final int LANES = 4;
+
+    private BroadcastLanes mLanes;
+    private BroadcastReplaceIndex mIndex;
+    private BroadcastQueue mBackground;
+    private final ArrayList<BroadcastQueue> mQueues = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mLanes = new BroadcastLanes();
+        mIndex = new BroadcastReplaceIndex();
+        for (int i = 0; i <= LANES; i++) {
+            final BroadcastQueue queue = new BroadcastQueue(null, handler, "queue" + i, 0, true,
+                    mIndex, mLanes);
+            mLanes.addQueue(queue);
+            mQueues.add(queue);
+        }
+        mBackground = mQueues.get(0);
+    }
+
+    private static ResolveInfo receiver(String packageName, int uid) {
+        final ResolveInfo info = new ResolveInfo();
+        info.activityInfo = new ActivityInfo();
+        info.activityInfo.packageName = packageName;
+        info.activityInfo.name = packageName + ".Receiver";
+        info.activityInfo.applicationInfo = new ApplicationInfo();
+        info.activityInfo.applicationInfo.packageName = packageName;
+        info.activityInfo.applicationInfo.uid = uid;
+        return info;
+    }
+
+    /** Pick the queue like the activity manager does, and enqueue a broadcast there. */
+    private BroadcastRecord send(String action, ResolveInfo... receivers) {
+        final List list = new ArrayList<>(Arrays.asList(receivers));
+        final BroadcastQueue queue = mLanes.pickQueueLocked(list);
+        final BroadcastRecord r = new BroadcastRecord(queue, new Intent(action), null, null, 0,
+                0, false, null, null, AppOpsManager.OP_NONE, null, list, null, 0, null, null,
+                true, false, false, 0);
+        final BroadcastRecord old = queue.replaceOrderedBroadcastLocked(r);
+        if (old == null) {
+            queue.enqueueOrderedBroadcastLocked(r);
+        }
+        return r;
+    }
+
+    /** Finish the broadcast at the head of {@code queue}. */
+    private void finishHead(BroadcastQueue queue) {
+        final BroadcastRecord r = queue.mOrderedBroadcasts.remove(0);
+        mIndex.remove(r);
+        mLanes.onRemovedLocked(r);
+    }
+
+    /** Find two packages that hash to different lanes. */
+    private String[] packagesInDifferentLanes() {
+        final BroadcastQueue first = mLanes.pickQueueLocked(Arrays.asList(receiver("a", 1)));
+        for (int i = 0; ; i++) {
+            final String name = "b" + i;
+            if (mLanes.pickQueueLocked(Arrays.asList(receiver(name, 2))) != first) {
+                return new String[] { "a", name };
+            }
+        }
+    }
+
+    @Test
+    public void testSinglePackageGoesToLane() {
+        final BroadcastRecord r = send(ACTION, receiver("a", 1), receiver("a", 1));
+        assertNotSame(mBackground, r.queue);
+        // Always the same lane for the same package
+        finishHead(r.queue);
+        assertSame(r.queue, send(ACTION, receiver("a", 1)).queue);
+    }
+
+    @Test
+    public void testPackageStaysInItsLane() {
+        final BroadcastRecord single = send(ACTION, receiver("a", 1));
+        // A broadcast to several packages follows the one that is waiting in a lane
+        final BroadcastRecord multi = send(ACTION + "_MULTI", receiver("a", 1),
+                receiver("c", 3));
+        assertSame(single.queue, multi.queue);
+        // ... and so do later broadcasts to the other package
+        assertSame(single.queue, send(ACTION + "_C", receiver("c", 3)).queue);
+        assertEquals(2, mLanes.getWaitingPackageCount());
+    }
+
+    @Test
+    public void testPackageStaysInBackground() {
+        final BroadcastRecord multi = send(ACTION, receiver("a", 1), receiver("b", 2));
+        assertSame(mBackground, multi.queue);
+        assertSame(mBackground, send(ACTION + "_A", receiver("a", 1)).queue);
+
+        finishHead(mBackground);
+        finishHead(mBackground);
+        assertEquals(0, mLanes.getWaitingPackageCount());
+        assertNotSame(mBackground, send(ACTION + "_A", receiver("a", 1)).queue);
+    }
+
+    @Test
+    public void testConflictGoesToBackground() {
+        final String[] packages = packagesInDifferentLanes();
+        final BroadcastRecord first = send(ACTION, receiver(packages[0], 1));
+        final BroadcastRecord second = send(ACTION, receiver(packages[1], 2));
+        assertNotSame(first.queue, second.queue);
+
+        final BroadcastRecord both = send(ACTION + "_BOTH", receiver(packages[0], 1),
+                receiver(packages[1], 2));
+        assertSame(mBackground, both.queue);
+        assertEquals(1, mLanes.getConflictCount());
+
+        // Everything waiting is still accounted for
+        finishHead(first.queue);
+        finishHead(second.queue);
+        finishHead(mBackground);
+        assertEquals(0, mLanes.getWaitingPackageCount());
+    }
+
+    @Test
+    public void testReplaceAcrossQueues() {
+        final String[] packages = packagesInDifferentLanes();
+        // Something at the head of each lane, which can't be replaced
+        final BroadcastRecord head = send(ACTION + "_HEAD", receiver(packages[0], 1));
+        send(ACTION + "_HEAD", receiver(packages[1], 2));
+
+        final BroadcastRecord old = send(ACTION, receiver(packages[0], 1));
+        assertSame(head.queue, old.queue);
+        assertEquals(2, old.queue.mOrderedBroadcasts.size());
+
+        // The receivers changed, so the replacement goes to the lane picked for it and the
+        // old broadcast leaves its lane
+        final BroadcastQueue other = mLanes.pickQueueLocked(
+                Arrays.asList(receiver(packages[1], 2)));
+        assertNotSame(head.queue, other);
+        final BroadcastRecord r = new BroadcastRecord(other, new Intent(ACTION), null, null, 0,
+                0, false, null, null, AppOpsManager.OP_NONE, null,
+                new ArrayList<>(Arrays.asList(receiver(packages[1], 2))), null, 0, null, null,
+                true, false, false, 0);
+        assertSame(old, other.replaceOrderedBroadcastLocked(r));
+        assertSame(other, r.queue);
+        assertEquals(2, other.mOrderedBroadcasts.size());
+        assertSame(r, other.mOrderedBroadcasts.get(1));
+        assertEquals(1, head.queue.mOrderedBroadcasts.size());
+        assertSame(head, head.queue.mOrderedBroadcasts.get(0));
+
+        // A replacement for the same lane keeps the slot of the broadcast it replaces
+        final BroadcastRecord same = send(ACTION, receiver(packages[1], 2));
+        assertSame(other, same.queue);
+        assertEquals(2, other.mOrderedBroadcasts.size());
+        assertSame(same, other.mOrderedBroadcasts.get(1));
+
+        finishHead(head.queue);
+        finishHead(other);
+        finishHead(other);
+        assertEquals(0, mLanes.getWaitingPackageCount());
+    }
+}
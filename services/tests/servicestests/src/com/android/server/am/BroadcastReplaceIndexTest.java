@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.app.AppOpsManager;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link BroadcastReplaceIndex}
+ *
+ * Run with: atest FrameworksServicesTests:BroadcastReplaceIndexTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BroadcastReplaceIndexTest {
+    private static final String ACTION = "com.android.server.am.TEST";
+
+    private static BroadcastRecord newRecord(String action, int userId) {
+        return new BroadcastRecord(null, new Intent(action), null, null, 0, 0, false, null,
+                null, AppOpsManager.OP_NONE, null, null, null, 0, null, null, true, false, false,
+                userId);
+    }
+
+    @Test
+    public void testFindsLatestMatch() {
+        final BroadcastReplaceIndex index = new BroadcastReplaceIndex();
+        final BroadcastRecord head = newRecord(ACTION, 0);
+        final BroadcastRecord first = newRecord(ACTION, 0);
+        final BroadcastRecord other = newRecord(ACTION + "_OTHER", 0);
+        final BroadcastRecord second = newRecord(ACTION, 0);
+        index.add(head);
+        index.add(first);
+        index.add(other);
+        index.add(second);
+
+        assertSame(second, index.findReplaceable(newRecord(ACTION, 0), head));
+        assertNull(index.findReplaceable(newRecord(ACTION, 10), head));
+        assertNull(index.findReplaceable(newRecord(ACTION + "_MISSING", 0), head));
+    }
+
+    @Test
+    public void testSkipsHead() {
+        final BroadcastReplaceIndex index = new BroadcastReplaceIndex();
+        final BroadcastRecord head = newRecord(ACTION, 0);
+        index.add(head);
+        assertNull(index.findReplaceable(newRecord(ACTION, 0), head));
+
+        // Delivery changes the intent of the head, but it must still be removable
+        head.intent.setComponent(new ComponentName("android", "Receiver"));
+        index.remove(head);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testReplace() {
+        final BroadcastReplaceIndex index = new BroadcastReplaceIndex();
+        final BroadcastRecord head = newRecord(ACTION, 0);
+        final BroadcastRecord old = newRecord(ACTION, 0);
+        index.add(head);
+        index.add(old);
+
+        final BroadcastRecord r = newRecord(ACTION, 0);
+        assertSame(old, index.findReplaceable(r, head));
+        index.replace(old, r);
+        assertSame(r, index.findReplaceable(newRecord(ACTION, 0), head));
+
+        index.remove(head);
+        index.remove(r);
+        assertEquals(0, index.size());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests for the timing histograms of {@link BroadcastStats}
+ *
+ * Run with: atest FrameworksServicesTests:BroadcastStatsTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BroadcastStatsTest {
+    @Test
+    public void testTimingsAreBounded() {
+        final BroadcastStats stats = new BroadcastStats();
+        for (int i = 0; i < BroadcastStats.MAX_TIMED_ACTIONS * 2; i++) {
+            stats.addBroadcastTiming("action" + i, i, -1);
+        }
+        for (int i = 0; i < BroadcastStats.MAX_TIMED_RECEIVERS * 2; i++) {
+            stats.addReceiverTiming("com.example" + i + "/.Receiver", i, i);
+        }
+
+        assertEquals(BroadcastStats.MAX_TIMED_ACTIONS, stats.mActionTimings.size());
+        assertEquals(BroadcastStats.MAX_TIMED_RECEIVERS, stats.mReceiverTimings.size());
+        assertTrue(stats.mActionTimings.containsKey(BroadcastStats.OTHER_KEY));
+        assertTrue(stats.mReceiverTimings.containsKey(BroadcastStats.OTHER_KEY));
+
+        // Existing entries keep being updated once the limit is reached
+        stats.addBroadcastTiming("action0", 1000, 1000);
+        assertEquals(1, stats.mActionTimings.get("action0").mDeliveryTime.getCount(10));
+    }
+
+    @Test
+    public void testDumpFiltersReceiversByPackage() {
+        final BroadcastStats stats = new BroadcastStats();
+        stats.addReceiverTiming("com.example/.Receiver", 10, 20);
+        stats.addReceiverTiming("com.example.other", 10, -1);
+
+        final StringWriter out = new StringWriter();
+        final PrintWriter pw = new PrintWriter(out);
+        assertTrue(stats.dumpStats(pw, "", "com.example"));
+        pw.flush();
+        assertTrue(out.toString().contains("com.example/.Receiver"));
+        assertTrue(!out.toString().contains("com.example.other"));
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static com.android.server.am.ActivityManagerService.Injector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.app.IApplicationThread;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.BatteryStatsImpl;
+import com.android.server.AppOpsService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Tests that the reachable set oom adj update of {@link ActivityManagerService}, used in the
+ * incremental mode, computes the same values as a full update for the processes it looks at.
+ *
+ * Run with: atest FrameworksServicesTests:OomAdjIncrementalTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class OomAdjIncrementalTest {
+    private static final String TAG = OomAdjIncrementalTest.class.getSimpleName();
+
+    @Mock private Context mContext;
+    @Mock private AppOpsService mAppOpsService;
+    @Mock private BatteryStatsImpl mBatteryStatsImpl;
+
+    private HandlerThread mHandlerThread;
+    private ActivityManagerService mAms;
+
+    private ProcessRecord mClient;
+    private ProcessRecord mService;
+    private ProcessRecord mNestedService;
+    private ProcessRecord mProvider;
+    private ProcessRecord mUnrelated;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        final Handler handler = new Handler(mHandlerThread.getLooper());
+        mAms = new ActivityManagerService(new Injector() {
+            @Override
+            public Context getContext() {
+                return mContext;
+            }
+
+            @Override
+            public AppOpsService getAppOpsService(File file, Handler h) {
+                return mAppOpsService;
+            }
+
+            @Override
+            public Handler getUiHandler(ActivityManagerService service) {
+                return handler;
+            }
+        });
+        for (int i = 0; i < mAms.mBroadcastQueues.length; i++) {
+            mAms.mBroadcastQueues[i] = new BroadcastQueue(mAms, handler, "queue" + i, 0, false);
+        }
+        mAms.mCurOomAdjUid = -1;
+
+        // Least recently used first
+        mUnrelated = addProcess("unrelated", 10005);
+        mNestedService = addProcess("nested", 10003);
+        mProvider = addProcess("provider", 10004);
+        mService = addProcess("service", 10002);
+        mClient = addProcess("client", 10001);
+        bind(mClient, mService);
+        bind(mService, mNestedService);
+        connectProvider(mClient, mProvider);
+
+        computeAll(null);
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quit();
+    }
+
+    private ProcessRecord addProcess(String name, int uid) {
+        final ApplicationInfo info = new ApplicationInfo();
+        info.packageName = "com.android.test." + name;
+        info.processName = info.packageName;
+        info.uid = uid;
+        final ProcessRecord app = new ProcessRecord(null, mBatteryStatsImpl, info,
+                info.processName, uid);
+        app.thread = Mockito.mock(IApplicationThread.class);
+        mAms.mLruProcesses.add(app);
+        return app;
+    }
+
+    private static void bind(ProcessRecord client, ProcessRecord host) {
+        final ServiceInfo info = new ServiceInfo();
+        info.applicationInfo = host.info;
+        info.packageName = host.info.packageName;
+        info.processName = host.processName;
+        info.name = "Service";
+        final ComponentName name = new ComponentName(info.packageName, info.name);
+        final Intent.FilterComparison intent =
+                new Intent.FilterComparison(new Intent().setComponent(name));
+        final ServiceRecord s = new ServiceRecord(null, null, name, intent, info, false, null);
+        s.app = host;
+        host.services.add(s);
+
+        final AppBindRecord b = new AppBindRecord(s, new IntentBindRecord(s, intent), client);
+        final ConnectionRecord cr = new ConnectionRecord(b, null, null,
+                Context.BIND_AUTO_CREATE, 0, null);
+        final ArrayList<ConnectionRecord> list = new ArrayList<>();
+        list.add(cr);
+        s.connections.put(new Binder(), list);
+        b.connections.add(cr);
+        client.connections.add(cr);
+    }
+
+    private static void connectProvider(ProcessRecord client, ProcessRecord host) {
+        final ProviderInfo info = new ProviderInfo();
+        info.applicationInfo = host.info;
+        info.packageName = host.info.packageName;
+        info.name = "Provider";
+        final ComponentName name = new ComponentName(info.packageName, info.name);
+        final ContentProviderRecord cpr = new ContentProviderRecord(null, info, host.info, name,
+                false);
+        cpr.proc = host;
+        host.pubProviders.put(info.name, cpr);
+
+        final ContentProviderConnection conn = new ContentProviderConnection(cpr, client);
+        cpr.connections.add(conn);
+        client.conProviders.add(conn);
+    }
+
+    /** Compute every process like a full update does, most recently used first. */
+    private void computeAll(ProcessRecord top) {
+        final long now = SystemClock.uptimeMillis();
+        mAms.mAdjSeq++;
+        for (int i = mAms.mLruProcesses.size() - 1; i >= 0; i--) {
+            mAms.mLruProcesses.get(i).containsCycle = false;
+        }
+        for (int i = mAms.mLruProcesses.size() - 1; i >= 0; i--) {
+            mAms.computeOomAdjLocked(mAms.mLruProcesses.get(i), ProcessList.UNKNOWN_ADJ, top,
+                    true, now);
+        }
+    }
+
+    private boolean computeIncremental(ProcessRecord app, ProcessRecord top,
+            ArrayList<ProcessRecord> queue) {
+        queue.add(app);
+        return mAms.computeOomAdjReachableLocked(queue, top, SystemClock.uptimeMillis());
+    }
+
+    private static int[] stateOf(ProcessRecord app) {
+        return new int[] { app.curRawAdj, app.curAdj, app.curProcState, app.curSchedGroup };
+    }
+
+    private static int[][] stateOf(ProcessRecord... apps) {
+        final int[][] state = new int[apps.length][];
+        for (int i = 0; i < apps.length; i++) {
+            state[i] = stateOf(apps[i]);
+        }
+        return state;
+    }
+
+    @Test
+    public void testMatchesFullUpdate() {
+        final int unrelatedSeq = mUnrelated.adjSeq;
+        final ArrayList<ProcessRecord> queue = new ArrayList<>();
+        // Moving out of the cached state needs a full update for the other processes
+        assertTrue(computeIncremental(mClient, mClient, queue));
+
+        assertEquals(4, queue.size());
+        assertEquals(mClient, queue.get(0));
+        assertTrue(queue.contains(mService));
+        assertTrue(queue.contains(mNestedService));
+        assertTrue(queue.contains(mProvider));
+        // Processes that don't depend on the one that changed are left alone
+        assertEquals(unrelatedSeq, mUnrelated.adjSeq);
+
+        final ProcessRecord[] reached = { mClient, mService, mNestedService, mProvider };
+        for (ProcessRecord app : reached) {
+            assertFalse(app.toString(), app.cached);
+        }
+        final int[][] incremental = stateOf(reached);
+        computeAll(mClient);
+        assertArrayEquals(stateOf(reached), incremental);
+    }
+
+    @Test
+    public void testNoFullUpdateWithoutCachedChange() {
+        computeAll(mClient);
+        final ProcessRecord[] reached = { mClient, mService, mNestedService, mProvider };
+        final int[][] full = stateOf(reached);
+
+        final ArrayList<ProcessRecord> queue = new ArrayList<>();
+        assertFalse(computeIncremental(mClient, mClient, queue));
+        assertEquals(4, queue.size());
+        assertArrayEquals(full, stateOf(reached));
+
+        // Starting from a process further down gives the same values too
+        queue.clear();
+        assertFalse(computeIncremental(mService, mClient, queue));
+        assertEquals(2, queue.size());
+        assertArrayEquals(full, stateOf(reached));
+    }
+
+    @Test
+    public void testSeveralChangedProcesses() {
+        computeAll(mClient);
+        final ProcessRecord[] reached = { mClient, mService, mNestedService, mProvider };
+        final int[][] full = stateOf(reached);
+
+        final ArrayList<ProcessRecord> queue = new ArrayList<>();
+        queue.add(mService);
+        queue.add(mProvider);
+        assertFalse(mAms.computeOomAdjReachableLocked(queue, mClient,
+                SystemClock.uptimeMillis()));
+        assertEquals(3, queue.size());
+        assertTrue(queue.contains(mNestedService));
+        assertArrayEquals(full, stateOf(reached));
+    }
+
+    @Test
+    public void testMovingToCachedNeedsFullUpdate() {
+        computeAll(mClient);
+        final ArrayList<ProcessRecord> queue = new ArrayList<>();
+        assertTrue(computeIncremental(mClient, null, queue));
+        for (ProcessRecord app : queue) {
+            assertTrue(app.toString(), app.cached);
+        }
+    }
+
+    @Test
+    public void testCycleNeedsFullUpdate() {
+        bind(mNestedService, mService);
+        computeAll(mClient);
+        final ArrayList<ProcessRecord> queue = new ArrayList<>();
+        assertTrue(computeIncremental(mClient, mClient, queue));
+    }
+}
@@ -183,8 +183,8 @@ public class PackageParserTest {
         }
 
         @Override
-        public Package fromCacheEntry(byte[] cacheEntry) {
-            return new Package(new String(cacheEntry, StandardCharsets.UTF_8));
+        public Package fromCacheEntry(byte[] cacheEntry, int length) {
+            return new Package(new String(cacheEntry, 0, length, StandardCharsets.UTF_8));
         }
     }
 
@@ -17,6 +17,8 @@
 package com.android.server.pm;
 
 import android.content.pm.PackageParser;
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.Log;
 
@@ -27,7 +29,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -66,12 +73,91 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test(timeout = 1000)
+    public void testAdaptive() {
+        final ParallelPackageParser.Stats stats = new ParallelPackageParser.Stats();
+        try (ParallelPackageParser parser = new TestParallelPackageParser(true, stats)) {
+            Set<File> submittedFiles = new HashSet<>();
+            List<File> files = new ArrayList<>();
+            int fileCount = 50;
+            for (int i = 0; i < fileCount; i++) {
+                File file = new File("f" + i);
+                files.add(file);
+                submittedFiles.add(file);
+            }
+            parser.submitAll(files, 0);
+            for (int i = 0; i < fileCount; i++) {
+                ParallelPackageParser.ParseResult result = parser.take();
+                Assert.assertNotNull(result);
+                Assert.assertTrue("Unexpected file " + result.scanFile,
+                        submittedFiles.remove(result.scanFile));
+            }
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testAdaptiveLargestFirst() throws IOException {
+        final File dir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "parallel-package-parser");
+        try {
+            dir.mkdirs();
+            final File small = writeFile(new File(dir, "small.apk"), 10);
+            final File large = writeFile(new File(dir, "large.apk"), 1000);
+            // A cluster package is as large as all of its APKs, and nothing else
+            final File cluster = new File(dir, "cluster");
+            cluster.mkdirs();
+            writeFile(new File(cluster, "base.apk"), 300);
+            writeFile(new File(cluster, "split.apk"), 300);
+            writeFile(new File(cluster, "notes.txt"), 5000);
+            Assert.assertEquals(600, ParallelPackageParser.getPackageSize(cluster));
+            final List<File> files = Arrays.asList(small, cluster, large);
+
+            try (TestParallelPackageParser parser = new TestParallelPackageParser(true,
+                    new ParallelPackageParser.Stats())) {
+                parser.submitAll(files, 0);
+                for (int i = 0; i < files.size(); i++) {
+                    Assert.assertNotNull(parser.take());
+                }
+                Assert.assertEquals(Arrays.asList(large, cluster, small), parser.mSubmitted);
+            }
+            // Without adaptive mode, files are submitted in the order they were listed
+            try (TestParallelPackageParser parser = new TestParallelPackageParser(false, null)) {
+                parser.submitAll(files, 0);
+                for (int i = 0; i < files.size(); i++) {
+                    Assert.assertNotNull(parser.take());
+                }
+                Assert.assertEquals(files, parser.mSubmitted);
+            }
+        } finally {
+            FileUtils.deleteContentsAndDir(dir);
+        }
+    }
+
+    private static File writeFile(File file, int length) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[length]);
+        }
+        return file;
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
+        // Files in the order they were submitted to the pool, which starts them in that order
+        final List<File> mSubmitted = new ArrayList<>();
 
         TestParallelPackageParser() {
             super(null, false, null, null, null);
         }
 
+        TestParallelPackageParser(boolean adaptive, ParallelPackageParser.Stats stats) {
+            super(null, false, null, null, null, adaptive, stats);
+        }
+
+        @Override
+        public void submit(File scanFile, int parseFlags) {
+            mSubmitted.add(scanFile);
+            super.submit(scanFile, parseFlags);
+        }
+
         @Override
         protected PackageParser.Package parsePackage(PackageParser packageParser, File scanFile,
                 int parseFlags) throws PackageParser.PackageParserException {
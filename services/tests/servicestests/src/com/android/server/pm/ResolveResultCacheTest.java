@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link ResolveResultCache}
+ *
+ * Run with: atest FrameworksServicesTests:ResolveResultCacheTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ResolveResultCacheTest {
+    private static final int USER = 0;
+    private static final int OTHER_USER = 10;
+    private static final int FLAGS = PackageManager.MATCH_DEFAULT_ONLY;
+
+    private ResolveResultCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new ResolveResultCache();
+    }
+
+    private static ResolveInfo activity(String packageName, String name) {
+        final ResolveInfo info = new ResolveInfo();
+        info.activityInfo = new ActivityInfo();
+        info.activityInfo.packageName = packageName;
+        info.activityInfo.name = name;
+        info.activityInfo.applicationInfo = new ApplicationInfo();
+        info.activityInfo.applicationInfo.packageName = packageName;
+        return info;
+    }
+
+    private static List<ResolveInfo> result(ResolveInfo... infos) {
+        return new ArrayList<>(Arrays.asList(infos));
+    }
+
+    private static Intent viewIntent() {
+        return new Intent(Intent.ACTION_VIEW, Uri.parse("https://www.example.com/"))
+                .addCategory(Intent.CATEGORY_BROWSABLE);
+    }
+
+    private void put(Intent intent, int flags, int userId, List<ResolveInfo> result) {
+        mCache.put(intent, null, flags, userId, result, true /*sortResult*/,
+                false /*returnImmediately*/, false /*webInstantAppsDisabled*/,
+                true /*instantAppResolverAvailable*/);
+    }
+
+    private ResolveResultCache.Entry get(Intent intent, int flags, int userId) {
+        return mCache.get(intent, null, flags, userId, false /*webInstantAppsDisabled*/,
+                true /*instantAppResolverAvailable*/);
+    }
+
+    private static void assertResult(List<ResolveInfo> result, String... names) {
+        assertEquals(names.length, result.size());
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(names[i], result.get(i).activityInfo.name);
+        }
+    }
+
+    @Test
+    public void testHit() {
+        assertNull(get(viewIntent(), FLAGS, USER));
+        put(viewIntent(), FLAGS, USER, result(activity("a", "A"), activity("b", "B")));
+
+        final ResolveResultCache.Entry entry = get(viewIntent(), FLAGS, USER);
+        assertNotNull(entry);
+        assertResult(entry.copyResult(), "A", "B");
+        assertTrue(entry.sortResult);
+        assertFalse(entry.returnImmediately);
+
+        // Extras don't take part in resolution
+        assertNotNull(get(viewIntent().putExtra("extra", 1), FLAGS, USER));
+    }
+
+    @Test
+    public void testResultIsCopied() {
+        final List<ResolveInfo> original = result(activity("a", "A"));
+        put(viewIntent(), FLAGS, USER, original);
+        // Changes to what was put don't reach the cache
+        original.get(0).activityInfo.name = "changed";
+        original.add(activity("b", "B"));
+
+        final List<ResolveInfo> first = get(viewIntent(), FLAGS, USER).copyResult();
+        assertResult(first, "A");
+        // Nor do changes to what was handed out
+        first.get(0).activityInfo.name = "changed";
+        first.get(0).priority = 5;
+        first.clear();
+
+        final List<ResolveInfo> second = get(viewIntent(), FLAGS, USER).copyResult();
+        assertResult(second, "A");
+        assertEquals(0, second.get(0).priority);
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void testIntentIsKeyed() {
+        put(viewIntent(), FLAGS, USER, result(activity("a", "A")));
+
+        assertNull(get(new Intent(Intent.ACTION_EDIT, Uri.parse("https://www.example.com/"))
+                .addCategory(Intent.CATEGORY_BROWSABLE), FLAGS, USER));
+        assertNull(get(new Intent(Intent.ACTION_VIEW, Uri.parse("https://www.example.org/"))
+                .addCategory(Intent.CATEGORY_BROWSABLE), FLAGS, USER));
+        assertNull(get(viewIntent().addCategory(Intent.CATEGORY_DEFAULT), FLAGS, USER));
+        assertNull(get(viewIntent().addFlags(Intent.FLAG_ACTIVITY_NEW_TASK), FLAGS, USER));
+        assertNull(mCache.get(viewIntent(), "text/html", FLAGS, USER, false, true));
+        assertNotNull(get(viewIntent(), FLAGS, USER));
+    }
+
+    @Test
+    public void testFlagsAreKeyed() {
+        put(viewIntent(), FLAGS, USER, result(activity("a", "A")));
+        put(viewIntent(), FLAGS | PackageManager.MATCH_DISABLED_COMPONENTS, USER,
+                result(activity("a", "A"), activity("a", "Disabled")));
+
+        assertResult(get(viewIntent(), FLAGS, USER).copyResult(), "A");
+        assertResult(get(viewIntent(), FLAGS | PackageManager.MATCH_DISABLED_COMPONENTS, USER)
+                .copyResult(), "A", "Disabled");
+        assertNull(get(viewIntent(), 0, USER));
+        assertNull(get(viewIntent(), FLAGS | PackageManager.MATCH_SYSTEM_ONLY, USER));
+    }
+
+    @Test
+    public void testUserIsKeyed() {
+        put(viewIntent(), FLAGS, USER, result(activity("a", "A")));
+        assertNull(get(viewIntent(), FLAGS, OTHER_USER));
+
+        put(viewIntent(), FLAGS, OTHER_USER, result(activity("b", "B")));
+        assertResult(get(viewIntent(), FLAGS, USER).copyResult(), "A");
+        assertResult(get(viewIntent(), FLAGS, OTHER_USER).copyResult(), "B");
+    }
+
+    /**
+     * The package manager invalidates the cache when packages are added, removed or changed,
+     * when the enabled state of a component changes, and when a user is removed.
+     */
+    @Test
+    public void testInvalidate() {
+        put(viewIntent(), FLAGS, USER, result(activity("a", "A")));
+        put(viewIntent(), FLAGS, OTHER_USER, result(activity("a", "A")));
+        put(viewIntent(), 0, USER, result(activity("a", "A")));
+
+        // A component of "a" was disabled
+        mCache.invalidate();
+        assertNull(get(viewIntent(), FLAGS, USER));
+        assertNull(get(viewIntent(), FLAGS, OTHER_USER));
+        assertNull(get(viewIntent(), 0, USER));
+
+        // Results from after the change are cached again
+        put(viewIntent(), FLAGS, USER, result(activity("b", "B")));
+        assertResult(get(viewIntent(), FLAGS, USER).copyResult(), "B");
+
+        // Package "c" was installed
+        mCache.invalidate();
+        assertNull(get(viewIntent(), FLAGS, USER));
+        put(viewIntent(), FLAGS, USER, result(activity("b", "B"), activity("c", "C")));
+        assertResult(get(viewIntent(), FLAGS, USER).copyResult(), "B", "C");
+
+        // Several changes in a row
+        mCache.invalidate();
+        mCache.invalidate();
+        assertNull(get(viewIntent(), FLAGS, USER));
+    }
+
+    @Test
+    public void testWebInstantAppsSwitch() {
+        mCache.put(viewIntent(), null, FLAGS, USER, result(activity("a", "A")),
+                false /*sortResult*/, true /*returnImmediately*/,
+                true /*webInstantAppsDisabled*/, true /*instantAppResolverAvailable*/);
+        assertNull(mCache.get(viewIntent(), null, FLAGS, USER, false, true));
+
+        final ResolveResultCache.Entry entry =
+                mCache.get(viewIntent(), null, FLAGS, USER, true, true);
+        assertNotNull(entry);
+        assertFalse(entry.sortResult);
+        assertTrue(entry.returnImmediately);
+    }
+
+    @Test
+    public void testInstantAppResolverAvailability() {
+        // Resolved before the resolver was set up, so the installer was never considered
+        mCache.put(viewIntent(), null, FLAGS, USER, result(activity("a", "A")),
+                false /*sortResult*/, true /*returnImmediately*/,
+                false /*webInstantAppsDisabled*/, false /*instantAppResolverAvailable*/);
+        assertNull(mCache.get(viewIntent(), null, FLAGS, USER, false, true));
+        assertNotNull(mCache.get(viewIntent(), null, FLAGS, USER, false, false));
+    }
+
+    @Test
+    public void testIsCacheable() {
+        assertTrue(ResolveResultCache.isCacheable(viewIntent()));
+        assertFalse(ResolveResultCache.isCacheable(viewIntent().setPackage("a")));
+        assertFalse(ResolveResultCache.isCacheable(
+                viewIntent().setComponent(new ComponentName("a", "A"))));
+        final Intent withSelector = new Intent(Intent.ACTION_MAIN);
+        withSelector.setSelector(viewIntent());
+        assertFalse(ResolveResultCache.isCacheable(withSelector));
+        assertFalse(ResolveResultCache.isCacheable(
+                viewIntent().addFlags(Intent.FLAG_DEBUG_LOG_RESOLUTION)));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsDropped() {
+        final Intent first = new Intent("action0");
+        put(first, FLAGS, USER, result(activity("a", "A")));
+        for (int i = 1; i < 200; i++) {
+            // Keep the first entry in use
+            assertNotNull(get(first, FLAGS, USER));
+            put(new Intent("action" + i), FLAGS, USER, result(activity("a", "A")));
+        }
+        assertNotNull(get(first, FLAGS, USER));
+        assertNull(get(new Intent("action1"), FLAGS, USER));
+        assertNotNull(get(new Intent("action199"), FLAGS, USER));
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.usage.EventList;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Locale;
+
+/**
+ * Tests for {@link UsageStatsBinary}
+ *
+ * Run with: atest FrameworksServicesTests:UsageStatsBinaryTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UsageStatsBinaryTest {
+    private static final long BEGIN_TIME = 1_500_000_000_000L;
+    private static final String PACKAGE_1 = "com.android.testpackage1";
+    private static final String PACKAGE_2 = "com.android.testpackage2";
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(InstrumentationRegistry.getContext().getCacheDir(), "usagestats");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static IntervalStats newStats() {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = BEGIN_TIME;
+        stats.endTime = BEGIN_TIME + 5000;
+        stats.events = new EventList();
+        stats.interactiveTracker.count = 3;
+        stats.interactiveTracker.duration = 1234;
+
+        final Configuration config = new Configuration();
+        config.setLocale(Locale.US);
+        stats.updateConfigurationStats(config, BEGIN_TIME + 10);
+
+        stats.update(PACKAGE_1, BEGIN_TIME + 100, UsageEvents.Event.MOVE_TO_FOREGROUND);
+        stats.update(PACKAGE_1, BEGIN_TIME + 300, UsageEvents.Event.MOVE_TO_BACKGROUND);
+        stats.update(PACKAGE_2, BEGIN_TIME + 400, UsageEvents.Event.MOVE_TO_FOREGROUND);
+        stats.incrementAppLaunchCount(PACKAGE_2);
+        stats.updateChooserCounts(PACKAGE_2, "category", "action");
+        stats.endTime = BEGIN_TIME + 5000;
+
+        addEvent(stats, PACKAGE_1, ".Main", BEGIN_TIME + 100,
+                UsageEvents.Event.MOVE_TO_FOREGROUND);
+        addEvent(stats, PACKAGE_2, null, BEGIN_TIME + 200,
+                UsageEvents.Event.CONFIGURATION_CHANGE).mConfiguration = config;
+        addEvent(stats, PACKAGE_1, ".Main", BEGIN_TIME + 300,
+                UsageEvents.Event.MOVE_TO_BACKGROUND);
+        addEvent(stats, PACKAGE_2, null, BEGIN_TIME + 400,
+                UsageEvents.Event.SHORTCUT_INVOCATION).mShortcutId = "shortcut";
+        addEvent(stats, PACKAGE_1, null, BEGIN_TIME + 500,
+                UsageEvents.Event.STANDBY_BUCKET_CHANGED).mBucketAndReason = 0x1e0500;
+        return stats;
+    }
+
+    private static UsageEvents.Event addEvent(IntervalStats stats, String packageName,
+            String className, long timeStamp, int eventType) {
+        final UsageEvents.Event event = stats.buildEvent(packageName, className);
+        event.mTimeStamp = timeStamp;
+        event.mEventType = eventType;
+        stats.events.insert(event);
+        return event;
+    }
+
+    private IntervalStats writeAndRead(IntervalStats stats, String packageName)
+            throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            UsageStatsBinary.write(out, stats);
+        }
+        final IntervalStats result = new IntervalStats();
+        result.beginTime = BEGIN_TIME;
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            assertTrue(UsageStatsBinary.isBinary(in));
+            UsageStatsBinary.read(in, result, packageName);
+        }
+        return result;
+    }
+
+    private static void assertUsageStatsEquals(UsageStats expected, UsageStats actual) {
+        assertEquals(expected.mPackageName, actual.mPackageName);
+        assertEquals(expected.mLastTimeUsed, actual.mLastTimeUsed);
+        assertEquals(expected.mTotalTimeInForeground, actual.mTotalTimeInForeground);
+        assertEquals(expected.mLastEvent, actual.mLastEvent);
+        assertEquals(expected.mAppLaunchCount, actual.mAppLaunchCount);
+        assertEquals(expected.mChooserCounts, actual.mChooserCounts);
+    }
+
+    private static void assertEventEquals(UsageEvents.Event expected, UsageEvents.Event actual) {
+        assertEquals(expected.mPackage, actual.mPackage);
+        assertEquals(expected.mClass, actual.mClass);
+        assertEquals(expected.mTimeStamp, actual.mTimeStamp);
+        assertEquals(expected.mEventType, actual.mEventType);
+        assertEquals(expected.mConfiguration, actual.mConfiguration);
+        assertEquals(expected.mShortcutId, actual.mShortcutId);
+        assertEquals(expected.mBucketAndReason, actual.mBucketAndReason);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final IntervalStats stats = newStats();
+        final IntervalStats result = writeAndRead(stats, null);
+
+        assertEquals(stats.endTime, result.endTime);
+        assertEquals(3, result.interactiveTracker.count);
+        assertEquals(1234, result.interactiveTracker.duration);
+        assertEquals(stats.packageStats.size(), result.packageStats.size());
+        for (int i = 0; i < stats.packageStats.size(); i++) {
+            assertUsageStatsEquals(stats.packageStats.valueAt(i),
+                    result.packageStats.get(stats.packageStats.keyAt(i)));
+        }
+        assertEquals(stats.configurations.keySet(), result.configurations.keySet());
+        assertEquals(stats.activeConfiguration, result.activeConfiguration);
+        assertEquals(stats.events.size(), result.events.size());
+        for (int i = 0; i < stats.events.size(); i++) {
+            assertEventEquals(stats.events.get(i), result.events.get(i));
+        }
+    }
+
+    @Test
+    public void testReadPackage() throws Exception {
+        final IntervalStats stats = newStats();
+        final IntervalStats result = writeAndRead(stats, PACKAGE_2);
+
+        assertEquals(stats.endTime, result.endTime);
+        assertEquals(1, result.packageStats.size());
+        assertUsageStatsEquals(stats.packageStats.get(PACKAGE_2),
+                result.packageStats.get(PACKAGE_2));
+        assertTrue(result.configurations.isEmpty());
+        assertEquals(2, result.events.size());
+        assertEventEquals(stats.events.get(1), result.events.get(0));
+        assertEventEquals(stats.events.get(3), result.events.get(1));
+
+        final IntervalStats missing = writeAndRead(stats, "com.android.missing");
+        assertTrue(missing.packageStats.isEmpty());
+        assertNull(missing.events);
+    }
+
+    @Test
+    public void testXmlIsNotBinary() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            UsageStatsXml.write(out, newStats());
+        }
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            assertFalse(UsageStatsBinary.isBinary(in));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static android.view.Display.DEFAULT_DISPLAY;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.platform.test.annotations.Presubmit;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.input.InputWindowHandle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test class for {@link InputWindowDiff}.
+ *
+ * atest FrameworksServicesTests:com.android.server.wm.InputWindowDiffTest
+ */
+@SmallTest
+@Presubmit
+@RunWith(AndroidJUnit4.class)
+public class InputWindowDiffTest {
+
+    private InputWindowDiff mDiff;
+    private InputWindowHandle mFirst;
+    private InputWindowHandle mSecond;
+
+    @Before
+    public void setUp() throws Exception {
+        mDiff = new InputWindowDiff();
+        mFirst = createHandle("first");
+        mSecond = createHandle("second");
+    }
+
+    private static InputWindowHandle createHandle(String name) {
+        final InputWindowHandle handle = new InputWindowHandle(null /* inputApplicationHandle */,
+                null /* windowState */, null /* clientWindow */, DEFAULT_DISPLAY);
+        handle.name = name;
+        handle.frameRight = 100;
+        handle.frameBottom = 100;
+        handle.touchableRegion.set(0, 0, 100, 100);
+        handle.visible = true;
+        return handle;
+    }
+
+    @Test
+    public void testUnchangedUpdateIsSkipped() throws Exception {
+        final InputWindowHandle[] handles = { mFirst, mSecond };
+        assertTrue(mDiff.update(handles, 2, mFirst));
+        assertEquals(2, mDiff.getLastAdded());
+        assertFalse(mDiff.update(handles, 2, mFirst));
+        assertEquals(1, mDiff.getGeneration());
+        assertEquals(1, mDiff.getSkippedCount());
+    }
+
+    @Test
+    public void testChangedHandleIsSent() throws Exception {
+        final InputWindowHandle[] handles = { mFirst, mSecond };
+        mDiff.update(handles, 2, mFirst);
+
+        mSecond.touchableRegion.set(0, 0, 50, 50);
+        assertTrue(mDiff.update(handles, 2, mFirst));
+        assertEquals(0, mDiff.getLastAdded());
+        assertEquals(1, mDiff.getLastChanged());
+
+        mSecond.layer++;
+        assertTrue(mDiff.update(handles, 2, mFirst));
+        assertEquals(1, mDiff.getLastChanged());
+    }
+
+    @Test
+    public void testOrderAndFocusChangesAreSent() throws Exception {
+        mDiff.update(new InputWindowHandle[] { mFirst, mSecond }, 2, mFirst);
+        assertTrue(mDiff.update(new InputWindowHandle[] { mSecond, mFirst }, 2, mFirst));
+        assertEquals(0, mDiff.getLastChanged());
+        assertTrue(mDiff.update(new InputWindowHandle[] { mSecond, mFirst }, 2, mSecond));
+    }
+
+    @Test
+    public void testRemovedHandleIsSent() throws Exception {
+        mDiff.update(new InputWindowHandle[] { mFirst, mSecond }, 2, null);
+        assertTrue(mDiff.update(new InputWindowHandle[] { mFirst, null }, 1, null));
+        assertEquals(1, mDiff.getLastRemoved());
+        assertTrue(mDiff.update(null, 0, null));
+        assertEquals(1, mDiff.getLastRemoved());
+        assertFalse(mDiff.update(null, 0, null));
+    }
+}
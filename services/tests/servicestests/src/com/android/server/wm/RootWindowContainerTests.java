@@ -10,6 +10,7 @@ import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -49,4 +50,34 @@ public class RootWindowContainerTests extends WindowTestsBase {
             assertTrue(results[0] == stack.mStackId);
         }
     }
+
+    @Test
+    public void testRepeatLayoutSkipsCleanDisplays() throws Exception {
+        synchronized (sWm.mWindowMap) {
+            final WindowSurfacePlacer placer = sWm.mWindowPlacerLocked;
+            final boolean incremental = placer.mIncrementalLayout;
+            placer.mIncrementalLayout = true;
+            try {
+                // A full pass lays out every display, leaving the new display clean.
+                sWm.mRoot.performSurfacePlacement(false /* recoveringMemory */);
+                mDisplayContent.pendingLayoutChanges = 0;
+
+                long skipped = placer.getSkippedDisplayCount();
+                sWm.mRoot.performSurfacePlacement(false /* recoveringMemory */,
+                        true /* repeatLayoutOnly */);
+                assertTrue(placer.getSkippedDisplayCount() > skipped);
+
+                // A display that needs layout is always visited.
+                for (int i = sWm.mRoot.getChildCount() - 1; i >= 0; --i) {
+                    sWm.mRoot.getChildAt(i).setLayoutNeeded();
+                }
+                skipped = placer.getSkippedDisplayCount();
+                sWm.mRoot.performSurfacePlacement(false /* recoveringMemory */,
+                        true /* repeatLayoutOnly */);
+                assertEquals(skipped, placer.getSkippedDisplayCount());
+            } finally {
+                placer.mIncrementalLayout = incremental;
+            }
+        }
+    }
 }
@@ -69,6 +69,30 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertEquals(Configuration.ORIENTATION_PORTRAIT, snapshot.getOrientation());
     }
 
+    @Test
+    public void testPersistAndLoadSnapshot_raw() {
+        final TaskSnapshotPersister persister = new TaskSnapshotPersister(userId -> sFilesDir,
+                TaskSnapshotCodec.RAW);
+        final TaskSnapshotLoader loader = new TaskSnapshotLoader(persister);
+        persister.start();
+        persister.persistSnapshot(1, mTestUserId, createSnapshot());
+        persister.waitForQueueEmpty();
+        final File[] files = new File[] { new File(sFilesDir.getPath() + "/snapshots/1.proto"),
+                new File(sFilesDir.getPath() + "/snapshots/1.raw"),
+                new File(sFilesDir.getPath() + "/snapshots/1_reduced.raw")};
+        assertTrueForFiles(files, File::exists, " must exist");
+        final TaskSnapshot snapshot = loader.loadTask(1, mTestUserId, false /* reduced */);
+        assertNotNull(snapshot);
+        assertEquals(TEST_INSETS, snapshot.getContentInsets());
+        assertNotNull(snapshot.getSnapshot());
+
+        // Files of one codec are never read by another.
+        assertNull(mLoader.loadTask(1, mTestUserId, false /* reduced */));
+        persister.onTaskRemovedFromRecents(1, mTestUserId);
+        persister.waitForQueueEmpty();
+        assertTrueForFiles(files, file -> !file.exists(), " must not exist");
+    }
+
     private void assertTrueForFiles(File[] files, Predicate<File> predicate, String message) {
         for (File file : files) {
             assertTrue(file.getName() + message, predicate.apply(file));
@@ -129,6 +153,30 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertTrueForFiles(nonExistsFiles, file -> !file.exists(), " must not exist");
     }
 
+    /**
+     * Tests that a newer snapshot of a task replaces one still waiting to be written, instead of
+     * taking up room in the queue.
+     */
+    @Test
+    public void testCoalescing() {
+        mPersister.setPaused(true);
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.persistSnapshot(2, mTestUserId, createSnapshot());
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.setPaused(false);
+        mPersister.waitForQueueEmpty();
+
+        final File[] existsFiles = new File[] {
+                new File(sFilesDir.getPath() + "/snapshots/1.proto"),
+                new File(sFilesDir.getPath() + "/snapshots/2.proto")};
+        assertTrueForFiles(existsFiles, File::exists, " must exist");
+
+        // Only the last snapshot of task 1 was written
+        assertEquals(2, mPersister.getCoalescedCount());
+        assertEquals(2, mPersister.getStoredCount());
+    }
+
     @Test
     public void testGetTaskId() {
         RemoveObsoleteFilesQueueItem removeObsoleteFilesQueueItem =
@@ -140,6 +188,8 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertEquals(12, removeObsoleteFilesQueueItem.getTaskId("12.proto"));
         assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1.jpg"));
         assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1_reduced.jpg"));
+        assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1.raw"));
+        assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1_reduced.raw"));
     }
 
     @Test
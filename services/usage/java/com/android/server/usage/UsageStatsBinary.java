@@ -0,0 +1,641 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.EventList;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.util.ArrayMap;
+import android.util.IntArray;
+
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.XmlUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * UsageStats reader/writer for a binary, column oriented file format.
+ * <p>
+ * Package stats and events are stored as fixed width columns, with every string stored once
+ * in a string pool and referred to by index. An index from package name to that package's
+ * event rows, sorted by name, lets a query for a single package find and decode only the rows
+ * it needs from a mapping of the file. Configurations are few and only know how to write
+ * themselves as XML attributes, so they are kept as a small binary XML document at the end.
+ * <p>
+ * Layout, with all numbers big endian:
+ * <pre>
+ *   int magic, int version
+ *   long endTime (offset from beginTime)
+ *   4 x (int count, long duration)      interactive, non-interactive, keyguard shown, hidden
+ *   int n, int[n + 1] offsets, byte[offsets[n]] data          string pool, UTF-8
+ *   int p, int[p] package, long[p] lastTimeUsed (offset), long[p] totalTimeInForeground,
+ *          int[p] lastEvent, int[p] appLaunchCount
+ *   int c, c x (int packageRow, int action, int category, int count)     chooser counts
+ *   int e, long[e] time (offset), int[e] package, int[e] class, int[e] flags, int[e] type,
+ *          int[e] extra                  shortcut id, standby bucket or event configuration
+ *   int k, k x (int package, int packageRow, int firstRow, int rowCount), int[e] rows
+ *   int length, byte[length]             binary XML configurations
+ * </pre>
+ */
+final class UsageStatsBinary {
+    private static final int MAGIC = 0x55534243; // "USBC"
+    private static final int VERSION = 1;
+    private static final int NONE = -1;
+
+    private static final int TRACKER_SIZE = 4 + 8;
+    private static final int PACKAGE_ROW_SIZE = 4 + 8 + 8 + 4 + 4;
+    private static final int CHOOSER_ROW_SIZE = 4 * 4;
+    private static final int EVENT_ROW_SIZE = 8 + 4 * 5;
+    private static final int INDEX_ENTRY_SIZE = 4 * 4;
+
+    private static final String CONFIGURATIONS_TAG = "configurations";
+    private static final String CONFIG_TAG = "config";
+    private static final String EVENT_CONFIG_TAG = "event-config";
+
+    /**
+     * Return whether the file holds stats in this format. The position of the stream is left
+     * unchanged.
+     */
+    static boolean isBinary(FileInputStream in) throws IOException {
+        final ByteBuffer magic = ByteBuffer.allocate(4);
+        final FileChannel channel = in.getChannel();
+        final long position = channel.position();
+        while (magic.hasRemaining()) {
+            if (channel.read(magic, position + magic.position()) < 0) {
+                return false;
+            }
+        }
+        return magic.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Read the stats from the file.
+     *
+     * @param packageName if not null, only the stats and events of this package are read, along
+     *                    with the interval wide trackers; configurations are skipped.
+     */
+    static void read(FileInputStream in, IntervalStats statsOut, String packageName)
+            throws IOException {
+        final FileChannel channel = in.getChannel();
+        final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        try {
+            new Reader(buffer, statsOut).read(packageName);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new ProtocolException("Truncated usage stats file");
+        } finally {
+            // Nothing read keeps a reference to the mapping, so don't wait for it to be collected
+            NioUtils.freeDirectBuffer(buffer);
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer mBuffer;
+        private final IntervalStats mStats;
+
+        private int mStringCount;
+        private int mStringOffsetsPos;
+        private int mStringDataPos;
+        private String[] mStrings;
+
+        private int mPackageCount;
+        private int mPackagePos;
+        private int mChooserCount;
+        private int mChooserPos;
+        private int mEventCount;
+        private int mEventPos;
+        private int mIndexCount;
+        private int mIndexPos;
+        private int mIndexRowsPos;
+        private int mConfigLength;
+        private int mConfigPos;
+
+        private ArrayList<Configuration> mEventConfigs;
+
+        Reader(ByteBuffer buffer, IntervalStats statsOut) {
+            mBuffer = buffer;
+            mStats = statsOut;
+        }
+
+        void read(String packageName) throws IOException {
+            if (mBuffer.getInt(0) != MAGIC) {
+                throw new ProtocolException("Not a binary usage stats file");
+            }
+            final int version = mBuffer.getInt(4);
+            if (version != VERSION) {
+                throw new ProtocolException("Unrecognized version " + version);
+            }
+
+            mStats.packageStats.clear();
+            mStats.configurations.clear();
+            mStats.activeConfiguration = null;
+            if (mStats.events != null) {
+                mStats.events.clear();
+            }
+
+            int pos = 8;
+            mStats.endTime = mStats.beginTime + mBuffer.getLong(pos);
+            pos += 8;
+            pos = readTracker(pos, mStats.interactiveTracker);
+            pos = readTracker(pos, mStats.nonInteractiveTracker);
+            pos = readTracker(pos, mStats.keyguardShownTracker);
+            pos = readTracker(pos, mStats.keyguardHiddenTracker);
+
+            // Find where everything is without decoding anything else
+            mStringCount = mBuffer.getInt(pos);
+            mStringOffsetsPos = pos + 4;
+            mStringDataPos = mStringOffsetsPos + (mStringCount + 1) * 4;
+            mStrings = new String[mStringCount];
+            pos = mStringDataPos + mBuffer.getInt(mStringOffsetsPos + mStringCount * 4);
+
+            mPackageCount = mBuffer.getInt(pos);
+            mPackagePos = pos + 4;
+            pos = mPackagePos + mPackageCount * PACKAGE_ROW_SIZE;
+
+            mChooserCount = mBuffer.getInt(pos);
+            mChooserPos = pos + 4;
+            pos = mChooserPos + mChooserCount * CHOOSER_ROW_SIZE;
+
+            mEventCount = mBuffer.getInt(pos);
+            mEventPos = pos + 4;
+            pos = mEventPos + mEventCount * EVENT_ROW_SIZE;
+
+            mIndexCount = mBuffer.getInt(pos);
+            mIndexPos = pos + 4;
+            mIndexRowsPos = mIndexPos + mIndexCount * INDEX_ENTRY_SIZE;
+            pos = mIndexRowsPos + mEventCount * 4;
+
+            mConfigLength = mBuffer.getInt(pos);
+            mConfigPos = pos + 4;
+
+            if (packageName == null) {
+                readAll();
+            } else {
+                readPackage(packageName);
+            }
+        }
+
+        private int readTracker(int pos, IntervalStats.EventTracker tracker) {
+            tracker.count = mBuffer.getInt(pos);
+            tracker.duration = mBuffer.getLong(pos + 4);
+            return pos + TRACKER_SIZE;
+        }
+
+        private void readAll() throws IOException {
+            readConfigurations(true);
+            for (int i = 0; i < mPackageCount; i++) {
+                readPackageRow(i);
+            }
+            for (int i = 0; i < mChooserCount; i++) {
+                readChooserRow(i);
+            }
+            if (mEventCount > 0 && mStats.events == null) {
+                mStats.events = new EventList();
+            }
+            for (int i = 0; i < mEventCount; i++) {
+                mStats.events.insert(readEventRow(i));
+            }
+        }
+
+        private void readPackage(String packageName) throws IOException {
+            // Binary search the index, which is sorted by package name
+            int lo = 0;
+            int hi = mIndexCount - 1;
+            int entryPos = NONE;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final int midPos = mIndexPos + mid * INDEX_ENTRY_SIZE;
+                final int cmp = getString(mBuffer.getInt(midPos)).compareTo(packageName);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    entryPos = midPos;
+                    break;
+                }
+            }
+            if (entryPos == NONE) {
+                return;
+            }
+
+            final int packageRow = mBuffer.getInt(entryPos + 4);
+            if (packageRow != NONE) {
+                readPackageRow(packageRow);
+                for (int i = 0; i < mChooserCount; i++) {
+                    if (mBuffer.getInt(mChooserPos + i * CHOOSER_ROW_SIZE) == packageRow) {
+                        readChooserRow(i);
+                    }
+                }
+            }
+
+            final int firstRow = mBuffer.getInt(entryPos + 8);
+            final int rowCount = mBuffer.getInt(entryPos + 12);
+            if (rowCount > 0 && mStats.events == null) {
+                mStats.events = new EventList();
+            }
+            for (int i = 0; i < rowCount; i++) {
+                mStats.events.insert(readEventRow(mBuffer.getInt(mIndexRowsPos
+                        + (firstRow + i) * 4)));
+            }
+        }
+
+        private void readPackageRow(int row) {
+            final int n = mPackageCount;
+            final int base = mPackagePos;
+            final UsageStats stats = mStats.getOrCreateUsageStats(
+                    getString(mBuffer.getInt(base + row * 4)));
+            stats.mLastTimeUsed = mStats.beginTime + mBuffer.getLong(base + n * 4 + row * 8);
+            stats.mTotalTimeInForeground = mBuffer.getLong(base + n * 12 + row * 8);
+            stats.mLastEvent = mBuffer.getInt(base + n * 20 + row * 4);
+            stats.mAppLaunchCount = mBuffer.getInt(base + n * 24 + row * 4);
+        }
+
+        private void readChooserRow(int row) {
+            final int pos = mChooserPos + row * CHOOSER_ROW_SIZE;
+            final UsageStats stats = mStats.packageStats.get(
+                    getString(mBuffer.getInt(mPackagePos + mBuffer.getInt(pos) * 4)));
+            final String action = getString(mBuffer.getInt(pos + 4));
+            if (stats.mChooserCounts == null) {
+                stats.mChooserCounts = new ArrayMap<>();
+            }
+            ArrayMap<String, Integer> counts = stats.mChooserCounts.get(action);
+            if (counts == null) {
+                counts = new ArrayMap<>();
+                stats.mChooserCounts.put(action, counts);
+            }
+            counts.put(getString(mBuffer.getInt(pos + 8)), mBuffer.getInt(pos + 12));
+        }
+
+        private UsageEvents.Event readEventRow(int row) throws IOException {
+            final int n = mEventCount;
+            final int base = mEventPos;
+            final int classIndex = mBuffer.getInt(base + n * 12 + row * 4);
+            final UsageEvents.Event event = mStats.buildEvent(
+                    getString(mBuffer.getInt(base + n * 8 + row * 4)),
+                    classIndex != NONE ? getString(classIndex) : null);
+            event.mTimeStamp = mStats.beginTime + mBuffer.getLong(base + row * 8);
+            event.mFlags = mBuffer.getInt(base + n * 16 + row * 4);
+            event.mEventType = mBuffer.getInt(base + n * 20 + row * 4);
+            final int extra = mBuffer.getInt(base + n * 24 + row * 4);
+            switch (event.mEventType) {
+                case UsageEvents.Event.CONFIGURATION_CHANGE:
+                    if (extra != NONE) {
+                        event.mConfiguration = new Configuration(getEventConfig(extra));
+                    }
+                    break;
+                case UsageEvents.Event.SHORTCUT_INVOCATION:
+                    event.mShortcutId = extra != NONE ? getString(extra) : null;
+                    break;
+                case UsageEvents.Event.STANDBY_BUCKET_CHANGED:
+                    event.mBucketAndReason = extra;
+                    break;
+            }
+            return event;
+        }
+
+        private String getString(int index) {
+            String s = mStrings[index];
+            if (s == null) {
+                final int start = mBuffer.getInt(mStringOffsetsPos + index * 4);
+                final int end = mBuffer.getInt(mStringOffsetsPos + (index + 1) * 4);
+                final byte[] bytes = new byte[end - start];
+                final ByteBuffer data = mBuffer.duplicate();
+                data.position(mStringDataPos + start);
+                data.get(bytes);
+                s = new String(bytes, StandardCharsets.UTF_8);
+                mStrings[index] = s;
+            }
+            return s;
+        }
+
+        private Configuration getEventConfig(int index) throws IOException {
+            if (mEventConfigs == null) {
+                readConfigurations(false);
+            }
+            return mEventConfigs.get(index);
+        }
+
+        /**
+         * Read the configuration section. Event configurations are always read, the interval's
+         * configuration stats only if {@code withStats} is set.
+         */
+        private void readConfigurations(boolean withStats) throws IOException {
+            mEventConfigs = new ArrayList<>();
+            if (mConfigLength == 0) {
+                return;
+            }
+            final byte[] bytes = new byte[mConfigLength];
+            final ByteBuffer data = mBuffer.duplicate();
+            data.position(mConfigPos);
+            data.get(bytes);
+            try {
+                final XmlPullParser parser = new BinaryXmlPullParser();
+                parser.setInput(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8.name());
+                XmlUtils.beginDocument(parser, CONFIGURATIONS_TAG);
+                final int outerDepth = parser.getDepth();
+                int type;
+                while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                        && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+                    if (type != XmlPullParser.START_TAG) {
+                        continue;
+                    }
+                    if (CONFIG_TAG.equals(parser.getName())) {
+                        if (withStats) {
+                            UsageStatsXmlV1.loadConfigStats(parser, mStats);
+                        }
+                    } else if (EVENT_CONFIG_TAG.equals(parser.getName())) {
+                        final Configuration config = new Configuration();
+                        Configuration.readXmlAttrs(parser, config);
+                        mEventConfigs.add(config);
+                    }
+                }
+            } catch (XmlPullParserException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Write the stats to the stream, which is not closed.
+     */
+    static void write(OutputStream os, IntervalStats stats) throws IOException {
+        final StringPool strings = new StringPool();
+        final int packageCount = stats.packageStats.size();
+        final int eventCount = stats.events != null ? stats.events.size() : 0;
+
+        // Assign string indexes and collect everything that's written row by row
+        final int[] packageNames = new int[packageCount];
+        final IntArray chooserRows = new IntArray();
+        for (int i = 0; i < packageCount; i++) {
+            final UsageStats usageStats = stats.packageStats.valueAt(i);
+            packageNames[i] = strings.indexOf(usageStats.mPackageName);
+            if (usageStats.mChooserCounts == null) {
+                continue;
+            }
+            for (int j = 0; j < usageStats.mChooserCounts.size(); j++) {
+                final String action = usageStats.mChooserCounts.keyAt(j);
+                final ArrayMap<String, Integer> counts = usageStats.mChooserCounts.valueAt(j);
+                if (action == null || counts == null) {
+                    continue;
+                }
+                for (int k = 0; k < counts.size(); k++) {
+                    final int count = counts.valueAt(k);
+                    if (count > 0) {
+                        chooserRows.add(i);
+                        chooserRows.add(strings.indexOf(action));
+                        chooserRows.add(strings.indexOf(counts.keyAt(k)));
+                        chooserRows.add(count);
+                    }
+                }
+            }
+        }
+
+        final int[] eventPackages = new int[eventCount];
+        final int[] eventClasses = new int[eventCount];
+        final int[] eventExtras = new int[eventCount];
+        final ArrayMap<Configuration, Integer> eventConfigs = new ArrayMap<>();
+        for (int i = 0; i < eventCount; i++) {
+            final UsageEvents.Event event = stats.events.get(i);
+            eventPackages[i] = strings.indexOf(event.mPackage);
+            eventClasses[i] = event.mClass != null ? strings.indexOf(event.mClass) : NONE;
+            int extra = 0;
+            switch (event.mEventType) {
+                case UsageEvents.Event.CONFIGURATION_CHANGE:
+                    extra = NONE;
+                    if (event.mConfiguration != null) {
+                        Integer index = eventConfigs.get(event.mConfiguration);
+                        if (index == null) {
+                            index = eventConfigs.size();
+                            eventConfigs.put(event.mConfiguration, index);
+                        }
+                        extra = index;
+                    }
+                    break;
+                case UsageEvents.Event.SHORTCUT_INVOCATION:
+                    extra = event.mShortcutId != null ? strings.indexOf(event.mShortcutId) : NONE;
+                    break;
+                case UsageEvents.Event.STANDBY_BUCKET_CHANGED:
+                    extra = event.mBucketAndReason;
+                    break;
+            }
+            eventExtras[i] = extra;
+        }
+
+        // Group event rows by package. Rows are added in time order, so each group is too.
+        final HashMap<Integer, IndexEntry> entries = new HashMap<>();
+        for (int i = 0; i < packageCount; i++) {
+            getIndexEntry(entries, packageNames[i]).packageRow = i;
+        }
+        for (int i = 0; i < eventCount; i++) {
+            getIndexEntry(entries, eventPackages[i]).rows.add(i);
+        }
+        final ArrayList<IndexEntry> index = new ArrayList<>(entries.values());
+        for (int i = 0; i < index.size(); i++) {
+            index.get(i).name = strings.get(index.get(i).string);
+        }
+        Collections.sort(index, (a, b) -> a.name.compareTo(b.name));
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(stats.endTime - stats.beginTime);
+        writeTracker(out, stats.interactiveTracker);
+        writeTracker(out, stats.nonInteractiveTracker);
+        writeTracker(out, stats.keyguardShownTracker);
+        writeTracker(out, stats.keyguardHiddenTracker);
+        strings.write(out);
+
+        out.writeInt(packageCount);
+        for (int i = 0; i < packageCount; i++) {
+            out.writeInt(packageNames[i]);
+        }
+        for (int i = 0; i < packageCount; i++) {
+            out.writeLong(stats.packageStats.valueAt(i).mLastTimeUsed - stats.beginTime);
+        }
+        for (int i = 0; i < packageCount; i++) {
+            out.writeLong(stats.packageStats.valueAt(i).mTotalTimeInForeground);
+        }
+        for (int i = 0; i < packageCount; i++) {
+            out.writeInt(stats.packageStats.valueAt(i).mLastEvent);
+        }
+        for (int i = 0; i < packageCount; i++) {
+            out.writeInt(stats.packageStats.valueAt(i).mAppLaunchCount);
+        }
+
+        out.writeInt(chooserRows.size() / 4);
+        for (int i = 0; i < chooserRows.size(); i++) {
+            out.writeInt(chooserRows.get(i));
+        }
+
+        out.writeInt(eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            out.writeLong(stats.events.get(i).mTimeStamp - stats.beginTime);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(eventPackages[i]);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(eventClasses[i]);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(stats.events.get(i).mFlags);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(stats.events.get(i).mEventType);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(eventExtras[i]);
+        }
+
+        out.writeInt(index.size());
+        int firstRow = 0;
+        for (int i = 0; i < index.size(); i++) {
+            final IndexEntry entry = index.get(i);
+            out.writeInt(entry.string);
+            out.writeInt(entry.packageRow);
+            out.writeInt(firstRow);
+            out.writeInt(entry.rows.size());
+            firstRow += entry.rows.size();
+        }
+        for (int i = 0; i < index.size(); i++) {
+            final IntArray rows = index.get(i).rows;
+            for (int j = 0; j < rows.size(); j++) {
+                out.writeInt(rows.get(j));
+            }
+        }
+
+        final byte[] configs = writeConfigurations(stats, eventConfigs);
+        out.writeInt(configs.length);
+        out.write(configs);
+        out.flush();
+    }
+
+    private static void writeTracker(DataOutputStream out, IntervalStats.EventTracker tracker)
+            throws IOException {
+        out.writeInt(tracker.count);
+        out.writeLong(tracker.duration);
+    }
+
+    private static byte[] writeConfigurations(IntervalStats stats,
+            ArrayMap<Configuration, Integer> eventConfigs) throws IOException {
+        if (stats.configurations.isEmpty() && eventConfigs.isEmpty()) {
+            return new byte[0];
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final XmlSerializer xml = new BinaryXmlSerializer();
+        xml.setOutput(bytes, StandardCharsets.UTF_8.name());
+        xml.startDocument(null, true);
+        xml.startTag(null, CONFIGURATIONS_TAG);
+        for (int i = 0; i < stats.configurations.size(); i++) {
+            final boolean active = stats.configurations.keyAt(i).equals(
+                    stats.activeConfiguration);
+            UsageStatsXmlV1.writeConfigStats(xml, stats, stats.configurations.valueAt(i),
+                    active);
+        }
+        // Written in index order, which is the order they were put in the map
+        final Configuration[] ordered = new Configuration[eventConfigs.size()];
+        for (int i = 0; i < eventConfigs.size(); i++) {
+            ordered[eventConfigs.valueAt(i)] = eventConfigs.keyAt(i);
+        }
+        for (Configuration config : ordered) {
+            xml.startTag(null, EVENT_CONFIG_TAG);
+            Configuration.writeXmlAttrs(xml, config);
+            xml.endTag(null, EVENT_CONFIG_TAG);
+        }
+        xml.endTag(null, CONFIGURATIONS_TAG);
+        xml.endDocument();
+        return bytes.toByteArray();
+    }
+
+    private static IndexEntry getIndexEntry(HashMap<Integer, IndexEntry> entries, int string) {
+        IndexEntry entry = entries.get(string);
+        if (entry == null) {
+            entry = new IndexEntry(string);
+            entries.put(string, entry);
+        }
+        return entry;
+    }
+
+    private static final class IndexEntry {
+        final int string;
+        final IntArray rows = new IntArray();
+        int packageRow = NONE;
+        String name;
+
+        IndexEntry(int string) {
+            this.string = string;
+        }
+    }
+
+    private static final class StringPool {
+        private final HashMap<String, Integer> mIndexes = new HashMap<>();
+        private final ArrayList<String> mStrings = new ArrayList<>();
+
+        int indexOf(String s) {
+            Integer index = mIndexes.get(s);
+            if (index == null) {
+                index = mStrings.size();
+                mIndexes.put(s, index);
+                mStrings.add(s);
+            }
+            return index;
+        }
+
+        String get(int index) {
+            return mStrings.get(index);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            final byte[][] encoded = new byte[mStrings.size()][];
+            out.writeInt(mStrings.size());
+            int offset = 0;
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = mStrings.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(offset);
+                offset += encoded[i].length;
+            }
+            out.writeInt(offset);
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private UsageStatsBinary() {
+    }
+}
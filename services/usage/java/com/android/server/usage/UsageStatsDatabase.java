@@ -32,6 +32,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
@@ -60,6 +63,13 @@ class UsageStatsDatabase {
     private static final String RETENTION_LEN_KEY = "ro.usagestats.chooser.retention";
     private static final int SELECTION_LOG_RETENTION_LEN =
             SystemProperties.getInt(RETENTION_LEN_KEY, 14);
+    private static final String BINARY_FORMAT_KEY = "persist.usagestats.binary_format";
+    /**
+     * Whether stats files are written in the {@link UsageStatsBinary} format instead of XML.
+     * Files in either format are always readable, so this can be turned on and off.
+     */
+    private static final boolean BINARY_FORMAT =
+            SystemProperties.getBoolean(BINARY_FORMAT_KEY, false);
 
     private final Object mLock = new Object();
     private final File[] mIntervalDirs;
@@ -96,6 +106,9 @@ class UsageStatsDatabase {
 
             checkVersionAndBuildLocked();
             indexFilesLocked();
+            if (BINARY_FORMAT) {
+                migrateToBinaryLocked();
+            }
 
             // Delete files that are in the future.
             for (TimeSparseArray<AtomicFile> files : mSortedStatFiles) {
@@ -154,7 +167,7 @@ class UsageStatsDatabase {
             try {
                 IntervalStats stats = new IntervalStats();
                 for (int i = start; i < fileCount - 1; i++) {
-                    UsageStatsXml.read(files.valueAt(i), stats);
+                    readStatsFile(files.valueAt(i), stats, null);
                     if (!checkinAction.checkin(stats)) {
                         return false;
                     }
@@ -219,6 +232,76 @@ class UsageStatsDatabase {
         }
     }
 
+    /**
+     * Rewrite any XML stats files in the binary format.
+     */
+    private void migrateToBinaryLocked() {
+        int migrated = 0;
+        for (TimeSparseArray<AtomicFile> files : mSortedStatFiles) {
+            final int fileCount = files.size();
+            for (int i = 0; i < fileCount; i++) {
+                final AtomicFile f = files.valueAt(i);
+                try {
+                    final IntervalStats stats = new IntervalStats();
+                    if (readStatsFile(f, stats, null)) {
+                        continue;
+                    }
+                    writeStatsFile(f, stats);
+                    migrated++;
+                } catch (IOException e) {
+                    Slog.e(TAG, "Failed to migrate usage stats file " + f.getBaseFile(), e);
+                }
+            }
+        }
+        if (migrated > 0) {
+            Slog.i(TAG, "Migrated " + migrated + " usage stats files to the binary format");
+        }
+    }
+
+    /**
+     * Read a stats file in either format.
+     *
+     * @param packageName if not null, only the stats of this package are needed, which binary
+     *                    files can read without decoding the rest of the file.
+     * @return whether the file was in the binary format.
+     */
+    static boolean readStatsFile(AtomicFile file, IntervalStats statsOut, String packageName)
+            throws IOException {
+        try (FileInputStream in = file.openRead()) {
+            statsOut.beginTime = UsageStatsXml.parseBeginTime(file);
+            final boolean binary = UsageStatsBinary.isBinary(in);
+            if (binary) {
+                UsageStatsBinary.read(in, statsOut, packageName);
+            } else {
+                UsageStatsXml.read(in, statsOut);
+            }
+            statsOut.lastTimeSaved = file.getLastModifiedTime();
+            return binary;
+        } catch (FileNotFoundException e) {
+            Slog.e(TAG, "UsageStats file", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Write a stats file in the format selected by {@link #BINARY_FORMAT}.
+     */
+    static void writeStatsFile(AtomicFile file, IntervalStats stats) throws IOException {
+        if (!BINARY_FORMAT) {
+            UsageStatsXml.write(file, stats);
+            return;
+        }
+        FileOutputStream fos = file.startWrite();
+        try {
+            UsageStatsBinary.write(fos, stats);
+            file.finishWrite(fos);
+            fos = null;
+        } finally {
+            // When fos is null (successful write), this will no-op
+            file.failWrite(fos);
+        }
+    }
+
     /**
      * Is this the first update to the system from L to M?
      */
@@ -357,7 +440,7 @@ class UsageStatsDatabase {
             try {
                 final AtomicFile f = mSortedStatFiles[intervalType].valueAt(fileCount - 1);
                 IntervalStats stats = new IntervalStats();
-                UsageStatsXml.read(f, stats);
+                readStatsFile(f, stats, null);
                 return stats;
             } catch (IOException e) {
                 Slog.e(TAG, "Failed to read usage stats file", e);
@@ -391,6 +474,17 @@ class UsageStatsDatabase {
      */
     public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
             StatCombiner<T> combiner) {
+        return queryUsageStats(intervalType, beginTime, endTime, null, combiner);
+    }
+
+    /**
+     * Find all {@link IntervalStats} for the given range and interval type.
+     *
+     * @param packageName if not null, the stats passed to the combiner may hold only the package
+     *                    stats and events of this package, and no configurations.
+     */
+    public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
+            String packageName, StatCombiner<T> combiner) {
         synchronized (mLock) {
             if (intervalType < 0 || intervalType >= mIntervalDirs.length) {
                 throw new IllegalArgumentException("Bad interval type " + intervalType);
@@ -443,7 +537,7 @@ class UsageStatsDatabase {
                 }
 
                 try {
-                    UsageStatsXml.read(f, stats);
+                    readStatsFile(f, stats, packageName);
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -562,7 +656,7 @@ class UsageStatsDatabase {
                     try {
                         final AtomicFile af = new AtomicFile(f);
                         final IntervalStats stats = new IntervalStats();
-                        UsageStatsXml.read(af, stats);
+                        readStatsFile(af, stats, null);
                         final int pkgCount = stats.packageStats.size();
                         for (int i = 0; i < pkgCount; i++) {
                             UsageStats pkgStats = stats.packageStats.valueAt(i);
@@ -570,7 +664,7 @@ class UsageStatsDatabase {
                                 pkgStats.mChooserCounts.clear();
                             }
                         }
-                        UsageStatsXml.write(af, stats);
+                        writeStatsFile(af, stats);
                     } catch (IOException e) {
                         Slog.e(TAG, "Failed to delete chooser counts from usage stats file", e);
                     }
@@ -596,7 +690,7 @@ class UsageStatsDatabase {
                 mSortedStatFiles[intervalType].put(stats.beginTime, f);
             }
 
-            UsageStatsXml.write(f, stats);
+            writeStatsFile(f, stats);
             stats.lastTimeSaved = f.getLastModifiedTime();
         }
     }
@@ -730,7 +824,7 @@ class UsageStatsDatabase {
             throws IOException {
         IntervalStats stats = new IntervalStats();
         try {
-            UsageStatsXml.read(statsFile, stats);
+            readStatsFile(statsFile, stats, null);
         } catch (IOException e) {
             Slog.e(TAG, "Failed to read usage stats file", e);
             out.writeInt(0);
@@ -143,7 +143,7 @@ final class UsageStatsXmlV1 {
         }
     }
 
-    private static void loadConfigStats(XmlPullParser parser, IntervalStats statsOut)
+    static void loadConfigStats(XmlPullParser parser, IntervalStats statsOut)
             throws XmlPullParserException, IOException {
         final Configuration config = new Configuration();
         Configuration.readXmlAttrs(parser, config);
@@ -258,7 +258,7 @@ final class UsageStatsXmlV1 {
         }
     }
 
-    private static void writeConfigStats(XmlSerializer xml, final IntervalStats stats,
+    static void writeConfigStats(XmlSerializer xml, final IntervalStats stats,
             final ConfigurationStats configStats, boolean isActive) throws IOException {
         xml.startTag(null, CONFIG_TAG);
 
@@ -278,6 +278,15 @@ class UserUsageStatsService {
      */
     private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
             StatCombiner<T> combiner) {
+        return queryStats(intervalType, beginTime, endTime, null, combiner);
+    }
+
+    /**
+     * Like {@link #queryStats(int, long, long, StatCombiner)}, for a combiner that only looks at
+     * {@code packageName}, which lets the database skip the rest of each file.
+     */
+    private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
+            String packageName, StatCombiner<T> combiner) {
         if (intervalType == UsageStatsManager.INTERVAL_BEST) {
             intervalType = mDatabase.findBestFitBucket(beginTime, endTime);
             if (intervalType < 0) {
@@ -317,7 +326,7 @@ class UserUsageStatsService {
 
         // Get the stats from disk.
         List<T> results = mDatabase.queryUsageStats(intervalType, beginTime,
-                truncatedEndTime, combiner);
+                truncatedEndTime, packageName, combiner);
         if (DEBUG) {
             Slog.d(TAG, "Got " + (results != null ? results.size() : 0) + " results from disk");
             Slog.d(TAG, "Current stats beginTime=" + currentStats.beginTime +
@@ -400,7 +409,7 @@ class UserUsageStatsService {
         final ArraySet<String> names = new ArraySet<>();
         names.add(packageName);
         final List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, (stats, mutable, accumulatedResult) -> {
+                beginTime, endTime, packageName, (stats, mutable, accumulatedResult) -> {
                     if (stats.events == null) {
                         return;
                     }
@@ -136,6 +136,93 @@ public class NetworkStatsTest {
         }
     }
 
+    @Test
+    public void testFindIndex_Large() {
+        // large enough to be searched through the hash index
+        final NetworkStats stats = new NetworkStats(TEST_START, 10);
+        for (int uid = 0; uid < 100; uid++) {
+            stats.addValues(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                    DEFAULT_NETWORK_NO, uid, 1L, 0L, 0L, 0L);
+        }
+        for (int uid = 0; uid < 100; uid++) {
+            assertEquals(uid, stats.findIndex(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_NO));
+            assertEquals(uid, stats.findIndexHinted(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE,
+                    METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, 99 - uid));
+        }
+        assertEquals(-1, stats.findIndex(TEST_IFACE2, 1, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+
+        // rows appended after indexing are found
+        stats.addValues(TEST_IFACE2, 1, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 0L, 0L, 0L, 0L, 0L);
+        assertEquals(100, stats.findIndex(TEST_IFACE2, 1, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+
+        // and filtering rewrites the rows
+        stats.filter(50, INTERFACES_ALL, TAG_ALL);
+        assertEquals(1, stats.size());
+        assertEquals(0, stats.findIndex(TEST_IFACE, 50, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+    }
+
+    @Test
+    public void testFindIndexHinted_LargeDuplicates() {
+        final NetworkStats stats = new NetworkStats(TEST_START, 10);
+        for (int i = 0; i < 40; i++) {
+            stats.addValues(TEST_IFACE, i % 20, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                    DEFAULT_NETWORK_NO, i, 1L, 0L, 0L, 0L);
+        }
+        // the first row is found, and hinting still picks the nearest duplicate
+        assertEquals(5, stats.findIndex(TEST_IFACE, 5, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+        assertEquals(25, stats.findIndexHinted(TEST_IFACE, 5, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, 27));
+    }
+
+    @Test
+    public void testSubtractLarge() {
+        final NetworkStats before = new NetworkStats(TEST_START, 10);
+        final NetworkStats after = new NetworkStats(TEST_START + 1000, 10);
+        for (int uid = 0; uid < 100; uid++) {
+            before.addValues(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, 1024L, 8L, 0L, 0L, 0L);
+        }
+        // rows shifted by one, plus a new one
+        after.addValues(TEST_IFACE2, 0, SET_DEFAULT, TAG_NONE, 10L, 1L, 0L, 0L, 0L);
+        for (int uid = 0; uid < 100; uid++) {
+            after.addValues(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, 1024L + uid, 8L, 0L, 0L, 0L);
+        }
+
+        final NetworkStats recycle = new NetworkStats(0, 200);
+        final NetworkStats result = NetworkStats.subtract(after, before, null, null, recycle);
+        assertTrue(result == recycle);
+        assertEquals(101, result.size());
+        assertEquals(1000, result.getElapsedRealtime());
+        assertValues(result, 0, TEST_IFACE2, 0, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 10L, 1L, 0L, 0L, 0L);
+        for (int uid = 0; uid < 100; uid++) {
+            assertValues(result, uid + 1, TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_NO, uid, 0L, 0L, 0L, 0L);
+        }
+    }
+
+    @Test
+    public void testGroupedByUidLarge() {
+        final NetworkStats stats = new NetworkStats(TEST_START, 10);
+        for (int uid = 0; uid < 50; uid++) {
+            stats.addValues(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, 128L, 2L, 64L, 1L, 1L);
+            stats.addValues(TEST_IFACE2, uid, SET_FOREGROUND, TAG_NONE, 128L, 2L, 64L, 1L, 1L);
+            stats.addValues(TEST_IFACE2, uid, SET_FOREGROUND, 0xF00D, 32L, 1L, 0L, 0L, 0L);
+        }
+
+        final NetworkStats grouped = stats.groupedByUid();
+        assertEquals(50, grouped.size());
+        for (int uid = 0; uid < 50; uid++) {
+            assertValues(grouped, uid, IFACE_ALL, uid, SET_ALL, TAG_NONE, METERED_ALL,
+                    ROAMING_ALL, DEFAULT_NETWORK_ALL, 256L, 4L, 128L, 2L, 2L);
+        }
+    }
+
     @Test
     public void testAddEntryGrow() throws Exception {
         final NetworkStats stats = new NetworkStats(TEST_START, 4);
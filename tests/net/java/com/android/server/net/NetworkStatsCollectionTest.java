@@ -189,6 +189,96 @@ public class NetworkStatsCollectionTest {
                 77017831L, 100995L, 35436758L, 92344L);
     }
 
+    @Test
+    public void testColumnar() throws Exception {
+        final File testFile =
+                new File(InstrumentationRegistry.getContext().getFilesDir(), TEST_FILE);
+        stageFile(R.raw.netstats_uid_v4, testFile);
+
+        final NetworkStatsCollection collection = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        collection.readLegacyUid(testFile, true);
+
+        final FileOutputStream out = new FileOutputStream(testFile);
+        try {
+            NetworkStatsColumnarCollection.write(collection, 30 * MINUTE_IN_MILLIS,
+                    new DataOutputStream(out));
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        final NetworkStatsColumnarCollection columnar = NetworkStatsColumnarCollection.map(
+                testFile);
+
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        assertEquals(collection.getStartMillis(), columnar.getStartMillis());
+        assertEquals(collection.getEndMillis(), columnar.getEndMillis());
+        assertEquals(collection.getTotalBytes(), columnar.getTotalBytes());
+        assertEntry(collection.getSummary(template, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid()).getTotalIncludingTags(null),
+                columnar.getSummary(template, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid()).getTotalIncludingTags(null));
+        // prorated across buckets
+        final long start = collection.getStartMillis() + 7 * MINUTE_IN_MILLIS;
+        final long end = collection.getEndMillis() - 11 * MINUTE_IN_MILLIS;
+        assertEntry(collection.getSummary(template, start, end,
+                NetworkStatsAccess.Level.DEVICE, myUid()).getTotalIncludingTags(null),
+                columnar.getSummary(template, start, end,
+                NetworkStatsAccess.Level.DEVICE, myUid()).getTotalIncludingTags(null));
+
+        final int[] uids = collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE, myUid());
+        MoreAsserts.assertEquals(uids,
+                columnar.getRelevantUids(NetworkStatsAccess.Level.DEVICE, myUid()));
+        for (int uid : uids) {
+            final NetworkStatsHistory expected = collection.getHistory(template, null, uid,
+                    SET_ALL, TAG_NONE, FIELD_ALL, start, end, NetworkStatsAccess.Level.DEVICE,
+                    myUid());
+            final NetworkStatsHistory actual = columnar.getHistory(template, null, uid,
+                    SET_ALL, TAG_NONE, FIELD_ALL, start, end, NetworkStatsAccess.Level.DEVICE,
+                    myUid());
+            assertEquals(expected.size(), actual.size());
+            assertEntry(expected.getValues(Long.MIN_VALUE, Long.MAX_VALUE, null),
+                    actual.getValues(Long.MIN_VALUE, Long.MAX_VALUE, null));
+        }
+
+        // stats recorded since the file was written are included
+        final NetworkStatsCollection overlay = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+        overlay.recordData(ident, UID_ALL, SET_DEFAULT, TAG_NONE, TIME_A, TIME_B,
+                new NetworkStats.Entry(1024L, 8L, 512L, 4L, 0L));
+        final NetworkStats.Entry before = columnar.getSummary(template, Long.MIN_VALUE,
+                Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE, myUid()).getTotal(null);
+        final NetworkStatsColumnarCollection withOverlay = columnar.withOverlay(overlay);
+        final NetworkStats.Entry after = withOverlay.getSummary(template,
+                Long.MIN_VALUE, Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE, myUid())
+                .getTotal(null);
+        assertEntry(before.rxBytes + 1024L, before.rxPackets + 8L, before.txBytes + 512L,
+                before.txPackets + 4L, after);
+
+        // an updated copy starts from the buckets of the last one
+        final NetworkStatsCollection rebuilt = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        columnar.recordInto(rebuilt, Long.MIN_VALUE);
+        assertEquals(collection.getTotalBytes(), rebuilt.getTotalBytes());
+        assertEntry(collection.getSummary(template, start, end,
+                NetworkStatsAccess.Level.DEVICE, myUid()).getTotalIncludingTags(null),
+                rebuilt.getSummary(template, start, end,
+                NetworkStatsAccess.Level.DEVICE, myUid()).getTotalIncludingTags(null));
+        final NetworkStatsCollection trimmed = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        columnar.recordInto(trimmed, start);
+        assertEquals(0, trimmed.getSummary(template, Long.MIN_VALUE, start,
+                NetworkStatsAccess.Level.DEVICE, myUid()).getTotalBytes());
+
+        // the file stays mapped until every copy is released
+        columnar.release();
+        withOverlay.getRelevantUids(NetworkStatsAccess.Level.DEVICE, myUid());
+        withOverlay.release();
+        try {
+            withOverlay.getRelevantUids(NetworkStatsAccess.Level.DEVICE, myUid());
+            fail("queried an unmapped file");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
     @Test
     public void testStartEndAtomicBuckets() throws Exception {
         final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);